@@ -31,6 +31,7 @@
 
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -45,7 +46,8 @@ public class Counter3D {
     String title="img";
     int minSize, maxSize, nbObj=0, nbSurfPix=0;
     int[] imgArray, objID, IDcount, surfList;
-    boolean[] IDisAtEdge;
+    LabelTable stats;
+    AtomicInteger slicesDone;
     int[][] surfCoord;
     float[][] centreOfMass, centroid;
     boolean sizeFilter=true, exclude=false, redirect=false, closeImg=Prefs.get("3D-OC-Options_closeImg.boolean", false), showMaskedImg=Prefs.get("3D-OC-Options_showMaskedImg.boolean", true);
@@ -213,134 +215,92 @@ public Counter3D(int[] img, String title, int width, int height, int nbSlices) {
     /** Generates the connexity analysis.
      */
     private void findObjects() {
-        //First ID attribution
-        int currID=0;
-        int currPos=0;
-        int minID=0;
-        int surfPix=0;
-        int neigbNb=0;
-        int pos, currPixID;
-        int neigbX, neigbY, neigbZ;
-        
-        long start=System.currentTimeMillis();
         /*
          Finding the structures:
-         *The minID tag is initialized with the current value of tag (currID).If thresholded,
-         *the neighborhood of the current pixel is collected. For each of those 13 pixels,
-         *the value is retrieved and tested against minID: only the minimum of the two is kept.
-         *As anterior pixels have already been tagged, only two possibilities may exists:
-         *1-The minimum is currID: we start a new structure and currID should be incremented
-         *2-The minimum is not currID: we continue an already existing structure
-         *Each time a new pixel is tagged, a counter of pixels in the current tag is incremented.
+         *The stack is cut into slabs of consecutive slices which are labelled in parallel. Within a slab,
+         *each thresholded pixel takes the label of its 13 anterior neighbours (4 in 2D) and the labels
+         *found among those neighbours are merged in the slab's equivalence table. Volume, centroid,
+         *centre of mass, bounding box and surface pixels are accumulated per label during the same pass.
+         *The slabs' tables are then concatenated and merged along the slab borders.
          */
-                
         objID=new int[length];
+        isSurf=new boolean[length];
+        nbSurfPix=0;
         
-        for (int z=1; z<=nbSlices; z++){
-            for (int y=0; y<height; y++){
-                for (int x=0; x<width; x++){
-                    if (minID==currID) currID++;
-                    if (imgArray[currPos]!=0){
-                        minID=currID;
-                        minID=minAntTag(minID, x, y, z);
-                        objID[currPos]=minID;
-                    }
-                    currPos++;
-                }
-            }
-            //IJ.showStatus("Finding structures "+z*100/nbSlices+"%");
-            IJ.showStatus("Step 1/3: Finding structures");
-            IJ.showProgress(z, nbSlices);
+        int nbSlabs=Math.max(1, Math.min(Prefs.getThreads(), nbSlices));
+        SlabLabeller[] slabs=new SlabLabeller[nbSlabs];
+        Thread[] threads=new Thread[nbSlabs];
+        slicesDone=new AtomicInteger(0);
+        for (int i=0; i<nbSlabs; i++){
+            slabs[i]=new SlabLabeller(1+i*nbSlices/nbSlabs, 1+(i+1)*nbSlices/nbSlabs);
+            threads[i]=new Thread(slabs[i]);
         }
+        startAndJoin(threads);
         IJ.showStatus("");
         
-        IDcount=new int[currID];
-        for (int i=0; i<length; i++) IDcount[objID[i]]++;
+        int nbLabels=0;
+        for (int i=0; i<nbSlabs; i++) nbLabels+=slabs[i].labels.nbLabels;
+        LabelTable labels=new LabelTable(nbLabels);
+        int[] labelOffset=new int[nbSlabs];
+        for (int i=0; i<nbSlabs; i++){
+            labelOffset[i]=labels.append(slabs[i].labels);
+            nbSurfPix+=slabs[i].nbSurfPix;
+            slabs[i].labels=null;
+        }
         
-        IDisAtEdge=new boolean[currID];
-        Arrays.fill(IDisAtEdge, false);
         /*
          *Connecting structures:
-         *The first tagging of structure may have led to shearing apart pieces of a same structure
-         *This part will connect them back by attributing the minimal retrieved tag among the 13 neighboring
-         *pixels located prior to the current pixel + the centre pixel and will replace all the values of those pixels
-         *by the minimum value.
+         *Each pixel of the first slice of a slab is connected to its 9 neighbours within the last slice of the previous slab.
          */
-        isSurf=new boolean[length];
-        currPos=0;
-        minID=1;
-                
-        for (int z=1; z<=nbSlices; z++){
+        int sliceSize=width*height;
+        for (int i=1; i<nbSlabs; i++){
+            int currPos=(slabs[i].zStart-1)*sliceSize;
             for (int y=0; y<height; y++){
                 for (int x=0; x<width; x++){
                     if (imgArray[currPos]!=0){
-                        minID=objID[currPos];
-                        surfPix=0;
-                        neigbNb=0;
-                        //Find the minimum tag in the neighbours pixels
-                        for (neigbZ=z-1; neigbZ<=z+1; neigbZ++){
-                            for (neigbY=y-1; neigbY<=y+1; neigbY++){
-                                for (neigbX=x-1; neigbX<=x+1; neigbX++){
-                                    //Following line is important otherwise objects might be linked from one side of the stack to the other !!!
-                                    if (neigbX>=0 && neigbX<width && neigbY>=0 && neigbY<height && neigbZ>=1 && neigbZ<=nbSlices){
-                                        pos=offset(neigbX, neigbY, neigbZ);
-                                        if (imgArray[pos]!=0){
-                                            if ((nbSlices>1 && ((neigbX==x && neigbY==y && neigbZ==z-1) ||(neigbX==x && neigbY==y && neigbZ==z+1))) ||(neigbX==x && neigbY==y-1 && neigbZ==z) ||(neigbX==x && neigbY==y+1 && neigbZ==z) ||(neigbX==x-1 && neigbY==y && neigbZ==z) ||(neigbX==x+1 && neigbY==y && neigbZ==z)) surfPix++;
-                                            minID=Math.min(minID, objID[pos]);
-                                        }
-                                        neigbNb++;
-                                    }
-                                }
+                        for (int neigbY=Math.max(0, y-1); neigbY<=Math.min(height-1, y+1); neigbY++){
+                            for (int neigbX=Math.max(0, x-1); neigbX<=Math.min(width-1, x+1); neigbX++){
+                                int pos=currPos-sliceSize+(neigbY-y)*width+neigbX-x;
+                                if (imgArray[pos]!=0) labels.union(labelOffset[i]+objID[currPos], labelOffset[i-1]+objID[pos]);
                             }
                         }
-                        if ((surfPix!=6 && nbSlices>1) || (surfPix!=4 && nbSlices==1)){
-                            isSurf[currPos]=true;
-                            nbSurfPix++;
-                        }else{
-                            isSurf[currPos]=false;
-                        }
-                        //Replacing tag by the minimum tag found
-                        for (neigbZ=z-1; neigbZ<=z+1; neigbZ++){
-                            for (neigbY=y-1; neigbY<=y+1; neigbY++){
-                                for (neigbX=x-1; neigbX<=x+1; neigbX++){
-                                    //Following line is important otherwise objects might be linked from one side of the stack to the other !!!
-                                    if (neigbX>=0 && neigbX<width && neigbY>=0 && neigbY<height && neigbZ>=1 && neigbZ<=nbSlices){
-                                        pos=offset(neigbX, neigbY, neigbZ);
-                                        if (imgArray[pos]!=0){
-                                            currPixID=objID[pos];
-                                            if (currPixID>minID) replaceID(currPixID, minID);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        
-                        //Check if the current particle is touching an edge
-                        if(x==0 || y==0 || x==width-1 || y==height-1 || (nbSlices!=1 && (z==1 || z==nbSlices))) IDisAtEdge[minID]=true;
                     }
                     currPos++;
                 }
             }
             IJ.showStatus("Step 2/3: Connecting structures");
-            IJ.showProgress(z, nbSlices);
+            IJ.showProgress(i, nbSlabs-1);
         }
         IJ.showStatus("");
         
+        //Renumbering of all the found objects while filtering based on the number of pixels: as each structure
+        //carries the smallest of its labels, which is the one of its first pixel, objects are numbered in scanning order
+        final int[] newID=new int[labels.nbLabels+1];
         int newCurrID=0;
-        
-        //Renumbering of all the found objects and update of their respective number of pixels while filtering based on the number of pixels
-        for (int i=1; i<IDcount.length; i++){
-            if ((IDcount[i]!=0 && IDcount[i]>=minSize && IDcount[i]<=maxSize)&& (!exclude || !(exclude && IDisAtEdge[i]))){
-                newCurrID++;
-                int nbPix=IDcount[i];
-                replaceID(i, newCurrID);
-                IDcount[newCurrID]=nbPix;
+        for (int i=1; i<=labels.nbLabels; i++){
+            int root=labels.find(i);
+            if (root==i){
+                int nbPix=labels.count[i];
+                if (nbPix>=minSize && nbPix<=maxSize && (!exclude || !labels.isAtEdge[i])) newID[i]=++newCurrID;
             }else{
-                replaceID(i,0);
+                newID[i]=newID[root];
             }
-            IJ.showStatus("Step 3/3: Renumbering structures");
-            IJ.showProgress(i, currID);
         }
+        stats=labels.extract(newID, newCurrID);
+        IDcount=stats.count;
+        labels=null;
+        
+        for (int i=0; i<nbSlabs; i++){
+            final SlabLabeller slab=slabs[i];
+            final int offset=labelOffset[i];
+            threads[i]=new Thread(){
+                public void run(){
+                    slab.relabel(newID, offset);
+                }
+            };
+        }
+        IJ.showStatus("Step 3/3: Renumbering structures");
+        startAndJoin(threads);
         IJ.showStatus("");
         
         if (redirect) prepareImgArrayForRedirect();
@@ -441,7 +401,7 @@ public Vector getObjectsList(){
      * @param fontSize font size of the numbers to be shown (integer).* @return an ImagePlus containing all found objects, each one carrying pixel value equal to its ID.
      */
     public ImagePlus getObjMap(boolean drawNb, int fontSize){
-        if (!getObjects) getObjects();
+        if (!foundObjects) findObjects();
         if (!getCentroid) populateCentroid();
         return buildImg(objID, coord2imgArray(centroid), "Objects map of "+title, false, drawNb, true, 0, fontSize);
     }
@@ -452,7 +412,7 @@ public ImagePlus getObjMap(boolean drawNb, int fontSize){
      * @return an ImagePlus containing all found objects, each one carrying pixel value equal to its ID.
      */
     public ImagePlus getObjMap(){
-        if (!getObjects) getObjects();
+        if (!foundObjects) findObjects();
         return buildImg(objID, null, "Objects map of "+title, false, false, true, 0, 0);
     }
 
@@ -462,20 +422,28 @@ public ImagePlus getObjMap(){
      * @return an ImagePlus containing all found objects, each one carrying pixel value equal to its ID.
      */
     public int[] getObjMapAsArray(){
-        if (!getObjects) getObjects();
+        if (!foundObjects) findObjects();
         return objID;
     }
     
     /** Generates and fills the "centreOfMass" array.
      */
     private void populateCentreOfMass(){
-        if (!getObjects) getObjects();
-        centreOfMass=new float[obj.size()][3];
+        if (!foundObjects) findObjects();
         
-        for (int i=0; i<obj.size(); i++){
-            Object3D currObj=(Object3D) obj.get(i);
-            float [] tmp=currObj.c_mass;
-            for (int j=0; j<3; j++) centreOfMass[i][j]=tmp[j];
+        if (getObjects){
+            //The objects list might have been edited
+            centreOfMass=new float[obj.size()][3];
+            for (int i=0; i<obj.size(); i++){
+                Object3D currObj=(Object3D) obj.get(i);
+                float [] tmp=currObj.c_mass;
+                for (int j=0; j<3; j++) centreOfMass[i][j]=tmp[j];
+            }
+        }else{
+            centreOfMass=new float[nbObj][3];
+            for (int i=0; i<nbObj; i++){
+                for (int j=0; j<3; j++) centreOfMass[i][j]=(float) stats.massSum[4*(i+1)+j]/(float) stats.massSum[4*(i+1)+3];
+            }
         }
         getCentreOfMass=true;
     }
@@ -517,13 +485,21 @@ public ImagePlus getCentreOfMassMap(){
     /** Generates and fills the "centroid" array.
      */
     private void populateCentroid(){
-        if (!getObjects) getObjects();
-        centroid=new float[obj.size()][3];
+        if (!foundObjects) findObjects();
         
-        for (int i=0; i<obj.size(); i++){
-            Object3D currObj=(Object3D) obj.get(i);
-            float [] tmp=currObj.centroid;
-            for (int j=0; j<3; j++) centroid[i][j]=tmp[j];
+        if (getObjects){
+            //The objects list might have been edited
+            centroid=new float[obj.size()][3];
+            for (int i=0; i<obj.size(); i++){
+                Object3D currObj=(Object3D) obj.get(i);
+                float [] tmp=currObj.centroid;
+                for (int j=0; j<3; j++) centroid[i][j]=tmp[j];
+            }
+        }else{
+            centroid=new float[nbObj][3];
+            for (int i=0; i<nbObj; i++){
+                for (int j=0; j<3; j++) centroid[i][j]=(float) stats.coordSum[3*(i+1)+j]/stats.count[i+1];
+            }
         }
         getCentroid=true;
     }
@@ -562,10 +538,51 @@ public ImagePlus getCentroidMap(){
         return buildImg(array, null, "Centroids map of "+title, true, false, false, 5, 0);
     }
     
+    /**
+     * Returns the objects' sizes, as found by the connexity analysis.
+     *
+     * @return the number of pixels of all found objects as an integer array ([ID]).
+     */
+    public int[] getSizeList(){
+        if (!foundObjects) findObjects();
+        int[] size=new int[nbObj];
+        System.arraycopy(stats.count, 1, size, 0, nbObj);
+        return size;
+    }
+    
+    /**
+     * Returns the objects' numbers of surface pixels, as found by the connexity analysis.
+     *
+     * @return the number of surface pixels of all found objects as an integer array ([ID]).
+     */
+    public int[] getSurfSizeList(){
+        if (!foundObjects) findObjects();
+        int[] size=new int[nbObj];
+        System.arraycopy(stats.surfCount, 1, size, 0, nbObj);
+        return size;
+    }
+    
+    /**
+     * Returns the bounding boxes' list, as found by the connexity analysis.
+     *
+     * @return the bounding boxes of all found objects as a dual integer array ([ID][0:x, 1:y, 2:z, 3:width, 4:height, 5:depth]).
+     */
+    public int[][] getBoundingBoxList(){
+        if (!foundObjects) findObjects();
+        int[][] box=new int[nbObj][6];
+        for (int i=0; i<nbObj; i++){
+            for (int j=0; j<3; j++){
+                box[i][j]=stats.boxMin[3*(i+1)+j];
+                box[i][j+3]=stats.boxMax[3*(i+1)+j]-stats.boxMin[3*(i+1)+j]+1;
+            }
+        }
+        return box;
+    }
+    
     /** Generates and fills the "surface" array.
      */
     private void populateSurfList(){
-        if (!getObjects) getObjects();
+        if (!foundObjects) findObjects();
         
         surfList=new int[length];
         for (int i=0; i<length; i++) surfList[i]=isSurf[i]?objID[i]:0;
@@ -690,12 +707,15 @@ private void prepareImgArrayForRedirect(){
         int index=0;
         ImagePlus imgRedir=WindowManager.getImage(Prefs.get("3D-OC-Options_redirectTo.string", "none"));
         title=title+" redirect to "+imgRedir.getTitle();
+        //The centres of mass are to be weighted by the intensities of the redirected image
+        Arrays.fill(stats.massSum, 0);
         for (int i=1; i<=nbSlices; i++){
             imgRedir.setSlice(i);
             for (int j=0; j<height; j++){
                 for (int k=0; k<width; k++){
                     if (objID[index]!=0){
                         imgArray[index]=imgRedir.getProcessor().getPixel(k, j);
+                        stats.addIntensity(objID[index], k, j, i, imgArray[index]);
                     }else{
                         imgArray[index]=0;
                     }
@@ -827,64 +847,6 @@ private int offset(int m,int n,int o){
         }
     }
     
-    /** Returns the minimum anterior tag among the 13 previous pixels (4 pixels in 2D).
-     * @param initialValue: value to which the 13 (or 4) retrieved values should be compared to
-     * @param x coordinate of the current pixel.
-     * @param y coordinate of the current pixel.
-     * @param z coordinate of the current pixel.
-     * @return the minimum found anterior tag as an integer.
-     */
-    private int minAntTag(int initialValue, int x, int y, int z){
-        int min=initialValue;
-        int currPos;
-
-        for (int neigbY=y-1; neigbY<=y+1; neigbY++){
-            for (int neigbX=x-1; neigbX<=x+1; neigbX++){
-                //Following line is important otherwise objects might be linked from one side of the stack to the other !!!
-                if (neigbX>=0 && neigbX<width && neigbY>=0 && neigbY<height && z-1>=1 && z-1<=nbSlices){
-                    currPos=offset(neigbX, neigbY, z-1);
-                    if (imgArray[currPos]!=0) min=Math.min(min, objID[currPos]);
-                }
-            }
-        }
-
-        for (int neigbX=x-1; neigbX<=x+1; neigbX++){
-            //Following line is important otherwise objects might be linked from one side of the stack to the other !!!
-            if (neigbX>=0 && neigbX<width && y-1>=0 && y-1<height && z>=1 && z<=nbSlices){
-                currPos=offset(neigbX, y-1, z);
-                if (imgArray[currPos]!=0) min=Math.min(min, objID[currPos]);
-            }
-        }
-
-        //Following line is important otherwise objects might be linked from one side of the stack to the other !!!
-        if (x-1>=0 && x-1<width && y>=0 && y<height && z>=1 && z<=nbSlices ){
-            currPos=offset(x-1, y, z);
-            if (imgArray[currPos]!=0 && x>=1 && y>=0 && z>=1) min=Math.min(min, objID[currPos]);
-        }
-
-        return min;
-    }
-    
-    /** Replaces one object ID by another within the objID array.
-     * @param old value to be replaced.
-     * @param new value to be replaced by. </P>
-     * NB: the arrays carrying the number of pixels/surface pixels carrying those IDs will also be updated.
-     */
-    private void replaceID(int oldVal, int newVal){
-        if (oldVal!=newVal){
-            int nbFoundPix=0;
-            for (int i=0; i<objID.length; i++){
-                if (objID[i]==oldVal){
-                    objID[i]=newVal;
-                    nbFoundPix++;
-                }
-                if (nbFoundPix==IDcount[oldVal]) i=objID.length;
-            }
-            IDcount[oldVal]=0;
-            IDcount[newVal]+=nbFoundPix;
-         }
-    }
-    
     /** Generates the ImagePlus based on Counter3D object width, height and number of slices, the input array and title.
      * @param imgArray containing the pixels intensities (integer array).
      * @param cenArray containing the coordinates of pixels where the labels should be put (integer array).
@@ -958,4 +920,273 @@ private ImagePlus buildImg(int[] imgArray, int[] cenArray, String title, boolean
         img.setDisplayRange(min, max);
         return img;
     }
+    
+    /** Runs the threads and waits for them to finish.
+     * @param threads the threads to be run.
+     */
+    private static void startAndJoin(Thread[] threads){
+        for (int i=0; i<threads.length; i++) threads[i].start();
+        try{
+            for (int i=0; i<threads.length; i++) threads[i].join();
+        }catch (InterruptedException e){
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /** Labels the thresholded pixels of a slab of consecutive slices, independently of the other slabs.
+     *  Labels are local to the slab: objID carries them until the slab is renumbered by relabel.
+     */
+    private class SlabLabeller implements Runnable{
+        /**First slice of the slab and first slice after it (1-based)*/
+        final int zStart, zEnd;
+        LabelTable labels=new LabelTable(64);
+        int nbSurfPix=0;
+        
+        SlabLabeller(int zStart, int zEnd){
+            this.zStart=zStart;
+            this.zEnd=zEnd;
+        }
+        
+        public void run(){
+            int sliceSize=width*height;
+            int currPos=(zStart-1)*sliceSize;
+            for (int z=zStart; z<zEnd; z++){
+                for (int y=0; y<height; y++){
+                    for (int x=0; x<width; x++){
+                        if (imgArray[currPos]!=0){
+                            int label=0;
+                            //The previous slice is only looked at when it belongs to the slab, slabs being connected afterwards
+                            if (z>zStart){
+                                for (int neigbY=Math.max(0, y-1); neigbY<=Math.min(height-1, y+1); neigbY++){
+                                    for (int neigbX=Math.max(0, x-1); neigbX<=Math.min(width-1, x+1); neigbX++){
+                                        int pos=currPos-sliceSize+(neigbY-y)*width+neigbX-x;
+                                        if (imgArray[pos]!=0) label=link(label, objID[pos]);
+                                    }
+                                }
+                            }
+                            if (y>0){
+                                for (int neigbX=Math.max(0, x-1); neigbX<=Math.min(width-1, x+1); neigbX++){
+                                    int pos=currPos-width+neigbX-x;
+                                    if (imgArray[pos]!=0) label=link(label, objID[pos]);
+                                }
+                            }
+                            if (x>0 && imgArray[currPos-1]!=0) label=link(label, objID[currPos-1]);
+                            if (label==0) label=labels.newLabel();
+                            objID[currPos]=label;
+                            
+                            boolean surf=isSurface(x, y, z, currPos);
+                            isSurf[currPos]=surf;
+                            if (surf) nbSurfPix++;
+                            boolean atEdge=x==0 || y==0 || x==width-1 || y==height-1 || (nbSlices!=1 && (z==1 || z==nbSlices));
+                            labels.addVoxel(label, x, y, z, imgArray[currPos], surf, atEdge);
+                        }
+                        currPos++;
+                    }
+                }
+                IJ.showStatus("Step 1/3: Finding structures");
+                IJ.showProgress(slicesDone.incrementAndGet(), nbSlices);
+            }
+        }
+        
+        /** Merges the current label with the one of an anterior neighbour.
+         * @param label current label of the pixel, 0 if none has been found yet.
+         * @param neigbLabel label of the neighbour.
+         * @return the root label of the merged structure.
+         */
+        private int link(int label, int neigbLabel){
+            if (label==0) return labels.find(neigbLabel);
+            return labels.union(label, neigbLabel);
+        }
+        
+        /** Replaces the slab's labels by the objects' final IDs within the objID array.
+         * @param newID final ID of each label of the merged table, 0 for filtered structures.
+         * @param offset offset of the slab's labels within the merged table.
+         */
+        void relabel(int[] newID, int offset){
+            int sliceSize=width*height;
+            for (int i=(zStart-1)*sliceSize; i<(zEnd-1)*sliceSize; i++){
+                if (objID[i]!=0) objID[i]=newID[offset+objID[i]];
+            }
+        }
+    }
+    
+    /** Returns true if the pixel is at the surface of its object, i.e. if one of its 6 direct neighbours (4 in 2D) is not thresholded.
+     * @param x coordinate of the pixel.
+     * @param y coordinate of the pixel.
+     * @param z coordinate of the pixel.
+     * @param currPos index of the pixel.
+     */
+    private boolean isSurface(int x, int y, int z, int currPos){
+        int sliceSize=width*height;
+        int surfPix=0;
+        if (x>0 && imgArray[currPos-1]!=0) surfPix++;
+        if (x<width-1 && imgArray[currPos+1]!=0) surfPix++;
+        if (y>0 && imgArray[currPos-width]!=0) surfPix++;
+        if (y<height-1 && imgArray[currPos+width]!=0) surfPix++;
+        if (nbSlices==1) return surfPix!=4;
+        if (z>1 && imgArray[currPos-sliceSize]!=0) surfPix++;
+        if (z<nbSlices && imgArray[currPos+sliceSize]!=0) surfPix++;
+        return surfPix!=6;
+    }
+    
+    /** Equivalence table of the structures' labels, carrying the statistics of each structure in primitive arrays.
+     *  Labels start at 1; when two structures are connected, the smallest label is kept as the root and
+     *  the statistics of the other one are added to it.
+     */
+    static class LabelTable{
+        int nbLabels=0;
+        int[] parent, count, surfCount;
+        /**Bounding box corners, [3*label+0:x, 1:y, 2:z]*/
+        int[] boxMin, boxMax;
+        /**Sum of the coordinates, [3*label+0:x, 1:y, 2:z]*/
+        long[] coordSum;
+        /**Sum of the intensity-weighted coordinates and of the intensities, [4*label+0:x, 1:y, 2:z, 3:intensity]*/
+        long[] massSum;
+        boolean[] isAtEdge;
+        
+        LabelTable(int capacity){
+            allocate(capacity+1);
+        }
+        
+        private void allocate(int capacity){
+            parent=grow(parent, capacity);
+            count=grow(count, capacity);
+            surfCount=grow(surfCount, capacity);
+            boxMin=grow(boxMin, 3*capacity);
+            boxMax=grow(boxMax, 3*capacity);
+            coordSum=grow(coordSum, 3*capacity);
+            massSum=grow(massSum, 4*capacity);
+            boolean[] edge=new boolean[capacity];
+            if (isAtEdge!=null) System.arraycopy(isAtEdge, 0, edge, 0, nbLabels+1);
+            isAtEdge=edge;
+        }
+        
+        private int[] grow(int[] array, int capacity){
+            int[] newArray=new int[capacity];
+            if (array!=null) System.arraycopy(array, 0, newArray, 0, array.length);
+            return newArray;
+        }
+        
+        private long[] grow(long[] array, int capacity){
+            long[] newArray=new long[capacity];
+            if (array!=null) System.arraycopy(array, 0, newArray, 0, array.length);
+            return newArray;
+        }
+        
+        /** Creates a new, empty structure.
+         * @return its label.
+         */
+        int newLabel(){
+            if (nbLabels+1>=parent.length) allocate(2*parent.length);
+            int label=++nbLabels;
+            parent[label]=label;
+            for (int i=0; i<3; i++){
+                boxMin[3*label+i]=Integer.MAX_VALUE;
+                boxMax[3*label+i]=Integer.MIN_VALUE;
+            }
+            return label;
+        }
+        
+        /** Returns the root label of the structure the label belongs to.
+         */
+        int find(int label){
+            while (parent[label]!=label){
+                parent[label]=parent[parent[label]];
+                label=parent[label];
+            }
+            return label;
+        }
+        
+        /** Connects the structures carrying the two labels.
+         * @return the root label of the connected structure.
+         */
+        int union(int label1, int label2){
+            int root=find(label1);
+            int other=find(label2);
+            if (root==other) return root;
+            if (other<root){
+                int tmp=root;
+                root=other;
+                other=tmp;
+            }
+            parent[other]=root;
+            count[root]+=count[other];
+            surfCount[root]+=surfCount[other];
+            isAtEdge[root]|=isAtEdge[other];
+            for (int i=0; i<3; i++){
+                boxMin[3*root+i]=Math.min(boxMin[3*root+i], boxMin[3*other+i]);
+                boxMax[3*root+i]=Math.max(boxMax[3*root+i], boxMax[3*other+i]);
+                coordSum[3*root+i]+=coordSum[3*other+i];
+            }
+            for (int i=0; i<4; i++) massSum[4*root+i]+=massSum[4*other+i];
+            return root;
+        }
+        
+        /** Adds a pixel to the structure carrying the root label.
+         */
+        void addVoxel(int root, int x, int y, int z, int val, boolean isSurf, boolean atEdge){
+            count[root]++;
+            if (isSurf) surfCount[root]++;
+            if (atEdge) isAtEdge[root]=true;
+            boxMin[3*root]=Math.min(boxMin[3*root], x);
+            boxMin[3*root+1]=Math.min(boxMin[3*root+1], y);
+            boxMin[3*root+2]=Math.min(boxMin[3*root+2], z);
+            boxMax[3*root]=Math.max(boxMax[3*root], x);
+            boxMax[3*root+1]=Math.max(boxMax[3*root+1], y);
+            boxMax[3*root+2]=Math.max(boxMax[3*root+2], z);
+            coordSum[3*root]+=x;
+            coordSum[3*root+1]+=y;
+            coordSum[3*root+2]+=z;
+            addIntensity(root, x, y, z, val);
+        }
+        
+        /** Adds the intensity of a pixel to the centre of mass sums of the structure carrying the root label.
+         */
+        void addIntensity(int root, int x, int y, int z, int val){
+            massSum[4*root]+=(long) x*val;
+            massSum[4*root+1]+=(long) y*val;
+            massSum[4*root+2]+=(long) z*val;
+            massSum[4*root+3]+=val;
+        }
+        
+        /** Appends the labels of another table, shifting them by the number of labels already present.
+         * @return the offset applied to the appended labels.
+         */
+        int append(LabelTable table){
+            int offset=nbLabels;
+            if (nbLabels+table.nbLabels+1>parent.length) allocate(nbLabels+table.nbLabels+1);
+            for (int i=1; i<=table.nbLabels; i++) parent[offset+i]=offset+table.parent[i];
+            System.arraycopy(table.count, 1, count, offset+1, table.nbLabels);
+            System.arraycopy(table.surfCount, 1, surfCount, offset+1, table.nbLabels);
+            System.arraycopy(table.isAtEdge, 1, isAtEdge, offset+1, table.nbLabels);
+            System.arraycopy(table.boxMin, 3, boxMin, 3*(offset+1), 3*table.nbLabels);
+            System.arraycopy(table.boxMax, 3, boxMax, 3*(offset+1), 3*table.nbLabels);
+            System.arraycopy(table.coordSum, 3, coordSum, 3*(offset+1), 3*table.nbLabels);
+            System.arraycopy(table.massSum, 4, massSum, 4*(offset+1), 4*table.nbLabels);
+            nbLabels+=table.nbLabels;
+            return offset;
+        }
+        
+        /** Returns a table holding the kept root structures only, renumbered.
+         * @param newID new label of each root label, 0 if the structure is not kept.
+         * @param nbKept number of kept structures.
+         */
+        LabelTable extract(int[] newID, int nbKept){
+            LabelTable table=new LabelTable(nbKept);
+            for (int i=1; i<=nbLabels; i++){
+                int id=newID[i];
+                if (id==0 || parent[i]!=i) continue;
+                table.parent[id]=id;
+                table.count[id]=count[i];
+                table.surfCount[id]=surfCount[i];
+                table.isAtEdge[id]=isAtEdge[i];
+                System.arraycopy(boxMin, 3*i, table.boxMin, 3*id, 3);
+                System.arraycopy(boxMax, 3*i, table.boxMax, 3*id, 3);
+                System.arraycopy(coordSum, 3*i, table.coordSum, 3*id, 3);
+                System.arraycopy(massSum, 4*i, table.massSum, 4*id, 4);
+            }
+            table.nbLabels=nbKept;
+            return table;
+        }
+    }
 }
@@ -4,8 +4,13 @@
 import ij.measure.Calibration;
 import ij.plugin.Duplicator;
 import ij.process.StackConverter;
+import isosurface.MeshProperties;
 
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.RandomAccess;
 
 import javax.media.j3d.Appearance;
 import javax.media.j3d.ColoringAttributes;
@@ -16,9 +21,12 @@
 import javax.media.j3d.TransparencyAttributes;
 import javax.media.j3d.TriangleArray;
 import javax.vecmath.Color3f;
+import javax.vecmath.Point3d;
 import javax.vecmath.Point3f;
 import javax.vecmath.Vector3f;
 
+import marchingcubes.MCIndexedMesh;
+
 import vib.InterpolatedImage;
 
 public class CustomIndexedTriangleMesh extends CustomMesh {
@@ -37,6 +45,14 @@ public CustomIndexedTriangleMesh(Point3f[] vertices, int[] faces) {
 		this(vertices, faces, DEFAULT_COLOR, 0);
 	}
 
+	/**
+	 * Creates a mesh from the shared vertices of a marching cubes
+	 * surface, without expanding it into a list of triangles.
+	 */
+	public CustomIndexedTriangleMesh(MCIndexedMesh mesh, Color3f color, float transp) {
+		this(mesh.getPoints(), mesh.getFaces(), color, transp);
+	}
+
 	public CustomIndexedTriangleMesh(Point3f[] vertices, int[] faces, Color3f color, float transp) {
 		this.nVertices = vertices.length;
 		this.nFaces = faces.length;
@@ -74,9 +90,85 @@ public void update() {
 		changed = true;
 	}
 
+	/**
+	 * Replaces the vertices and faces of this mesh, e.g. after the
+	 * isosurface was calculated for a new threshold.
+	 */
+	public void setMesh(Point3f[] vertices, int[] faces) {
+		this.vertices = vertices;
+		this.faces = faces;
+		this.nVertices = vertices.length;
+		this.nFaces = faces.length;
+		if(this.color == null)
+			this.color = DEFAULT_COLOR;
+		this.colors = new Color3f[nVertices];
+		for(int i = 0; i < nVertices; i++)
+			colors[i] = this.color;
+		update();
+	}
+
+	/**
+	 * Replaces the vertices and faces of this mesh by the given list
+	 * of triangles (three points per triangle); equal points become
+	 * one vertex.
+	 */
+	public void setMesh(List<Point3f> triangles) {
+		HashMap<Point3f, Integer> indices = new HashMap<Point3f, Integer>();
+		int[] f = new int[triangles.size()];
+		for(int i = 0; i < f.length; i++) {
+			Point3f p = triangles.get(i);
+			Integer index = indices.get(p);
+			if(index == null) {
+				index = indices.size();
+				indices.put(p, index);
+			}
+			f[i] = index;
+		}
+		Point3f[] v = new Point3f[indices.size()];
+		for(Point3f p : indices.keySet())
+			v[indices.get(p)] = new Point3f(p);
+		setMesh(v, f);
+	}
+
+	public Point3f[] getVertices() {
+		return vertices;
+	}
+
+	public int[] getFaces() {
+		return faces;
+	}
+
+	public int getVertexCount() {
+		return nVertices;
+	}
+
+	public int getFaceCount() {
+		return nFaces;
+	}
+
+	/**
+	 * Returns the triangles, three points per triangle. The list is a
+	 * view of the vertices: it is not copied, and the points of the
+	 * triangles which share a vertex are the same object.
+	 */
 	@Override
-	public List getMesh() {
-		return mesh;
+	public List<Point3f> getMesh() {
+		return new TriangleList();
+	}
+
+	private class TriangleList extends AbstractList<Point3f>
+			implements RandomAccess {
+		@Override
+		public Point3f get(int i) {
+			if(i >= nFaces)
+				throw new IndexOutOfBoundsException("" + i);
+			return vertices[faces[i]];
+		}
+
+		@Override
+		public int size() {
+			return nFaces;
+		}
 	}
 
 	@Override
@@ -133,7 +225,10 @@ public void calculateMinMaxCenterPoint(Point3f min,
 
 	@Override
 	public float getVolume() {
-		throw new IllegalArgumentException("Not supported yet");
+		if(nFaces == 0)
+			return 0;
+		return (float)MeshProperties.compute(getMesh(),
+			new Point3d(), new double[3][3]);
 	}
 
 	// private int[] valid = new int[1];
@@ -324,17 +419,35 @@ protected Appearance createAppearance () {
 
 	@Override
 	public void restoreDisplayedData(String path, String name) {
-		throw new RuntimeException("CustomIndexedTriangleMesh does not support swapping data.");
+		HashMap<String, CustomMesh> contents = null;
+		try {
+			contents = WavefrontLoader.load(path);
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		if(contents != null && contents.containsKey(name))
+			setMesh(contents.get(name).getMesh());
 	}
 
 	@Override
 	public void swapDisplayedData(String path, String name) {
-		throw new RuntimeException("CustomIndexedTriangleMesh does not support swapping data.");
+		HashMap<String, CustomMesh> contents =
+			new HashMap<String, CustomMesh>();
+		contents.put(name, this);
+		try {
+			WavefrontExporter.save(contents, path + ".obj");
+			clearDisplayedData();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	@Override
 	public void clearDisplayedData() {
-		throw new RuntimeException("CustomIndexedTriangleMesh does not support swapping data.");
+		this.vertices = new Point3f[0];
+		this.faces = new int[0];
+		this.colors = new Color3f[0];
+		this.nVertices = this.nFaces = 0;
 	}
 
 	@Override
@@ -91,7 +91,6 @@ public static void save(
 		for(String name : meshes.keySet()) {
 			CustomMesh cmesh = meshes.get(name);
 
-			final List<Point3f> vertices = cmesh.getMesh();
 			// make material, and see whether it exists already
 			Color3f color = cmesh.getColor();
 			if (null == color) {
@@ -114,6 +113,34 @@ public static void save(
 			objWriter.write("g ");
 			objWriter.write(title);
 			objWriter.write('\n');
+
+			// indexed meshes share their vertices already
+			if(cmesh instanceof CustomIndexedTriangleMesh) {
+				CustomIndexedTriangleMesh cim =
+					(CustomIndexedTriangleMesh)cmesh;
+				Point3f[] vertices = cim.getVertices();
+				for(int v = 0; v < cim.getVertexCount(); v++) {
+					Point3f p = vertices[v];
+					tmp.append('v').append(' ')
+					   .append(p.x).append(' ')
+					   .append(p.y).append(' ')
+					   .append(p.z).append('\n');
+					objWriter.write(tmp.toString());
+					tmp.setLength(0);
+				}
+				objWriter.write("usemtl ");
+				objWriter.write(mat.name);
+				objWriter.write('\n');
+				int[] faces = cim.getFaces();
+				int[] index = new int[cim.getFaceCount()];
+				for(int f = 0; f < index.length; f++)
+					index[f] = j + faces[f];
+				writeTriangleFaces(index, objWriter, name);
+				j += cim.getVertexCount();
+				continue;
+			}
+
+			final List<Point3f> vertices = cmesh.getMesh();
 			final int len = vertices.size();
 			int[] index = new int[len];
 
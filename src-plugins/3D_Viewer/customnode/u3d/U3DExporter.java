@@ -24,6 +24,7 @@
 import javax.vecmath.Point3f;
 import javax.vecmath.Vector3f;
 
+import customnode.CustomIndexedTriangleMesh;
 import customnode.CustomMeshNode;
 import customnode.CustomTriangleMesh;
 
@@ -88,8 +89,10 @@ public static void export(Image3DUniverse univ, String path) throws IOException
 			if(cn instanceof CustomMeshNode) {
 				ctm = (CustomTriangleMesh)((CustomMeshNode)cn).getMesh();
 			} else if(cn instanceof MeshGroup) {
-				if(((MeshGroup)cn).getMesh() instanceof CustomTriangleMesh)
-					ctm = ((MeshGroup)cn).getMesh();
+				// the exporter reads the triangles of the geometry
+				CustomIndexedTriangleMesh cim = ((MeshGroup)cn).getMesh();
+				ctm = new CustomTriangleMesh(cim.getMesh(),
+					cim.getColor(), cim.getTransparency());
 			}
 
 			if(ctm != null) {
@@ -46,6 +46,9 @@ public class Content extends BranchGroup implements UniverseListener, ContentCon
 
 	private final boolean swapTimelapseData;
 
+	// creates the time points on demand, if any
+	private TimepointLoader loader = null;
+
 	public Content(String name) {
 		this(name, 0);
 	}
@@ -93,6 +96,39 @@ public Content(String name, TreeMap<Integer, ContentInstant> contents, boolean s
 		addChild(contentSwitch);
 	}
 
+	/**
+	 * Create a Content whose instants are displayed only when they
+	 * are needed.
+	 * @param name
+	 * @param contents the (not yet displayed) instants
+	 * @param loader creates the instants
+	 */
+	public Content(String name, TreeMap<Integer, ContentInstant> contents, TimepointLoader loader) {
+		this(name, contents, false);
+		this.loader = loader;
+	}
+
+	public TimepointLoader getLoader() {
+		return loader;
+	}
+
+	/**
+	 * Returns true if the given time point can be shown without
+	 * creating it first.
+	 */
+	public boolean isLoaded(int tp) {
+		return loader == null || loader.isLoaded(tp);
+	}
+
+	/**
+	 * Create the given time point and the ones following it in
+	 * the background.
+	 */
+	public void prefetch(int tp) {
+		if(loader != null)
+			loader.prefetch(tp);
+	}
+
 	// replace if timepoint is already present
 	public void addInstant(ContentInstant ci) {
 		int timepoint = ci.timepoint;
@@ -140,6 +176,8 @@ public void showTimepoint(int tp) {
 	public void showTimepoint(int tp, boolean force) {
 		if(tp == currentTimePoint && !force)
 			return;
+		if(loader != null && !showAllTimepoints)
+			loader.load(tp);
 		ContentInstant old = getCurrent();
 		if(old != null && !showAllTimepoints) {
 			if(swapTimelapseData)
@@ -163,6 +201,9 @@ public void showTimepoint(int tp, boolean force) {
 			contentSwitch.setWhichChild(Switch.CHILD_NONE);
 		else
 			contentSwitch.setWhichChild(idx);
+
+		if(loader != null)
+			loader.prefetch(tp);
 	}
 
 	public void setShowAllTimepoints(boolean b) {
@@ -205,8 +246,14 @@ public int getEndTime() {
 	// ContentInstants.
 	//
 	public void displayAs(int type) {
-		for(ContentInstant c : contents.values())
-			c.displayAs(type);
+		if(loader != null)
+			loader.setType(type);
+		for(ContentInstant c : contents.values()) {
+			if(c.getImage() == null && loader != null)
+				c.type = type;
+			else
+				c.displayAs(type);
+		}
 	}
 
 	public static int getDefaultThreshold(ImagePlus imp, int type) {
@@ -531,6 +578,8 @@ public synchronized void setTransparency(float transparency) {
 	public void transformationStarted(View view) {}
 	public void contentAdded(Content c) {}
 	public void contentRemoved(Content c) {
+		if(c == this && loader != null)
+			loader.shutdown();
 		for(ContentInstant co : contents.values()) {
 			co.contentRemoved(c);
 		}
@@ -540,6 +589,8 @@ public void contentSelected(Content c) {}
 	public void contentChanged(Content c) {}
 
 	public void universeClosed() {
+		if(loader != null)
+			loader.shutdown();
 		for(ContentInstant c : contents.values()) {
 			c.universeClosed();
 		}
@@ -598,6 +649,8 @@ public void getMin(Point3d min) {
 			Double.MAX_VALUE);
 		Point3d tmp = new Point3d();
 		for(ContentInstant c : contents.values()) {
+			if(c.getContent() == null)
+				continue;
 			c.getContent().getMin(tmp);
 			if(tmp.x < min.x) min.x = tmp.x;
 			if(tmp.y < min.y) min.y = tmp.y;
@@ -611,6 +664,8 @@ public void getMax(Point3d max) {
 			Double.MIN_VALUE);
 		Point3d tmp = new Point3d();
 		for(ContentInstant c : contents.values()) {
+			if(c.getContent() == null)
+				continue;
 			c.getContent().getMax(tmp);
 			if(tmp.x > max.x) max.x = tmp.x;
 			if(tmp.y > max.y) max.y = tmp.y;
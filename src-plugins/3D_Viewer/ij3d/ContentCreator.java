@@ -60,6 +60,10 @@ public static Content createContent(
 				int thresh,
 				boolean[] channels) {
 
+		// swapped time points are all created up front
+		if(image.getNFrames() > 1 && !SWAP_TIMELAPSE_DATA)
+			return createContent(name, new HyperStackIterator(image),
+				type, resf, tp, color, thresh, channels);
 		return createContent(name, getImages(image),
 			type, resf, tp, color, thresh, channels);
 	}
@@ -74,7 +78,13 @@ public static Content createContent(
 				int thresh,
 				boolean[] channels) {
 
-		return createContent(name, getImages(file),
+		if(file.isDirectory() && !SWAP_TIMELAPSE_DATA)
+			return createContent(name, new FileIterator(file),
+				type, resf, tp, color, thresh, channels);
+		if(file.isDirectory())
+			return createContent(name, getImages(file),
+				type, resf, tp, color, thresh, channels);
+		return createContent(name, openImage(file),
 			type, resf, tp, color, thresh, channels);
 	}
 
@@ -88,10 +98,14 @@ public static Content createContent(
 				int thresh,
 				boolean[] channels) {
 
-		TreeMap<Integer, ContentInstant> instants =
-			new TreeMap<Integer, ContentInstant>();
 		boolean timelapse = images.length > 1;
 		boolean shouldSwap = SWAP_TIMELAPSE_DATA && timelapse;
+		if(timelapse && !shouldSwap)
+			return createContent(name, new ArraySource(images),
+				type, resf, tp, color, thresh, channels);
+
+		TreeMap<Integer, ContentInstant> instants =
+			new TreeMap<Integer, ContentInstant>();
 		for(ImagePlus imp : images) {
 			ContentInstant content = new ContentInstant(name);
 			content.image = imp;
@@ -113,6 +127,43 @@ public static Content createContent(
 		return new Content(name, instants, shouldSwap);
 	}
 
+	/**
+	 * Create a 4D Content whose time points are created from the given
+	 * source when they are shown (and a few ones in advance), instead
+	 * of creating all of them at once.
+	 */
+	public static Content createContent(
+				String name,
+				TimepointLoader.ImageSource source,
+				int type,
+				int resf,
+				int tp,
+				Color3f color,
+				int thresh,
+				boolean[] channels) {
+
+		TreeMap<Integer, ContentInstant> instants =
+			new TreeMap<Integer, ContentInstant>();
+		for(int i = 0; i < source.size(); i++) {
+			ContentInstant content = new ContentInstant(name);
+			content.color = color;
+			content.threshold = thresh;
+			content.channels = channels;
+			content.resamplingF = resf;
+			content.timepoint = tp + i;
+			content.type = type;
+			content.showCoordinateSystem(UniverseSettings.
+					showLocalCoordinateSystemsByDefault);
+			instants.put(tp + i, content);
+		}
+		TimepointLoader loader =
+			new TimepointLoader(source, instants, type, tp);
+		Content c = new Content(name, instants, loader);
+		// the first time point is needed for the bounding box
+		loader.load(tp);
+		return c;
+	}
+
 	public static Content createContent(CustomMesh mesh, String name) {
 		return createContent(mesh, name, 0);
 	}
@@ -176,6 +227,13 @@ public static ImagePlus[] getImages(File file) {
 		return images.toArray(new ImagePlus[] {});
 	}
 
+	private static ImagePlus openImage(File file) {
+		ImagePlus image = IJ.openImage(file.getAbsolutePath());
+		if(image == null)
+			throw new RuntimeException("Cannot load image: " + file.getAbsolutePath());
+		return image;
+	}
+
 	public static void convert(ImagePlus image) {
 		int imaget = image.getType();
 		if(imaget == ImagePlus.GRAY8 || imaget == ImagePlus.COLOR_256)
@@ -194,12 +252,28 @@ public static void convert(ImagePlus image) {
 		}
 	}
 
-	private static class FileIterator implements Iterator<ImagePlus>, Iterable<ImagePlus> {
+	private static class ArraySource implements TimepointLoader.ImageSource {
+		private final ImagePlus[] images;
+
+		private ArraySource(ImagePlus[] images) {
+			this.images = images;
+		}
+
+		public int size() {
+			return images.length;
+		}
+
+		public ImagePlus getImage(int index) {
+			return images[index];
+		}
+	}
+
+	private static class FileIterator implements Iterator<ImagePlus>, Iterable<ImagePlus>, TimepointLoader.ImageSource {
 
 		public static Iterable<ImagePlus> getIterable(File file) {
 			if(!file.isDirectory()) {
 				return HyperStackIterator.getIterable(
-					IJ.openImage(file.getAbsolutePath()));
+					openImage(file));
 			}
 			return new FileIterator(file);
 		}
@@ -239,8 +313,15 @@ public ImagePlus next() {
 			if(nextIndex == names.length)
 				return null;
 
-			File f = new File(directory, names[nextIndex]);
-			nextIndex++;
+			return getImage(nextIndex++);
+		}
+
+		public int size() {
+			return names.length;
+		}
+
+		public ImagePlus getImage(int index) {
+			File f = new File(directory, names[index]);
 			try {
 				return IJ.openImage(f.getAbsolutePath());
 			} catch(Exception e) {
@@ -249,7 +330,7 @@ public ImagePlus next() {
 		}
 	}
 
-	private static class HyperStackIterator implements Iterator<ImagePlus>, Iterable<ImagePlus> {
+	private static class HyperStackIterator implements Iterator<ImagePlus>, Iterable<ImagePlus>, TimepointLoader.ImageSource {
 
 		public static Iterable<ImagePlus> getIterable(ImagePlus image) {
 			return new HyperStackIterator(image);
@@ -288,17 +369,25 @@ public boolean hasNext() {
 		public ImagePlus next() {
 			if(nextFrame == nFrames)
 				return null;
+			return getImage(nextFrame++);
+		}
+
+		public int size() {
+			return nFrames;
+		}
 
+		// synchronized because it changes the position of multi-channel images
+		public synchronized ImagePlus getImage(int frame) {
 			ImageStack oldStack = image.getStack();
 			String oldTitle = image.getTitle();
 			FileInfo fi = image.getFileInfo();
 			ImageStack newStack = new ImageStack(w, h);
 			newStack.setColorModel(oldStack.getColorModel());
 			for(int j = 0; j < nSlices; j++) {
-				int index = image.getStackIndex(1, j + 1, nextFrame + 1);
+				int index = image.getStackIndex(1, j + 1, frame + 1);
 				Object pixels;
 				if (nChannels > 1) {
-					image.setPositionWithoutUpdate(1, j + 1, nextFrame + 1);
+					image.setPositionWithoutUpdate(1, j + 1, frame + 1);
 					pixels = new ColorProcessor(image.getImage()).getPixels();
 				} else {
 					pixels = oldStack.getPixels(index);
@@ -308,10 +397,9 @@ public ImagePlus next() {
 					pixels);
 			}
 			ImagePlus ret = new ImagePlus(oldTitle
-				+ " (frame " + nextFrame + ")", newStack);
+				+ " (frame " + frame + ")", newStack);
 			ret.setCalibration(image.getCalibration().copy());
 			ret.setFileInfo((FileInfo)fi.clone());
-			nextFrame++;
 			return ret;
 		}
 	}
@@ -124,20 +124,26 @@ public void displayAs(int type) {
 		if(image == null)
 			return;
 		// create content node and add it to the switch
+		display(createContentNode(type));
+		// update type
+		this.type = type;
+	}
+
+	/**
+	 * Creates the content node of the given type from the image, without
+	 * displaying it; the scene graph is not touched.
+	 */
+	ContentNode createContentNode(int type) {
 		switch(type) {
-			case VOLUME: contentNode = new VoltexGroup(this); break;
-			case ORTHO: contentNode = new OrthoGroup(this); break;
-			case SURFACE: contentNode = new MeshGroup(this); break;
-			case SURFACE_PLOT2D: contentNode =
-				new SurfacePlotGroup(this); break;
-			case MULTIORTHO: contentNode = new MultiOrthoGroup(this); break;
+			case VOLUME: return new VoltexGroup(this);
+			case ORTHO: return new OrthoGroup(this);
+			case SURFACE: return new MeshGroup(this);
+			case SURFACE_PLOT2D: return new SurfacePlotGroup(this);
+			case MULTIORTHO: return new MultiOrthoGroup(this);
 			default: throw new IllegalArgumentException(
 					"Specified type is neither VOLUME, ORTHO," +
 					"SURFACE or SURFACEPLOT2D");
 		}
-		display(contentNode);
-		// update type
-		this.type = type;
 	}
 
 	private static int[] createDefaultLUT() {
@@ -299,6 +305,21 @@ public boolean isAvailable() {
 		return available;
 	}
 
+	/**
+	 * Removes the displayed content and forgets the image, e.g. to free
+	 * the memory of a time point which can be created again from its
+	 * image. The image is not closed, it might be part of a hyperstack.
+	 */
+	public void unload() {
+		for(@SuppressWarnings("rawtypes")
+		Enumeration e = ordered.getAllChildren(); e.hasMoreElements(); ) {
+			Switch s = (Switch)e.nextElement();
+			s.removeAllChildren();
+		}
+		contentNode = null;
+		image = null;
+	}
+
 	private String displayedDataSwapfile = null;
 	private String originalDataSwapfile = null;
 
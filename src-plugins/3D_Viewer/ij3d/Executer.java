@@ -659,7 +659,8 @@ public void decimateMesh() {
 			else
 				return;
 		} else if (n instanceof MeshGroup) {
-			ctm = ((MeshGroup)n).getMesh();
+			new InteractiveMeshDecimation().run(((MeshGroup)n).getMesh());
+			return;
 		} else {
 			return;
 		}
@@ -114,6 +114,11 @@ boolean ensureAllSaved(Collection<Content> contents) throws IOException {
 			for(ContentInstant c : content.getInstants().values()) {
 				int t = c.getType();
 				if(t != Content.CUSTOM) {
+					// not loaded (yet)
+					if(c.getImage() == null) {
+						unsavedImages.add(c.getName());
+						continue;
+					}
 					FileInfo fi = c.getImage().getOriginalFileInfo();
 					if(fi == null || c.image.changes)
 						unsavedImages.add(c.image.getTitle());
@@ -366,10 +371,11 @@ void saveContentInstant(PrintWriter out, ContentInstant c) {
 
 		int type = c.getType();
 		ContentNode cn = c.getContent();
-		if(type == Content.SURFACE_PLOT2D) {
+		// time points which are not loaded have no node
+		if(type == Content.SURFACE_PLOT2D && cn != null) {
 			out.println("surfplt = " +
 				((SurfacePlotGroup)cn).getSlice());
-		} else if(type == Content.ORTHO) {
+		} else if(type == Content.ORTHO && cn != null) {
 			out.println("ortho = " + getOrthoString(cn));
 		} else if(type == Content.CUSTOM) {
 			out.println("surffiles = " + getMeshString(c));
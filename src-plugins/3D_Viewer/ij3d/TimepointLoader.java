@@ -0,0 +1,342 @@
+package ij3d;
+
+import ij.ImagePlus;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.media.j3d.Transform3D;
+
+/**
+ * Creates the time points of a 4D Content on demand.
+ *
+ * The Content has a ContentInstant for every time point, but only the
+ * ones which are needed get an image and a displayed ContentNode. When a
+ * time point is shown, the next few time points in playback direction are
+ * created by a background thread, and the least recently used instants are
+ * unloaded again when the estimated memory of all loaded instants exceeds
+ * the memory budget.
+ *
+ * The background thread only creates the ContentNodes; they are added to
+ * the scene graph (and the unloaded ones removed from it) by the thread
+ * calling load(), i.e. the one showing the time point, holding the lock
+ * of the loader.
+ */
+public class TimepointLoader {
+
+	/**
+	 * The images of the time points, index 0 being the first time point.
+	 */
+	public interface ImageSource {
+		public int size();
+		public ImagePlus getImage(int index);
+	}
+
+	private final ImageSource source;
+	private final TreeMap<Integer, ContentInstant> instants;
+	private final int firstTimepoint;
+	private int type;
+
+	private int prefetchCount = 2;
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+	private long usedMemory = 0;
+
+	// loaded time points and their estimated size, least recently used first
+	private final LinkedHashMap<Integer, Long> loaded =
+		new LinkedHashMap<Integer, Long>(16, 0.75f, true);
+	private final HashMap<Integer, Load> pending =
+		new HashMap<Integer, Load>();
+	// created time points whose node is not displayed yet
+	private final HashMap<Integer, Load> created =
+		new HashMap<Integer, Load>();
+
+	// the displayed and the last requested time point
+	private int current, requested;
+	private int direction = 1;
+
+	private ExecutorService prefetcher;
+
+	/**
+	 * @param source the images, one per time point
+	 * @param instants the (not yet displayed) instants, as returned
+	 *        by Content.getInstants()
+	 * @param type the display type
+	 * @param firstTimepoint the time point of the first image
+	 */
+	public TimepointLoader(ImageSource source,
+			TreeMap<Integer, ContentInstant> instants,
+			int type, int firstTimepoint) {
+		this.source = source;
+		this.instants = instants;
+		this.type = type;
+		this.firstTimepoint = firstTimepoint;
+		this.current = this.requested = firstTimepoint;
+	}
+
+	/**
+	 * Set the number of time points which are created in advance.
+	 */
+	public synchronized void setPrefetchCount(int count) {
+		prefetchCount = Math.max(0, count);
+	}
+
+	/**
+	 * Set the approximate number of bytes the loaded time points may use.
+	 */
+	public synchronized void setMemoryBudget(long bytes) {
+		memoryBudget = bytes;
+		evict(current);
+	}
+
+	public synchronized void setType(int type) {
+		this.type = type;
+	}
+
+	public synchronized boolean isLoaded(int tp) {
+		return loaded.containsKey(tp) || !instants.containsKey(tp);
+	}
+
+	/**
+	 * Make sure the given time point is created, waiting for it if
+	 * necessary. This time point is not unloaded until another one
+	 * is loaded.
+	 */
+	public void load(int tp) {
+		Load task = null;
+		int previous;
+		synchronized(this) {
+			setRequested(tp);
+			previous = current;
+			current = tp;
+			if(!instants.containsKey(tp))
+				return;
+			if(loaded.get(tp) == null) {
+				task = pending.get(tp);
+				if(task == null) {
+					task = new Load(tp);
+					pending.put(tp, task);
+				}
+				// the prefetcher must not skip it anymore
+				task.demanded = true;
+			}
+		}
+		if(task != null) {
+			// do it here unless the prefetcher is at it already
+			if(task.start())
+				task.perform();
+			else
+				task.waitFor();
+		}
+		display(tp, previous);
+	}
+
+	/**
+	 * Create the given time point and the ones following it in
+	 * playback direction in the background.
+	 */
+	public synchronized void prefetch(int tp) {
+		setRequested(tp);
+		for(int i = 0; i <= prefetchCount; i++) {
+			int t = tp + i * direction;
+			if(!instants.containsKey(t) || loaded.containsKey(t)
+					|| pending.containsKey(t))
+				continue;
+			Load task = new Load(t);
+			pending.put(t, task);
+			getPrefetcher().execute(task);
+		}
+	}
+
+	/**
+	 * Stop the background thread; time points are still loaded
+	 * on demand afterwards.
+	 */
+	public synchronized void shutdown() {
+		if(prefetcher != null)
+			prefetcher.shutdownNow();
+		prefetcher = null;
+	}
+
+	private void setRequested(int tp) {
+		if(tp != requested)
+			direction = tp > requested ? 1 : -1;
+		requested = tp;
+	}
+
+	private boolean isWanted(int tp) {
+		int distance = (tp - requested) * direction;
+		return distance >= 0 && distance <= prefetchCount;
+	}
+
+	private ExecutorService getPrefetcher() {
+		if(prefetcher == null)
+			prefetcher = Executors.newSingleThreadExecutor(
+					new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r,
+						"Timepoint prefetcher");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		return prefetcher;
+	}
+
+	/*
+	 * Create the node of a time point, but do not display it: this
+	 * might run in the prefetcher thread.
+	 */
+	private void create(Load task) {
+		ContentInstant ci = instants.get(task.tp);
+		ImagePlus imp = source.getImage(task.tp - firstTimepoint);
+		long size = 0;
+		if(imp != null) {
+			synchronized(this) {
+				task.type = type;
+			}
+			ci.image = imp;
+			task.node = ci.createContentNode(task.type);
+			size = estimateSize(imp, ci.resamplingF);
+		}
+
+		synchronized(this) {
+			loaded.put(task.tp, size);
+			usedMemory += size;
+			if(task.node != null)
+				created.put(task.tp, task);
+		}
+	}
+
+	/*
+	 * Display the node created for the given time point, with the
+	 * transformation of the previously shown one (which might have
+	 * been changed meanwhile), and unload other time points if the
+	 * memory budget is exceeded.
+	 */
+	private synchronized void display(int tp, int previous) {
+		Load task = created.remove(tp);
+		if(task != null) {
+			ContentInstant ci = instants.get(tp);
+			if(task.type == type) {
+				ci.display(task.node);
+				ci.type = type;
+			} else {
+				// the display type was changed meanwhile
+				ci.displayAs(type);
+			}
+
+			ContentInstant shown = instants.get(previous);
+			if(shown != null && shown != ci && shown.getContent() != null) {
+				Transform3D t = new Transform3D();
+				shown.getLocalRotate(t);
+				ci.getLocalRotate().setTransform(t);
+				shown.getLocalTranslate(t);
+				ci.getLocalTranslate().setTransform(t);
+			}
+		}
+		evict(tp);
+	}
+
+	/*
+	 * Unload the least recently used time points until the memory
+	 * budget is met, keeping the shown one, the one just loaded and
+	 * the ones which are about to be shown.
+	 */
+	private void evict(int justLoaded) {
+		Iterator<Map.Entry<Integer, Long>> it =
+			loaded.entrySet().iterator();
+		while(usedMemory > memoryBudget && it.hasNext()) {
+			Map.Entry<Integer, Long> entry = it.next();
+			int tp = entry.getKey();
+			if(tp == current || tp == justLoaded || isWanted(tp))
+				continue;
+			instants.get(tp).unload();
+			created.remove(tp);
+			usedMemory -= entry.getValue();
+			it.remove();
+		}
+	}
+
+	/*
+	 * The image plus the displayed data, which is about the size of
+	 * the resampled image.
+	 */
+	static long estimateSize(ImagePlus imp, int resamplingF) {
+		int bytesPerPixel = imp.getBitDepth() == 24 ? 4 : imp.getBitDepth() / 8;
+		long size = (long)imp.getWidth() * imp.getHeight()
+			* imp.getStackSize() * bytesPerPixel;
+		int r = Math.max(1, resamplingF);
+		return size + size / ((long)r * r * r);
+	}
+
+	private class Load implements Runnable {
+		final int tp;
+		// the created node and its display type
+		private ContentNode node;
+		private int type;
+		private boolean started = false, finished = false;
+		// somebody waits for it, guarded by TimepointLoader.this
+		private boolean demanded = false;
+
+		Load(int tp) {
+			this.tp = tp;
+		}
+
+		synchronized boolean start() {
+			if(started)
+				return false;
+			started = true;
+			return true;
+		}
+
+		// called by the prefetcher
+		public void run() {
+			synchronized(TimepointLoader.this) {
+				if(!demanded && !isWanted(tp)) {
+					// skipped it while scrubbing
+					if(start()) {
+						pending.remove(tp);
+						finish();
+					}
+					return;
+				}
+			}
+			if(start())
+				perform();
+		}
+
+		void perform() {
+			try {
+				create(this);
+			} finally {
+				synchronized(TimepointLoader.this) {
+					pending.remove(tp);
+				}
+				finish();
+			}
+		}
+
+		synchronized void finish() {
+			finished = true;
+			notifyAll();
+		}
+
+		synchronized void waitFor() {
+			while(!finished) {
+				try {
+					wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+}
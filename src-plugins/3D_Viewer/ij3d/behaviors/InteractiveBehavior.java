@@ -268,6 +268,8 @@ else if(canvas.isKeyDown(KeyEvent.VK_Z))
 			boolean changed = false;
 			for(ContentInstant ci : c.getInstants().values()) {
 				OrthoGroup og = (OrthoGroup)ci.getContent();
+				if(og == null)
+					continue;
 				switch(code) {
 					case KeyEvent.VK_RIGHT:
 					case KeyEvent.VK_UP:
@@ -417,6 +419,8 @@ else if(canvas.isKeyDown(KeyEvent.VK_Z))
 					units = we.getUnitsToScroll();
 				for(ContentInstant ci : c.getInstants().values()) {
 					OrthoGroup og = (OrthoGroup)ci.getContent();
+					if(og == null)
+						continue;
 					if(units > 0) og.increase(axis);
 					else if(units < 0) og.decrease(axis);
 				}
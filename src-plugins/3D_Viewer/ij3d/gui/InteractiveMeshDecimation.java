@@ -10,12 +10,22 @@
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 
+import customnode.CustomIndexedTriangleMesh;
+import customnode.CustomMesh;
 import customnode.CustomTriangleMesh;
 import customnode.EdgeContraction;
 import customnode.FullInfoMesh;
 
 public class InteractiveMeshDecimation {
 	public void run(final CustomTriangleMesh ctm) {
+		runOn(ctm);
+	}
+
+	public void run(final CustomIndexedTriangleMesh ctm) {
+		runOn(ctm);
+	}
+
+	private void runOn(final CustomMesh ctm) {
 		@SuppressWarnings("unchecked")
 		final FullInfoMesh fim = new FullInfoMesh(ctm.getMesh());
 		final EdgeContraction ec = new EdgeContraction(fim, false);
@@ -49,7 +59,10 @@ public void actionPerformed(ActionEvent e) {
 					public void run() {
 						int v = simplify(ec, n);
 						gd.setEnabled(true);
-						ctm.setMesh(fim.getMesh());
+						if(ctm instanceof CustomIndexedTriangleMesh)
+							((CustomIndexedTriangleMesh)ctm).setMesh(fim.getMesh());
+						else
+							((CustomTriangleMesh)ctm).setMesh(fim.getMesh());
 						label.setText(v + " remaining vertices");
 					}
 				}.start();
@@ -4,6 +4,7 @@
 import ij3d.Content;
 import ij3d.ContentNode;
 import ij3d.Executer;
+import customnode.CustomIndexedTriangleMesh;
 import customnode.CustomQuadMesh;
 import customnode.CustomTriangleMesh;
 import customnode.WavefrontExporter;
@@ -238,17 +239,9 @@ private static void writeBinarySTL(Collection meshgroups,
 		int triangles = 0;
 		ArrayList<List<Point3f>> surfaces = new ArrayList<List<Point3f>>();
 		for (String name : meshes.keySet()) {
-			CustomMesh cmesh = meshes.get(name);
-			if (cmesh.getClass() == CustomQuadMesh.class) {
-				IJ.log("Quad meshes are unsupported, can't save " + name
-						+ " as STL");
+			List<Point3f> vertices = getSTLTriangles(name, meshes.get(name));
+			if (vertices == null)
 				continue;
-			} else if (cmesh.getClass() != CustomTriangleMesh.class) {
-				IJ.log("Unsupported content type, can't save " + name
-						+ " as STL");
-				continue;
-			}
-			List<Point3f> vertices = cmesh.getMesh();
 			triangles += vertices.size() / 3;
 			surfaces.add(vertices);
 		}
@@ -293,6 +286,25 @@ private static void writeBinarySTL(Collection meshgroups,
 
 	}
 
+	/**
+	 * Returns the triangles of a mesh, three points per triangle, or
+	 * null if the mesh cannot be saved as STL. Indexed meshes are not
+	 * expanded: the returned list refers to their shared vertices.
+	 */
+	private static List<Point3f> getSTLTriangles(String name, CustomMesh cmesh) {
+		if (cmesh.getClass() == CustomQuadMesh.class) {
+			IJ.log("Quad meshes are unsupported, can't save " + name
+					+ " as STL");
+			return null;
+		} else if (cmesh.getClass() != CustomTriangleMesh.class
+				&& !(cmesh instanceof CustomIndexedTriangleMesh)) {
+			IJ.log("Unsupported content type, can't save " + name
+					+ " as STL");
+			return null;
+		}
+		return cmesh.getMesh();
+	}
+
 	private static Point3f unitNormal(Point3f p0, Point3f p1, Point3f p2) {
 		float nx = (p1.y-p0.y) * (p2.z-p0.z) - (p1.z-p0.z) * (p2.y-p0.y);
 		float ny = (p1.z-p0.z) * (p2.x-p0.x) - (p1.x-p0.x) * (p2.z-p0.z);
@@ -341,17 +353,9 @@ private static void writeAsciiSTL(Collection<Content> meshgroups,
 
 			// go through all meshes and add them to STL file
 			for (String name : meshes.keySet()) {
-				CustomMesh cmesh = meshes.get(name);
-				if (cmesh.getClass() == CustomQuadMesh.class) {
-					IJ.log("Quad meshes are unsupported, can't save " + name
-							+ " as STL");
+				List<Point3f> vertices = getSTLTriangles(name, meshes.get(name));
+				if (vertices == null)
 					continue;
-				} else if (cmesh.getClass() != CustomTriangleMesh.class) {
-					IJ.log("Unsupported content type, can't save " + name
-							+ " as STL");
-					continue;
-				}
-				List<Point3f> vertices = cmesh.getMesh();
 				final int nPoints = vertices.size();
 				for (int p = 0; p < nPoints; p += 3) {
 					Point3f p0 = vertices.get(p);
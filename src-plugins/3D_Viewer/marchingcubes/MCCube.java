@@ -2,6 +2,8 @@
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.vecmath.Point3f;
 import ij.IJ;
 import ij3d.Volume;
@@ -179,12 +181,17 @@ final int intensity(final Point3f p) {
 
 	/**
 	 * Create a list of triangles from the specified image data and the
-	 * given isovalue.
+	 * given isovalue. Every triangle has its own three points; use
+	 * getIndexedMesh() to get the surface with shared vertices instead.
 	 * @param volume
 	 * @param thresh
 	 * @return
 	 */
 	public static final List<Point3f> getTriangles(Volume volume, int thresh){
+		if (!(volume instanceof ImgLibVolume && ((ImgLibVolume)volume).getImage().getContainer() instanceof ShapeList))
+			return getIndexedMesh(volume, thresh,
+				Runtime.getRuntime().availableProcessors()).getTriangles();
+
 		List<Point3f> tri = new ArrayList<Point3f>();
 		final Carrier car = new Carrier();
 		car.w = volume.xDim;
@@ -193,21 +200,7 @@ public static final List<Point3f> getTriangles(Volume volume, int thresh){
 		car.threshold = thresh + 0.5f;
 		car.volume = volume;
 
-		if (volume instanceof ImgLibVolume && ((ImgLibVolume)volume).getImage().getContainer() instanceof ShapeList) {
-			getShapeListImageTriangles((ImgLibVolume)volume, car, tri);
-		} else {
-			MCCube cube = new MCCube();
-			for(int z = -1; z < car.d+1; z+=1){
-				for(int x = -1; x < car.w+1; x+=1){
-					for(int y = -1; y < car.h+1; y+=1){
-						cube.init(x, y, z);
-						cube.computeEdges(car);
-						cube.getTriangles(tri, car);
-					}
-				}
-				IJ.showProgress(z, car.d-2);
-			}
-		}
+		getShapeListImageTriangles((ImgLibVolume)volume, car, tri);
 
 		// convert pixel coordinates
 		for(int i = 0; i < tri.size(); i++) {
@@ -219,6 +212,355 @@ public static final List<Point3f> getTriangles(Volume volume, int thresh){
 		return tri;
 	}
 
+	/**
+	 * Create an indexed mesh from the specified image data and the
+	 * given isovalue. The triangles are the same as the ones returned by
+	 * getTriangles(), but every vertex is stored only once.
+	 *
+	 * The volume is split into slabs along z which are triangulated in
+	 * parallel. Every slab keeps the vertices of the edges of its current
+	 * planes in index arrays, so that adjacent cubes share them; vertices
+	 * on the border plane between two slabs belong to the upper slab and
+	 * are looked up as soon as both slabs are done, so that the index
+	 * arrays of the border plane can be released.
+	 *
+	 * @param volume
+	 * @param thresh
+	 * @param nThreads the number of threads to use
+	 * @return
+	 */
+	public static final MCIndexedMesh getIndexedMesh(final Volume volume,
+			final int thresh, int nThreads) {
+		// the cubes start at z = -1, 0, ..., d
+		final int nLayers = volume.zDim + 2;
+		final int nSlabs = Math.min(nLayers, 4 * Math.max(1, nThreads));
+		final Slab[] slabs = new Slab[nSlabs];
+		for(int s = 0; s < nSlabs; s++)
+			slabs[s] = new Slab(volume, thresh + 0.5f,
+				-1 + s * nLayers / nSlabs,
+				-1 + (s + 1) * nLayers / nSlabs,
+				s == nSlabs - 1);
+
+		final AtomicInteger nextSlab = new AtomicInteger(0);
+		final AtomicInteger layersDone = new AtomicInteger(0);
+		final boolean[] done = new boolean[nSlabs];
+		final Throwable[] exception = new Throwable[1];
+		Thread[] threads = new Thread[Math.min(nSlabs, Math.max(1, nThreads))];
+		for(int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for(int s = nextSlab.getAndIncrement(); s < nSlabs;
+								s = nextSlab.getAndIncrement()) {
+							slabs[s].triangulate(layersDone, nLayers);
+							stitchDone(slabs, done, s);
+						}
+					} catch(Throwable e) {
+						exception[0] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		try {
+			for(Thread thread : threads)
+				thread.join();
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if(exception[0] != null)
+			throw new RuntimeException(exception[0]);
+
+		// put the slabs together
+		int[] vertexOffset = new int[nSlabs + 1];
+		int[] faceOffset = new int[nSlabs + 1];
+		for(int s = 0; s < nSlabs; s++) {
+			vertexOffset[s + 1] = vertexOffset[s] + slabs[s].nVertices;
+			faceOffset[s + 1] = faceOffset[s] + slabs[s].nFaces;
+		}
+		float[] vertices = new float[3 * vertexOffset[nSlabs]];
+		int[] faces = new int[faceOffset[nSlabs]];
+		for(int s = 0; s < nSlabs; s++) {
+			Slab slab = slabs[s];
+			for(int i = 0; i < slab.nVertices; i++) {
+				int v = 3 * (vertexOffset[s] + i);
+				vertices[v] = (float)(slab.vertices[3 * i] * volume.pw + volume.minCoord.x);
+				vertices[v + 1] = (float)(slab.vertices[3 * i + 1] * volume.ph + volume.minCoord.y);
+				vertices[v + 2] = (float)(slab.vertices[3 * i + 2] * volume.pd + volume.minCoord.z);
+			}
+			for(int i = 0; i < slab.nFaces; i++) {
+				int f = slab.faces[i];
+				if(f >= 0)
+					f += vertexOffset[s];
+				else
+					// a vertex of the next slab (see Slab.stitch())
+					f = vertexOffset[s + 1] - f - 1;
+				faces[faceOffset[s] + i] = f;
+			}
+			slabs[s] = null;
+		}
+		IJ.showProgress(1.0);
+		return new MCIndexedMesh(vertices, faces);
+	}
+
+	/*
+	 * Marks a slab as triangulated and stitches it to its neighbours
+	 * which are done already. Every pair of slabs is stitched exactly
+	 * once, by the thread which finishes the second one.
+	 */
+	private static void stitchDone(Slab[] slabs, boolean[] done, int s) {
+		boolean below, above;
+		synchronized(done) {
+			done[s] = true;
+			below = s > 0 && done[s - 1];
+			above = s < slabs.length - 1 && done[s + 1];
+		}
+		if(s == 0)
+			slabs[0].bottomX = slabs[0].bottomY = null;
+		if(below)
+			slabs[s - 1].stitch(slabs[s]);
+		if(above)
+			slabs[s].stitch(slabs[s + 1]);
+	}
+
+	/*
+	 * The edges of a cube, as the offset of their first vertex relative
+	 * to v0 and their direction (0 = x, 1 = y, 2 = z).
+	 */
+	private static final int[] edgeDX   = { 0, 1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 1 };
+	private static final int[] edgeDY   = { 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1, 1 };
+	private static final int[] edgeDZ   = { 0, 0, 0, 0, 1, 1, 1, 1, 0, 0, 0, 0 };
+	private static final int[] edgeAxis = { 0, 1, 0, 1, 0, 1, 0, 1, 2, 2, 2, 2 };
+
+	/**
+	 * Triangulates the cubes with z0 <= z < z1. Vertex coordinates are
+	 * in pixels; face indices refer to the vertices of this slab, except
+	 * for negative ones, which encode an edge of the top plane (whose
+	 * vertices are created by the next slab) until stitch() replaces
+	 * them by the vertex indices of the next slab.
+	 */
+	private static final class Slab {
+		final Volume volume;
+		final float threshold;
+		final int z0, z1, w, h, d, rowLength, planeSize;
+		final boolean isLast;
+
+		// edge vertex indices of the bottom plane (kept until stitched)
+		int[] bottomX, bottomY;
+
+		float[] vertices = new float[3 * 64];
+		int nVertices;
+		int[] faces = new int[64];
+		int nFaces;
+
+		// the z coordinate of the lower plane
+		int z;
+
+		// the current planes and their vertex indices
+		int[] lower, upper;
+		int[] lowerX, lowerY, upperX, upperY, zEdges;
+		boolean upperIsTop;
+
+		Slab(Volume volume, float threshold, int z0, int z1, boolean isLast) {
+			this.volume = volume;
+			this.threshold = threshold;
+			this.z0 = z0;
+			this.z1 = z1;
+			this.isLast = isLast;
+			w = volume.xDim;
+			h = volume.yDim;
+			d = volume.zDim;
+			// grid points from -1 to w + 1 (and -1 to h + 1)
+			rowLength = w + 3;
+			planeSize = rowLength * (h + 3);
+		}
+
+		final int index(int x, int y) {
+			return (y + 1) * rowLength + x + 1;
+		}
+
+		/* Volume.load() is not thread-safe, read one plane at a time */
+		int[] loadPlane(int z, int[] plane) {
+			if(plane == null)
+				plane = new int[planeSize];
+			else
+				Arrays.fill(plane, 0);
+			if(z < 0 || z >= d)
+				return plane;
+			synchronized(volume) {
+				for(int y = 0; y < h; y++)
+					for(int x = 0; x < w; x++)
+						plane[index(x, y)] = volume.load(x, y, z);
+			}
+			return plane;
+		}
+
+		void triangulate(AtomicInteger layersDone, int nLayers) {
+			z = z0;
+			lower = loadPlane(z0, null);
+			bottomX = newIndices();
+			bottomY = newIndices();
+
+			// create the vertices of the bottom plane, the slab below refers to them
+			lowerX = bottomX;
+			lowerY = bottomY;
+			for(int y = -1; y < h + 2; y++)
+				for(int x = -1; x < w + 2; x++) {
+					if(x < w + 1)
+						getVertex(x, y, 0, 0);
+					if(y < h + 1)
+						getVertex(x, y, 0, 1);
+				}
+
+			int[] spareX = newIndices(), spareY = newIndices();
+			upperX = newIndices();
+			upperY = newIndices();
+			zEdges = newIndices();
+			int[] values = new int[8];
+			for(; z < z1; z++) {
+				upper = loadPlane(z + 1, upper);
+				upperIsTop = z + 1 == z1 && !isLast;
+				Arrays.fill(upperX, -1);
+				Arrays.fill(upperY, -1);
+				Arrays.fill(zEdges, -1);
+
+				for(int x = -1; x < w + 1; x++) {
+					for(int y = -1; y < h + 1; y++) {
+						values[0] = lower[index(x, y)];
+						values[1] = lower[index(x + 1, y)];
+						values[2] = lower[index(x + 1, y + 1)];
+						values[3] = lower[index(x, y + 1)];
+						values[4] = upper[index(x, y)];
+						values[5] = upper[index(x + 1, y)];
+						values[6] = upper[index(x + 1, y + 1)];
+						values[7] = upper[index(x, y + 1)];
+
+						int cn = 0;
+						for(int i = 0; i < 8; i++)
+							if(values[i] - threshold > 0)
+								cn |= 1 << i;
+
+						int offset = cn * 15;
+						for(int t = 0; t < 5 && MCCube.faces[offset] != -1; t++) {
+							for(int i = 0; i < 3; i++) {
+								int e = MCCube.faces[offset + i];
+								addFace(getVertex(x + edgeDX[e], y + edgeDY[e], edgeDZ[e], edgeAxis[e]));
+							}
+							offset += 3;
+						}
+					}
+				}
+
+				// move up one plane
+				int[] tmp = lower;
+				lower = upper;
+				upper = tmp;
+				tmp = lowerX == bottomX ? spareX : lowerX;
+				lowerX = upperX;
+				upperX = tmp;
+				tmp = lowerY == bottomY ? spareY : lowerY;
+				lowerY = upperY;
+				upperY = tmp;
+
+				IJ.showProgress(layersDone.incrementAndGet(), nLayers);
+			}
+			lower = upper = null;
+			lowerX = lowerY = upperX = upperY = zEdges = null;
+		}
+
+		int[] newIndices() {
+			int[] result = new int[planeSize];
+			Arrays.fill(result, -1);
+			return result;
+		}
+
+		/*
+		 * Returns the index of the vertex on the given edge, creating
+		 * it if necessary; plane 0 is the lower, plane 1 the upper plane.
+		 */
+		int getVertex(int x, int y, int plane, int axis) {
+			int c = index(x, y);
+			int[] indices;
+			if(axis == 2)
+				indices = zEdges;
+			else if(plane == 0)
+				indices = axis == 0 ? lowerX : lowerY;
+			else if(upperIsTop)
+				return -(2 * c + axis) - 1;
+			else
+				indices = axis == 0 ? upperX : upperY;
+			if(indices[c] >= 0)
+				return indices[c];
+
+			int[] values1 = plane == 0 ? lower : upper;
+			int x2 = x, y2 = y, c2;
+			int i1 = values1[c], i2;
+			if(axis == 2) {
+				c2 = c;
+				i2 = upper[c2];
+			} else {
+				if(axis == 0)
+					x2++;
+				else
+					y2++;
+				c2 = index(x2, y2);
+				i2 = values1[c2];
+			}
+			// the isosurface does not cross this edge (only asked for the bottom plane)
+			if((i1 - threshold > 0) == (i2 - threshold > 0))
+				return -1;
+
+			float px1 = x, py1 = y, pz1 = z + plane;
+			float px2 = x2, py2 = y2, pz2 = axis == 2 ? z + 1 : z + plane;
+			if(i2 < i1) {
+				int i = i1; i1 = i2; i2 = i;
+				float p = px1; px1 = px2; px2 = p;
+				p = py1; py1 = py2; py2 = p;
+				p = pz1; pz1 = pz2; pz2 = p;
+			}
+			// same arithmetic as computeEdge()
+			float t = (threshold - i1) / (float) (i2 - i1);
+			if(3 * nVertices == vertices.length) {
+				float[] grown = new float[2 * vertices.length];
+				System.arraycopy(vertices, 0, grown, 0, vertices.length);
+				vertices = grown;
+			}
+			vertices[3 * nVertices] = (px2 - px1) * t + px1;
+			vertices[3 * nVertices + 1] = (py2 - py1) * t + py1;
+			vertices[3 * nVertices + 2] = (pz2 - pz1) * t + pz1;
+			indices[c] = nVertices++;
+			return indices[c];
+		}
+
+		/*
+		 * Replaces the edges of the top plane in the faces by the
+		 * vertex indices of the next slab, encoded as -index - 1, and
+		 * releases the index arrays of the bottom plane of the next
+		 * slab, which are not needed any more.
+		 */
+		void stitch(Slab next) {
+			for(int i = 0; i < nFaces; i++) {
+				int f = faces[i];
+				if(f >= 0)
+					continue;
+				int edge = -f - 1;
+				int[] bottom = (edge & 1) == 0 ?
+					next.bottomX : next.bottomY;
+				faces[i] = -bottom[edge >> 1] - 1;
+			}
+			next.bottomX = next.bottomY = null;
+		}
+
+		void addFace(int vertex) {
+			if(nFaces == faces.length) {
+				int[] grown = new int[2 * faces.length];
+				System.arraycopy(faces, 0, grown, 0, faces.length);
+				faces = grown;
+			}
+			faces[nFaces++] = vertex;
+		}
+	}
+
 	/** Identical to getTriangles, but iterates only the minimal necessary bounding box, by asking the shapes objects. */
 	private static final void getShapeListImageTriangles(final ImgLibVolume volume, final Carrier car, final List<Point3f> tri) {
 		final ShapeList sli = (ShapeList) volume.getImage().getContainer();
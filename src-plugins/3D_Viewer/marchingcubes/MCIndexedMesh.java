@@ -0,0 +1,70 @@
+package marchingcubes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+/**
+ * A triangle mesh as created by the marching cubes algorithm, stored in
+ * two flat arrays: the coordinates of the vertices (x, y, z for each
+ * vertex) and the vertex indices of the triangles (three per triangle).
+ * Vertices are shared between adjacent triangles.
+ */
+public class MCIndexedMesh {
+
+	private final float[] vertices;
+	private final int[] faces;
+
+	public MCIndexedMesh(float[] vertices, int[] faces) {
+		this.vertices = vertices;
+		this.faces = faces;
+	}
+
+	/**
+	 * Returns the vertex coordinates, x, y, z for each vertex.
+	 */
+	public float[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Returns the vertex indices, three for each triangle.
+	 */
+	public int[] getFaces() {
+		return faces;
+	}
+
+	public int getVertexCount() {
+		return vertices.length / 3;
+	}
+
+	public int getTriangleCount() {
+		return faces.length / 3;
+	}
+
+	/**
+	 * Returns the vertices as points, one per vertex.
+	 */
+	public Point3f[] getPoints() {
+		Point3f[] points = new Point3f[getVertexCount()];
+		for(int i = 0; i < points.length; i++)
+			points[i] = new Point3f(vertices[3 * i],
+				vertices[3 * i + 1], vertices[3 * i + 2]);
+		return points;
+	}
+
+	/**
+	 * Returns the mesh as a list of triangles, three points per
+	 * triangle, as returned by MCCube.getTriangles().
+	 */
+	public List<Point3f> getTriangles() {
+		List<Point3f> list = new ArrayList<Point3f>(faces.length);
+		for(int i = 0; i < faces.length; i++) {
+			int v = 3 * faces[i];
+			list.add(new Point3f(vertices[v],
+				vertices[v + 1], vertices[v + 2]));
+		}
+		return list;
+	}
+}
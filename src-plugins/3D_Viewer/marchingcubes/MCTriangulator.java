@@ -40,6 +40,23 @@ public List getTriangles(ImagePlus image, int threshold,
 		return l;
 	}
 
+	/**
+	 * Like getTriangles(), but returns the surface as an indexed mesh in
+	 * which the vertices are shared between the triangles, e.g. to create
+	 * a CustomIndexedTriangleMesh (as MeshGroup does).
+	 */
+	public MCIndexedMesh getIndexedMesh(ImagePlus image, int threshold,
+					boolean[] channels, int resamplingF) {
+
+		if(resamplingF != 1)
+			image = NaiveResampler.resample(image, resamplingF);
+		Volume volume = new Volume(image, channels);
+		volume.setAverage(true);
+
+		return MCCube.getIndexedMesh(volume, threshold,
+			Runtime.getRuntime().availableProcessors());
+	}
+
 	/**
 	 * @param img The Image<? extends RealType> instance to use.
 	 * @param threshold The cut-off (inclusive) of pixel values considered inside.
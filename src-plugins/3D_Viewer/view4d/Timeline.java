@@ -1,5 +1,6 @@
 package view4d;
 
+import ij3d.Content;
 import ij3d.Image3DUniverse;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -114,9 +115,13 @@ public void run() {
 						inc = -inc;
 						continue;
 					}
+					long start = System.currentTimeMillis();
 					univ.showTimepoint(next);
+					// time points are created meanwhile in the background
+					long wait = delay - (System.currentTimeMillis() - start);
 					try {
-						Thread.sleep(delay);
+						if(wait > 0)
+							Thread.sleep(wait);
 					} catch(Exception e) {
 						shouldPause = true;
 					}
@@ -135,6 +140,25 @@ public synchronized void pause() {
 		shouldPause = true;
 	}
 
+	/**
+	 * Display the given time point while the user is scrubbing: if some
+	 * content still needs to create it, it is only requested in the
+	 * background, so that the GUI does not block. Call showTimepoint()
+	 * on the universe when scrubbing has finished.
+	 */
+	public void scrub(int tp) {
+		boolean loaded = true;
+		for(Object o : univ.getContents()) {
+			Content c = (Content)o;
+			if(!c.isLoaded(tp)) {
+				c.prefetch(tp);
+				loaded = false;
+			}
+		}
+		if(loaded)
+			univ.showTimepoint(tp);
+	}
+
 	/**
 	 * Display next timepoint.
 	 */
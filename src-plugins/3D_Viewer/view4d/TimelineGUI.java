@@ -92,7 +92,10 @@ public TimelineGUI(Timeline tl) {
 		scroll = new JScrollBar(JScrollBar.HORIZONTAL, cur, 1, min, max);
 		scroll.addAdjustmentListener(new AdjustmentListener() {
 			public void adjustmentValueChanged(AdjustmentEvent e) {
-				showTimepoint(scroll.getValue());
+				if(e.getValueIsAdjusting())
+					timeline.scrub(scroll.getValue());
+				else
+					showTimepoint(scroll.getValue());
 			}
 		});
 		gridbag.setConstraints(scroll, c);
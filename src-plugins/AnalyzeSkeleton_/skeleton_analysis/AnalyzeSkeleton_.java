@@ -1,8 +1,13 @@
 package skeleton_analysis;
 
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.ListIterator;
 
@@ -11,6 +16,7 @@
 import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
+import ij.io.SaveDialog;
 import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ij.plugin.filter.PlugInFilter;
@@ -141,6 +147,8 @@ public class AnalyzeSkeleton_ implements PlugInFilter
 	private ArrayList < ArrayList <Point> > listOfSingleJunctions[] = null;
 	/** array of junction vertex per tree */
 	private Vertex[][] junctionVertex = null;
+	/** junction vertex of every junction voxel, for each tree */
+	private HashMap<Point, Vertex>[] junctionVertexIndex = null;
 	
 	/** stack image containing the corresponding skeleton tags (end point, junction or slab) */
 	private ImageStack taggedImage = null;
@@ -160,6 +168,9 @@ public class AnalyzeSkeleton_ implements PlugInFilter
 	/** calculate largest shortest path option */
 	public static boolean calculateShortestPath = false;
 	
+	/** analyze large skeletons in parallel chunks option */
+	public static boolean analyzeInChunks = false;
+	
 	/** array of graphs (one per tree) */
 	private Graph[] graph = null;
 	
@@ -239,6 +250,7 @@ public void run(ImageProcessor ip)
 		gd.addCheckbox("Prune ends", pruneEnds);
 		gd.addCheckbox("Calculate largest shortest path", calculateShortestPath);
 		gd.addCheckbox("Show detailed info", AnalyzeSkeleton_.verbose);
+		gd.addCheckbox("Analyze in parallel chunks (large skeletons)", analyzeInChunks);
 		gd.showDialog();
 		
 		// Exit when canceled
@@ -248,6 +260,13 @@ public void run(ImageProcessor ip)
 		pruneEnds = gd.getNextBoolean();
 		calculateShortestPath = gd.getNextBoolean();
 		AnalyzeSkeleton_.verbose = gd.getNextBoolean();
+		analyzeInChunks = gd.getNextBoolean();
+		
+		if(analyzeInChunks)
+		{
+			runInChunks();
+			return;
+		}
 		
 		// pre-checking if another image is needed and also setting bPruneCycles
 		ImagePlus origIP = null;
@@ -305,10 +324,78 @@ public void run(ImageProcessor ip)
 			IJ.log("num of skeletons = " + this.numOfTrees);
 
 		// Show results table
-		showResults();
+		showResults(false);
 
 	} // end run method
 
+	/**
+	 * Analyze the skeleton with ChunkedSkeletonAnalysis and show the
+	 * results. Pruning and the longest shortest paths are not available in
+	 * this mode, and the detailed branch information is written to a file
+	 * instead of being shown in a table.
+	 */
+	private void runInChunks()
+	{
+		if(pruneIndex != NONE || pruneEnds || calculateShortestPath)
+			IJ.log("Analyze Skeleton: pruning and longest shortest paths "
+					+ "are not calculated when analyzing in chunks.");
+		
+		String branchTable = null;
+		if(verbose)
+		{
+			final SaveDialog sd = new SaveDialog("Save branch information",
+					this.imRef.getShortTitle() + "-branches", ".csv");
+			if(sd.getFileName() == null)
+				return;
+			branchTable = sd.getDirectory() + sd.getFileName();
+		}
+		
+		final ChunkedSkeletonAnalysis analysis = new ChunkedSkeletonAnalysis(this.imRef);
+		final SkeletonResult result;
+		if(null == branchTable)
+			result = analysis.run();
+		else
+		{
+			// the branches are written while the trees are measured
+			try
+			{
+				final Writer writer = new BufferedWriter(new FileWriter(branchTable));
+				try
+				{
+					result = analysis.run(writer);
+				}
+				finally
+				{
+					writer.close();
+				}
+			}
+			catch(IOException e)
+			{
+				IJ.error("Analyze Skeleton", "Could not write " + branchTable
+						+ ": " + e.getMessage());
+				return;
+			}
+		}
+		
+		this.taggedImage = analysis.getTaggedImage();
+		if(!silent)
+			displayTagImage(this.taggedImage);
+		
+		this.numOfTrees = result.getNumOfTrees();
+		this.numberOfBranches = result.getBranches();
+		this.numberOfJunctions = result.getJunctions();
+		this.numberOfEndPoints = result.getEndPoints();
+		this.numberOfJunctionVoxels = result.getJunctionVoxels();
+		this.numberOfSlabs = result.getSlabs();
+		this.averageBranchLength = result.getAverageBranchLength();
+		this.numberOfTriplePoints = result.getTriples();
+		this.numberOfQuadruplePoints = result.getQuadruples();
+		this.maximumBranchLength = result.getMaximumBranchLength();
+		this.graph = null;
+		this.shortestPathList = null;
+		showResults(true);
+	} // end method runInChunks
+
 	/**
 	 * This method is intended for non-interactively using this plugin.
 	 * <p>
@@ -1260,13 +1347,17 @@ private void initializeTrees()
 			this.listOfSingleJunctions[i] = new ArrayList < ArrayList <Point> > ();
 		}
 		this.junctionVertex  = new Vertex[this.numOfTrees][];
+		this.junctionVertexIndex = new HashMap[this.numOfTrees];
 	}// end method initializeTrees
 	
 	// -----------------------------------------------------------------------
 	/**
 	 * Show results table.
+	 * 
+	 * @param inChunks true if the results come from ChunkedSkeletonAnalysis,
+	 *        whose slab counts and branch lengths have their own headings
 	 */
-	private void showResults() 
+	private void showResults(boolean inChunks) 
 	{
 		final ResultsTable rt = new ResultsTable();
 		
@@ -1274,6 +1365,12 @@ private void showResults()
 						 "# Junction voxels","# Slab voxels","Average Branch Length", 
 						 "# Triple points", "# Quadruple points", "Maximum Branch Length",
 						 "Longest Shortest Path", "spx", "spy", "spz"};
+		if(inChunks)
+		{
+			head[5] = "# Slab voxels (all)";
+			head[6] = "Average Voxel Path Length";
+			head[9] = "Maximum Voxel Path Length";
+		}
 				
 		for(int i = 0 ; i < this.numOfTrees; i++)
 		{
@@ -1301,8 +1398,8 @@ private void showResults()
 		}
 		rt.show("Results");
 		
-		// Extra information
-		if(AnalyzeSkeleton_.verbose)
+		// Extra information (not available when analyzing in chunks)
+		if(AnalyzeSkeleton_.verbose && null != this.graph)
 		{
 			// New results table
 			final ResultsTable extra_rt = new ResultsTable();
@@ -1568,7 +1665,7 @@ private void visitSkeleton(ImageStack taggedImage, ImageStack treeImage, int cur
 				final Point aux = getVisitedJunctionNeighbor(endPointCoord, v1);				
 				if(null != aux)
 				{
-					this.auxFinalVertex = findPointVertex(this.junctionVertex[iTree], aux);
+					this.auxFinalVertex = findJunctionVertex(iTree, aux);
 					length += calculateDistance(endPointCoord, aux);
 					
 					// Add the length to the first point of the vertex (to prevent later from having
@@ -1601,7 +1698,7 @@ private void visitSkeleton(ImageStack taggedImage, ImageStack treeImage, int cur
 				final Point aux = this.auxPoint;
 				//IJ.log("Looking for " + this.auxPoint + " in the list of vertices...");
 				this.auxPoint = getVisitedJunctionNeighbor(this.auxPoint, v1);
-				this.auxFinalVertex = findPointVertex(this.junctionVertex[iTree], this.auxPoint);
+				this.auxFinalVertex = findJunctionVertex(iTree, this.auxPoint);
 				if(this.auxPoint == null)
 				{
 					//IJ.log("Point "+ aux + " has not neighbor end junction! (inner loop)");
@@ -1692,13 +1789,7 @@ private void visitSkeleton(ImageStack taggedImage, ImageStack treeImage, int cur
 							this.numberOfBranches[iTree]++;
 						
 							// Initial vertex
-							Vertex initialVertex = null;
-							for(int k = 0; k < this.junctionVertex[iTree].length; k++)
-								if(this.junctionVertex[iTree][k].isVertexPoint(junctionCoord))
-								{
-									initialVertex = this.junctionVertex[iTree][k];
-									break;
-								}
+							final Vertex initialVertex = findJunctionVertex(iTree, junctionCoord);
 							
 							
 							// If the final point is a slab, then we add the path to the
@@ -1709,7 +1800,7 @@ private void visitSkeleton(ImageStack taggedImage, ImageStack treeImage, int cur
 								final Point aux = this.auxPoint;
 								//IJ.log("Looking for " + this.auxPoint + " in the list of vertices...");
 								this.auxPoint = getVisitedJunctionNeighbor(this.auxPoint, initialVertex);
-								this.auxFinalVertex = findPointVertex(this.junctionVertex[iTree], this.auxPoint);
+								this.auxFinalVertex = findJunctionVertex(iTree, this.auxPoint);
 								if(this.auxPoint == null)
 								{
 									//IJ.log("Point "+ aux + " has not neighbor end junction! (inner loop)");
@@ -2164,7 +2255,7 @@ else if(isJunction(nextPoint))
 			{
 				if(debug)
 					IJ.log("found unvisited junction point: " + nextPoint);
-				this.auxFinalVertex = findPointVertex(this.junctionVertex[iTree], nextPoint);
+				this.auxFinalVertex = findJunctionVertex(iTree, nextPoint);
 				// Add the length to the first point of the vertex (to prevent later from having
 				// euclidean distances larger than the actual distance)
 				length += calculateDistance(auxFinalVertex.getPoints().get(0), nextPoint);
@@ -2191,6 +2282,27 @@ else if(isJunction(nextPoint))
 		return length;
 	} // end visitBranch	
 	
+	// -----------------------------------------------------------------------
+	/**
+	 * Find the junction vertex of a tree containing a specific point.
+	 * 
+	 * @param iTree tree index
+	 * @param p vertex point
+	 * @return junction vertex containing that point (null if there is none)
+	 */
+	private Vertex findJunctionVertex(int iTree, Point p)
+	{
+		final Vertex v = this.junctionVertexIndex[iTree].get(p);
+		if(debug)
+		{
+			if(v != null)
+				IJ.log(" " + p + " belongs to junction " + v.getPoints().get(0));
+			else
+				IJ.log("point " + p + " was not found in vertex list!");
+		}
+		return v;
+	}
+
 	// -----------------------------------------------------------------------
 	/**
 	 * Find vertex in an array given a specific vertex point.
@@ -2262,13 +2374,17 @@ private void groupJunctions(ImageStack treeIS)
 			
 			// Create array of junction vertices for the graph
 			this.junctionVertex[iTree] = new Vertex[this.listOfSingleJunctions[iTree].size()];
+			this.junctionVertexIndex[iTree] = new HashMap<Point, Vertex>();
 			
 			for(int j = 0 ; j < this.listOfSingleJunctions[iTree].size(); j++)
 			{
 				final ArrayList<Point> list = this.listOfSingleJunctions[iTree].get(j);
 				this.junctionVertex[iTree][j] = new Vertex();
 				for(final Point p : list)
+				{
 					this.junctionVertex[iTree][j].addPoint(p);
+					this.junctionVertexIndex[iTree].put(p, this.junctionVertex[iTree][j]);
+				}
 				
 			}
 		}
@@ -0,0 +1,928 @@
+package skeleton_analysis;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+
+/**
+ * AnalyzeSkeleton_ plugin for ImageJ and Fiji.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ */
+
+/**
+ * Skeleton analysis for very large skeletons.
+ * <p>
+ * The image is divided into chunks of consecutive slices which are tagged
+ * and traversed in parallel. Junction voxels are grouped into junctions
+ * inside every chunk and the groups are merged across the chunk borders
+ * afterwards. Voxels are addressed by their index z * width * height +
+ * y * width + x, vertices are looked up in a hash index, and the branches
+ * are stored as arrays of slab voxel indices instead of Graph, Edge and
+ * Vertex objects.
+ * <p>
+ * The branch lengths are the calibrated lengths of the voxel paths from
+ * vertex voxel to vertex voxel, and every slab voxel is counted. This is
+ * not what AnalyzeSkeleton_ measures (its lengths and slab counts depend
+ * on the order in which it visits the branches), so the plugin shows these
+ * measurements under their own headings. Unlike AnalyzeSkeleton_, no
+ * pruning is done and no longest shortest paths are calculated.
+ */
+public class ChunkedSkeletonAnalysis
+{
+	/** default number of slices per chunk */
+	public static final int DEFAULT_CHUNK_DEPTH = 16;
+
+	private final ImageStack inputImage;
+	private final Calibration calibration;
+	private final int width, height, depth;
+	private final long sliceSize;
+
+	private int chunkDepth = DEFAULT_CHUNK_DEPTH;
+	private int threads = Prefs.getThreads();
+	private int numOfChunks;
+
+	/** tagged slices (END_POINT, JUNCTION, SLAB or 0) */
+	private byte[][] tags;
+	/** number of slab voxels of every chunk */
+	private long[] slabCount;
+
+	/** end point and junction voxels of every chunk, in raster order */
+	private long[][] vertexVoxels;
+	/** number of slab and end point neighbors of every junction voxel */
+	private int[][] branchNeighbors;
+
+	/** vertex voxel index -> vertex */
+	private LongIntHashMap vertexIndex;
+	/** first (lowest) voxel of every vertex */
+	private long[] vertexPoint;
+	/** END_POINT, JUNCTION, or SLAB for circular skeletons */
+	private byte[] vertexType;
+	/** number of voxels of every vertex */
+	private int[] vertexSize;
+	/** number of slab and end point neighbors of every junction */
+	private int[] vertexBranchNeighbors;
+	private int numOfVertices;
+
+	/** branches found in every chunk, plus the circular ones */
+	private EdgeList[] edges;
+
+	/** tree of every vertex */
+	private int[] vertexTree;
+	private int numOfTrees;
+
+	/** calibrated distances to the 26 neighbors (index 13 is the voxel itself) */
+	private final double[] neighborDistance = new double[27];
+
+	/**
+	 * Create an analysis of a binary skeleton image.
+	 *
+	 * @param imp 8-bit skeleton image (foreground != 0)
+	 */
+	public ChunkedSkeletonAnalysis(ImagePlus imp)
+	{
+		this.inputImage = imp.getStack();
+		this.calibration = imp.getCalibration();
+		this.width = imp.getWidth();
+		this.height = imp.getHeight();
+		this.depth = imp.getStackSize();
+		this.sliceSize = (long) width * height;
+
+		for(int dz = -1; dz <= 1; dz++)
+			for(int dy = -1; dy <= 1; dy++)
+				for(int dx = -1; dx <= 1; dx++)
+					neighborDistance[(dz + 1) * 9 + (dy + 1) * 3 + dx + 1] =
+						Math.sqrt(Math.pow(dx * calibration.pixelWidth, 2)
+							+ Math.pow(dy * calibration.pixelHeight, 2)
+							+ Math.pow(dz * calibration.pixelDepth, 2));
+	}
+
+	/**
+	 * Set the number of slices of the chunks which are processed in parallel.
+	 *
+	 * @param chunkDepth number of slices per chunk
+	 */
+	public void setChunkDepth(int chunkDepth)
+	{
+		this.chunkDepth = Math.max(1, chunkDepth);
+	}
+
+	/**
+	 * Set the number of threads.
+	 *
+	 * @param threads number of threads
+	 */
+	public void setThreads(int threads)
+	{
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Tag the skeleton, build the graph and measure the trees.
+	 *
+	 * @return the measurements of every tree; the lists of points and the
+	 *         graphs are not set
+	 */
+	public SkeletonResult run()
+	{
+		try
+		{
+			return run(null);
+		}
+		catch(IOException e)
+		{
+			// there is no branch table to write
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Tag the skeleton, build the graph and measure the trees, writing the
+	 * branch information while the trees are measured.
+	 * <p>
+	 * The branch table has the columns "Branch", "Skeleton ID", "Branch
+	 * length", the calibrated coordinates of the first voxel of both
+	 * vertices, and their "Euclidean distance", as comma separated values.
+	 * The branches are written chunk by chunk, and the slab voxels of every
+	 * chunk are released as soon as its branches are written.
+	 *
+	 * @param branchTable output for the branch table (null for none)
+	 * @return the measurements of every tree; the lists of points and the
+	 *         graphs are not set
+	 * @throws IOException if the branch table could not be written
+	 */
+	public SkeletonResult run(Writer branchTable) throws IOException
+	{
+		numOfChunks = (depth + chunkDepth - 1) / chunkDepth;
+
+		IJ.showStatus("Tagging skeleton...");
+		tagImage();
+		IJ.showStatus("Grouping junctions...");
+		findVertices();
+		IJ.showStatus("Visiting branches...");
+		findBranches();
+		findCircularBranches();
+		IJ.showStatus("Measuring trees...");
+		findTrees();
+		final SkeletonResult result = assembleResults(null == branchTable ?
+				null : new PrintWriter(branchTable));
+		IJ.showStatus("");
+
+		return result;
+	}
+
+	/**
+	 * Get the tagged skeleton (END_POINT, JUNCTION and SLAB voxels).
+	 *
+	 * @return tagged image
+	 */
+	public ImageStack getTaggedImage()
+	{
+		ImageStack result = new ImageStack(width, height, inputImage.getColorModel());
+		for(int z = 0; z < depth; z++)
+			result.addSlice(inputImage.getSliceLabel(z + 1),
+					new ByteProcessor(width, height, tags[z], null));
+		return result;
+	}
+
+	/**
+	 * Get the number of branches.
+	 *
+	 * @return number of branches
+	 */
+	public int getNumberOfBranches()
+	{
+		int result = 0;
+		for(final EdgeList list : edges)
+			result += list.size;
+		return result;
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Tag the voxels of every chunk by their number of neighbors.
+	 */
+	private void tagImage()
+	{
+		tags = new byte[depth][];
+		slabCount = new long[numOfChunks];
+		final byte[][] pixels = new byte[depth][];
+		for(int z = 0; z < depth; z++)
+			pixels[z] = (byte[]) inputImage.getPixels(z + 1);
+
+		processChunks(new ChunkTask() {
+			public void process(int chunk)
+			{
+				final int zEnd = Math.min(depth, (chunk + 1) * chunkDepth);
+				for(int z = chunk * chunkDepth; z < zEnd; z++)
+				{
+					final byte[] slice = new byte[width * height];
+					for(int y = 0; y < height; y++)
+						for(int x = 0; x < width; x++)
+						{
+							if(pixels[z][x + y * width] == 0)
+								continue;
+							final int n = countNeighbors(pixels, x, y, z);
+							if(n < 2)
+								slice[x + y * width] = AnalyzeSkeleton_.END_POINT;
+							else if(n > 2)
+								slice[x + y * width] = AnalyzeSkeleton_.JUNCTION;
+							else
+							{
+								slice[x + y * width] = AnalyzeSkeleton_.SLAB;
+								slabCount[chunk]++;
+							}
+						}
+					tags[z] = slice;
+				}
+			}
+		});
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Collect the end point and junction voxels, group neighboring junction
+	 * voxels into junctions (first inside every chunk, then across the chunk
+	 * borders) and index the resulting vertices.
+	 */
+	private void findVertices()
+	{
+		vertexVoxels = new long[numOfChunks][];
+		branchNeighbors = new int[numOfChunks][];
+		final int[][] localParent = new int[numOfChunks][];
+
+		processChunks(new ChunkTask() {
+			public void process(int chunk)
+			{
+				final int zStart = chunk * chunkDepth;
+				final int zEnd = Math.min(depth, zStart + chunkDepth);
+				final LongList list = new LongList();
+				for(int z = zStart; z < zEnd; z++)
+					for(int i = 0; i < width * height; i++)
+						if(tags[z][i] == AnalyzeSkeleton_.END_POINT
+								|| tags[z][i] == AnalyzeSkeleton_.JUNCTION)
+							list.add(z * sliceSize + i);
+				final long[] voxels = list.toArray();
+				final int[] parent = new int[voxels.length];
+				final int[] branches = new int[voxels.length];
+
+				for(int i = 0; i < voxels.length; i++)
+				{
+					parent[i] = i;
+					final int z = (int) (voxels[i] / sliceSize);
+					final int y = (int) (voxels[i] % sliceSize) / width;
+					final int x = (int) (voxels[i] % sliceSize) % width;
+					if(tags[z][x + y * width] != AnalyzeSkeleton_.JUNCTION)
+						continue;
+					for(int dz = -1; dz <= 1; dz++)
+						for(int dy = -1; dy <= 1; dy++)
+							for(int dx = -1; dx <= 1; dx++)
+							{
+								final byte tag = getTag(x + dx, y + dy, z + dz);
+								if(tag == AnalyzeSkeleton_.SLAB
+										|| tag == AnalyzeSkeleton_.END_POINT)
+									branches[i]++;
+								// join with the junction voxels before this one
+								if(tag != AnalyzeSkeleton_.JUNCTION
+										|| z + dz < zStart
+										|| (dz * 3 + dy) * 3 + dx >= 0)
+									continue;
+								final int j = Arrays.binarySearch(voxels, 0, i,
+										voxels[i] + (dz * height + dy) * (long) width + dx);
+								union(parent, i, j);
+							}
+				}
+				vertexVoxels[chunk] = voxels;
+				branchNeighbors[chunk] = branches;
+				localParent[chunk] = parent;
+			}
+		});
+
+		// concatenate the chunks
+		final int[] offset = new int[numOfChunks + 1];
+		for(int chunk = 0; chunk < numOfChunks; chunk++)
+			offset[chunk + 1] = offset[chunk] + vertexVoxels[chunk].length;
+		final int[] parent = new int[offset[numOfChunks]];
+		for(int chunk = 0; chunk < numOfChunks; chunk++)
+			for(int i = 0; i < localParent[chunk].length; i++)
+				parent[offset[chunk] + i] = offset[chunk] + localParent[chunk][i];
+
+		// join junctions across the chunk borders
+		for(int chunk = 1; chunk < numOfChunks; chunk++)
+		{
+			final long[] voxels = vertexVoxels[chunk];
+			final long[] previous = vertexVoxels[chunk - 1];
+			final int z = chunk * chunkDepth;
+			for(int i = 0; i < voxels.length && voxels[i] < (z + 1) * sliceSize; i++)
+			{
+				final int y = (int) (voxels[i] % sliceSize) / width;
+				final int x = (int) (voxels[i] % sliceSize) % width;
+				if(tags[z][x + y * width] != AnalyzeSkeleton_.JUNCTION)
+					continue;
+				for(int dy = -1; dy <= 1; dy++)
+					for(int dx = -1; dx <= 1; dx++)
+					{
+						if(getTag(x + dx, y + dy, z - 1) != AnalyzeSkeleton_.JUNCTION)
+							continue;
+						final int j = Arrays.binarySearch(previous,
+								voxels[i] - sliceSize + dy * width + dx);
+						union(parent, offset[chunk] + i, offset[chunk - 1] + j);
+					}
+			}
+		}
+
+		// number the vertices in the order of their first voxel
+		final int[] vertex = new int[parent.length];
+		Arrays.fill(vertex, -1);
+		vertexIndex = new LongIntHashMap(parent.length);
+		vertexPoint = new long[parent.length];
+		vertexType = new byte[parent.length];
+		vertexSize = new int[parent.length];
+		vertexBranchNeighbors = new int[parent.length];
+		numOfVertices = 0;
+		for(int chunk = 0; chunk < numOfChunks; chunk++)
+			for(int i = 0; i < vertexVoxels[chunk].length; i++)
+			{
+				final long voxel = vertexVoxels[chunk][i];
+				final int root = find(parent, offset[chunk] + i);
+				if(vertex[root] < 0)
+				{
+					vertex[root] = numOfVertices++;
+					vertexPoint[vertex[root]] = voxel;
+					vertexType[vertex[root]] = getTag(voxel);
+				}
+				final int v = vertex[root];
+				vertexIndex.put(voxel, v);
+				vertexSize[v]++;
+				vertexBranchNeighbors[v] += branchNeighbors[chunk][i];
+			}
+		branchNeighbors = null;
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Follow the branches leaving the vertex voxels of every chunk. Every
+	 * branch is followed from both ends, and kept by the end with the lower
+	 * (vertex voxel, first slab voxel) index, so the chunks do not need to
+	 * share any state.
+	 */
+	private void findBranches()
+	{
+		edges = new EdgeList[numOfChunks + 1];
+		processChunks(new ChunkTask() {
+			public void process(int chunk)
+			{
+				final EdgeList list = new EdgeList();
+				final LongList slabs = new LongList();
+				final double[] length = new double[1];
+				for(final long start : vertexVoxels[chunk])
+				{
+					final int v1 = vertexIndex.get(start);
+					for(int n = 0; n < 27; n++)
+					{
+						final long next = getNeighbor(start, n);
+						if(next < 0 || n == 13)
+							continue;
+						final byte tag = getTag(next);
+						if(tag == AnalyzeSkeleton_.SLAB)
+						{
+							slabs.size = 0;
+							final long end = followBranch(start, next, slabs, length);
+							final long last = slabs.values[slabs.size - 1];
+							if(start < end || (start == end && next < last))
+								list.add(v1, vertexIndex.get(end), length[0], slabs);
+						}
+						else if(tag != 0 && start < next)
+						{
+							// neighboring vertices: a branch without slabs
+							final int v2 = vertexIndex.get(next);
+							if(v2 != v1)
+							{
+								slabs.size = 0;
+								list.add(v1, v2, neighborDistance[n], slabs);
+							}
+						}
+					}
+				}
+				edges[chunk] = list;
+			}
+		});
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Find the circular skeletons, which consist of slab voxels only. Each
+	 * one becomes a vertex at its first voxel with a branch to itself.
+	 */
+	private void findCircularBranches()
+	{
+		final EdgeList circular = new EdgeList();
+		edges[numOfChunks] = circular;
+
+		long totalSlabs = 0, visitedSlabs = 0;
+		for(int chunk = 0; chunk < numOfChunks; chunk++)
+		{
+			totalSlabs += slabCount[chunk];
+			visitedSlabs += edges[chunk].slabCount;
+		}
+		if(visitedSlabs == totalSlabs)
+			return;
+
+		final long[] visited = new long[(int) ((depth * sliceSize + 63) / 64)];
+		for(int chunk = 0; chunk < numOfChunks; chunk++)
+			for(int i = 0; i < edges[chunk].slabCount; i++)
+			{
+				final long voxel = edges[chunk].slabs[i];
+				visited[(int) (voxel >> 6)] |= 1l << (voxel & 63);
+			}
+
+		final LongList slabs = new LongList();
+		final double[] length = new double[1];
+		for(int z = 0; z < depth; z++)
+			for(int i = 0; i < width * height; i++)
+			{
+				if(tags[z][i] != AnalyzeSkeleton_.SLAB)
+					continue;
+				final long voxel = z * sliceSize + i;
+				if((visited[(int) (voxel >> 6)] & (1l << (voxel & 63))) != 0)
+					continue;
+
+				// follow the circle, without the step back to the first voxel
+				slabs.size = 0;
+				slabs.add(voxel);
+				length[0] = 0;
+				long previous = voxel, current = voxel;
+				for(;;)
+				{
+					visited[(int) (current >> 6)] |= 1l << (current & 63);
+					final int n = getNextNeighbor(current, previous);
+					final long next = getNeighbor(current, n);
+					if(next == voxel || n == 13)
+						break;
+					length[0] += neighborDistance[n];
+					slabs.add(next);
+					previous = current;
+					current = next;
+				}
+
+				final int v = addVertex(voxel, AnalyzeSkeleton_.SLAB);
+				circular.add(v, v, length[0], slabs);
+			}
+	}
+
+	/**
+	 * Add a vertex which is not an end point or a junction.
+	 */
+	private int addVertex(long voxel, byte type)
+	{
+		if(numOfVertices == vertexPoint.length)
+		{
+			final int size = Math.max(16, 2 * numOfVertices);
+			vertexPoint = Arrays.copyOf(vertexPoint, size);
+			vertexType = Arrays.copyOf(vertexType, size);
+			vertexSize = Arrays.copyOf(vertexSize, size);
+			vertexBranchNeighbors = Arrays.copyOf(vertexBranchNeighbors, size);
+		}
+		vertexPoint[numOfVertices] = voxel;
+		vertexType[numOfVertices] = type;
+		vertexSize[numOfVertices] = 1;
+		vertexIndex.put(voxel, numOfVertices);
+		return numOfVertices++;
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Group the vertices connected by branches into trees, numbered in the
+	 * order of their first vertex.
+	 */
+	private void findTrees()
+	{
+		final int[] parent = new int[numOfVertices];
+		for(int v = 0; v < numOfVertices; v++)
+			parent[v] = v;
+		for(final EdgeList list : edges)
+			for(int i = 0; i < list.size; i++)
+				union(parent, list.v1[i], list.v2[i]);
+
+		vertexTree = new int[numOfVertices];
+		numOfTrees = 0;
+		for(int v = 0; v < numOfVertices; v++)
+		{
+			final int root = find(parent, v);
+			vertexTree[v] = root == v ? numOfTrees++ : vertexTree[root];
+		}
+	}
+
+	/**
+	 * Measure the trees and write the branch table, one list of branches
+	 * after the other; the slab voxels of every list are released once it
+	 * is done.
+	 *
+	 * @param out output for the branch table (null for none)
+	 */
+	private SkeletonResult assembleResults(PrintWriter out) throws IOException
+	{
+		final int[] branches = new int[numOfTrees];
+		final int[] junctions = new int[numOfTrees];
+		final int[] endPoints = new int[numOfTrees];
+		final int[] junctionVoxels = new int[numOfTrees];
+		final int[] slabs = new int[numOfTrees];
+		final int[] triples = new int[numOfTrees];
+		final int[] quadruples = new int[numOfTrees];
+		final double[] averageLength = new double[numOfTrees];
+		final double[] maximumLength = new double[numOfTrees];
+
+		for(int v = 0; v < numOfVertices; v++)
+		{
+			final int tree = vertexTree[v];
+			if(vertexType[v] == AnalyzeSkeleton_.END_POINT)
+				endPoints[tree]++;
+			else if(vertexType[v] == AnalyzeSkeleton_.JUNCTION)
+			{
+				junctions[tree]++;
+				junctionVoxels[tree] += vertexSize[v];
+				if(vertexBranchNeighbors[v] == 3)
+					triples[tree]++;
+				else if(vertexBranchNeighbors[v] == 4)
+					quadruples[tree]++;
+			}
+		}
+
+		if(null != out)
+			out.println("Branch,Skeleton ID,Branch length,V1 x,V1 y,V1 z,"
+					+ "V2 x,V2 y,V2 z,Euclidean distance");
+		int branch = 0;
+		final double[] p1 = new double[3], p2 = new double[3];
+		for(final EdgeList list : edges)
+		{
+			for(int i = 0; i < list.size; i++)
+			{
+				final int tree = vertexTree[list.v1[i]];
+				branches[tree]++;
+				slabs[tree] += list.slabStart[i + 1] - list.slabStart[i];
+				averageLength[tree] += list.length[i];
+				if(list.length[i] > maximumLength[tree])
+					maximumLength[tree] = list.length[i];
+
+				if(null == out)
+					continue;
+				getCalibratedPosition(vertexPoint[list.v1[i]], p1);
+				getCalibratedPosition(vertexPoint[list.v2[i]], p2);
+				final double distance = Math.sqrt(Math.pow(p1[0] - p2[0], 2)
+						+ Math.pow(p1[1] - p2[1], 2) + Math.pow(p1[2] - p2[2], 2));
+				out.println(++branch + "," + (tree + 1) + "," + list.length[i]
+						+ "," + p1[0] + "," + p1[1] + "," + p1[2]
+						+ "," + p2[0] + "," + p2[1] + "," + p2[2]
+						+ "," + distance);
+			}
+			list.slabs = null;
+			if(null != out)
+			{
+				out.flush();
+				if(out.checkError())
+					throw new IOException("Could not write the branch table");
+			}
+		}
+		for(int tree = 0; tree < numOfTrees; tree++)
+			if(branches[tree] > 0)
+				averageLength[tree] /= branches[tree];
+
+		final SkeletonResult result = new SkeletonResult(numOfTrees);
+		result.setBranches(branches);
+		result.setJunctions(junctions);
+		result.setEndPoints(endPoints);
+		result.setJunctionVoxels(junctionVoxels);
+		result.setSlabs(slabs);
+		result.setAverageBranchLength(averageLength);
+		result.setTriples(triples);
+		result.setQuadruples(quadruples);
+		result.setMaximumBranchLength(maximumLength);
+		result.calculateNumberOfVoxels();
+		return result;
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Follow a branch from a vertex voxel along its slab voxels.
+	 *
+	 * @param start vertex voxel
+	 * @param first first slab voxel of the branch
+	 * @param slabs list to add the slab voxels to
+	 * @param length returns the calibrated length of the branch
+	 * @return the vertex voxel at the other end of the branch
+	 */
+	private long followBranch(long start, long first, LongList slabs, double[] length)
+	{
+		length[0] = getDistance(start, first);
+		long previous = start, current = first;
+		for(;;)
+		{
+			slabs.add(current);
+			final int n = getNextNeighbor(current, previous);
+			final long next = getNeighbor(current, n);
+			length[0] += neighborDistance[n];
+			if(getTag(next) != AnalyzeSkeleton_.SLAB)
+				return next;
+			previous = current;
+			current = next;
+		}
+	}
+
+	/**
+	 * Get the neighbor of a slab voxel which is not the given one.
+	 *
+	 * @return the neighbor's position in the 3x3x3 neighborhood
+	 */
+	private int getNextNeighbor(long voxel, long previous)
+	{
+		for(int n = 0; n < 27; n++)
+		{
+			if(n == 13)
+				continue;
+			final long neighbor = getNeighbor(voxel, n);
+			if(neighbor >= 0 && neighbor != previous && getTag(neighbor) != 0)
+				return n;
+		}
+		return 13;
+	}
+
+	/**
+	 * Get the index of a neighbor voxel.
+	 *
+	 * @param voxel voxel index
+	 * @param n position in the 3x3x3 neighborhood (13 is the voxel itself)
+	 * @return the neighbor's index, or -1 if it is outside of the image
+	 */
+	private long getNeighbor(long voxel, int n)
+	{
+		final int dx = n % 3 - 1, dy = (n / 3) % 3 - 1, dz = n / 9 - 1;
+		final int z = (int) (voxel / sliceSize) + dz;
+		final int i = (int) (voxel % sliceSize);
+		final int y = i / width + dy;
+		final int x = i % width + dx;
+		if(x < 0 || x >= width || y < 0 || y >= height || z < 0 || z >= depth)
+			return -1;
+		return z * sliceSize + y * width + x;
+	}
+
+	private double getDistance(long voxel1, long voxel2)
+	{
+		final int i1 = (int) (voxel1 % sliceSize), i2 = (int) (voxel2 % sliceSize);
+		final int dx = i2 % width - i1 % width;
+		final int dy = i2 / width - i1 / width;
+		final int dz = (int) (voxel2 / sliceSize - voxel1 / sliceSize);
+		return neighborDistance[(dz + 1) * 9 + (dy + 1) * 3 + dx + 1];
+	}
+
+	private void getCalibratedPosition(long voxel, double[] position)
+	{
+		final int i = (int) (voxel % sliceSize);
+		position[0] = (i % width) * calibration.pixelWidth;
+		position[1] = (i / width) * calibration.pixelHeight;
+		position[2] = (voxel / sliceSize) * calibration.pixelDepth;
+	}
+
+	private byte getTag(long voxel)
+	{
+		return tags[(int) (voxel / sliceSize)][(int) (voxel % sliceSize)];
+	}
+
+	private byte getTag(int x, int y, int z)
+	{
+		if(x < 0 || x >= width || y < 0 || y >= height || z < 0 || z >= depth)
+			return 0;
+		return tags[z][x + y * width];
+	}
+
+	private int countNeighbors(byte[][] pixels, int x, int y, int z)
+	{
+		int n = 0;
+		for(int zz = Math.max(0, z - 1); zz <= Math.min(depth - 1, z + 1); zz++)
+			for(int yy = Math.max(0, y - 1); yy <= Math.min(height - 1, y + 1); yy++)
+				for(int xx = Math.max(0, x - 1); xx <= Math.min(width - 1, x + 1); xx++)
+					if(pixels[zz][xx + yy * width] != 0)
+						n++;
+		// the voxel itself is counted, too
+		return n - 1;
+	}
+
+	private static int find(int[] parent, int i)
+	{
+		while(parent[i] != i)
+		{
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] parent, int i, int j)
+	{
+		i = find(parent, i);
+		j = find(parent, j);
+		// the lower index becomes the root
+		if(i < j)
+			parent[j] = i;
+		else if(j < i)
+			parent[i] = j;
+	}
+
+	// -----------------------------------------------------------------------
+	private interface ChunkTask
+	{
+		void process(int chunk);
+	}
+
+	/**
+	 * Process all chunks, using the given number of threads.
+	 */
+	private void processChunks(final ChunkTask task)
+	{
+		final AtomicInteger nextChunk = new AtomicInteger(0);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final Thread[] workers = new Thread[Math.max(1, Math.min(threads, numOfChunks))];
+		for(int ithread = 0; ithread < workers.length; ithread++)
+		{
+			workers[ithread] = new Thread() {
+				public void run()
+				{
+					try
+					{
+						for(int chunk = nextChunk.getAndIncrement(); chunk < numOfChunks;
+								chunk = nextChunk.getAndIncrement())
+							task.process(chunk);
+					}
+					catch(Throwable t)
+					{
+						error.compareAndSet(null, t);
+						// make the other threads stop
+						nextChunk.set(numOfChunks);
+					}
+				}
+			};
+			workers[ithread].start();
+		}
+
+		try
+		{
+			for(int ithread = 0; ithread < workers.length; ithread++)
+				workers[ithread].join();
+		}
+		catch(InterruptedException e)
+		{
+			throw new RuntimeException(e);
+		}
+
+		final Throwable t = error.get();
+		if(t instanceof RuntimeException)
+			throw (RuntimeException) t;
+		if(t instanceof Error)
+			throw (Error) t;
+		if(t != null)
+			throw new RuntimeException(t);
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Growing list of long values.
+	 */
+	private static class LongList
+	{
+		long[] values = new long[16];
+		int size = 0;
+
+		void add(long value)
+		{
+			if(size == values.length)
+				values = Arrays.copyOf(values, 2 * size);
+			values[size++] = value;
+		}
+
+		long[] toArray()
+		{
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * Branches, stored as arrays: the vertices and the length of every
+	 * branch, and the slab voxels of branch i at
+	 * slabs[slabStart[i]] .. slabs[slabStart[i + 1] - 1].
+	 */
+	private static class EdgeList
+	{
+		int[] v1 = new int[16], v2 = new int[16];
+		double[] length = new double[16];
+		int[] slabStart = new int[17];
+		long[] slabs = new long[64];
+		int size = 0, slabCount = 0;
+
+		void add(int vertex1, int vertex2, double branchLength, LongList branchSlabs)
+		{
+			if(size + 1 == v1.length)
+			{
+				v1 = Arrays.copyOf(v1, 2 * v1.length);
+				v2 = Arrays.copyOf(v2, 2 * v2.length);
+				length = Arrays.copyOf(length, 2 * length.length);
+				slabStart = Arrays.copyOf(slabStart, 2 * slabStart.length);
+			}
+			if(slabCount + branchSlabs.size > slabs.length)
+				slabs = Arrays.copyOf(slabs,
+						Math.max(2 * slabs.length, slabCount + branchSlabs.size));
+			v1[size] = vertex1;
+			v2[size] = vertex2;
+			length[size] = branchLength;
+			System.arraycopy(branchSlabs.values, 0, slabs, slabCount, branchSlabs.size);
+			slabCount += branchSlabs.size;
+			slabStart[++size] = slabCount;
+		}
+	}
+
+	/**
+	 * Hash map from voxel indices to vertices (open addressing with linear
+	 * probing; the keys must not be negative).
+	 */
+	private static class LongIntHashMap
+	{
+		private long[] keys;
+		private int[] values;
+		private int size = 0;
+
+		LongIntHashMap(int expectedSize)
+		{
+			int capacity = 16;
+			while(capacity < 2 * expectedSize)
+				capacity <<= 1;
+			keys = new long[capacity];
+			Arrays.fill(keys, -1);
+			values = new int[capacity];
+		}
+
+		private int slot(long key)
+		{
+			long hash = key * 0x9e3779b97f4a7c15l;
+			return (int) (hash >>> 32) & (keys.length - 1);
+		}
+
+		void put(long key, int value)
+		{
+			if(2 * (size + 1) > keys.length)
+				grow();
+			int i = slot(key);
+			while(keys[i] >= 0 && keys[i] != key)
+				i = (i + 1) & (keys.length - 1);
+			if(keys[i] < 0)
+				size++;
+			keys[i] = key;
+			values[i] = value;
+		}
+
+		/** returns -1 if the key is not in the map */
+		int get(long key)
+		{
+			int i = slot(key);
+			while(keys[i] >= 0)
+			{
+				if(keys[i] == key)
+					return values[i];
+				i = (i + 1) & (keys.length - 1);
+			}
+			return -1;
+		}
+
+		private void grow()
+		{
+			final long[] oldKeys = keys;
+			final int[] oldValues = values;
+			keys = new long[2 * oldKeys.length];
+			Arrays.fill(keys, -1);
+			values = new int[keys.length];
+			size = 0;
+			for(int i = 0; i < oldKeys.length; i++)
+				if(oldKeys[i] >= 0)
+					put(oldKeys[i], oldValues[i]);
+		}
+	}
+}
@@ -69,5 +69,14 @@ public boolean equals(Object o)
 		return p.x == this.x && p.y == this.y && p.z == this.z;
 	}	
 	
+	/**
+	 * Override hashCode method to be consistent with equals.
+	 * @return hash code of the coordinates
+	 */
+	public int hashCode()
+	{
+		return (this.z * 31 + this.y) * 31 + this.x;
+	}
+	
 
 }// end class point
@@ -0,0 +1,343 @@
+package fiji.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A KD-tree over float coordinates that is stored in flat arrays.
+ *
+ * The tree is implicit: the points are reordered such that the root of
+ * every subtree [lo, hi) is at (lo + hi) / 2, the points in [lo, root)
+ * are not larger and the points in (root, hi) are not smaller in the
+ * splitting dimension (which is the depth modulo the number of
+ * dimensions).  The order is established with an in-place selection
+ * instead of sorting or partitioning lists.
+ *
+ * The queries do not allocate any memory; the results are written into
+ * arrays provided by the caller and reported as indices into the
+ * original list of points.  A tree can be queried from several threads
+ * at the same time.
+ */
+public class FlatKDTree
+{
+	final protected int numDimensions, size;
+
+	/* the coordinates in tree order, point after point */
+	final protected float[] coordinates;
+
+	/* the original index of the point at each position in the tree */
+	final protected int[] indices;
+
+	/**
+	 * Construct a tree from points given as one array per point.
+	 */
+	public FlatKDTree(final float[][] points) {
+		this(flatten(points), points.length == 0 ? 1 : points[0].length);
+	}
+
+	/**
+	 * Construct a tree from points given as one array, point after point
+	 * (numDimensions values per point).  The array is not modified.
+	 */
+	public FlatKDTree(final float[] points, final int numDimensions) {
+		if (numDimensions < 1 || points.length % numDimensions != 0)
+			throw new IllegalArgumentException("Length of the coordinates (" + points.length + ") is not a multiple of the dimensionality " + numDimensions);
+
+		this.numDimensions = numDimensions;
+		this.size = points.length / numDimensions;
+
+		indices = new int[size];
+		for (int i = 0; i < size; i++)
+			indices[i] = i;
+
+		build(points, 0, size, 0);
+
+		coordinates = new float[points.length];
+		for (int i = 0; i < size; i++)
+			System.arraycopy(points, indices[i] * numDimensions, coordinates, i * numDimensions, numDimensions);
+	}
+
+	protected static float[] flatten(final float[][] points) {
+		if (points.length == 0)
+			return new float[0];
+
+		final int numDimensions = points[0].length;
+		final float[] result = new float[points.length * numDimensions];
+		for (int i = 0; i < points.length; i++) {
+			if (points[i].length != numDimensions)
+				throw new RuntimeException("Dimensionality of points is not preserved, first entry has dimensionality " + numDimensions + " entry " + i + " has dimensionality " + points[i].length);
+			System.arraycopy(points[i], 0, result, i * numDimensions, numDimensions);
+		}
+		return result;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getNumDimensions() {
+		return numDimensions;
+	}
+
+	/**
+	 * Get the original index of the point at a position in the tree.
+	 */
+	public int getIndex(final int position) {
+		return indices[position];
+	}
+
+	/**
+	 * Get a coordinate of the point at a position in the tree.
+	 */
+	public float get(final int position, final int d) {
+		return coordinates[position * numDimensions + d];
+	}
+
+	protected void build(final float[] points, final int lo, final int hi, final int depth) {
+		if (hi - lo < 2)
+			return;
+
+		final int median = (lo + hi) >>> 1;
+		select(points, lo, hi - 1, median, depth % numDimensions);
+		build(points, lo, median, depth + 1);
+		build(points, median + 1, hi, depth + 1);
+	}
+
+	/*
+	 * Reorder indices[left..right] such that the point with the n'th
+	 * smallest coordinate in dimension d ends up at n (quickselect with
+	 * a three-way partition, so equal coordinates do not hurt).
+	 */
+	protected void select(final float[] points, int left, int right, final int n, final int d) {
+		while (right > left) {
+			final float a = points[indices[left] * numDimensions + d];
+			final float b = points[indices[(left + right) >>> 1] * numDimensions + d];
+			final float c = points[indices[right] * numDimensions + d];
+			final float pivot = a < b ? (b < c ? b : (a < c ? c : a)) : (a < c ? a : (b < c ? c : b));
+
+			int lt = left, gt = right, i = left;
+			while (i <= gt) {
+				final float value = points[indices[i] * numDimensions + d];
+				if (value < pivot)
+					swap(lt++, i++);
+				else if (value > pivot)
+					swap(i, gt--);
+				else
+					i++;
+			}
+
+			if (n < lt)
+				right = lt - 1;
+			else if (n > gt)
+				left = gt + 1;
+			else
+				return;
+		}
+	}
+
+	protected void swap(final int i, final int j) {
+		final int tmp = indices[i];
+		indices[i] = indices[j];
+		indices[j] = tmp;
+	}
+
+	/**
+	 * Find the nearest point.
+	 *
+	 * @return the original index of the nearest point, or -1 if the tree is empty
+	 */
+	public int findNearestNeighbor(final float[] point) {
+		if (size == 0)
+			return -1;
+		return indices[findNearest(point, 0, size, 0, -1)];
+	}
+
+	protected int findNearest(final float[] point, final int lo, final int hi, final int depth, int best) {
+		if (lo >= hi)
+			return best;
+
+		final int node = (lo + hi) >>> 1;
+		if (best < 0 || squaredDistance(point, node) < squaredDistance(point, best))
+			best = node;
+
+		final int k = depth % numDimensions;
+		final float projectedDistance = point[k] - coordinates[node * numDimensions + k];
+		final boolean lookRight = projectedDistance > 0;
+
+		best = lookRight ? findNearest(point, node + 1, hi, depth + 1, best) : findNearest(point, lo, node, depth + 1, best);
+
+		// maybe there is a better one on the other side
+		if (projectedDistance * projectedDistance < squaredDistance(point, best))
+			best = lookRight ? findNearest(point, lo, node, depth + 1, best) : findNearest(point, node + 1, hi, depth + 1, best);
+
+		return best;
+	}
+
+	protected float squaredDistance(final float[] point, final int position) {
+		final int offset = position * numDimensions;
+		float distance = 0;
+		for (int d = 0; d < numDimensions; d++) {
+			final float diff = coordinates[offset + d] - point[d];
+			distance += diff * diff;
+		}
+		return distance;
+	}
+
+	/**
+	 * Find the k nearest points.
+	 *
+	 * The original indices and the squared distances of the neighbors
+	 * are written into the given arrays (which need to hold at least k
+	 * values), sorted by distance.
+	 *
+	 * @return the number of neighbors found (less than k only if the tree has less points)
+	 */
+	public int findKNearestNeighbors(final float[] point, final int k, final int[] result, final float[] squaredDistances) {
+		return findKNearestNeighbors(point, 0, k, result, squaredDistances, 0);
+	}
+
+	/**
+	 * Find the k nearest points to the point stored at offset
+	 * pointOffset in the array point, and write the results at
+	 * resultOffset into the arrays result and squaredDistances.
+	 *
+	 * @return the number of neighbors found
+	 */
+	public int findKNearestNeighbors(final float[] point, final int pointOffset, final int k, final int[] result, final float[] squaredDistances, final int resultOffset) {
+		if (k <= 0)
+			return 0;
+		return findKNearest(point, pointOffset, 0, size, 0, k, result, squaredDistances, resultOffset, 0);
+	}
+
+	/*
+	 * The neighbors found so far are kept sorted in
+	 * result[resultOffset .. resultOffset + count).
+	 */
+	protected int findKNearest(final float[] point, final int pointOffset, final int lo, final int hi, final int depth, final int k,
+			final int[] result, final float[] squaredDistances, final int resultOffset, int count) {
+		if (lo >= hi)
+			return count;
+
+		final int node = (lo + hi) >>> 1;
+		final int offset = node * numDimensions;
+
+		float distance = 0;
+		for (int d = 0; d < numDimensions; d++) {
+			final float diff = coordinates[offset + d] - point[pointOffset + d];
+			distance += diff * diff;
+		}
+
+		if (count < k || distance < squaredDistances[resultOffset + count - 1]) {
+			int i = count < k ? count++ : count - 1;
+			for (; i > 0 && squaredDistances[resultOffset + i - 1] > distance; i--) {
+				squaredDistances[resultOffset + i] = squaredDistances[resultOffset + i - 1];
+				result[resultOffset + i] = result[resultOffset + i - 1];
+			}
+			squaredDistances[resultOffset + i] = distance;
+			result[resultOffset + i] = indices[node];
+		}
+
+		final float projectedDistance = point[pointOffset + depth % numDimensions] - coordinates[offset + depth % numDimensions];
+		final boolean lookRight = projectedDistance > 0;
+
+		if (lookRight)
+			count = findKNearest(point, pointOffset, node + 1, hi, depth + 1, k, result, squaredDistances, resultOffset, count);
+		else
+			count = findKNearest(point, pointOffset, lo, node, depth + 1, k, result, squaredDistances, resultOffset, count);
+
+		// maybe there is a better one on the other side
+		if (count < k || projectedDistance * projectedDistance < squaredDistances[resultOffset + count - 1]) {
+			if (lookRight)
+				count = findKNearest(point, pointOffset, lo, node, depth + 1, k, result, squaredDistances, resultOffset, count);
+			else
+				count = findKNearest(point, pointOffset, node + 1, hi, depth + 1, k, result, squaredDistances, resultOffset, count);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Find all points within a radius (inclusive), in no particular order.
+	 *
+	 * The given array is cleared and filled with the original indices of
+	 * the points; if it is reused, no memory is allocated once it is
+	 * large enough.
+	 *
+	 * @return the number of points found
+	 */
+	public int findNeighborsWithinRadius(final float[] point, final double radius, final IntArray result) {
+		result.clear();
+		findWithinRadius(point, 0, size, 0, radius * radius, result);
+		return result.size();
+	}
+
+	protected void findWithinRadius(final float[] point, final int lo, final int hi, final int depth, final double squaredRadius, final IntArray result) {
+		if (lo >= hi)
+			return;
+
+		final int node = (lo + hi) >>> 1;
+		final int offset = node * numDimensions;
+
+		double distance = 0;
+		for (int d = 0; d < numDimensions; d++) {
+			final double diff = coordinates[offset + d] - point[d];
+			distance += diff * diff;
+		}
+		if (distance <= squaredRadius)
+			result.add(indices[node]);
+
+		final double projectedDistance = point[depth % numDimensions] - coordinates[offset + depth % numDimensions];
+		final boolean crossesPlane = projectedDistance * projectedDistance <= squaredRadius;
+
+		if (projectedDistance > 0 || crossesPlane)
+			findWithinRadius(point, node + 1, hi, depth + 1, squaredRadius, result);
+		if (projectedDistance <= 0 || crossesPlane)
+			findWithinRadius(point, lo, node, depth + 1, squaredRadius, result);
+	}
+
+	/**
+	 * Find the k nearest points for many query points in parallel.
+	 *
+	 * @param queries the query points, point after point
+	 * @param k the number of neighbors per query
+	 * @param numThreads the number of threads to use
+	 * @return the original indices of the neighbors, k per query and
+	 *	sorted by distance; missing neighbors are -1
+	 */
+	public int[] findKNearestNeighbors(final float[] queries, final int k, final int numThreads) {
+		final int numQueries = queries.length / numDimensions;
+		final int[] result = new int[numQueries * k];
+		final float[] squaredDistances = new float[numQueries * k];
+
+		final int chunkSize = 256;
+		final AtomicInteger nextChunk = new AtomicInteger(0);
+		final Thread[] threads = new Thread[Math.max(1, numThreads)];
+
+		for (int t = 0; t < threads.length; t++)
+			threads[t] = new Thread() {
+				public void run() {
+					for (;;) {
+						final int start = nextChunk.getAndIncrement() * chunkSize;
+						if (start >= numQueries)
+							return;
+						final int end = Math.min(numQueries, start + chunkSize);
+						for (int q = start; q < end; q++) {
+							final int found = findKNearestNeighbors(queries, q * numDimensions, k, result, squaredDistances, q * k);
+							for (int i = found; i < k; i++)
+								result[q * k + i] = -1;
+						}
+					}
+				}
+			};
+
+		for (final Thread thread : threads)
+			thread.start();
+		try {
+			for (final Thread thread : threads)
+				thread.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+
+		return result;
+	}
+}
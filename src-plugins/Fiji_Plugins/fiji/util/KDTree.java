@@ -2,6 +2,7 @@
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
 
@@ -18,7 +19,13 @@
 	final protected int medianLength;
 
 	final protected int dimension;
-	final protected Node<T> root;
+
+	/* built on demand, the searches use the flat tree */
+	protected Node<T> root;
+
+	/* the leaves without duplicates, in the order of the flat tree's indices */
+	final protected ArrayList<T> leaves;
+	final protected FlatKDTree flatTree;
 
 	public static boolean debug = false;
 
@@ -50,7 +57,61 @@ public KDTree(final List<T> leaves, final int maxMedianLength) {
 			++i;
 		}
 
-		root = makeNode(leaves, 0);
+		// identical points are stored only once
+		final HashMap<Coordinates, T> unique = new HashMap<Coordinates, T>();
+		this.leaves = new ArrayList<T>(leaves.size());
+		for (final T leaf : leaves) {
+			final Coordinates key = new Coordinates(getCoordinates(leaf));
+			if (unique.containsKey(key))
+				duplicates.add(leaf);
+			else {
+				unique.put(key, leaf);
+				this.leaves.add(leaf);
+			}
+		}
+
+		final float[] coordinates = new float[this.leaves.size() * dimension];
+		for (int j = 0; j < this.leaves.size(); j++)
+			for (int d = 0; d < dimension; d++)
+				coordinates[j * dimension + d] = this.leaves.get(j).get(d);
+		flatTree = new FlatKDTree(coordinates, dimension);
+	}
+
+	/**
+	 * Get the flat tree used for the searches; its indices refer to
+	 * {@link #getLeaf(int)}.
+	 */
+	public FlatKDTree getFlatTree() {
+		return flatTree;
+	}
+
+	public T getLeaf(final int index) {
+		return leaves.get(index);
+	}
+
+	public float[] getCoordinates(final T leaf) {
+		final float[] result = new float[dimension];
+		for (int d = 0; d < dimension; d++)
+			result[d] = leaf.get(d);
+		return result;
+	}
+
+	protected static class Coordinates {
+		final float[] p;
+		final int hashCode;
+
+		Coordinates(final float[] p) {
+			this.p = p;
+			hashCode = Arrays.hashCode(p);
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
+
+		public boolean equals(final Object o) {
+			return o instanceof Coordinates && Arrays.equals(p, ((Coordinates)o).p);
+		}
 	}
 
 
@@ -171,7 +232,9 @@ protected float median(final List<T> leaves, final int k) {
 		return (list.length & 1) == 1 ? list[list.length / 2] :	(list[list.length / 2] + list[list.length / 2 - 1]) / 2;
 	}
 
-	public Node<T> getRoot() {
+	public synchronized Node<T> getRoot() {
+		if (root == null)
+			root = makeNode(leaves, 0);
 		return root;
 	}
 
@@ -191,7 +254,7 @@ public String toString(Node<T> node, String indent) {
 	}
 
 	public String toString() {
-		return toString(root, "");
+		return toString(getRoot(), "");
 	}
 
 }
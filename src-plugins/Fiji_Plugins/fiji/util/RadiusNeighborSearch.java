@@ -20,14 +20,12 @@
 import java.util.Collections;
 
 import fiji.util.node.Leaf;
-import fiji.util.node.Node;
-import fiji.util.node.NonLeaf;
 
 public class RadiusNeighborSearch<T extends Leaf<T>>
 {
 	final protected KDTree<T> kdTree;
 	protected ArrayList<T> pointsWithinRadius;
-	protected double radius;
+	final protected IntArray indices = new IntArray();
 	
 	public RadiusNeighborSearch( final KDTree<T> kdTree )  { this.kdTree = kdTree; }
 
@@ -36,10 +34,12 @@
 	
 	public ArrayList<T> findNeighborsUnsorted( final T point, final double r )
 	{
-		this.pointsWithinRadius = new ArrayList<T>();
-		this.radius = r;
+		// the indices are collected in a reused array, only the result list is new
+		final int count = kdTree.getFlatTree().findNeighborsWithinRadius( kdTree.getCoordinates( point ), r, indices );
 		
-		findNeighbors( point, kdTree.getRoot(), 0 );
+		this.pointsWithinRadius = new ArrayList<T>( count );
+		for ( int i = 0; i < count; ++i )
+			pointsWithinRadius.add( kdTree.getLeaf( indices.get( i ) ) );
 		
 		return pointsWithinRadius;
 	}
@@ -54,57 +54,4 @@ public ArrayList<T> findNeighborsSorted( final T point, final double r )
 		
 		return pointsWithinRadius;
 	}
-
-	protected void findNeighbors( final T point, final Node<T> node, final int depth ) 
-	{
-		// if we reach a leaf we check if it is within the radius,
-		// and if it is we add it to the ArrayList of pointsWithinRadius
-		if ( node.isLeaf() )
-		{
-			// get the leaf instance 
-			final T leaf = (T)node;
-			
-			// compute the real distance to the point of interest
-			final double distance = leaf.distanceTo( point );
-			
-			// check if it is within range
-			if ( distance <= radius )
-				pointsWithinRadius.add( leaf );
-		}
-		else
-		{
-			// get current splitting plane
-			final int k = (depth % kdTree.getDimension());
-			
-			// cast to the Nonleaf instance that it is
-			final NonLeaf<T> nonLeaf = (NonLeaf<T>)node;
-
-			// if there is nothing on the right side we can look on the left one where 
-			// there should be only one leaf instance anyways 
-			if ( nonLeaf.right == null )
-			{
-				findNeighbors( point, nonLeaf.left, depth + 1 );
-			}			
-			else if ( nonLeaf.left == null ) // same for the left side
-			{
-				findNeighbors( point, nonLeaf.right, depth + 1 );
-			}
-			else
-			{
-				// compute the projected distance
-				// distance just in the current splitting plane
-				final float projectedDistance = nonLeaf.coordinate - point.get( k );
-				
-				// if the distance is < 0, we have to go right, otherwise left
-				final boolean lookRight = projectedDistance < 0;
-	
-				// we first test the direction which the projected distance is smaller 
-				findNeighbors( point, lookRight ? nonLeaf.right : nonLeaf.left, depth + 1 );
-				
-				// maybe there is another one within the radius on the other side of the split plane?
-				if ( Math.abs( projectedDistance ) <= radius)
-					findNeighbors(point, lookRight ? nonLeaf.left : nonLeaf.right, depth + 1);
-			}
-		}
-	}	
 }
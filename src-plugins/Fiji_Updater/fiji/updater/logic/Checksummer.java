@@ -23,6 +23,12 @@
 import java.util.Set;
 import java.util.TreeMap;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import java.util.zip.ZipException;
 
 /*
@@ -42,6 +48,10 @@ public class Checksummer extends Progressable {
 	protected PluginCollection plugins;
 	protected int counter, total;
 	protected Map<String, PluginObject.Version> cachedChecksums;
+	// size and modification time (in milliseconds) of the cached files
+	protected Map<String, long[]> cachedFileStats;
+	// digests being calculated in the background
+	protected Map<String, Future<String>> pendingDigests;
 
 	public Checksummer(PluginCollection plugins, Progress progress) {
 		this.plugins = plugins;
@@ -176,12 +186,58 @@ protected void handleQueue() {
 		for (StringPair pair : queue)
 			total += Util.getFilesize(pair.realPath);
 		counter = 0;
-		for (StringPair pair : queue)
-			handle(pair);
+		ExecutorService executor = startDigests();
+		try {
+			for (StringPair pair : queue)
+				handle(pair);
+		} finally {
+			executor.shutdownNow();
+			pendingDigests = null;
+		}
 		done();
 		writeCachedChecksums();
 	}
 
+	/*
+	 * Calculate the digests of all files which changed since the
+	 * checksums were cached, in parallel; handle() picks them up in
+	 * the order of the queue.
+	 */
+	protected ExecutorService startDigests() {
+		if (cachedChecksums == null)
+			readCachedChecksums();
+		int threads = Math.max(2,
+			Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		pendingDigests = new HashMap<String, Future<String>>();
+		for (StringPair pair : queue) {
+			final String path = pair.path;
+			final String realPath = Util.prefix(pair.realPath);
+			File file = new File(realPath);
+			if (!file.exists() || isCached(path, file)
+					|| pendingDigests.containsKey(path))
+				continue;
+			pendingDigests.put(path, executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return Util.getDigest(path, realPath);
+				}
+			}));
+		}
+		return executor;
+	}
+
+	protected boolean isCached(String path, File file) {
+		PluginObject.Version version = cachedChecksums.get(path);
+		if (version == null)
+			return false;
+		long[] stats = cachedFileStats.get(path);
+		if (stats == null)
+			return version.timestamp ==
+				Util.getTimestamp(file.getPath());
+		return stats[0] == file.length() &&
+			stats[1] == file.lastModified();
+	}
+
 	public void updateFromLocal(List<String> files) {
 		queue = new ArrayList<StringPair>();
 		for (String file : files)
@@ -287,6 +343,7 @@ public void updateFromLocal() {
 
 	protected void readCachedChecksums() {
 		cachedChecksums = new TreeMap<String, PluginObject.Version>();
+		cachedFileStats = new HashMap<String, long[]>();
 		File file = new File(Util.prefix(".checksums"));
 		if (!file.exists())
 			return;
@@ -301,9 +358,20 @@ protected void readCachedChecksums() {
 				int space2 = line.indexOf(' ', space + 1);
 				if (space2 < 0)
 					continue;
-				long timestamp = Long.parseLong(line.substring(space + 1, space2));
+				/*
+				 * The timestamp may be followed by the size and the
+				 * modification time in milliseconds:
+				 * <timestamp>:<size>:<mtime>
+				 */
+				String[] stats = line.substring(space + 1, space2).split(":");
+				long timestamp = Long.parseLong(stats[0]);
 				String filename = line.substring(space2 + 1);
 				cachedChecksums.put(filename, new PluginObject.Version(checksum, timestamp));
+				if (stats.length == 3)
+					cachedFileStats.put(filename, new long[] {
+						Long.parseLong(stats[1]),
+						Long.parseLong(stats[2])
+					});
 			} catch (NumberFormatException e) {
 				/* ignore line */
 			}
@@ -320,11 +388,16 @@ protected void writeCachedChecksums() {
 		// file.canWrite() not applicable, as the file need not exist
 		try {
 			Writer writer = new FileWriter(file);
-			for (String filename : cachedChecksums.keySet())
-				if (new File(Util.prefix(filename)).exists()) {
+			for (String filename : cachedChecksums.keySet()) {
+				File cached = new File(Util.prefix(filename));
+				if (cached.exists()) {
 					PluginObject.Version version = cachedChecksums.get(filename);
-					writer.write(version.checksum + " " + version.timestamp + " " + filename + "\n");
+					long[] stats = cachedFileStats.get(filename);
+					writer.write(version.checksum + " " + version.timestamp
+						+ (stats == null ? "" : ":" + stats[0] + ":" + stats[1])
+						+ " " + filename + "\n");
 				}
+			}
 			writer.close();
 		} catch (IOException e) {
 			// ignore
@@ -334,11 +407,29 @@ protected void writeCachedChecksums() {
 	protected String getDigest(String path, String realPath, long timestamp) throws IOException, NoSuchAlgorithmException, ZipException {
 		if (cachedChecksums == null)
 			readCachedChecksums();
-		PluginObject.Version version = cachedChecksums.get(path);
-		if (version != null && timestamp == version.timestamp)
-			return version.checksum;
-		String checksum = Util.getDigest(path, realPath);
+		File file = new File(realPath);
+		if (isCached(path, file))
+			return cachedChecksums.get(path).checksum;
+		long size = file.length(), modified = file.lastModified();
+		String checksum = null;
+		Future<String> pending = pendingDigests == null ?
+			null : pendingDigests.remove(path);
+		if (pending != null) try {
+			checksum = pending.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof NoSuchAlgorithmException)
+				throw (NoSuchAlgorithmException)cause;
+			throw new RuntimeException(cause);
+		}
+		else
+			checksum = Util.getDigest(path, realPath);
 		cachedChecksums.put(path, new PluginObject.Version(checksum, timestamp));
+		cachedFileStats.put(path, new long[] { size, modified });
 		return checksum;
 	}
 }
@@ -82,7 +82,11 @@ public synchronized void start() throws IOException {
 
 			String url = plugins.getURL(plugin);
 			Download file = new Download(plugin, url, saveTo);
-			list.add(file);
+			// an earlier, interrupted update might have fetched it already
+			if (isDownloaded(file))
+				verify(file);
+			else
+				list.add(file);
 		}
 
 		start(list);
@@ -101,6 +105,19 @@ public void done() {}
 	}
 
 
+	protected boolean isDownloaded(Download download) {
+		String fileName = download.getDestination();
+		if (!new File(fileName).exists() ||
+				Util.getFilesize(fileName) != download.getFilesize())
+			return false;
+		try {
+			return download.plugin.getChecksum().equals(Util.getDigest(
+					download.plugin.getFilename(), fileName));
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
 	public void verify(Download download) {
 		String fileName = download.getDestination();
 		long size = download.getFilesize();
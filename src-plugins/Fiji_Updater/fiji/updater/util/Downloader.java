@@ -6,24 +6,38 @@
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import java.net.HttpURLConnection;
 import java.net.URLConnection;
 import java.net.URL;
 
+import java.text.SimpleDateFormat;
+
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 
 /*
  * Direct responsibility: Download a list of files given their respective URLs
  * to their respective destinations. Updates its download status to its
  * Observer as well.
+ *
+ * Several files are downloaded at the same time.  Every file is written to
+ * <destination>.part first and renamed when it is complete; if a download
+ * is interrupted, the next attempt continues where it stopped (using an HTTP
+ * range request, as long as the file did not change on the server).
  */
 public class Downloader extends Progressable {
 	protected int count, total, itemCount, itemTotal;
 	protected long lastModified;
 
 	protected String error;
-	protected boolean cancelled;
+	protected volatile boolean cancelled;
+	protected int threadCount = 4;
+	// serializes the progress reports of the download threads
+	protected final Object progressLock = new Object();
 
 	public Downloader() { }
 
@@ -36,6 +50,10 @@ public synchronized void cancel() {
 		cancelled = true;
 	}
 
+	public void setThreadCount(int threadCount) {
+		this.threadCount = Math.max(1, threadCount);
+	}
+
 	public synchronized void start(final FileDownload justOne)
 			throws IOException {
 		start(new OneItemIterable<FileDownload>(justOne));
@@ -46,64 +64,166 @@ public void start(Iterable<FileDownload> files) throws IOException {
 		cancelled = false;
 
 		count = total = itemCount = itemTotal = 0;
+		final List<FileDownload> queue = new ArrayList<FileDownload>();
 		for (FileDownload file : files) {
 			total += file.getFilesize();
 			itemTotal++;
+			queue.add(file);
 		}
 
 		setTitle("Downloading...");
 
-		for (FileDownload current : files) {
-			if (cancelled)
-				break;
-			download(current);
+		final Iterator<FileDownload> iterator = queue.iterator();
+		final Throwable[] exception = new Throwable[1];
+		Thread[] threads = new Thread[Math.min(threadCount, queue.size())];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread("Downloader " + (i + 1)) {
+				public void run() {
+					for (;;) {
+						FileDownload current;
+						synchronized (iterator) {
+							if (cancelled || exception[0] != null || !iterator.hasNext())
+								return;
+							current = iterator.next();
+						}
+						try {
+							download(current);
+						} catch (Throwable t) {
+							synchronized (iterator) {
+								if (exception[0] == null)
+									exception[0] = t;
+							}
+							return;
+						}
+					}
+				}
+			};
+			threads[i].start();
 		}
+		try {
+			for (Thread thread : threads)
+				thread.join();
+		} catch (InterruptedException e) {
+			cancel();
+			throw new IOException("Interrupted");
+		}
+
+		if (exception[0] instanceof IOException)
+			throw (IOException)exception[0];
+		if (exception[0] instanceof RuntimeException)
+			throw (RuntimeException)exception[0];
+		if (exception[0] instanceof Error)
+			throw (Error)exception[0];
 		done();
 	}
 
-	protected synchronized void download(FileDownload current)
-			throws IOException {
+	protected void download(FileDownload current) throws IOException {
+		String destination = current.getDestination();
+		File partial = new File(destination + ".part");
+		long offset = partial.exists() ? partial.length() : 0;
+
 		URLConnection connection =
 			new URL(current.getURL()).openConnection();
 		connection.setUseCaches(false);
-		lastModified = connection.getLastModified();
+		if (offset > 0) {
+			connection.setRequestProperty("Range",
+				"bytes=" + offset + "-");
+			// restart if the file changed since the first attempt
+			if (partial.lastModified() > 0)
+				connection.setRequestProperty("If-Range",
+					httpDate(partial.lastModified()));
+		}
+
+		boolean resume = false;
+		if (offset > 0 && connection instanceof HttpURLConnection) {
+			int code = ((HttpURLConnection)connection).getResponseCode();
+			if (code == 416) {
+				// the partial file is not a prefix of the file
+				((HttpURLConnection)connection).disconnect();
+				partial.delete();
+				download(current);
+				return;
+			}
+			resume = code == HttpURLConnection.HTTP_PARTIAL;
+		}
+		if (!resume)
+			offset = 0;
+
+		long modified = connection.getLastModified();
 		int currentTotal = connection.getContentLength();
 		if (currentTotal < 0)
 			currentTotal = (int)current.getFilesize();
+		else
+			currentTotal += offset;
 
-		String destination = current.getDestination();
-		addItem(current);
+		synchronized (progressLock) {
+			lastModified = modified;
+			addItem(current);
+		}
 
 		File parentDirectory = new File(destination).getParentFile();
 		if (parentDirectory != null)
 			parentDirectory.mkdirs();
 		InputStream in = connection.getInputStream();
-		OutputStream out = new FileOutputStream(destination);
+		OutputStream out = new FileOutputStream(partial, resume);
 
-		int currentCount = 0;
-		int total = this.total;
-		if (total == 0)
-			total = (count + currentTotal) * itemTotal
-				/ (itemCount + 1);
+		int currentCount = (int)offset;
+		synchronized (progressLock) {
+			this.count += offset;
+		}
 
 		byte[] buffer = new byte[65536];
-		for (;;) {
-			if (cancelled)
-				break;
-			int count = in.read(buffer);
-			if (count < 0)
-				break;
-			out.write(buffer, 0, count);
-			currentCount += count;
-			this.count += count;
-			setCount(this.count, total);
-			setItemCount(currentCount, currentTotal);
+		try {
+			for (;;) {
+				if (cancelled)
+					break;
+				int count = in.read(buffer);
+				if (count < 0)
+					break;
+				out.write(buffer, 0, count);
+				currentCount += count;
+				synchronized (progressLock) {
+					this.count += count;
+					int total = this.total;
+					if (total == 0)
+						total = (this.count + currentTotal) * itemTotal
+							/ (itemCount + 1);
+					setCount(this.count, total);
+					setItemCount(currentCount, currentTotal);
+				}
+			}
+		} finally {
+			in.close();
+			out.close();
+			// remember the version of the file for resuming
+			if (modified > 0)
+				partial.setLastModified(modified);
+		}
+		if (cancelled)
+			return;
+
+		File file = new File(destination);
+		if (file.exists())
+			file.delete();
+		if (!partial.renameTo(file))
+			throw new IOException("Could not rename " + partial
+				+ " to " + destination);
+
+		synchronized (progressLock) {
+			itemCount++;
 		}
-		in.close();
-		out.close();
+		// outside of the lock: listeners may take long (e.g. verify
+		// the checksum) and must not block the other downloads
 		itemDone(current);
 	}
 
+	protected static String httpDate(long millis) {
+		SimpleDateFormat format = new SimpleDateFormat(
+			"EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(millis));
+	}
+
 	public long getLastModified() {
 		return lastModified;
 	}
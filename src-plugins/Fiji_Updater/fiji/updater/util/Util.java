@@ -16,10 +16,12 @@
 
 import java.text.DecimalFormat;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -153,7 +155,11 @@ public static MessageDigest getDigest()
 
 	public static void updateDigest(InputStream input, MessageDigest digest)
 			throws IOException {
-		byte[] buffer = new byte[65536];
+		updateDigest(input, digest, new byte[65536]);
+	}
+
+	public static void updateDigest(InputStream input, MessageDigest digest,
+			byte[] buffer) throws IOException {
 		DigestInputStream digestStream =
 			new DigestInputStream(input, digest);
 		while (digestStream.read(buffer) >= 0)
@@ -186,12 +192,33 @@ public static String getJarDigest(String path)
 
 		if (path != null) {
 			JarFile jar = new JarFile(path);
-			List<JarEntry> list = Collections.list(jar.entries());
-			Collections.sort(list, new JarEntryComparator());
-
-			for (JarEntry entry : list) {
-				digest.update(entry.getName().getBytes("ASCII"));
-				updateDigest(jar.getInputStream(entry), digest);
+			try {
+				/*
+				 * The entries are digested in the order of their
+				 * names; most jars are written in that order
+				 * already, so we only sort if we have to.
+				 */
+				List<JarEntry> list = new ArrayList<JarEntry>();
+				boolean sorted = true;
+				String previous = null;
+				for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+					JarEntry entry = e.nextElement();
+					String name = entry.getName();
+					if (sorted && previous != null && previous.compareTo(name) > 0)
+						sorted = false;
+					previous = name;
+					list.add(entry);
+				}
+				if (!sorted)
+					Collections.sort(list, new JarEntryComparator());
+
+				byte[] buffer = new byte[65536];
+				for (JarEntry entry : list) {
+					digest.update(entry.getName().getBytes("ASCII"));
+					updateDigest(jar.getInputStream(entry), digest, buffer);
+				}
+			} finally {
+				jar.close();
 			}
 		}
 		return toHex(digest.digest());
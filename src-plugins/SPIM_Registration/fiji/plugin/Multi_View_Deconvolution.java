@@ -8,6 +8,7 @@
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 
@@ -92,42 +93,75 @@ public void run(String arg0)
 		//
 		// run the deconvolution
 		//
-		final ArrayList<LucyRichardsonFFT> deconvolutionData = new ArrayList<LucyRichardsonFFT>();
-		final int cpusPerView = Math.min( Runtime.getRuntime().availableProcessors(), Math.round( Runtime.getRuntime().availableProcessors() / (float)paralellViews ) );
+		final Image<FloatType> deconvolved;
+
+		if ( deconvolveInBlocks )
+		{
+			IJ.log( "Deconvolving in blocks of size " + blockSize + " (memory: " + blockMemory + " MB)" );
+			// the fused views and weights are already in memory at this point, only the deconvolution itself is bounded
+			IJ.log( "(the memory limit applies to the deconvolution only, the fused views and weights need to fit into memory as well)" );
+			IJ.log( "Minimal number iterations: " + minNumIterations );
+			IJ.log( "Maximal number iterations: " + maxNumIterations );
+
+			final int[] coreSize = new int[ images.get( 0 ).getNumDimensions() ];
+			for ( int d = 0; d < coreSize.length; ++d )
+				coreSize[ d ] = blockSize;
+
+			final File directory = new File( System.getProperty( "java.io.tmpdir" ), "deconvolution-" + System.currentTimeMillis() );
+
+			try
+			{
+				deconvolved = LucyRichardsonMultiViewDeconvolution.lucyRichardsonMultiViewBlockwise( images, weights, pointSpreadFunctions, coreSize, directory, 
+						blockMemory * 1024l * 1024l, minNumIterations, maxNumIterations, multiplicative, useTikhonovRegularization ? lambda : 0, 
+						Runtime.getRuntime().availableProcessors() );
+			}
+			catch ( IOException e )
+			{
+				IOFunctions.println( "Cannot deconvolve in blocks: " + e );
+				return;
+			}
+			finally
+			{
+				directory.delete();
+			}
+		}
+		else
+		{
+			final ArrayList<LucyRichardsonFFT> deconvolutionData = new ArrayList<LucyRichardsonFFT>();
+			final int cpusPerView = Math.min( Runtime.getRuntime().availableProcessors(), Math.round( Runtime.getRuntime().availableProcessors() / (float)paralellViews ) );
 		
-		IJ.log( "Compute views in paralell: " + paralellViews );
-		IJ.log( "CPUs per view: " + cpusPerView );
-		IJ.log( "Minimal number iterations: " + minNumIterations );
-		IJ.log( "Maximal number iterations: " + maxNumIterations );
+			IJ.log( "Compute views in paralell: " + paralellViews );
+			IJ.log( "CPUs per view: " + cpusPerView );
+			IJ.log( "Minimal number iterations: " + minNumIterations );
+			IJ.log( "Maximal number iterations: " + maxNumIterations );
 		
-		IJ.log( "ImgLib container (input): " + conf.outputImageFactory.getClass().getSimpleName() );
-		IJ.log( "ImgLib container (output): " + conf.imageFactory.getClass().getSimpleName() );
+			IJ.log( "ImgLib container (input): " + conf.outputImageFactory.getClass().getSimpleName() );
+			IJ.log( "ImgLib container (output): " + conf.imageFactory.getClass().getSimpleName() );
 		
-		if ( multiplicative )
-			IJ.log( "Using a multiplicative multiview combination scheme." );
-		else
-			IJ.log( "Using an additive multiview combination scheme." );
+			if ( multiplicative )
+				IJ.log( "Using a multiplicative multiview combination scheme." );
+			else
+				IJ.log( "Using an additive multiview combination scheme." );
 		
-		if ( useTikhonovRegularization )
-			IJ.log( "Using Tikhonov regularization (lambda = " + lambda + ")" );
-		else
-			IJ.log( "Not using Tikhonov regularization" );
+			if ( useTikhonovRegularization )
+				IJ.log( "Using Tikhonov regularization (lambda = " + lambda + ")" );
+			else
+				IJ.log( "Not using Tikhonov regularization" );
 		
-		for ( int view = 0; view < numViews; ++view )
-		{
-			//ImageJFunctions.copyToImagePlus( fusion.getFusedImage( view ) ).show();
-			//ImageJFunctions.copyToImagePlus( fusion.getWeightImage( view ) ).show();
-			//ImageJFunctions.copyToImagePlus( pointSpreadFunctions.get( view ) ).show();
+			for ( int view = 0; view < numViews; ++view )
+			{
+				//ImageJFunctions.copyToImagePlus( fusion.getFusedImage( view ) ).show();
+				//ImageJFunctions.copyToImagePlus( fusion.getWeightImage( view ) ).show();
+				//ImageJFunctions.copyToImagePlus( pointSpreadFunctions.get( view ) ).show();
 
-			deconvolutionData.add( new LucyRichardsonFFT( fusion.getFusedImage( view ), fusion.getWeightImage( view ), pointSpreadFunctions.get( view ), cpusPerView ) );
-		}
-		
-		final Image<FloatType> deconvolved;
+				deconvolutionData.add( new LucyRichardsonFFT( fusion.getFusedImage( view ), fusion.getWeightImage( view ), pointSpreadFunctions.get( view ), cpusPerView ) );
+			}
 		
-		if ( useTikhonovRegularization )
-			deconvolved = LucyRichardsonMultiViewDeconvolution.lucyRichardsonMultiView( deconvolutionData, minNumIterations, maxNumIterations, multiplicative, lambda, paralellViews );
-		else
-			deconvolved = LucyRichardsonMultiViewDeconvolution.lucyRichardsonMultiView( deconvolutionData, minNumIterations, maxNumIterations, multiplicative, 0, paralellViews );
+			if ( useTikhonovRegularization )
+				deconvolved = LucyRichardsonMultiViewDeconvolution.lucyRichardsonMultiView( deconvolutionData, minNumIterations, maxNumIterations, multiplicative, lambda, paralellViews );
+			else
+				deconvolved = LucyRichardsonMultiViewDeconvolution.lucyRichardsonMultiView( deconvolutionData, minNumIterations, maxNumIterations, multiplicative, 0, paralellViews );
+		}
 				
 		if ( conf.writeOutputImage || conf.showOutputImage )
 		{
@@ -165,11 +199,15 @@ public void run(String arg0)
 	public static boolean showAveragePSF = true;
 	public static int defaultDeconvolutionScheme = 0;
 	public static int defaultContainer = 0;
+	public static boolean defaultDeconvolveInBlocks = false;
+	public static int defaultBlockSize = 256;
+	public static int defaultBlockMemory = 4096;
 	
 	public static String[] deconvolutionScheme = new String[]{ "Multiplicative", "Additive" };
 	public static String[] imglibContainer = new String[]{ "Array container", "Planar container", "Cell container" };
 	
-	int minNumIterations, maxNumIterations, paralellViews, container;
+	int minNumIterations, maxNumIterations, paralellViews, container, blockSize, blockMemory;
+	boolean deconvolveInBlocks = false;
 	boolean useTikhonovRegularization = true;
 	double lambda = 0.006;
 	boolean multiplicative = true;
@@ -391,6 +429,9 @@ public boolean accept(File directory, String filename)
 		
 		gd2.addChoice( "Process_views_in_paralell", views, views[ defaultParalellViews ] );
 		gd2.addChoice( "ImgLib_container", imglibContainer, imglibContainer[ defaultContainer ] );
+		gd2.addCheckbox( "Deconvolve_in_blocks (low memory)", defaultDeconvolveInBlocks );
+		gd2.addNumericField( "Block_size", defaultBlockSize, 0, 5, "px" );
+		gd2.addNumericField( "Memory_for_blocks", defaultBlockMemory, 0, 5, "MB" );
 		gd2.addCheckbox( "Show_averaged_PSF", showAveragePSF );
 		gd2.addMessage( "" );
 		gd2.addCheckbox( "Display_fused_image", displayFusedImageStatic );
@@ -479,6 +520,9 @@ public boolean accept(File directory, String filename)
 		if ( paralellViews == 0 )
 			paralellViews = numViews;
 		container = defaultContainer = gd2.getNextChoiceIndex();
+		deconvolveInBlocks = defaultDeconvolveInBlocks = gd2.getNextBoolean();
+		blockSize = defaultBlockSize = (int)Math.round( gd2.getNextNumber() );
+		blockMemory = defaultBlockMemory = (int)Math.round( gd2.getNextNumber() );
 		showAveragePSF = gd2.getNextBoolean();
 		displayFusedImageStatic = gd2.getNextBoolean(); 
 		saveFusedImageStatic = gd2.getNextBoolean(); 		
@@ -1,8 +1,13 @@
 package mpicbg.spim;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.models.Point;
 import mpicbg.spim.io.ConfigurationParserException;
 import mpicbg.spim.io.ConfigurationParserGeneral;
@@ -10,6 +15,7 @@
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.io.ProgramConfiguration;
 import mpicbg.spim.io.SPIMConfiguration;
+import mpicbg.spim.io.TimePointManifest;
 import mpicbg.spim.registration.ViewDataBeads;
 import mpicbg.spim.registration.ViewStructure;
 import mpicbg.spim.registration.bead.Bead;
@@ -27,6 +33,22 @@
 	
 	ViewStructure currentViewStructure = null;
 	public ViewStructure getCurrentViewStructure() { return currentViewStructure; }
+	
+	/**
+	 * The outcome of processing one time point, the processed {@link ViewStructure} (null if no files 
+	 * were found) and whether the processing can continue with the next time point
+	 */
+	protected static class TimePointResult
+	{
+		final ViewStructure viewStructure;
+		final boolean proceed;
+		
+		public TimePointResult( final ViewStructure viewStructure, final boolean proceed )
+		{
+			this.viewStructure = viewStructure;
+			this.proceed = proceed;
+		}
+	}
 
 	public Reconstruction( final SPIMConfiguration conf )
 	{
@@ -115,195 +137,483 @@ protected ArrayList<Bead> getAveragedBeadList( final ArrayList<ViewDataBeads> vi
 
 	protected void processTimeLapse( SPIMConfiguration conf )
 	{
-		for (int timePointIndex = 0; timePointIndex < conf.file.length; timePointIndex++)
+		processTimePoints( conf, openManifest( conf, "timelapse.to_" + conf.referenceTimePoint ), true );
+	}
+	
+	/**
+	 * Registers one time point to the reference time point and fuses it
+	 * 
+	 * @param conf - the configuration
+	 * @param timePointIndex - the index of the time point
+	 * @param manifest - the manifest of finished stages or null
+	 * @return the processed time point and whether the processing can continue with the next one
+	 */
+	protected TimePointResult processTimeLapseTimePoint( final SPIMConfiguration conf, final int timePointIndex, final TimePointManifest manifest )
+	{
+		final int timePoint = conf.timepoints[ timePointIndex ];
+		
+		final ViewStructure reference = ViewStructure.initViewStructure( conf, conf.getTimePointIndex( conf.referenceTimePoint ), conf.getModel(), "Reference ViewStructure Timepoint " + conf.referenceTimePoint, conf.debugLevelInt );
+		final ViewStructure viewStructure = ViewStructure.initViewStructure( conf, timePointIndex, conf.getModel(), "Template ViewStructure Timepoint " + conf.timepoints[timePointIndex], conf.debugLevelInt );
+		
+		//
+		// get timepoint information
+		//
+		if ( reference.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Loading reference timepoint information " + reference);
+		
+		reference.loadDimensions();
+		reference.loadSegmentations();
+		reference.loadRegistrations();
+
+		if ( reference.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Loading timepoint " + viewStructure + " information");
+		
+		viewStructure.loadDimensions();
+		viewStructure.loadSegmentations();
+
+		// update the ids of the template timepoint so that there are no identical ids
+		int id = reference.getViews().get( 0 ).getID();
+		for ( ViewDataBeads view : reference.getViews() )
+			if ( view.getID() >= id )
+				id = view.getID() + 1;
+		
+		for ( ViewDataBeads view : viewStructure.getViews() )
 		{
-			final ViewStructure reference = ViewStructure.initViewStructure( conf, conf.getTimePointIndex( conf.referenceTimePoint ), conf.getModel(), "Reference ViewStructure Timepoint " + conf.referenceTimePoint, conf.debugLevelInt );
-			currentViewStructure = ViewStructure.initViewStructure( conf, timePointIndex, conf.getModel(), "Template ViewStructure Timepoint " + conf.timepoints[timePointIndex], conf.debugLevelInt );
+			view.setID( id++ );
+			if ( reference.getDebugLevel() <= ViewStructure.DEBUG_ALL )
+				IOFunctions.println( view + ", updated id" );
+		}
+		
+		boolean readReg = conf.readRegistration || ( manifest != null && manifest.isFinished( timePoint, TimePointManifest.REGISTERED ) );
+		
+		if ( readReg )
+			for ( ViewDataBeads view : viewStructure.getViews() )
+			{
+				readReg &= view.loadRegistrationTimePoint( reference.getTimePoint() );
+				if ( !readReg )
+					break;
+			}
 			
-			//
-			// get timepoint information
-			//
-			if ( reference.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
-				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Loading reference timepoint information " + reference);
+		if ( !readReg )
+		{
+			reference.getBeadRegistration().registerViewStructure( viewStructure );
 			
-			reference.loadDimensions();
-			reference.loadSegmentations();
-			reference.loadRegistrations();
+			if ( conf.writeRegistration )
+				setFinished( manifest, timePoint, TimePointManifest.REGISTERED );
+		}
+		else if ( manifest != null && !manifest.isFinished( timePoint, TimePointManifest.REGISTERED ) )
+		{
+			setFinished( manifest, timePoint, TimePointManifest.REGISTERED );
+		}
 
-			if ( reference.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
-				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Loading timepoint " + currentViewStructure + " information");
+		BeadRegistration.concatenateAxialScaling( reference.getViews(), reference.getDebugLevel() );
+		BeadRegistration.concatenateAxialScaling( viewStructure.getViews(), viewStructure.getDebugLevel() );
+		
+        //
+        // remove the beads
+        //        
+       // for ( final ViewDataBeads view : template.getViews() )
+        //	RemoveBeads.removeBeads( view );
+		
+        //
+        // add an external transformation
+        //
+        addExternalTransformation( viewStructure );
+        	addExternalTransformation( reference );
+		
+		if (!conf.registerOnly)
+		{
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Fusion for timepoint " + conf.timepoints[timePointIndex]);		
 			
-			currentViewStructure.loadDimensions();
-			currentViewStructure.loadSegmentations();
-
-			// update the ids of the template timepoint so that there are no identical ids
-			int id = reference.getViews().get( 0 ).getID();
-			for ( ViewDataBeads view : reference.getViews() )
-				if ( view.getID() >= id )
-					id = view.getID() + 1;
+			viewStructure.getFusionControl().fuse( viewStructure, reference, viewStructure.getTimePoint() );
+			
+			if ( conf.writeOutputImage )
+				setFinished( manifest, timePoint, TimePointManifest.FUSED );
 			
-			for ( ViewDataBeads view : currentViewStructure.getViews() )
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Finished Fusion for timepoint " + conf.timepoints[timePointIndex]);
+		}
+		
+		//
+		// close all images, except if called as deconvolution as we still need the data
+		//
+		if ( !conf.isDeconvolution )
+			for ( ViewDataBeads view : viewStructure.getViews() )
+				view.closeImage();
+		
+		return new TimePointResult( viewStructure, true );
+	}  	
+	
+	protected void processIndividualViewStructure( SPIMConfiguration conf )
+	{
+		processTimePoints( conf, openManifest( conf, "registration" ), false );
+	}
+	
+	/**
+	 * Segments, registers and fuses one time point
+	 * 
+	 * @param conf - the configuration
+	 * @param timePointIndex - the index of the time point
+	 * @param manifest - the manifest of finished stages or null
+	 * @return the processed time point and whether the processing can continue with the next one
+	 */
+	protected TimePointResult processIndividualTimePoint( final SPIMConfiguration conf, final int timePointIndex, final TimePointManifest manifest )
+	{
+		final int timePoint = conf.timepoints[ timePointIndex ];
+		final ViewStructure viewStructure = ViewStructure.initViewStructure( conf, timePointIndex, conf.getModel(), "ViewStructure Timepoint " + timePointIndex, conf.debugLevelInt );						
+		
+		// no file found
+		if ( viewStructure == null )
+			return new TimePointResult( null, true );
+		
+		
+		//
+		// Segmentation
+		//
+        if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
+        	IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Bead Extraction");
+		
+		boolean dimSuccess = false, segSuccess = false;
+		
+		final boolean segmented = manifest != null && manifest.isFinished( timePoint, TimePointManifest.SEGMENTED );
+		
+		if ( viewStructure.getSPIMConfiguration().readSegmentation || segmented )
+		{
+			dimSuccess = viewStructure.loadDimensions();
+			
+			if ( !dimSuccess && !segmented )
 			{
-				view.setID( id++ );
-				if ( reference.getDebugLevel() <= ViewStructure.DEBUG_ALL )
-					IOFunctions.println( view + ", updated id" );
+		        if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_ERRORONLY )
+		        	IOFunctions.println( "Cannot find files for " + viewStructure );
+		        
+				return new TimePointResult( null, false );
 			}
 			
-			boolean readReg = conf.readRegistration;
+			if ( dimSuccess )
+				segSuccess = viewStructure.loadSegmentations();
+		}
+		
+		if ( !segSuccess )
+		{
+			viewStructure.getBeadSegmentation().segment();
 			
-			if ( readReg )
-				for ( ViewDataBeads view : currentViewStructure.getViews() )
-				{
-					readReg &= view.loadRegistrationTimePoint( reference.getTimePoint() );
-					if ( !readReg )
-						break;
-				}
-				
-			if ( !readReg )
-				reference.getBeadRegistration().registerViewStructure( currentViewStructure );			
+			if ( conf.writeSegmentation )
+				setFinished( manifest, timePoint, TimePointManifest.SEGMENTED );
+		}
+		else if ( manifest != null && !segmented )
+		{
+			setFinished( manifest, timePoint, TimePointManifest.SEGMENTED );
+		}
+
+		/*
+		Image<FloatType> img = viewStructure.getBeadSegmentation().getFoundBeads( viewStructure.getViews().get( 0) );
+		img.getDisplay().setMinMax();
+		ImageJFunctions.copyToImagePlus(img).show();
+		*/
+		
+		if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
+        	IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Finished Bead Extraction");					
+        
+		//
+		// Registration
+		//			
+        if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
+        	IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Registration");
 
-			BeadRegistration.concatenateAxialScaling( reference.getViews(), reference.getDebugLevel() );
-			BeadRegistration.concatenateAxialScaling( currentViewStructure.getViews(), currentViewStructure.getDebugLevel() );
+        boolean regSuccess = false;
+        
+        final boolean registered = manifest != null && manifest.isFinished( timePoint, TimePointManifest.REGISTERED );
+        
+		if ( viewStructure.getSPIMConfiguration().readRegistration || registered )
+			regSuccess = viewStructure.loadRegistrations();
+
+		if ( !regSuccess )
+		{
+			viewStructure.getBeadRegistration().registerViews();
 			
-	        //
-	        // remove the beads
-	        //        
-	       // for ( final ViewDataBeads view : template.getViews() )
-	        //	RemoveBeads.removeBeads( view );
+			if ( conf.writeRegistration )
+				setFinished( manifest, timePoint, TimePointManifest.REGISTERED );
+		}
+		else if ( manifest != null && !registered )
+		{
+			setFinished( manifest, timePoint, TimePointManifest.REGISTERED );
+		}
+
+		BeadRegistration.concatenateAxialScaling( viewStructure.getViews(), viewStructure.getDebugLevel() );
+        
+        if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
+        	IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Finished Registration");
+				        
+
+        //
+        // remove the beads
+        //        
+        //for ( final ViewDataBeads view : viewStructure.getViews() )
+        	//RemoveBeads.removeBeads( view );
+        
+		//
+		// Predisplay result
+		//
+		
+        //if ( conf.showOutputImage )
+        	//new PreviewRegistration( viewStructure );
+        
+        //
+        // add an external transformation
+        //
+        addExternalTransformation( viewStructure );
+        
+		//
+		// Fusion
+		//			
+		if (!conf.registerOnly)
+		{
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Fusion");
 			
-	        //
-	        // add an external transformation
-	        //
-	        addExternalTransformation( currentViewStructure );
-        	addExternalTransformation( reference );
+			viewStructure.getFusionControl().fuse( viewStructure, conf.timepoints[timePointIndex] );
 			
-			if (!conf.registerOnly)
+			if ( conf.writeOutputImage )
+				setFinished( manifest, timePoint, TimePointManifest.FUSED );
+			
+			if  ( !conf.isDeconvolution )
+				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Finished Fusion");
+		}	
+
+		//
+		// close all images, except if called as deconvolution as we still need the data
+		//
+		if ( !conf.isDeconvolution )
+			for ( ViewDataBeads view : viewStructure.getViews() )
+				view.closeImage();
+		
+		// collect some information if wanted
+		if ( conf.collectRegistrationStatistics )
+			synchronized ( stats )
+			{
+				stats.add( new RegistrationStatistics( viewStructure ) );
+			}
+
+		if  ( !conf.isDeconvolution )
+			IOFunctions.println( "Finished processing." );
+		
+		return new TimePointResult( viewStructure, true );
+	}
+	
+	/**
+	 * Processes all time points assigned to this process (conf.batchNode of conf.numBatchNodes) that are 
+	 * not finished according to the manifest. After the first time point, up to conf.numParallelTimePoints 
+	 * time points are processed at once, as many as fit into the memory budget. A batch node outside of 
+	 * [0, conf.numBatchNodes-1] is reported as an error and nothing is processed.
+	 * 
+	 * @param conf - the configuration
+	 * @param manifest - the manifest of finished stages or null
+	 * @param timeLapse - register to a reference time point or each time point individually
+	 */
+	protected void processTimePoints( final SPIMConfiguration conf, final TimePointManifest manifest, final boolean timeLapse )
+	{
+		final int numBatchNodes = Math.max( 1, conf.numBatchNodes );
+
+		if ( conf.batchNode < 0 || conf.batchNode >= numBatchNodes )
+		{
+			IOFunctions.printErr( "(" + new Date(System.currentTimeMillis()) + "): Batch node " + conf.batchNode + " does not exist, " +
+					"it has to be between 0 and " + ( numBatchNodes - 1 ) + " for " + numBatchNodes + " batch node(s), quitting." );
+			return;
+		}
+
+		final ArrayList< Integer > timePointIndices = getTimePointsToProcess( conf, manifest );
+		
+		if ( timePointIndices.size() == 0 )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): All time points are processed already." );
+			return;
+		}
+		
+		// the first time point tells how much memory a time point needs
+		final TimePointResult first = processTimePoint( conf, timePointIndices.get( 0 ), manifest, timeLapse );
+		
+		if ( first.viewStructure != null )
+			currentViewStructure = first.viewStructure;
+		
+		if ( !first.proceed )
+			return;
+
+		// deconvolution needs the images of the last time point afterwards
+		final int numThreads;
+		
+		if ( conf.isDeconvolution )
+			numThreads = 1;
+		else
+			numThreads = Math.min( timePointIndices.size() - 1, getNumParallelTimePoints( conf, first.viewStructure ) );
+		
+		if ( numThreads <= 1 )
+		{
+			for ( int i = 1; i < timePointIndices.size(); ++i )
 			{
-				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Fusion for timepoint " + conf.timepoints[timePointIndex]);		
+				final TimePointResult result = processTimePoint( conf, timePointIndices.get( i ), manifest, timeLapse );
 				
-				currentViewStructure.getFusionControl().fuse( currentViewStructure, reference, currentViewStructure.getTimePoint() );
+				if ( result.viewStructure != null )
+					currentViewStructure = result.viewStructure;
 				
-				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Finished Fusion for timepoint " + conf.timepoints[timePointIndex]);
+				if ( !result.proceed )
+					return;
 			}
 			
-			//
-			// close all images, except if called as deconvolution as we still need the data
-			//
-			if ( !conf.isDeconvolution )
-				for ( ViewDataBeads view : currentViewStructure.getViews() )
-					view.closeImage();
-		}		
-	}  	
+			return;
+		}
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Processing " + numThreads + " time points in parallel." );
+		
+		final AtomicInteger ai = new AtomicInteger( 1 );
+		final AtomicBoolean stop = new AtomicBoolean( false );
+		
+		// every worker fills in the time points it processed, they are only read after all joined
+		final ViewStructure[] viewStructures = new ViewStructure[ timePointIndices.size() ];
+		
+        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+
+		for (int ithread = 0; ithread < threads.length; ++ithread)
+            threads[ithread] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                	for ( int i = ai.getAndIncrement(); i < timePointIndices.size() && !stop.get(); i = ai.getAndIncrement() )
+                	{
+                		final TimePointResult result = processTimePoint( conf, timePointIndices.get( i ), manifest, timeLapse );
+                		
+                		viewStructures[ i ] = result.viewStructure;
+                		
+                		if ( !result.proceed )
+                			stop.set( true );
+                	}
+                }
+            });
+		
+		SimpleMultiThreading.startAndJoin( threads );
+		
+		// the last time point that was processed, like in the sequential case
+		for ( final ViewStructure viewStructure : viewStructures )
+			if ( viewStructure != null )
+				currentViewStructure = viewStructure;
+	}
 	
-	protected void processIndividualViewStructure( SPIMConfiguration conf )
+	protected TimePointResult processTimePoint( final SPIMConfiguration conf, final int timePointIndex, final TimePointManifest manifest, final boolean timeLapse )
 	{
+		if ( timeLapse )
+			return processTimeLapseTimePoint( conf, timePointIndex, manifest );
+		else
+			return processIndividualTimePoint( conf, timePointIndex, manifest );
+	}
+	
+	/**
+	 * @param conf - the configuration
+	 * @param manifest - the manifest of finished stages or null
+	 * @return the indices of the time points that belong to this batch node and are not finished yet
+	 */
+	protected ArrayList< Integer > getTimePointsToProcess( final SPIMConfiguration conf, final TimePointManifest manifest )
+	{
+		final ArrayList< Integer > timePointIndices = new ArrayList< Integer >();
+		
+		final int numBatchNodes = Math.max( 1, conf.numBatchNodes );
+		final int lastStage = conf.registerOnly ? TimePointManifest.REGISTERED : TimePointManifest.FUSED;
+		
 		for ( int timePointIndex = 0; timePointIndex < conf.file.length; timePointIndex++ )
 		{
-			currentViewStructure = ViewStructure.initViewStructure( conf, timePointIndex, conf.getModel(), "ViewStructure Timepoint " + timePointIndex, conf.debugLevelInt );						
-			
-			// no file found
-			if ( currentViewStructure == null )
+			if ( timePointIndex % numBatchNodes != conf.batchNode )
 				continue;
 			
-			//
-			// Segmentation
-			//
-	        if ( currentViewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
-	        	IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Bead Extraction");
-			
-			boolean dimSuccess = false, segSuccess = false;
-			
-			if ( currentViewStructure.getSPIMConfiguration().readSegmentation )
+			if ( manifest != null && manifest.isFinished( conf.timepoints[ timePointIndex ], lastStage ) )
 			{
-				dimSuccess = currentViewStructure.loadDimensions();
+				if ( conf.debugLevelInt <= ViewStructure.DEBUG_MAIN )
+					IOFunctions.println( "Timepoint " + conf.timepoints[ timePointIndex ] + " is finished according to " + manifest.getFile() + ", skipping it." );
 				
-				if ( !dimSuccess )
-				{
-			        if ( currentViewStructure.getDebugLevel() <= ViewStructure.DEBUG_ERRORONLY )
-			        	IOFunctions.println( "Cannot find files for " + currentViewStructure );
-			        
-					return;
-				}
-				
-				segSuccess = currentViewStructure.loadSegmentations();
+				continue;
 			}
 			
-			if ( !segSuccess )
-				currentViewStructure.getBeadSegmentation().segment();
-
-			/*
-			Image<FloatType> img = viewStructure.getBeadSegmentation().getFoundBeads( viewStructure.getViews().get( 0) );
-			img.getDisplay().setMinMax();
-			ImageJFunctions.copyToImagePlus(img).show();
-			*/
-			
-			if ( currentViewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
-	        	IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Finished Bead Extraction");					
-	        
-			//
-			// Registration
-			//			
-	        if ( currentViewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
-	        	IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Registration");
-
-	        boolean regSuccess = false;
-	        
-			if ( currentViewStructure.getSPIMConfiguration().readRegistration )
-				regSuccess = currentViewStructure.loadRegistrations();
-
-			if ( !regSuccess )
-				currentViewStructure.getBeadRegistration().registerViews();
-
-			BeadRegistration.concatenateAxialScaling( currentViewStructure.getViews(), currentViewStructure.getDebugLevel() );
-	        
-	        if ( currentViewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
-	        	IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Finished Registration");
-					        
-
-	        //
-	        // remove the beads
-	        //        
-	        //for ( final ViewDataBeads view : viewStructure.getViews() )
-	        	//RemoveBeads.removeBeads( view );
-	        
-			//
-			// Predisplay result
-			//
+			timePointIndices.add( timePointIndex );
+		}
+		
+		return timePointIndices;
+	}
+	
+	/**
+	 * Estimates how many time points fit into the memory budget at once. A time point needs about
+	 * twice the memory of its input images (the images plus the fused image and weights).
+	 * 
+	 * @param conf - the configuration
+	 * @param viewStructure - an already processed time point, its views know their sizes
+	 * @return the number of time points to process in parallel
+	 */
+	protected int getNumParallelTimePoints( final SPIMConfiguration conf, final ViewStructure viewStructure )
+	{
+		if ( conf.numParallelTimePoints <= 1 || viewStructure == null )
+			return 1;
+		
+		final long memoryBudget;
+		
+		if ( conf.timePointMemoryBudgetMB > 0 )
+			memoryBudget = conf.timePointMemoryBudgetMB * 1024l * 1024l;
+		else
+			memoryBudget = Runtime.getRuntime().maxMemory();
+		
+		long memoryPerTimePoint = 0;
+		
+		for ( final ViewDataBeads view : viewStructure.getViews() )
+		{
+			long size = 4;
 			
-	        //if ( conf.showOutputImage )
-	        	//new PreviewRegistration( viewStructure );
-	        
-	        //
-	        // add an external transformation
-	        //
-	        addExternalTransformation( currentViewStructure );
-	        
-			//
-			// Fusion
-			//			
-			if (!conf.registerOnly)
-			{
-				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Fusion");
-				
-				currentViewStructure.getFusionControl().fuse( currentViewStructure, conf.timepoints[timePointIndex] );
-				
-				if  ( !conf.isDeconvolution )
-					IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Finished Fusion");
-			}	
-
-			//
-			// close all images, except if called as deconvolution as we still need the data
-			//
-			if ( !conf.isDeconvolution )
-				for ( ViewDataBeads view : currentViewStructure.getViews() )
-					view.closeImage();
+			for ( final int s : view.getImageSize() )
+				size *= s;
 			
-			// collect some information if wanted
-			if ( conf.collectRegistrationStatistics )
-				stats.add( new RegistrationStatistics( currentViewStructure ) );
-
-			if  ( !conf.isDeconvolution )
-				IOFunctions.println( "Finished processing." );
+			memoryPerTimePoint += 2 * size;
+		}
+		
+		if ( memoryPerTimePoint == 0 )
+			return conf.numParallelTimePoints;
+		
+		final int numTimePoints = (int)Math.max( 1, Math.min( conf.numParallelTimePoints, memoryBudget / memoryPerTimePoint ) );
+		
+		if ( numTimePoints < conf.numParallelTimePoints )
+			IOFunctions.println( "A time point needs about " + ( memoryPerTimePoint / ( 1024 * 1024 ) ) + " MB, only " + numTimePoints + " time points fit into " + ( memoryBudget / ( 1024 * 1024 ) ) + " MB." );
+		
+		return numTimePoints;
+	}
+	
+	/**
+	 * @param conf - the configuration
+	 * @param name - the name of the manifest
+	 * @return the manifest in the registration file directory or null if conf.useManifest is false or it cannot be opened
+	 */
+	protected TimePointManifest openManifest( final SPIMConfiguration conf, final String name )
+	{
+		if ( !conf.useManifest )
+			return null;
+		
+		final File file = TimePointManifest.getManifestFile( conf.registrationFiledirectory, name );
+		
+		try
+		{
+			final TimePointManifest manifest = new TimePointManifest( file );
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Using manifest " + file );
+			return manifest;
+		}
+		catch ( IOException e )
+		{
+			IOFunctions.println( "Cannot open manifest " + file + ", processing all time points: " + e );
+			return null;
+		}
+	}
+	
+	protected void setFinished( final TimePointManifest manifest, final int timePoint, final int stage )
+	{
+		if ( manifest == null )
+			return;
+		
+		try
+		{
+			manifest.setFinished( timePoint, stage );
+		}
+		catch ( IOException e )
+		{
+			IOFunctions.println( "Cannot write to manifest " + manifest.getFile() + ": " + e );
 		}
 	}
 	
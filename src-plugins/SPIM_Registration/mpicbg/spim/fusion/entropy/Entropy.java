@@ -1,13 +1,17 @@
 package mpicbg.spim.fusion.entropy;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import mpicbg.imglib.container.ContainerFactory;
-import mpicbg.imglib.container.array.Array3D;
 import mpicbg.imglib.cursor.LocalizableByDimCursor;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorFactory;
 import mpicbg.imglib.type.numeric.real.FloatType;
 import mpicbg.spim.io.IOFunctions;
+import mpicbg.util.MirrorUtils;
 
 public class Entropy
 {
@@ -89,61 +93,234 @@ public Entropy(final float stepSize, final Image<FloatType> img, final Localizab
 		
 	public static Image<FloatType> computeEntropy(final Image<FloatType> img, final ContainerFactory entropyType, final int histogramBins, final int windowSizeX, final int windowSizeY, final int windowSizeZ)
 	{
-		// check if we can use fast forward algorithm		
-		if ( Array3D.class.isInstance( img.getContainer() ) )
-		{
-			IOFunctions.println("Input is instance of Image<Float> using an Array3D, fast forward algorithm --- Fast Forward Algorithm available.");
-			return EntropyFloatArray3D.computeEntropy( img, entropyType, histogramBins, windowSizeX, windowSizeY, windowSizeZ); 
-		}	
-		
+		return computeEntropy( img, entropyType, histogramBins, windowSizeX, windowSizeY, windowSizeZ, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Computes the local entropy of every pixel in a window around it. The image is split into slabs in z which are
+	 * processed in paralell, at most as many as the binned planes of one window per thread (2 bytes per pixel) fit
+	 * into the free memory. Each thread keeps the binned planes of the current window and one histogram which is
+	 * updated as the window moves, only the pixels entering and leaving it are added and removed. As the entropy only
+	 * depends on the absolute frequencies, -p*log(p) is precomputed for every possible frequency and the entropy is 
+	 * updated with every change of the histogram. Outside of the image the window is mirrored.
+	 * 
+	 * @param img - the input image, the values are expected to be in [0...1]
+	 * @param entropyType - the container of the entropy image
+	 * @param histogramBins - the number of bins of the histogram
+	 * @param windowSizeX - the size of the window in x (made odd)
+	 * @param windowSizeY - the size of the window in y (made odd)
+	 * @param windowSizeZ - the size of the window in z (made odd)
+	 * @param numThreads - the maximal number of threads
+	 * @return the entropy image, normalized by the maximal entropy
+	 */
+	public static Image<FloatType> computeEntropy( final Image<FloatType> img, final ContainerFactory entropyType, final int histogramBins, final int windowSizeX, final int windowSizeY, final int windowSizeZ, final int numThreads )
+	{
+		if ( histogramBins > Short.MAX_VALUE )
+			throw new IllegalArgumentException( "At most " + Short.MAX_VALUE + " histogram bins are supported." );
+
 		final float maxEntropy = getMaxEntropy(histogramBins);
 		final ImageFactory<FloatType> factory = new ImageFactory<FloatType>( new FloatType(), entropyType );
 		final Image<FloatType> entropy = factory.createImage( img.getDimensions(), "Entropy of " + img.getName() );
 		
-		final LocalizableByDimCursor<FloatType> entropyIterator = entropy.createLocalizableByDimCursor( new OutOfBoundsStrategyMirrorFactory<FloatType>() );
-		
-		final Entropy ei = Entropy.initEntropy( img, histogramBins, windowSizeX, windowSizeY, windowSizeZ, 0, 0, 0);
-		
-		final int directionZ = +1; 
-		int directionY = +1;
-		int directionX = +1;	
-		
 		final int width = img.getDimension( 0 );
 		final int height = img.getDimension( 1 );
 		final int depth = img.getDimension( 2 );
+
+		// even window sizes are increased by one
+		final int wxh = windowSizeX / 2;
+		final int wyh = windowSizeY / 2;
+		final int wzh = windowSizeZ / 2;
+		final int wz = 2 * wzh + 1;
+		final int size = ( 2 * wxh + 1 ) * ( 2 * wyh + 1 ) * wz;
+		
+		// -p*log2(p) for all possible absolute frequencies of a bin
+		final double[] entropyOfFrequency = new double[ size + 1 ];
 		
-		for (int z = 0; z < depth; z++)
-		{    			
-			for (int y = 0; y < height; y++)
-    		{
-    			for (int x = 0; x < width; x++)
-    			{
-    				if (x != 0)
-    					ei.updateEntropyX(directionX);
-    				    	
-    				entropyIterator.move( ei.getX() - entropyIterator.getPosition(0), 0 );
-    				entropyIterator.move( ei.getY() - entropyIterator.getPosition(1), 1 );
-    				entropyIterator.move( ei.getZ() - entropyIterator.getPosition(2), 2 );
-    				
-    				entropyIterator.getType().set( ei.getEntropy() / maxEntropy );
-				}    			
-    			directionX *= -1;
-    			
-    			if (y != height - 1)
-    				ei.updateEntropyY(directionY);
-    		}                            		
-    		directionY *= -1;
-    		
-			if (z != depth - 1)
-				ei.updateEntropyZ(directionZ);                            		
+		for ( int f = 1; f <= size; ++f )
+		{
+			final double prob = f / (double)size;
+			entropyOfFrequency[ f ] = -prob * ( Math.log( prob ) / Math.log( 2 ) );
 		}
-				
-		entropyIterator.close();
-		ei.close();
+		
+		// the mirrored coordinates of all positions a window can cover
+		final int[] mirrorX = new int[ width + 2 * wxh ];
+		final int[] mirrorY = new int[ height + 2 * wyh ];
+		
+		for ( int x = 0; x < mirrorX.length; ++x )
+			mirrorX[ x ] = MirrorUtils.mirror( x - wxh, width );
+
+		for ( int y = 0; y < mirrorY.length; ++y )
+			mirrorY[ y ] = MirrorUtils.mirror( y - wyh, height ) * width;
+
+		// every thread keeps wz binned planes, so only as many threads are used as fit into the free memory
+		final long bytesPerThread = 2l * wz * width * height;
+		final Runtime runtime = Runtime.getRuntime();
+		final long freeMemory = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+		final int numSlabs = (int)Math.max( 1, Math.min( Math.min( numThreads, depth ), freeMemory / bytesPerThread ) );
+
+		if ( numSlabs < Math.min( numThreads, depth ) )
+			IOFunctions.println( "The entropy needs about " + ( bytesPerThread / ( 1024 * 1024 ) ) + " MB per thread, only " + numSlabs + " threads fit into " + ( freeMemory / ( 1024 * 1024 ) ) + " MB." );
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( numSlabs );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final int myNumber = ai.getAndIncrement();
+					
+					final int zStart = (int)( (long)depth * myNumber / numSlabs );
+					final int zEnd = (int)( (long)depth * ( myNumber + 1 ) / numSlabs );
+					
+					if ( zStart >= zEnd )
+						return;
+					
+					final LocalizableByDimCursor<FloatType> cursorIn = img.createLocalizableByDimCursor();
+					final LocalizableByDimCursor<FloatType> cursorOut = entropy.createLocalizableByDimCursor();
+					
+					// the binned planes of the current window, plane zs is stored at zs mod wz
+					final short[][] planes = new short[ wz ][ width * height ];
+					final int[] planeZ = new int[ wz ];
+					Arrays.fill( planeZ, Integer.MIN_VALUE );
+					
+					final int[] absFreq = new int[ histogramBins ];
+					final float[] line = new float[ width ];
+					final int[] position = new int[ 3 ];
+					
+					for ( int z = zStart; z < zEnd; ++z )
+					{
+						// load the planes that entered the window
+						for ( int zs = z - wzh; zs <= z + wzh; ++zs )
+						{
+							final int index = ( ( zs % wz ) + wz ) % wz;
+							
+							if ( planeZ[ index ] != zs )
+							{
+								loadPlane( cursorIn, MirrorUtils.mirror( zs, depth ), width, height, histogramBins, planes[ index ] );
+								planeZ[ index ] = zs;
+							}
+						}
+						
+						// the histogram of the window at (0, 0, z)
+						Arrays.fill( absFreq, 0 );
+						
+						for ( final short[] plane : planes )
+							for ( int ys = 0; ys <= 2 * wyh; ++ys )
+								for ( int xs = 0; xs <= 2 * wxh; ++xs )
+									absFreq[ plane[ mirrorY[ ys ] + mirrorX[ xs ] ] ]++;
+
+						double e = 0;
+						
+						for ( final int f : absFreq )
+							e += entropyOfFrequency[ f ];
+						
+						int x = 0;
+						int directionX = 1;
+						
+						for ( int y = 0; y < height; ++y )
+						{
+							if ( y != 0 )
+							{
+								// move the window from y-1 to y, ys are indices into mirrorY 
+								final int ysOut = mirrorY[ y - 1 ];
+								final int ysIn = mirrorY[ y + 2 * wyh ];
+								
+								for ( final short[] plane : planes )
+									for ( int xs = x; xs <= x + 2 * wxh; ++xs )
+									{
+										e += removeFromHistogram( absFreq, entropyOfFrequency, plane[ ysOut + mirrorX[ xs ] ] );
+										e += addToHistogram( absFreq, entropyOfFrequency, plane[ ysIn + mirrorX[ xs ] ] );
+									}
+							}
+							
+							while ( true )
+							{
+								line[ x ] = (float)( e / maxEntropy );
+								
+								if ( x + directionX < 0 || x + directionX >= width )
+									break;
+								
+								// move the window from x to x+directionX, xs are indices into mirrorX 
+								final int xsOut = directionX > 0 ? mirrorX[ x ] : mirrorX[ x + 2 * wxh ];
+								x += directionX;
+								final int xsIn = directionX > 0 ? mirrorX[ x + 2 * wxh ] : mirrorX[ x ];
+								
+								for ( final short[] plane : planes )
+									for ( int ys = y; ys <= y + 2 * wyh; ++ys )
+									{
+										e += removeFromHistogram( absFreq, entropyOfFrequency, plane[ mirrorY[ ys ] + xsOut ] );
+										e += addToHistogram( absFreq, entropyOfFrequency, plane[ mirrorY[ ys ] + xsIn ] );
+									}
+							}
+							
+							directionX *= -1;
+							
+							// write the line
+							position[ 0 ] = 0;
+							position[ 1 ] = y;
+							position[ 2 ] = z;
+							cursorOut.setPosition( position );
+							
+							for ( int xo = 0; xo < width; ++xo )
+							{
+								if ( xo != 0 )
+									cursorOut.fwd( 0 );
+								
+								cursorOut.getType().set( line[ xo ] );
+							}
+						}
+					}
+					
+					cursorIn.close();
+					cursorOut.close();
+				}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
 		
 		return entropy;
 	}
 
+	final private static double removeFromHistogram( final int[] absFreq, final double[] entropyOfFrequency, final int bin )
+	{
+		final int f = absFreq[ bin ]--;
+		return entropyOfFrequency[ f - 1 ] - entropyOfFrequency[ f ];
+	}
+
+	final private static double addToHistogram( final int[] absFreq, final double[] entropyOfFrequency, final int bin )
+	{
+		final int f = absFreq[ bin ]++;
+		return entropyOfFrequency[ f + 1 ] - entropyOfFrequency[ f ];
+	}
+
+	final private static void loadPlane( final LocalizableByDimCursor<FloatType> cursor, final int z, final int width, final int height, final int histogramBins, final short[] plane )
+	{
+		final int[] position = new int[]{ 0, 0, z };
+		int i = 0;
+		
+		for ( int y = 0; y < height; ++y )
+		{
+			position[ 1 ] = y;
+			cursor.setPosition( position );
+			
+			for ( int x = 0; x < width; ++x )
+			{
+				if ( x != 0 )
+					cursor.fwd( 0 );
+				
+				int bin = (int) (cursor.getType().get() * histogramBins);
+
+				// for the case of value being exactly 1
+				if (bin >= histogramBins) bin = histogramBins - 1;
+				if (bin < 0) bin = 0;
+				
+				plane[ i++ ] = (short)bin;
+			}
+		}
+	}
+	
 	/*public static EntropyInformation initEntropy(final Float3D img, final int histogramBins, final int windowSizeX, final int windowSizeY, final int windowSizeZ, final int x, final int y, final int z)
 	{
 		// arrays for guessing the probabilities
@@ -48,6 +48,8 @@ public class SPIMConfiguration
 	public int debugLevelInt = ViewStructure.DEBUG_MAIN;
 	public boolean showImageJWindow = false;
 	public boolean multiThreadedOpening = false;
+	// how many views are loaded in advance while the detections of another view are computed
+	public int numPrefetchedViews = 1;
 	public boolean collectRegistrationStatistics = false;
 	public String transformationModel = "Affine";
 	// time lapse
@@ -96,6 +98,13 @@ public class SPIMConfiguration
     public boolean readRegistration = false;
     public boolean writeRegistration = true;   
     
+    // batch processing of time points
+    public boolean useManifest = false;
+    public int numParallelTimePoints = 1;
+    public int timePointMemoryBudgetMB = 0;
+    public int batchNode = 0;
+    public int numBatchNodes = 1;
+    
 	public boolean overrideImageZStretching = false;
 	public double zStretching = 1;
 	public int background = 0;
@@ -784,6 +793,11 @@ public void printProperties()
     	IOFunctions.println("writeSegmentation: " + writeSegmentation);
     	IOFunctions.println("readRegistration: " + readRegistration);
     	IOFunctions.println("writeRegistration: " + writeRegistration);   
+    	
+    	IOFunctions.println("useManifest: " + useManifest);
+    	IOFunctions.println("numParallelTimePoints: " + numParallelTimePoints);
+    	IOFunctions.println("timePointMemoryBudgetMB: " + timePointMemoryBudgetMB);
+    	IOFunctions.println("batchNode: " + batchNode + " of " + numBatchNodes);
         
     	IOFunctions.println("zStretching: " + zStretching);
     	IOFunctions.println("background: " + background);
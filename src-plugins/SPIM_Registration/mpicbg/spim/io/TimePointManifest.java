@@ -0,0 +1,187 @@
+package mpicbg.spim.io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * Keeps track of which processing stages are finished for which time point, so that an interrupted
+ * time-lapse run can be restarted without repeating finished work and several JVMs (e.g. on different
+ * cluster nodes sharing the file system) can work on disjoint sets of time points.
+ *
+ * The manifest is a text file next to the registration files. Every finished stage appends one line
+ * "timepoint stage date" while holding a lock on the file, so the processes never overwrite each
+ * other. The stages are ordered; finishing a stage again invalidates all later stages of that time point.
+ */
+public class TimePointManifest
+{
+	final public static int NONE = -1;
+	final public static int SEGMENTED = 0;
+	final public static int REGISTERED = 1;
+	final public static int FUSED = 2;
+
+	final public static String[] stageNames = new String[]{ "segmented", "registered", "fused" };
+
+	final File file;
+
+	// the last finished stage for each time point
+	final HashMap< Integer, Integer > lastStage = new HashMap< Integer, Integer >();
+
+	/**
+	 * Opens or creates the manifest
+	 *
+	 * @param file - the manifest file
+	 * @throws IOException
+	 */
+	public TimePointManifest( final File file ) throws IOException
+	{
+		this.file = file;
+		reload();
+	}
+
+	/**
+	 * @param directory - the registration file directory
+	 * @param name - the name of the manifest (e.g. to tell time-lapse registrations to different reference time points apart)
+	 * @return the manifest file in this directory
+	 */
+	public static File getManifestFile( final String directory, final String name )
+	{
+		return new File( directory, name + ".manifest" );
+	}
+
+	/**
+	 * Reads the current state from disk, including the stages finished by other processes
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void reload() throws IOException
+	{
+		lastStage.clear();
+
+		if ( !file.exists() )
+			return;
+
+		final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final FileLock lock = channel.lock();
+
+			try
+			{
+				final BufferedReader in = new BufferedReader( new InputStreamReader( Channels.newInputStream( channel ) ) );
+
+				String line;
+				while ( ( line = in.readLine() ) != null )
+				{
+					final String[] entries = line.trim().split( "\t" );
+
+					if ( entries.length < 2 )
+						continue;
+
+					final int stage = getStage( entries[ 1 ] );
+
+					if ( stage == NONE )
+					{
+						IOFunctions.println( "Unknown stage '" + entries[ 1 ] + "' in " + file + ", ignoring it." );
+						continue;
+					}
+
+					try
+					{
+						lastStage.put( Integer.parseInt( entries[ 0 ] ), stage );
+					}
+					catch ( NumberFormatException e )
+					{
+						IOFunctions.println( "Cannot parse time point '" + entries[ 0 ] + "' in " + file + ", ignoring it." );
+					}
+				}
+			}
+			finally
+			{
+				lock.release();
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Records that a stage is finished for a time point (and that all later stages have to be redone)
+	 *
+	 * @param timePoint - the time point
+	 * @param stage - SEGMENTED, REGISTERED or FUSED
+	 * @throws IOException
+	 */
+	public synchronized void setFinished( final int timePoint, final int stage ) throws IOException
+	{
+		final FileOutputStream out = new FileOutputStream( file, true );
+
+		try
+		{
+			final FileLock lock = out.getChannel().lock();
+
+			try
+			{
+				out.write( ( timePoint + "\t" + stageNames[ stage ] + "\t" + new Date( System.currentTimeMillis() ) + "\n" ).getBytes() );
+				out.getFD().sync();
+			}
+			finally
+			{
+				lock.release();
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		lastStage.put( timePoint, stage );
+	}
+
+	/**
+	 * @param timePoint - the time point
+	 * @param stage - SEGMENTED, REGISTERED or FUSED
+	 * @return true if this stage (and all stages before) is finished
+	 */
+	public synchronized boolean isFinished( final int timePoint, final int stage )
+	{
+		return getLastStage( timePoint ) >= stage;
+	}
+
+	/**
+	 * @param timePoint - the time point
+	 * @return the last finished stage or NONE
+	 */
+	public synchronized int getLastStage( final int timePoint )
+	{
+		final Integer stage = lastStage.get( timePoint );
+
+		if ( stage == null )
+			return NONE;
+		else
+			return stage;
+	}
+
+	public static int getStage( final String name )
+	{
+		for ( int s = 0; s < stageNames.length; ++s )
+			if ( stageNames[ s ].equals( name ) )
+				return s;
+
+		return NONE;
+	}
+
+	public File getFile() { return file; }
+}
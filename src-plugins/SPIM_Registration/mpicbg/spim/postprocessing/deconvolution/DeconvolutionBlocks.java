@@ -0,0 +1,512 @@
+package mpicbg.spim.postprocessing.deconvolution;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import mpicbg.imglib.cursor.LocalizableByDimCursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorFactory;
+import mpicbg.imglib.outofbounds.OutOfBoundsStrategyValueFactory;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.util.MirrorUtils;
+
+/**
+ * Splits an image into blocks for the block-wise deconvolution and stores them on disk. Every block
+ * consists of a core, which is part of the result, and a margin around it, which is only needed to
+ * compute the convolutions of the core correctly. All blocks have the same size, blocks at the border
+ * of the image are extended by mirroring (images) or zeros (weights).
+ *
+ * Each file holds one record per block, so blocks can be read and written independently from many
+ * threads.
+ */
+public class DeconvolutionBlocks
+{
+	final int numDimensions;
+	final int[] imageSize, coreSize, margin, blockSize, numBlocksDim;
+	final int numBlocks, coreVolume, blockVolume;
+	final File directory;
+
+	/**
+	 * @param imageSize - the size of the deconvolved image
+	 * @param coreSize - the size of the core of each block
+	 * @param margin - the margin around each core (at least the size of the largest kernel)
+	 * @param directory - where to store the block files
+	 */
+	public DeconvolutionBlocks( final int[] imageSize, final int[] coreSize, final int[] margin, final File directory )
+	{
+		this.numDimensions = imageSize.length;
+		this.imageSize = imageSize.clone();
+		this.coreSize = new int[ numDimensions ];
+		this.margin = margin.clone();
+		this.blockSize = new int[ numDimensions ];
+		this.numBlocksDim = new int[ numDimensions ];
+		this.directory = directory;
+
+		int numBlocks = 1;
+		long coreVolume = 1, blockVolume = 1;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			this.coreSize[ d ] = Math.max( 1, Math.min( coreSize[ d ], imageSize[ d ] ) );
+			blockSize[ d ] = this.coreSize[ d ] + 2 * margin[ d ];
+			numBlocksDim[ d ] = ( imageSize[ d ] + this.coreSize[ d ] - 1 ) / this.coreSize[ d ];
+
+			numBlocks *= numBlocksDim[ d ];
+			coreVolume *= this.coreSize[ d ];
+			blockVolume *= blockSize[ d ];
+		}
+
+		if ( blockVolume > Integer.MAX_VALUE / 2 )
+			throw new RuntimeException( "Blocks of size " + blockVolume + " px are too big, choose a smaller block size." );
+
+		this.numBlocks = numBlocks;
+		this.coreVolume = (int)coreVolume;
+		this.blockVolume = (int)blockVolume;
+	}
+
+	public int getNumBlocks() { return numBlocks; }
+	public int[] getBlockSize() { return blockSize.clone(); }
+	public int[] getCoreSize() { return coreSize.clone(); }
+	public int[] getMargin() { return margin.clone(); }
+	public int getBlockVolume() { return blockVolume; }
+	public int getCoreVolume() { return coreVolume; }
+
+	/**
+	 * @param block - the index of the block
+	 * @return the position of the first pixel of the core of this block in the image
+	 */
+	public int[] getCoreOffset( final int block )
+	{
+		final int[] offset = new int[ numDimensions ];
+
+		int b = block;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			offset[ d ] = ( b % numBlocksDim[ d ] ) * coreSize[ d ];
+			b /= numBlocksDim[ d ];
+		}
+
+		return offset;
+	}
+
+	/**
+	 * @param name - the name of the block file
+	 * @return the file in the directory of the blocks
+	 */
+	public File getFile( final String name )
+	{
+		return new File( directory, name );
+	}
+
+	/**
+	 * Writes all blocks (including margins) of an image and optionally its weights into one file. Each record
+	 * contains the block of the image followed by the block of the weights.
+	 *
+	 * @param image - the image, extended by mirroring
+	 * @param weight - the weights, extended by zeros (or null)
+	 * @param file - the file to write
+	 * @throws IOException
+	 */
+	public void writeBlocks( final Image< FloatType > image, final Image< FloatType > weight, final File file ) throws IOException
+	{
+		final int recordSize = weight == null ? blockVolume : 2 * blockVolume;
+		final float[] record = new float[ recordSize ];
+
+		final LocalizableByDimCursor< FloatType > imageCursor = image.createLocalizableByDimCursor( new OutOfBoundsStrategyMirrorFactory< FloatType >() );
+		final LocalizableByDimCursor< FloatType > weightCursor;
+
+		if ( weight == null )
+			weightCursor = null;
+		else
+			weightCursor = weight.createLocalizableByDimCursor( new OutOfBoundsStrategyValueFactory< FloatType >() );
+
+		final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final int[] position = new int[ numDimensions ];
+
+			for ( int block = 0; block < numBlocks; ++block )
+			{
+				final int[] offset = getCoreOffset( block );
+
+				for ( int i = 0; i < blockVolume; ++i )
+				{
+					int l = i;
+
+					for ( int d = 0; d < numDimensions; ++d )
+					{
+						position[ d ] = offset[ d ] - margin[ d ] + l % blockSize[ d ];
+						l /= blockSize[ d ];
+					}
+
+					imageCursor.setPosition( position );
+					record[ i ] = imageCursor.getType().get();
+
+					if ( weightCursor != null )
+					{
+						weightCursor.setPosition( position );
+						record[ i + blockVolume ] = weightCursor.getType().get();
+					}
+				}
+
+				write( channel, block, record );
+			}
+		}
+		finally
+		{
+			imageCursor.close();
+
+			if ( weightCursor != null )
+				weightCursor.close();
+
+			raf.close();
+		}
+	}
+
+	/**
+	 * How many cores, in the order of the blocks, a block and the blocks around it overlap at most, i.e. how
+	 * far the first and the last core a block overlaps can be apart. If the blocks are processed in this order,
+	 * a {@link CoreCache} of this size plus the number of blocks processed in paralell reads every core only once.
+	 *
+	 * @return the number of cores
+	 */
+	public int getCoreWindow()
+	{
+		long window = 1, step = 1;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			// how many cores away from its own the margin of a block reaches, including the mirrored margins
+			int reach = 0;
+
+			for ( int b = 0; b < numBlocksDim[ d ]; ++b )
+				for ( int l = 0; l < blockSize[ d ]; ++l )
+				{
+					final int c = MirrorUtils.mirror( b * coreSize[ d ] - margin[ d ] + l, imageSize[ d ] ) / coreSize[ d ];
+					reach = Math.max( reach, Math.abs( c - b ) );
+				}
+
+			window += 2l * reach * step;
+			step *= numBlocksDim[ d ];
+		}
+
+		return (int)Math.min( numBlocks, window );
+	}
+
+	/**
+	 * @param channel - the file containing the cores
+	 * @param capacity - how many cores to keep in memory at most
+	 * @return a cache for the cores of this file
+	 */
+	public CoreCache createCoreCache( final FileChannel channel, final int capacity )
+	{
+		return new CoreCache( channel, capacity );
+	}
+
+	/**
+	 * Keeps the cores read from a file that contains only the cores of all blocks, so that neighboring blocks
+	 * which need the same cores for their margins do not read them again. The blocks are expected to be
+	 * processed in the order of their indices, so when the cache is full the core with the lowest index is
+	 * dropped, which the following blocks need the least. The file must not change while the cache is used.
+	 * It can be shared by many threads.
+	 */
+	public class CoreCache
+	{
+		final FileChannel channel;
+		final int capacity;
+		final TreeMap< Integer, float[] > cores = new TreeMap< Integer, float[] >();
+		long numReads = 0;
+
+		protected CoreCache( final FileChannel channel, final int capacity )
+		{
+			this.channel = channel;
+			this.capacity = Math.max( 1, capacity );
+		}
+
+		/**
+		 * @param block - the index of the block
+		 * @return the core of this block, which must not be modified
+		 * @throws IOException
+		 */
+		public float[] get( final int block ) throws IOException
+		{
+			synchronized ( cores )
+			{
+				final float[] core = cores.get( block );
+
+				if ( core != null )
+					return core;
+			}
+
+			// read outside of the lock, so the threads can read different cores at the same time
+			final float[] core = new float[ coreVolume ];
+			read( channel, block, core );
+
+			synchronized ( cores )
+			{
+				cores.put( block, core );
+				++numReads;
+
+				while ( cores.size() > capacity )
+					cores.remove( cores.firstKey() );
+			}
+
+			return core;
+		}
+
+		/**
+		 * @return how many cores were read from the file so far
+		 */
+		public long getNumReads()
+		{
+			synchronized ( cores )
+			{
+				return numReads;
+			}
+		}
+	}
+
+	/**
+	 * Assembles a block including its margin from a file that contains only the cores of all blocks. Pixels
+	 * outside of the image are mirrored into it. The cores the block overlaps are taken from a cache, so
+	 * neighboring blocks share the cores they have in common.
+	 *
+	 * @param cores - the cores of all blocks
+	 * @param block - the index of the block
+	 * @param target - where to put the block, blockVolume floats
+	 * @throws IOException
+	 */
+	public void readBlockFromCores( final CoreCache cores, final int block, final float[] target ) throws IOException
+	{
+		final int[] offset = getCoreOffset( block );
+
+		// for every dimension, the cores the block overlaps and, for each of them, the local coordinates
+		// of the block that fall into it and their positions inside the core
+		final int[][] coreIndex = new int[ numDimensions ][];
+		final int[][][] local = new int[ numDimensions ][][];
+		final int[][][] corePosition = new int[ numDimensions ][][];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			final int[] index = new int[ blockSize[ d ] ];
+			final int[] count = new int[ numBlocksDim[ d ] ];
+			int numCores = 0;
+
+			for ( int l = 0; l < blockSize[ d ]; ++l )
+			{
+				index[ l ] = MirrorUtils.mirror( offset[ d ] - margin[ d ] + l, imageSize[ d ] );
+
+				if ( count[ index[ l ] / coreSize[ d ] ]++ == 0 )
+					++numCores;
+			}
+
+			coreIndex[ d ] = new int[ numCores ];
+			local[ d ] = new int[ numCores ][];
+			corePosition[ d ] = new int[ numCores ][];
+
+			for ( int b = 0, k = 0; b < numBlocksDim[ d ]; ++b )
+				if ( count[ b ] > 0 )
+				{
+					coreIndex[ d ][ k ] = b;
+					local[ d ][ k ] = new int[ count[ b ] ];
+					corePosition[ d ][ k ] = new int[ count[ b ] ];
+					count[ b ] = k++;
+				}
+
+			final int[] n = new int[ numCores ];
+
+			for ( int l = 0; l < blockSize[ d ]; ++l )
+			{
+				final int k = count[ index[ l ] / coreSize[ d ] ];
+				local[ d ][ k ][ n[ k ] ] = l;
+				corePosition[ d ][ k ][ n[ k ]++ ] = index[ l ] % coreSize[ d ];
+			}
+		}
+
+		// iterate over all overlapped cores ...
+		final int[] k = new int[ numDimensions ];
+		final int[] j = new int[ numDimensions ];
+
+		do
+		{
+			int b = 0;
+
+			for ( int d = numDimensions - 1; d >= 0; --d )
+				b = b * numBlocksDim[ d ] + coreIndex[ d ][ k[ d ] ];
+
+			final float[] core = cores.get( b );
+
+			// ... and over the pixels of the block that fall into each of them
+			Arrays.fill( j, 0 );
+
+			do
+			{
+				int i = 0, c = 0;
+
+				for ( int d = numDimensions - 1; d >= 0; --d )
+				{
+					i = i * blockSize[ d ] + local[ d ][ k[ d ] ][ j[ d ] ];
+					c = c * coreSize[ d ] + corePosition[ d ][ k[ d ] ][ j[ d ] ];
+				}
+
+				target[ i ] = core[ c ];
+			}
+			while ( next( j, local, k ) );
+		}
+		while ( next( k, coreIndex ) );
+	}
+
+	/**
+	 * Advances a position in a grid of coordinates, the first dimension being the fastest
+	 *
+	 * @return false if the position went past the last one (it is back at the first one then)
+	 */
+	protected static boolean next( final int[] position, final int[][] values )
+	{
+		for ( int d = 0; d < position.length; ++d )
+		{
+			if ( ++position[ d ] < values[ d ].length )
+				return true;
+
+			position[ d ] = 0;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Advances a position in the grid of the coordinates of the selected lists, the first dimension being the fastest
+	 *
+	 * @return false if the position went past the last one (it is back at the first one then)
+	 */
+	protected static boolean next( final int[] position, final int[][][] values, final int[] selected )
+	{
+		for ( int d = 0; d < position.length; ++d )
+		{
+			if ( ++position[ d ] < values[ d ][ selected[ d ] ].length )
+				return true;
+
+			position[ d ] = 0;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Copies the parts of the cores that lie inside the image into an image
+	 *
+	 * @param channel - the file containing the cores
+	 * @param image - the target image
+	 * @throws IOException
+	 */
+	public void copyCoresToImage( final FileChannel channel, final Image< FloatType > image ) throws IOException
+	{
+		final float[] core = new float[ coreVolume ];
+		final int[] position = new int[ numDimensions ];
+		final LocalizableByDimCursor< FloatType > cursor = image.createLocalizableByDimCursor();
+
+		for ( int block = 0; block < numBlocks; ++block )
+		{
+			final int[] offset = getCoreOffset( block );
+			read( channel, block, core );
+
+A:			for ( int i = 0; i < coreVolume; ++i )
+			{
+				int l = i;
+
+				for ( int d = 0; d < numDimensions; ++d )
+				{
+					position[ d ] = offset[ d ] + l % coreSize[ d ];
+					l /= coreSize[ d ];
+
+					if ( position[ d ] >= imageSize[ d ] )
+						continue A;
+				}
+
+				cursor.setPosition( position );
+				cursor.getType().set( core[ i ] );
+			}
+		}
+
+		cursor.close();
+	}
+
+	/**
+	 * Tells if a pixel of the core of a block lies inside the image
+	 *
+	 * @param offset - the offset of the core, see {@link #getCoreOffset(int)}
+	 * @param i - the index of the pixel in the core
+	 * @return true if it is inside the image
+	 */
+	public boolean isInside( final int[] offset, final int i )
+	{
+		int l = i;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			if ( offset[ d ] + l % coreSize[ d ] >= imageSize[ d ] )
+				return false;
+
+			l /= coreSize[ d ];
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param i - the index of a pixel in the core
+	 * @return the index of the same pixel in the block including the margin
+	 */
+	public int coreToBlockIndex( final int i )
+	{
+		int l = i;
+		int index = 0, step = 1;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			index += ( margin[ d ] + l % coreSize[ d ] ) * step;
+			l /= coreSize[ d ];
+			step *= blockSize[ d ];
+		}
+
+		return index;
+	}
+
+	/**
+	 * Reads a record of a file with fixed-size records
+	 */
+	public static void read( final FileChannel channel, final int record, final float[] data ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( data.length * 4 );
+		final long position = (long)record * data.length * 4;
+
+		while ( buffer.hasRemaining() )
+			if ( channel.read( buffer, position + buffer.position() ) < 0 )
+				throw new IOException( "Unexpected end of block file." );
+
+		buffer.flip();
+		buffer.asFloatBuffer().get( data );
+	}
+
+	/**
+	 * Writes a record of a file with fixed-size records
+	 */
+	public static void write( final FileChannel channel, final int record, final float[] data ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( data.length * 4 );
+		buffer.asFloatBuffer().put( data );
+
+		final long position = (long)record * data.length * 4;
+
+		while ( buffer.hasRemaining() )
+			channel.write( buffer, position + buffer.position() );
+	}
+}
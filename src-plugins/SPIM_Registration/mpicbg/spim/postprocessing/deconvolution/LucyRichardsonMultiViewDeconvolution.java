@@ -2,9 +2,14 @@
 
 import ij.IJ;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.math.BigDecimal;
 import java.math.MathContext;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.concurrent.atomic.AtomicInteger;
 import weka.classifiers.meta.AdditiveRegression;
@@ -13,10 +18,12 @@
 import mpicbg.imglib.container.array.ArrayContainerFactory;
 import mpicbg.imglib.cursor.Cursor;
 import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
 import mpicbg.imglib.image.display.imagej.ImageJFunctions;
 import mpicbg.imglib.io.LOCI;
 import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.imglib.util.Util;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.io.SPIMConfiguration;
 import mpicbg.spim.registration.ViewDataBeads;
@@ -362,7 +369,433 @@ public void run()
 		return psi;
 	}
 	
+	/**
+	 * Deconvolves the views block by block instead of the whole image at once. The images and weights are split
+	 * into overlapping blocks (the core plus a margin of the size of the largest kernel on each side) which are
+	 * written to disk once, the current estimate psi is kept on disk as well. In every iteration each block is
+	 * read, deconvolved independently and only its core is written back, so the memory needed by the deconvolution
+	 * depends on the block size and the number of blocks processed in paralell, not on the size of the image.
+	 * 
+	 * Note that the images and weights of all views are passed in memory, so they must fit into memory at the
+	 * same time before the deconvolution starts (as the fusion computes them anyway); only the memory needed
+	 * on top of them for the deconvolution is bounded.
+	 * 
+	 * The input images and weights are closed after they were written to disk, the kernels are normalized in place.
+	 * 
+	 * @param images - the fused images of each view
+	 * @param weights - the weights of each view (or null)
+	 * @param kernels - the point spread function of each view
+	 * @param coreSize - the size of the part of each block that is part of the result
+	 * @param directory - the directory to store the temporary block files in
+	 * @param memoryBudget - approximately how much memory (in bytes) the blocks processed in paralell may take
+	 * @param minIterations - the minimal number of iterations
+	 * @param maxIterations - the maximal number of iterations
+	 * @param multiplicative - multiplicative or additive combination of the views
+	 * @param lambda - the Tikhonov parameter, 0 means no regularization
+	 * @param numThreads - how many blocks to process at most in paralell
+	 * @return the deconvolved image
+	 * @throws IOException
+	 */
+	public static Image<FloatType> lucyRichardsonMultiViewBlockwise( final ArrayList<Image<FloatType>> images, final ArrayList<Image<FloatType>> weights, 
+			final ArrayList<Image<FloatType>> kernels, final int[] coreSize, final File directory, final long memoryBudget, 
+			final int minIterations, final int maxIterations, final boolean multiplicative, final double lambda, final int numThreads ) throws IOException
+	{
+		final int numViews = images.size();
+		final double minValue = 0.0001;
+		final boolean weighted = weights != null && weights.get( 0 ) != null;
+		
+		for ( int view = 0; view < numViews; ++view )
+		{
+			IJ.log( new Date( System.currentTimeMillis() ) + " Norming kernel " + (view+1) );
+			normImage( kernels.get( view ) );
+		}
+
+		// the overlapping area has the same energy
+		final double avg = normAllImages( images, weights );
+
+		IJ.log( "Average intensity in overlapping area: " + avg );
+
+		//
+		// the margin of the blocks is the size of the largest kernel, this way the core of each block
+		// sees everything that contributes to it in the two convolutions
+		//
+		final int[] dimensions = images.get( 0 ).getDimensions();
+		final int numDimensions = dimensions.length;
+		final int[] margin = new int[ numDimensions ];
+
+		for ( final Image<FloatType> kernel : kernels )
+			for ( int d = 0; d < numDimensions; ++d )
+				margin[ d ] = Math.max( margin[ d ], kernel.getDimension( d ) );
+
+		if ( !directory.exists() && !directory.mkdirs() )
+			throw new IOException( "Cannot create directory " + directory );
+
+		final DeconvolutionBlocks blocks = new DeconvolutionBlocks( dimensions, coreSize, margin, directory );
+		final int numBlocks = blocks.getNumBlocks();
+		final int blockVolume = blocks.getBlockVolume();
+		final int coreVolume = blocks.getCoreVolume();
+		final int[] blockSize = blocks.getBlockSize();
+
+		IJ.log( "Deconvolving " + numBlocks + " blocks of size " + Util.printCoordinates( blockSize ) + " (core " + Util.printCoordinates( blocks.getCoreSize() ) + ")" );
+
+		//
+		// write the blocks of all views to disk and free the memory
+		//
+		final ImageFactory<FloatType> outputFactory = images.get( 0 ).getImageFactory();
+		final File[] viewFiles = new File[ numViews ];
+		final File[] psiFiles = new File[]{ blocks.getFile( "psi0.blocks" ), blocks.getFile( "psi1.blocks" ) };
+
+		for ( int view = 0; view < numViews; ++view )
+		{
+			IJ.log( new Date( System.currentTimeMillis() ) + " Writing blocks of view " + (view+1) );
+
+			viewFiles[ view ] = blocks.getFile( "view" + view + ".blocks" );
+			blocks.writeBlocks( images.get( view ), weighted ? weights.get( view ) : null, viewFiles[ view ] );
+			
+			images.get( view ).close();
+			if ( weighted )
+				weights.get( view ).close();
+		}
+
+		final RandomAccessFile[] viewRafs = new RandomAccessFile[ numViews ];
+		final RandomAccessFile[] psiRafs = new RandomAccessFile[ 2 ];
+
+		try
+		{
+			final FileChannel[] viewChannels = new FileChannel[ numViews ];
+			final FileChannel[] psiChannels = new FileChannel[ 2 ];
+			
+			for ( int view = 0; view < numViews; ++view )
+			{
+				viewRafs[ view ] = new RandomAccessFile( viewFiles[ view ], "r" );
+				viewChannels[ view ] = viewRafs[ view ].getChannel();
+			}
+
+			for ( int p = 0; p < 2; ++p )
+			{
+				psiRafs[ p ] = new RandomAccessFile( psiFiles[ p ], "rw" );
+				psiChannels[ p ] = psiRafs[ p ].getChannel();
+			}
+
+			//
+			// the real data image psi is initialized with the average 
+			//
+			final float[] core = new float[ coreVolume ];
+			Arrays.fill( core, (float)avg );
+
+			for ( int block = 0; block < numBlocks; ++block )
+				DeconvolutionBlocks.write( psiChannels[ 0 ], block, core );
+
+			// for each pixel of the core its index in the block
+			final int[] coreIndex = new int[ coreVolume ];
+			for ( int j = 0; j < coreVolume; ++j )
+				coreIndex[ j ] = blocks.coreToBlockIndex( j );
+
+			//
+			// how many blocks we can afford to process at the same time, each one needs the transforms of
+			// the padded block and the kernel for every view, a few images of the size of the block (psi,
+			// the view and its weights, the convolution results) and a few of the size of the core (the
+			// next psi and the sums of the views in double)
+			//
+			long paddedVolume = 1;
+			for ( int d = 0; d < numDimensions; ++d )
+				paddedVolume *= blockSize[ d ] + margin[ d ];
+
+			final long bytesPerBlock = 4l * ( numViews * ( 2 * paddedVolume + blockVolume ) + 2 * paddedVolume + 8l * blockVolume + 5l * coreVolume );
+			final int numWorkers = (int)Math.max( 1, Math.min( numThreads, memoryBudget / bytesPerBlock ) );
+
+			IJ.log( "Processing " + numWorkers + " blocks in paralell (approx. " + (bytesPerBlock/(1024*1024)) + " MB per block)" );
+
+			//
+			// the rest of the memory keeps the cores of psi, so the blocks processed one after the other
+			// do not read the cores they share for their margins again
+			//
+			final int coreWindow = blocks.getCoreWindow() + numWorkers;
+			final int numCachedCores = (int)Math.max( numWorkers, Math.min( coreWindow, ( memoryBudget - numWorkers * bytesPerBlock ) / ( 4l * coreVolume ) ) );
+
+			IJ.log( "Keeping up to " + numCachedCores + " cores of psi in memory (approx. " + (numCachedCores * 4l * coreVolume/(1024*1024)) + " MB)" );
+
+			if ( numCachedCores < coreWindow )
+				IJ.log( "Not enough memory to keep " + coreWindow + " cores, some cores will be read more than once per iteration." );
+
+			final AtomicInteger ai = new AtomicInteger( 0 );
+			final double[] change = new double[ 2 ];
+			final IOException[] error = new IOException[ 1 ];
+			
+			//
+			// Start iteration
+			//
+			int i = 0;
+			int parity = 0;
+
+			do
+			{
+				IJ.log( "iteration: " + i++ + " (" + new Date(System.currentTimeMillis()) + ")" );
+
+				final DeconvolutionBlocks.CoreCache psiCores = blocks.createCoreCache( psiChannels[ parity ], numCachedCores );
+				final FileChannel nextPsiChannel = psiChannels[ 1 - parity ];
+
+				ai.set( 0 );
+				change[ 0 ] = 0;
+				change[ 1 ] = -1;
+
+				final Thread[] threads = SimpleMultiThreading.newThreads( numWorkers );
+
+				for ( int ithread = 0; ithread < threads.length; ++ithread )
+					threads[ithread] = new Thread(new Runnable()
+					{
+						public void run()
+						{
+							final Image<FloatType> psiBlock = new ImageFactory<FloatType>( new FloatType(), new ArrayContainerFactory() ).createImage( blockSize, "psi block" );
+							final ArrayList<FourierConvolution<FloatType, FloatType>> fftConvolutions = new ArrayList<FourierConvolution<FloatType, FloatType>>();
+
+							for ( int view = 0; view < numViews; ++view )
+							{
+								final FourierConvolution<FloatType, FloatType> fftConvolution = new FourierConvolution<FloatType, FloatType>( psiBlock, kernels.get( view ) );
+								fftConvolution.setNumThreads( 1 );
+								fftConvolutions.add( fftConvolution );
+							}
+
+							final float[] psiData = new float[ blockVolume ];
+							final float[] viewData = new float[ weighted ? 2 * blockVolume : blockVolume ];
+							final float[] contribution = new float[ blockVolume ];
+							final float[] nextPsiCore = new float[ coreVolume ];
+							final double[] value = new double[ coreVolume ];
+							final double[] num = new double[ coreVolume ];
+
+							try
+							{
+								for ( int block = ai.getAndIncrement(); block < numBlocks && error[ 0 ] == null; block = ai.getAndIncrement() )
+								{
+									blocks.readBlockFromCores( psiCores, block, psiData );
+									copy( psiData, psiBlock );
+
+									// the next psi starts with 1 (we multiply the results from the different views)
+									Arrays.fill( value, multiplicative ? 1 : 0 );
+									Arrays.fill( num, 0 );
+
+									for ( int view = 0; view < numViews; ++view )
+									{
+										DeconvolutionBlocks.read( viewChannels[ view ], block, viewData );
+
+										// convolve psi (current guess of the image) with the PSF of the current view
+										final FourierConvolution<FloatType, FloatType> fftConvolution = fftConvolutions.get( view );
+										fftConvolution.replaceImage( psiBlock );
+										fftConvolution.process();
+										final Image<FloatType> psiBlurred = fftConvolution.getResult();
+
+										// compute quotient img/psiBlurred
+										final Cursor<FloatType> cursorPsiBlurred = psiBlurred.createCursor();
+
+										for ( int j = 0; j < blockVolume; ++j )
+										{
+											cursorPsiBlurred.fwd();
+											cursorPsiBlurred.getType().set( viewData[ j ] / cursorPsiBlurred.getType().get() );
+										}
+
+										cursorPsiBlurred.close();
+
+										// blur the residuals image with the kernel
+										fftConvolution.replaceImage( psiBlurred );
+										fftConvolution.process();
+										final Image<FloatType> viewContribution = fftConvolution.getResult();
+										copy( viewContribution, contribution );
+
+										viewContribution.close();
+										psiBlurred.close();
+
+										// add the contribution of the view, exactly as for the whole image
+										for ( int j = 0; j < coreVolume; ++j )
+										{
+											final int index = coreIndex[ j ];
+
+											if ( weighted )
+											{
+												final float weight = viewData[ index + blockVolume ];
+
+												if ( weight > 0 )
+												{
+													if ( multiplicative )
+														value[ j ] *= Math.pow( contribution[ index ], weight );
+													else
+														value[ j ] += contribution[ index ] * weight;
+
+													num[ j ] += weight;
+												}
+											}
+											else
+											{
+												value[ j ] *= contribution[ index ];
+												num[ j ]++;
+											}
+										}
+									}
+
+									//
+									// compute the new psi of the core, regularize it and compute the change
+									//
+									final int[] offset = blocks.getCoreOffset( block );
+									double sumChange = 0;
+									double maxChange = -1;
+
+									for ( int j = 0; j < coreVolume; ++j )
+									{
+										final float lastPsiValue = psiData[ coreIndex[ j ] ];
+										double v;
+
+										if ( num[ j ] > 0 )
+										{
+											if ( multiplicative )
+												v = (double)lastPsiValue * Math.pow( value[ j ], 1.0/num[ j ] );
+											else
+												v = (double)lastPsiValue * value[ j ]/num[ j ];
+										}
+										else
+										{
+											v = minValue;
+										}
+
+										float f = (float)v;
+
+										// perform Tikhonov regularization if desired
+										if ( lambda > 0 )
+											f = (float)( (Math.sqrt( 1.0 + 2.0*lambda*f ) - 1.0) / lambda );
+
+										final float nextPsiValue;
+										if ( Float.isNaN( f ) )
+											nextPsiValue = (float)minValue;
+										else
+											nextPsiValue = (float)Math.max( minValue, f );
+
+										nextPsiCore[ j ] = nextPsiValue;
+
+										// the parts of the core outside of the image do not count
+										if ( blocks.isInside( offset, j ) )
+										{
+											final float c = Math.abs( lastPsiValue - nextPsiValue );
+											sumChange += c;
+											maxChange = Math.max( maxChange, c );
+										}
+									}
+
+									DeconvolutionBlocks.write( nextPsiChannel, block, nextPsiCore );
+
+									synchronized ( change )
+									{
+										change[ 0 ] += sumChange;
+										change[ 1 ] = Math.max( change[ 1 ], maxChange );
+									}
+								}
+							}
+							catch ( IOException e )
+							{
+								synchronized ( error )
+								{
+									error[ 0 ] = e;
+								}
+							}
+							finally
+							{
+								for ( final FourierConvolution<FloatType, FloatType> fftConvolution : fftConvolutions )
+									fftConvolution.close();
+
+								psiBlock.close();
+							}
+						}
+					});
+
+				SimpleMultiThreading.startAndJoin( threads );
+
+				if ( error[ 0 ] != null )
+					throw error[ 0 ];
+
+				parity = 1 - parity;
+
+				IJ.log("------------------------------------------------");
+				IJ.log(" Change: " + change[ 0 ] );
+				IJ.log(" Max Change per Pixel: " + change[ 1 ] );
+				IJ.log(" Cores of psi read: " + psiCores.getNumReads() + " (" + numBlocks + " blocks)" );
+				IJ.log("------------------------------------------------");
+
+				System.out.println( i + "\t" + change[ 0 ] + "\t" + change[ 1 ] );
+			}
+			while ( i < maxIterations );
+
+			//
+			// assemble the result from the cores
+			//
+			final Image<FloatType> psi = outputFactory.createImage( dimensions, "psi (deconvolved image)" );
+			blocks.copyCoresToImage( psiChannels[ parity ], psi );
+
+			return psi;
+		}
+		finally
+		{
+			for ( final RandomAccessFile raf : viewRafs )
+				if ( raf != null )
+					raf.close();
+
+			for ( final RandomAccessFile raf : psiRafs )
+				if ( raf != null )
+					raf.close();
+
+			for ( final File file : viewFiles )
+				if ( file != null )
+					file.delete();
+
+			for ( final File file : psiFiles )
+				file.delete();
+		}
+	}
+
+	final private static void copy( final float[] source, final Image<FloatType> target )
+	{
+		final Cursor<FloatType> cursor = target.createCursor();
+
+		for ( int j = 0; j < source.length; ++j )
+		{
+			cursor.fwd();
+			cursor.getType().set( source[ j ] );
+		}
+
+		cursor.close();
+	}
+
+	final private static void copy( final Image<FloatType> source, final float[] target )
+	{
+		final Cursor<FloatType> cursor = source.createCursor();
+
+		for ( int j = 0; j < target.length; ++j )
+		{
+			cursor.fwd();
+			target[ j ] = cursor.getType().get();
+		}
+
+		cursor.close();
+	}
+
 	public static double normAllImages( final ArrayList<LucyRichardsonFFT> data )
+	{
+		final ArrayList<Image<FloatType>> images = new ArrayList<Image<FloatType>>();
+		final ArrayList<Image<FloatType>> weights = new ArrayList<Image<FloatType>>();
+
+		for ( final LucyRichardsonFFT fft : data )
+		{
+			images.add( fft.getImage() );
+			weights.add( fft.getWeight() );
+		}
+
+		return normAllImages( images, weights );
+	}
+
+	/**
+	 * Computes the average intensity of all views in the area where at least two views overlap
+	 * 
+	 * @param images - the input images
+	 * @param weights - the weights of the input images (or null)
+	 * @return the average intensity, 1 if no views overlap
+	 */
+	public static double normAllImages( final ArrayList<Image<FloatType>> images, final ArrayList<Image<FloatType>> weights )
 	{
 		// the individual sums of the overlapping area
 		//final double[] sums = new double[ data.size() ];
@@ -374,11 +807,11 @@ public static double normAllImages( final ArrayList<LucyRichardsonFFT> data )
 		final ArrayList<Cursor<FloatType>> cursorsImage = new ArrayList<Cursor<FloatType>>();
 		final ArrayList<Cursor<FloatType>> cursorsWeight = new ArrayList<Cursor<FloatType>>();
 		
-		for ( final LucyRichardsonFFT fft : data )
+		for ( int i = 0; i < images.size(); ++i )
 		{
-			cursorsImage.add( fft.getImage().createCursor() );
-			if ( fft.getWeight() != null )
-				cursorsWeight.add( fft.getWeight().createCursor() );
+			cursorsImage.add( images.get( i ).createCursor() );
+			if ( weights != null && weights.get( i ) != null )
+				cursorsWeight.add( weights.get( i ).createCursor() );
 		}
 		
 		final Cursor<FloatType> cursor = cursorsImage.get( 0 );
@@ -403,7 +836,7 @@ public static double normAllImages( final ArrayList<LucyRichardsonFFT> data )
 			
 			for ( int i = 0; i < cursorsImage.size(); ++i )
 			{
-				if ( cursorsWeight.get( i ).getType().get() != 0 )
+				if ( cursorsWeight.size() == 0 || cursorsWeight.get( i ).getType().get() != 0 )
 				{
 					sumLocal += cursorsImage.get( i ).getType().get();
 					countLocal++;
@@ -3,7 +3,11 @@
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.vecmath.Point3d;
 import javax.vecmath.Point3i;
@@ -47,8 +51,6 @@ public void segment( )
 	
 	public void segment( final SPIMConfiguration conf, final ArrayList<ViewDataBeads> views )
 	{
-		final float threshold = conf.threshold;
-				
 		//
 		// Extract the beads
 		// 		
@@ -56,6 +58,9 @@ public void segment( final SPIMConfiguration conf, final ArrayList<ViewDataBeads
 		{
 			final int numThreads = views.size();
 			
+			// every view is processed in its own thread, so they share the processors for filtering
+			final int numThreadsPerView = Math.max( 1, Runtime.getRuntime().availableProcessors() / numThreads );
+			
 			for ( final ViewDataBeads view : views )
 				if ( view.getUseForRegistration() )
 					view.getImage();
@@ -74,27 +79,7 @@ public void run()
 	                    
 	                    if ( view.getUseForRegistration() )
 	                    {	                    
-		        			if (conf.useScaleSpace)					
-		        			{
-		        	    		if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
-		        	    			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Scale Space Bead Extraction for " + view.getName() );
-		        				
-		        	    		view.setBeadStructure( extractBeadsLaPlaceImgLib( view, conf ) );
-
-		        				view.closeImage();
-		        			}
-		        			else
-		        			{
-		        	    		if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
-		        	    			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Threshold Bead Extraction");					
-		        				
-		        				view.setBeadStructure( extractBeadsThresholdSegmentation( view, threshold, conf.minSize, conf.maxSize, conf.minBlackBorder) );
-		        				
-		        				view.closeImage();				
-		        			}
-		        				
-		        			if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
-		        				IOFunctions.println( "Found peaks (possible beads): " + view.getBeadStructure().getBeadList().size() );
+	                    	extractBeads( view, conf, numThreadsPerView );
 		        			
 		        			//
 		        			// Store segmentation in a file
@@ -108,47 +93,177 @@ public void run()
 			SimpleMultiThreading.startAndJoin( threads );
 		}
 		else
-		{		
-			for ( final ViewDataBeads view : views )
+		{
+			segmentPipelined( conf, views );
+		}
+	}
+	
+	/**
+	 * Extracts the beads of all views in a pipeline: while view N is filtered (using all processors), 
+	 * view N+1 is loaded in the background and the segmentation of view N-1 is written to disk. At most
+	 * conf.numPrefetchedViews images are loaded in advance, so the memory requirements stay bounded.
+	 * 
+	 * @param conf - the configuration
+	 * @param views - the views to process
+	 */
+	protected void segmentPipelined( final SPIMConfiguration conf, final ArrayList<ViewDataBeads> views )
+	{
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+		
+		// the indices of loaded views, -1 signals the end
+		final LinkedBlockingQueue< Integer > loaded = new LinkedBlockingQueue< Integer >();
+		
+		// the indices of segmented views to write, -1 signals the end
+		final LinkedBlockingQueue< Integer > segmented = new LinkedBlockingQueue< Integer >();
+		
+		// the image that is filtered plus the ones that are loaded before they are needed (none
+		// if numPrefetchedViews is 0, then every view is loaded after the previous one was filtered)
+		final Semaphore prefetch = new Semaphore( 1 + Math.max( 0, conf.numPrefetchedViews ) );
+		
+		final AtomicBoolean cancelled = new AtomicBoolean( false );
+		final AtomicReference< Throwable > loadingError = new AtomicReference< Throwable >();
+		
+		final Thread loader = new Thread( new Runnable()
+		{
+			public void run()
 			{
-				if (conf.useScaleSpace)					
+				try
 				{
-		    		if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
-		    			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Scale Space Bead Extraction for " + view.getName() );
-					
-		    		view.setBeadStructure( extractBeadsLaPlaceImgLib( view, conf ) );
-		    		
-		    		if ( debugBeads )
-		    		{
-						Image<FloatType> img = getFoundBeads( view );				
-						img.setName( "imglib" );
-						img.getDisplay().setMinMax();
-						ImageJFunctions.copyToImagePlus( img ).show();				
-						SimpleMultiThreading.threadHaltUnClean();		    			
-		    		}
-		    		
-					view.closeImage();
+					for ( int i = 0; i < views.size() && !cancelled.get(); ++i )
+					{
+						prefetch.acquire();
+						
+						if ( cancelled.get() )
+							break;
+						
+						views.get( i ).getImage();
+						loaded.put( i );
+					}
 				}
-				else
+				catch ( InterruptedException e ) {}
+				catch ( Throwable t )
 				{
-		    		if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
-		    			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Threshold Bead Extraction");					
-					
-					view.setBeadStructure( extractBeadsThresholdSegmentation( view, threshold, conf.minSize, conf.maxSize, conf.minBlackBorder) );
-					
-					view.closeImage();				
+					loadingError.set( t );
+				}
+				finally
+				{
+					loaded.add( -1 );
 				}
+			}
+		}, "Bead image loader" );
+		
+		final Thread writer = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					int i;
 					
-				if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
-					IOFunctions.println( "Found peaks (possible beads): " + view.getBeadStructure().getBeadList().size() );
+					while ( ( i = segmented.take() ) >= 0 )
+						IOFunctions.writeSegmentation( views.get( i ), conf.registrationFiledirectory );
+				}
+				catch ( InterruptedException e ) {}
+			}
+		}, "Bead segmentation writer" );
+		
+		loader.start();
+		
+		if ( conf.writeSegmentation )
+			writer.start();
+		
+		int numProcessed = 0;
+		
+		try
+		{
+			int i;
+			
+			while ( ( i = loaded.take() ) >= 0 )
+			{
+				final ViewDataBeads view = views.get( i );
+				
+				extractBeads( view, conf, numThreads );
+				prefetch.release();
+				++numProcessed;
 				
 				//
 				// Store segmentation in a file
 				//
 				if ( conf.writeSegmentation )
-					IOFunctions.writeSegmentation( view, conf.registrationFiledirectory );										
+					segmented.put( i );
 			}
 		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			// let the loader finish in case we stopped early
+			cancelled.set( true );
+			prefetch.release();
+			segmented.add( -1 );
+			
+			try
+			{
+				loader.join();
+				
+				if ( conf.writeSegmentation )
+					writer.join();
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			
+			// images that were loaded but not processed anymore
+			for ( int i = numProcessed; i < views.size(); ++i )
+				views.get( i ).closeImage();
+		}
+		
+		if ( loadingError.get() != null )
+			throw new RuntimeException( "Cannot load image of " + views.get( numProcessed ).getName(), loadingError.get() );
+	}
+	
+	/**
+	 * Extracts the beads of one view and closes its image
+	 * 
+	 * @param view - the view
+	 * @param conf - the configuration
+	 * @param numThreads - how many threads to use for filtering
+	 */
+	protected void extractBeads( final ViewDataBeads view, final SPIMConfiguration conf, final int numThreads )
+	{
+		if (conf.useScaleSpace)					
+		{
+    		if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
+    			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Scale Space Bead Extraction for " + view.getName() );
+			
+    		view.setBeadStructure( extractBeadsLaPlaceImgLib( view, conf, numThreads ) );
+    		
+    		if ( debugBeads )
+    		{
+				Image<FloatType> img = getFoundBeads( view );				
+				img.setName( "imglib" );
+				img.getDisplay().setMinMax();
+				ImageJFunctions.copyToImagePlus( img ).show();				
+				SimpleMultiThreading.threadHaltUnClean();		    			
+    		}
+    		
+			view.closeImage();
+		}
+		else
+		{
+    		if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
+    			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting Threshold Bead Extraction");					
+			
+			view.setBeadStructure( extractBeadsThresholdSegmentation( view, conf.threshold, conf.minSize, conf.maxSize, conf.minBlackBorder) );
+			
+			view.closeImage();				
+		}
+			
+		if ( viewStructure.getDebugLevel() <= ViewStructure.DEBUG_MAIN )
+			IOFunctions.println( "Found peaks (possible beads): " + view.getBeadStructure().getBeadList().size() );
 	}
 		
 	public Image<FloatType> getFoundBeads( final ViewDataBeads view )
@@ -177,6 +292,11 @@ public Image<FloatType> getFoundBeads( final ViewDataBeads view )
 	}
 			
 	protected BeadStructure extractBeadsLaPlaceImgLib( final ViewDataBeads view, final SPIMConfiguration conf )
+	{
+		return extractBeadsLaPlaceImgLib( view, conf, Runtime.getRuntime().availableProcessors() );
+	}
+	
+	protected BeadStructure extractBeadsLaPlaceImgLib( final ViewDataBeads view, final SPIMConfiguration conf, final int numThreads )
 	{
 		// load the image
 		final Image<FloatType> img = view.getImage();
@@ -215,6 +335,7 @@ protected BeadStructure extractBeadsLaPlaceImgLib( final ViewDataBeads view, fin
 		// compute difference of gaussian
 		final DifferenceOfGaussianReal1<FloatType> dog = new DifferenceOfGaussianReal1<FloatType>( img, conf.strategyFactoryGauss, sigmaDiff[0], sigmaDiff[1], minInitialPeakValue, K_MIN1_INV );
 		dog.setKeepDoGImage( true );
+		dog.setNumThreads( numThreads );
 		
 		if ( !dog.checkInput() || !dog.process() )
 		{
@@ -233,6 +354,7 @@ protected BeadStructure extractBeadsLaPlaceImgLib( final ViewDataBeads view, fin
 		final SubpixelLocalization<FloatType> spl = new SubpixelLocalization<FloatType>( dog.getDoGImage(), dog.getPeaks() );
 		spl.setAllowMaximaTolerance( true );
 		spl.setMaxNumMoves( 10 );
+		spl.setNumThreads( numThreads );
 		
 		if ( !spl.checkInput() || !spl.process() )
 		{
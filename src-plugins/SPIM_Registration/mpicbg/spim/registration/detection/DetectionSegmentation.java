@@ -55,6 +55,26 @@ public static <T extends RealType<T>> ArrayList< DifferenceOfGaussianPeak<T> > e
 			final boolean findMax,
 			final boolean findMin,
 			final int debugLevel )
+	{
+		return extractBeadsLaPlaceImgLib( img, oobsFactory, imageSigma, sigma1, sigma2, minPeakValue, minInitialPeakValue, findMax, findMin, debugLevel, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Detects the extrema of the difference of gaussian. The convolutions, the peak detection and the subpixel 
+	 * localization split the image into blocks that are processed by numThreads threads.
+	 */
+	public static <T extends RealType<T>> ArrayList< DifferenceOfGaussianPeak<T> > extractBeadsLaPlaceImgLib( 
+			final Image<T> img,
+			final OutOfBoundsStrategyFactory<T> oobsFactory,
+			final float imageSigma, 
+			final float sigma1,
+			final float sigma2,
+			float minPeakValue,
+			float minInitialPeakValue,
+			final boolean findMax,
+			final boolean findMin,
+			final int debugLevel,
+			final int numThreads )
 	{
         //
         // Compute the Sigmas for the gaussian folding
@@ -90,6 +110,7 @@ public static <T extends RealType<T>> ArrayList< DifferenceOfGaussianPeak<T> > e
 		// compute difference of gaussian
 		final DifferenceOfGaussianReal1<T> dog = new DifferenceOfGaussianReal1<T>( img, oobsFactory, sigmaDiff[0], sigmaDiff[1], minInitialPeakValue, K_MIN1_INV );
 		dog.setKeepDoGImage( true );
+		dog.setNumThreads( numThreads );
 		
 		if ( !dog.checkInput() || !dog.process() )
 		{
@@ -119,6 +140,7 @@ public static <T extends RealType<T>> ArrayList< DifferenceOfGaussianPeak<T> > e
         final SubpixelLocalization<T> spl = new SubpixelLocalization<T>( dog.getDoGImage(), dog.getPeaks() );
 		spl.setAllowMaximaTolerance( true );
 		spl.setMaxNumMoves( 10 );
+		spl.setNumThreads( numThreads );
 		
 		if ( !spl.checkInput() || !spl.process() )
 		{
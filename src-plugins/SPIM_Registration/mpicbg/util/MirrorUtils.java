@@ -0,0 +1,33 @@
+package mpicbg.util;
+
+import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorFactory;
+
+public class MirrorUtils
+{
+	/**
+	 * Mirrors a coordinate into [0, size-1] without repeating the border pixel, like
+	 * {@link OutOfBoundsStrategyMirrorFactory}
+	 *
+	 * @param p - the coordinate, may be outside of the image
+	 * @param size - the size of the image in this dimension
+	 *
+	 * @return - the mirrored coordinate
+	 */
+	public static int mirror( int p, final int size )
+	{
+		if ( size == 1 )
+			return 0;
+
+		final int period = 2 * size - 2;
+
+		p = p % period;
+
+		if ( p < 0 )
+			p += period;
+
+		if ( p >= size )
+			p = period - p;
+
+		return p;
+	}
+}
@@ -95,12 +95,12 @@ protected double costMovingTo( int new_x, int new_y, int new_z ) {
 	}
 
 	@Override
-	protected void addingNode( SearchNode n ) {
-		if( tubeValues[n.z][n.y*width+n.x] > tubenessThreshold ) {
-			AutoPoint p=new AutoPoint(n.x,n.y,n.z);
+	protected void addingNode( int x, int y, int z ) {
+		if( tubeValues[z][y*width+x] > tubenessThreshold ) {
+			AutoPoint p=new AutoPoint(x,y,z);
 			destinations.add(p);
-		} else if( null != previousPathGraph.get(n.x,n.y,n.z) ) {
-			AutoPoint p=new AutoPoint(n.x,n.y,n.z);
+		} else if( null != previousPathGraph.get(x,y,z) ) {
+			AutoPoint p=new AutoPoint(x,y,z);
 			destinations.add(p);
 		}
 	}
@@ -114,7 +114,7 @@ float estimateCostToGoal( int current_x, int current_y, int current_z, int to_go
         }
 
 	Path getPathBack( int from_x, int from_y, int from_z ) {
-		return nodes_as_image_from_start[from_z][from_y*width+from_x].asPath( x_spacing, y_spacing, z_spacing, spacing_units );
+		return search_from_start.asPath( search_from_start.getKey( from_x, from_y, from_z ), x_spacing, y_spacing, z_spacing, spacing_units );
 	}
 
 	public Path getResult() {
@@ -52,54 +52,25 @@ public float getDistanceAtPoint( double xd, double yd, double zd ) {
 		int y = (int)Math.round( yd );
 		int z = (int)Math.round( zd );
 
-                SearchNode [] slice = nodes_as_image_from_start[z];
-                if( slice == null )
-			return -1.0f;
-
-		SearchNode n = slice[y*width+x];
-		if( n == null )
-			return -1.0f;
-		else
-			return n.g;
+		return search_from_start.getDistance( x, y, z );
         }
 
         // FIXME: may be buggy, synchronization issues
 
         Fill getFill( ) {
 
-                Hashtable< SearchNode, Integer > h =
-                        new Hashtable< SearchNode, Integer >();
-
-                ArrayList< SearchNode > a =
-                        new ArrayList< SearchNode >();
-
                 // The tricky bit here is that we want to create a
-                // Fill object with index
-
-		int openAtOrAbove;
+                // Fill object with index.  The voxel keys are
+                // sorted, so the index of a predecessor can be
+                // looked up with a binary search.
 
-                int i = 0;
-
-                for( SearchNode current : closed_from_start ) {
-                        /* if( current.g <= threshold ) { */
-			h.put( current, new Integer(i) );
-			a.add( current );
-			++ i;
-			/* } */
-                }
+                long [] closed = search_from_start.getVoxels( CLOSED_FROM_START );
+                long [] open = search_from_start.getVoxels( OPEN_FROM_START );
 
-		openAtOrAbove = i;
+		int openAtOrAbove = closed.length;
 
 		if (verbose) System.out.println("openAtOrAbove is: "+openAtOrAbove);
 
-		for( SearchNode current : open_from_start ) {
-                        /* if( current.g <= threshold ) { */
-			h.put( current, new Integer(i) );
-			a.add( current );
-			++ i;
-			/* } */
-                }
-
                 Fill fill = new Fill();
 
                 fill.setThreshold( threshold );
@@ -113,19 +84,30 @@ Fill getFill( ) {
                                  z_spacing,
                                  spacing_units );
 
-		if (verbose) System.out.println("... out of a.size() "+a.size()+" entries");
+		int total = closed.length + open.length;
 
-                for( i = 0; i < a.size(); ++i ) {
-                        SearchNode f = a.get(i);
+		if (verbose) System.out.println("... out of "+total+" entries");
+
+                for( int i = 0; i < total; ++i ) {
+                        long f = i < openAtOrAbove ? closed[i] : open[i - openAtOrAbove];
                         int previousIndex = -1;
-                        SearchNode previous = f.getPredecessor();
-                        if( previous != null ) {
-                                Integer p = h.get(previous);
-                                if( p != null ) {
-                                        previousIndex = p.intValue();
+                        long previous = search_from_start.getPredecessor( f );
+                        if( previous >= 0 ) {
+                                int p = Arrays.binarySearch( closed, previous );
+                                if( p >= 0 )
+                                        previousIndex = p;
+                                else {
+                                        p = Arrays.binarySearch( open, previous );
+                                        if( p >= 0 )
+                                                previousIndex = openAtOrAbove + p;
                                 }
                         }
-                        fill.add( f.x, f.y, f.z, f.g, previousIndex, i >= openAtOrAbove );
+                        fill.add( search_from_start.getX( f ),
+				  search_from_start.getY( f ),
+				  search_from_start.getZ( f ),
+				  search_from_start.getDistance( f ),
+				  previousIndex,
+				  i >= openAtOrAbove );
                 }
 
                 if( sourcePaths != null ) {
@@ -275,29 +257,27 @@ public ImagePlus fillAsImagePlus( boolean realData ) {
                 ImageStack stack = new ImageStack(width,height);
 
                 for( int z = 0; z < depth; ++z ) {
-			SearchNode [] nodes_this_slice=nodes_as_image_from_start[z];
-			if( nodes_this_slice != null )
-				for( int y = 0; y < height; ++y ) {
-					for( int x = 0; x < width; ++x ) {
-						SearchNode s = nodes_as_image_from_start[z][y*width+x];
-						if( (s != null) && (s.g <= threshold) ) {
-							switch( imageType ) {
-							case ImagePlus.GRAY8:
-							case ImagePlus.COLOR_256:
-								new_slice_data_b[z][y*width+x] = realData ? slices_data_b[z][y*width+x] : (byte)255;
-								break;
-							case ImagePlus.GRAY16:
-								new_slice_data_s[z][y*width+x] = realData ? slices_data_s[z][y*width+x] : 255;
-								break;
-							case ImagePlus.GRAY32:
-								new_slice_data_f[z][y*width+x] = realData ? slices_data_f[z][y*width+x] : 255;
-								break;
-							default:
-								break;
-							}
+			for( int y = 0; y < height; ++y ) {
+				for( int x = 0; x < width; ++x ) {
+					float distance = search_from_start.getDistance( x, y, z );
+					if( (distance >= 0) && (distance <= threshold) ) {
+						switch( imageType ) {
+						case ImagePlus.GRAY8:
+						case ImagePlus.COLOR_256:
+							new_slice_data_b[z][y*width+x] = realData ? slices_data_b[z][y*width+x] : (byte)255;
+							break;
+						case ImagePlus.GRAY16:
+							new_slice_data_s[z][y*width+x] = realData ? slices_data_s[z][y*width+x] : 255;
+							break;
+						case ImagePlus.GRAY32:
+							new_slice_data_f[z][y*width+x] = realData ? slices_data_f[z][y*width+x] : 255;
+							break;
+						default:
+							break;
 						}
 					}
 				}
+			}
 
 			switch( imageType ) {
 			case ImagePlus.GRAY8:
@@ -335,11 +315,11 @@ protected void reportPointsInSearch() {
 		super.reportPointsInSearch();
 
 		// Find the minimum distance in the open list.
-		SearchNode p = open_from_start.peek();
-		if( p == null )
+		long p = search_from_start.peek();
+		if( p < 0 )
 			return;
 
-		float minimumDistanceInOpen = p.g;
+		float minimumDistanceInOpen = search_from_start.getDistance( p );
 
 		for( SearchProgressCallback progress : progressListeners ) {
 			if( progress instanceof FillerProgressCallback ) {
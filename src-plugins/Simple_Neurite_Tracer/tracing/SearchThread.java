@@ -96,18 +96,18 @@ protected double costMovingTo( int new_x, int new_y, int new_z ) {
 
 	protected void reportPointsInSearch( ) {
 		for( SearchProgressCallback progress : progressListeners )
-			progress.pointsInSearch(this, open_from_start.size() + (bidirectional ? open_from_goal.size() : 0), closed_from_start.size() + (bidirectional ? closed_from_goal.size() : 0));
+			progress.pointsInSearch(this, search_from_start.openCount() + (bidirectional ? search_from_goal.openCount() : 0), search_from_start.closedCount() + (bidirectional ? search_from_goal.closedCount() : 0));
 	}
 
 	public int pointsConsideredInSearch( ) {
-		return open_from_start.size() +
-			(bidirectional ? open_from_goal.size() : 0) +
-			closed_from_start.size() +
-			(bidirectional ? closed_from_goal.size() : 0);
+		return search_from_start.openCount() +
+			(bidirectional ? search_from_goal.openCount() : 0) +
+			search_from_start.closedCount() +
+			(bidirectional ? search_from_goal.closedCount() : 0);
 	}
 
-	/* This is a factory method for creating specialized search
-	   nodes, subclasses of SearchNode: */
+	/* This is a factory method for creating the nodes that a
+	   search starts from, which are passed to addNode: */
 
 	protected SearchNode createNewNode( int x, int y, int z, float g, float h,
 					    SearchNode predecessor,
@@ -229,7 +229,7 @@ public void requestStop( ) {
 	/** Override this method if you want to find out when a point
 	 * was first discovered:
 	 */
-	protected void addingNode( SearchNode n ) { }
+	protected void addingNode( int x, int y, int z ) { }
 
 	public void reportThreadStatus( ) {
 		for( SearchProgressCallback progress : progressListeners )
@@ -340,38 +340,40 @@ public SearchThread( ImagePlus imagePlus,
 		this.timeoutSeconds = timeoutSeconds;
 		this.reportEveryMilliseconds = reportEveryMilliseconds;
 
-		closed_from_start = new PriorityQueue<SearchNode>();
-		open_from_start = new PriorityQueue<SearchNode>();
-		if( bidirectional ) {
-			closed_from_goal = new PriorityQueue<SearchNode>();
-			open_from_goal = new PriorityQueue<SearchNode>();
-		}
-
-		nodes_as_image_from_start = new SearchNode[depth][];
+		search_from_start = new SearchVolume( width, height, depth, OPEN_FROM_START, CLOSED_FROM_START );
 		if( bidirectional )
-			nodes_as_image_from_goal = new SearchNode[depth][];
+			search_from_goal = new SearchVolume( width, height, depth, OPEN_FROM_GOAL, CLOSED_FROM_GOAL );
+
+		neighbourDistances = new double[27];
+		for( int zdiff = -1; zdiff <= 1; zdiff++ )
+			for( int ydiff = -1; ydiff <= 1; ydiff++ )
+				for( int xdiff = -1; xdiff <= 1; xdiff++ ) {
+					double xdiffsq = (xdiff * x_spacing) * (xdiff * x_spacing);
+					double ydiffsq = (ydiff * y_spacing) * (ydiff * y_spacing);
+					double zdiffsq = (zdiff * z_spacing) * (zdiff * z_spacing);
+					neighbourDistances[(zdiff + 1) * 9 + (ydiff + 1) * 3 + (xdiff + 1)] = Math.sqrt( xdiffsq + ydiffsq + zdiffsq );
+				}
 
 		minimum_cost_per_unit_distance = minimumCostPerUnitDistance();
 
 		progressListeners = new ArrayList< SearchProgressCallback >();
 	}
 
-	PriorityQueue<SearchNode> closed_from_start;
-	PriorityQueue<SearchNode> open_from_start;
+	SearchVolume search_from_start;
 
-	// The next two are null if the search is not bidirectional
-	PriorityQueue<SearchNode> closed_from_goal;
-	PriorityQueue<SearchNode> open_from_goal;
+	// This is null if the search is not bidirectional
+	SearchVolume search_from_goal;
 
-	SearchNode [][] nodes_as_image_from_start;
-	SearchNode [][] nodes_as_image_from_goal;
+	// The distance to each of the 26 neighbours, indexed as
+	// (zdiff+1)*9 + (ydiff+1)*3 + (xdiff+1)
+	double [] neighbourDistances;
 
 	public void printStatus() {
-		System.out.println("... with " + open_from_start.size() + " open nodes at the start" );
-		System.out.println(" ... and " + closed_from_start.size() + " closed nodes at the start" );
+		System.out.println("... with " + search_from_start.openCount() + " open nodes at the start" );
+		System.out.println(" ... and " + search_from_start.closedCount() + " closed nodes at the start" );
 		if( bidirectional ) {
-			System.out.println("... with " + open_from_goal.size() + " open nodes at the goal" );
-			System.out.println(" ... and " + closed_from_goal.size() + " closed nodes at the goal" );
+			System.out.println("... with " + search_from_goal.openCount() + " open nodes at the goal" );
+			System.out.println(" ... and " + search_from_goal.closedCount() + " closed nodes at the goal" );
 		} else
 			System.out.println(" ... unidirectional search");
 	}
@@ -396,18 +398,15 @@ public void run( ) {
 			int loops = 0;
 
 			/*
-			  We maintain the list of nodes in the search in a
-			  couple of different data structures here, which is
-			  bad for memory usage but good for the speed of the
-			  search.
-
-			  As well as keeping the nodes in priority lists, we
-			  keep them in a set of arrays that are indexed in the
-			  same way as voxels in the image.
+			  The state of the search is kept in a SearchVolume
+			  for each direction, which stores the costs and
+			  predecessors in arrays indexed in the same way as
+			  the voxels in the image, and the open list as a
+			  heap of voxel keys.
 			*/
 
-			while( (open_from_start.size() > 0) ||
-			       (bidirectional && (open_from_goal.size() > 0)) ) {
+			while( (search_from_start.openCount() > 0) ||
+			       (bidirectional && (search_from_goal.openCount() > 0)) ) {
 
 				if( threadStatus == STOPPING ) {
 					reportThreadStatus();
@@ -455,72 +454,93 @@ public void run( ) {
 				}
 
 				boolean fromStart = true;
-				if( bidirectional )
-					fromStart = open_from_goal.size() > open_from_start.size();
-
-				PriorityQueue<SearchNode> open_queue = fromStart ? open_from_start : open_from_goal;
-				PriorityQueue<SearchNode> closed_queue = fromStart ? closed_from_start : closed_from_goal;
-
-				SearchNode [][] nodes_as_image_this_search = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
-				SearchNode [][] nodes_as_image_other_search = fromStart ? nodes_as_image_from_goal : nodes_as_image_from_start;
+				if( bidirectional ) {
+					fromStart = search_from_goal.openCount() > search_from_start.openCount();
+					// Carry on from the other end if one search has run out of points:
+					if( (fromStart ? search_from_start : search_from_goal).openCount() == 0 )
+						fromStart = ! fromStart;
+				}
 
-				SearchNode p = null;
+				SearchVolume this_search = fromStart ? search_from_start : search_from_goal;
+				SearchVolume other_search = fromStart ? search_from_goal : search_from_start;
 
-				if( open_queue.size() == 0 )
+				long p = this_search.poll();
+				if( p < 0 )
 					continue;
 
-				// p = get_highest_priority( open_from_start, open_from_start_hash );
-				p = open_queue.poll();
-				if( p == null )
-					continue;
+				int p_x = this_search.getX( p );
+				int p_y = this_search.getY( p );
+				int p_z = this_search.getZ( p );
+				float p_g = this_search.getDistance( p );
 
 				// Has the route from the start found the goal?
-				if( definedGoal && atGoal( p.x, p.y, p.z, fromStart ) ) {
+				if( definedGoal && atGoal( p_x, p_y, p_z, fromStart ) ) {
 					if (verbose) System.out.println( "Found the goal!" );
 					if( fromStart )
-						foundGoal( p.asPath( x_spacing, y_spacing, z_spacing, spacing_units ) );
+						foundGoal( this_search.asPath( p, x_spacing, y_spacing, z_spacing, spacing_units ) );
 					else
-						foundGoal( p.asPathReversed( x_spacing, y_spacing, z_spacing, spacing_units ) );
+						foundGoal( this_search.asPathReversed( p, x_spacing, y_spacing, z_spacing, spacing_units ) );
 					setExitReason(SUCCESS);
 					reportFinished( true );
 					return;
 				}
 
-				p.searchStatus = fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL;
-				closed_queue.add( p );
-				nodes_as_image_this_search[p.z][p.y*width+p.x] = p;
-
 				// Now look at the neighbours of p.  We're going to consider
 				// the 26 neighbours in 3D.
 
 				for( int zdiff = -1; zdiff <= 1; zdiff++ ) {
 
-					int new_z = p.z + zdiff;
+					int new_z = p_z + zdiff;
 					if( new_z < 0 || new_z >= depth )
 						continue;
 
-					if( nodes_as_image_this_search[new_z] == null ) {
-						nodes_as_image_this_search[new_z] = new SearchNode[width*height];
-					}
+					for( int ydiff = -1; ydiff <= 1; ydiff++ ) {
 
-					for( int xdiff = -1; xdiff <= 1; xdiff++ )
-						for( int ydiff = -1; ydiff <= 1; ydiff++ ) {
+						int new_y = p_y + ydiff;
+						if( new_y < 0 || new_y >= height )
+							continue;
+
+						for( int xdiff = -1; xdiff <= 1; xdiff++ ) {
 
 							if( (xdiff == 0) && (ydiff == 0) && (zdiff == 0) )
 								continue;
 
-							int new_x = p.x + xdiff;
-							int new_y = p.y + ydiff;
-
+							int new_x = p_x + xdiff;
 							if( new_x < 0 || new_x >= width )
 								continue;
 
-							if( new_y < 0 || new_y >= height )
-								continue;
+							int neighbour = (zdiff + 1) * 9 + (ydiff + 1) * 3 + (xdiff + 1);
+
+							if( bidirectional && other_search.getStatus( new_x, new_y, new_z ) == other_search.closedStatus ) {
+
+								// Then the searches have met, so we've finished.
 
-							double xdiffsq = (xdiff * x_spacing) * (xdiff * x_spacing);
-							double ydiffsq = (ydiff * y_spacing) * (ydiff * y_spacing);
-							double zdiffsq = (zdiff * z_spacing) * (zdiff * z_spacing);
+								long other = other_search.getKey( new_x, new_y, new_z );
+								Path result;
+								if( fromStart ) {
+									result = this_search.asPath( p, x_spacing, y_spacing, z_spacing, spacing_units );
+									result.add( other_search.asPathReversed( other, x_spacing, y_spacing, z_spacing, spacing_units ) );
+								} else {
+									result = other_search.asPath( other, x_spacing, y_spacing, z_spacing, spacing_units );
+									result.add( this_search.asPathReversed( p, x_spacing, y_spacing, z_spacing, spacing_units ) );
+								}
+								if (verbose) System.out.println("Searches met!");
+								foundGoal( result );
+								setExitReason(SUCCESS);
+								reportFinished( true );
+								return;
+							}
+
+							int b = this_search.getBlockIndex( new_x, new_y, new_z );
+							int v = SearchVolume.getVoxelIndex( new_x, new_y, new_z );
+							byte status = this_search.status[b][v];
+
+							// Costs are never negative, so a point that
+							// we've already reached at a cost no higher
+							// than p's can't be improved on - don't
+							// bother calculating the cost of moving there.
+							if( status != 0 && this_search.g[b][v] <= p_g )
+								continue;
 
 							float h_for_new_point = estimateCostToGoal( new_x, new_y, new_z, fromStart );
 
@@ -529,80 +549,29 @@ public void run( ) {
 								cost_moving_to_new_point = minimum_cost_per_unit_distance;
 							}
 
-							float g_for_new_point = (float) ( p.g + Math.sqrt( xdiffsq + ydiffsq + zdiffsq ) * cost_moving_to_new_point );
+							float g_for_new_point = (float) ( p_g + neighbourDistances[neighbour] * cost_moving_to_new_point );
 
 							float f_for_new_point = h_for_new_point + g_for_new_point;
 
-							SearchNode newNode = createNewNode( new_x, new_y, new_z,
-											    g_for_new_point, h_for_new_point,
-											    p, FREE );
+							// The predecessor is p, which is in the
+							// opposite direction from the new point:
+							byte predecessor = (byte)(26 - neighbour);
 
-							// Is this newNode really new?
-							SearchNode alreadyThereInThisSearch = nodes_as_image_this_search[new_z][new_y*width+new_x];
+							if( status == 0 ) {
 
-							if( alreadyThereInThisSearch == null ) {
+								this_search.open( b, v, g_for_new_point, f_for_new_point, predecessor );
+								addingNode( new_x, new_y, new_z );
 
-								newNode.searchStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
-								open_queue.add( newNode );
-								addingNode( newNode );
-								nodes_as_image_this_search[new_z][new_y*width+new_x] = newNode;
+							} else if( this_search.g[b][v] + h_for_new_point > f_for_new_point ) {
 
-							} else {
-
-								// The other alternative is that this node is already in one
-								// of the lists working from the start but has a better way
-								// of getting to that point.
-
-								if( alreadyThereInThisSearch.f > f_for_new_point ) {
-
-									if( alreadyThereInThisSearch.searchStatus == (fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL) ) {
-
-										open_queue.remove( alreadyThereInThisSearch );
-										alreadyThereInThisSearch.setFrom( newNode );
-										alreadyThereInThisSearch.searchStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
-										open_queue.add( alreadyThereInThisSearch );
-
-									} else if( alreadyThereInThisSearch.searchStatus == (fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL) ) {
-
-										closed_queue.remove( alreadyThereInThisSearch );
-										alreadyThereInThisSearch.setFrom( newNode );
-										alreadyThereInThisSearch.searchStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
-										open_queue.add( alreadyThereInThisSearch );
-									}
-								}
-							}
-
-							if( bidirectional && nodes_as_image_other_search[new_z] != null ) {
-
-								SearchNode alreadyThereInOtherSearch = nodes_as_image_other_search[new_z][new_y*width+new_x];
-								if( alreadyThereInOtherSearch != null ) {
-
-									Path result = null;
-
-									// If either of the next two if conditions are true
-									// then we've finished.
-
-									if( alreadyThereInOtherSearch != null &&
-									    (alreadyThereInOtherSearch.searchStatus == CLOSED_FROM_START ||
-									     alreadyThereInOtherSearch.searchStatus == CLOSED_FROM_GOAL) ) {
-
-										if( fromStart ) {
-											result = p.asPath( x_spacing, y_spacing, z_spacing, spacing_units );
-											Path fromGoalReversed = alreadyThereInOtherSearch.asPathReversed( x_spacing, y_spacing, z_spacing, spacing_units );
-											result.add( fromGoalReversed );
-										} else {
-											result = alreadyThereInOtherSearch.asPath( x_spacing, y_spacing, z_spacing, spacing_units );
-											result.add( p.asPathReversed( x_spacing, y_spacing, z_spacing, spacing_units ) );
-										}
-										if (verbose) System.out.println("Searches met!");
-										foundGoal( result );
-										setExitReason(SUCCESS);
-										reportFinished( true );
-										return;
-									}
-								}
+								// The point is already in one of the lists
+								// but this is a better way of getting there.
+								// (The heuristic only depends on the
+								// position, so h is the same as before.)
+								this_search.open( b, v, g_for_new_point, f_for_new_point, predecessor );
 							}
 						}
+					}
 				}
 				++ loops;
 			}
@@ -675,24 +644,20 @@ int getExitReason( ) {
 		return exitReason;
 	}
 
-	SearchNode anyNodeUnderThreshold( int x, int y, int z, double threshold ) {
-		SearchNode [] startSlice = nodes_as_image_from_start[z];
-		SearchNode [] goalSlice = null;
-		if( nodes_as_image_from_goal != null )
-			goalSlice = nodes_as_image_from_goal[z];
-		int index = y*width+x;
-		SearchNode n = null;
-		if( startSlice != null ) {
-			n = startSlice[index];
-			if( n != null && threshold >= 0 && n.g > threshold )
-				n = null;
-			if( n == null && goalSlice != null ) {
-				n = goalSlice[index];
-				if( threshold >= 0 && n.g > threshold )
-					n = null;
-			}
+	/* Returns the status of the point in whichever search has
+	   reached it with a cost no greater than threshold (or at any
+	   cost if threshold is negative) or 0 if neither has. */
+
+	byte statusUnderThreshold( int x, int y, int z, double threshold ) {
+		byte status = search_from_start.getStatus( x, y, z );
+		if( status != 0 && (threshold < 0 || search_from_start.getDistance( x, y, z ) <= threshold) )
+			return status;
+		if( search_from_goal != null ) {
+			status = search_from_goal.getStatus( x, y, z );
+			if( status != 0 && (threshold < 0 || search_from_goal.getDistance( x, y, z ) <= threshold) )
+				return status;
 		}
-		return n;
+		return 0;
 	}
 
 	/* This draws over the Graphics object the current progress of
@@ -726,10 +691,7 @@ public void drawProgressOnSlice( int plane,
 				int z = currentSliceInPlane;
 				for( int y = 0; y < height; ++y )
 					for( int x = 0; x < width; ++x ) {
-						SearchNode n = anyNodeUnderThreshold(x,y,z,drawingThreshold);
-						if (n == null)
-							continue;
-						byte status = n.searchStatus;
+						byte status = statusUnderThreshold(x,y,z,drawingThreshold);
 						if( status == start_status || status == goal_status )
 							g.fillRect( canvas.myScreenX(x) - pixel_size / 2, canvas.myScreenY(y) - pixel_size / 2, pixel_size, pixel_size );
 					}
@@ -737,10 +699,7 @@ public void drawProgressOnSlice( int plane,
 				int y = currentSliceInPlane;
 				for( int z = 0; z < depth; ++ z )
 					for( int x = 0; x < width; ++x ) {
-						SearchNode n = anyNodeUnderThreshold(x,y,z,drawingThreshold);
-						if (n == null)
-							continue;
-						byte status = n.searchStatus;
+						byte status = statusUnderThreshold(x,y,z,drawingThreshold);
 						if( status == start_status || status == goal_status )
 							g.fillRect( canvas.myScreenX(x) - pixel_size / 2, canvas.myScreenY(z) - pixel_size / 2, pixel_size, pixel_size );
 					}
@@ -748,10 +707,7 @@ public void drawProgressOnSlice( int plane,
 				int x = currentSliceInPlane;
 				for( int y = 0; y < height; ++y )
 					for( int z = 0; z < depth; ++z ) {
-						SearchNode n = anyNodeUnderThreshold(x,y,z,drawingThreshold);
-						if (n == null)
-							continue;
-						byte status = n.searchStatus;
+						byte status = statusUnderThreshold(x,y,z,drawingThreshold);
 						if( status == start_status || status == goal_status )
 							g.fillRect( canvas.myScreenX(z) - pixel_size / 2, canvas.myScreenY(y) - pixel_size / 2, pixel_size, pixel_size );
 					}
@@ -763,38 +719,30 @@ public void drawProgressOnSlice( int plane,
 
 	public void addNode( SearchNode n, boolean fromStart ) {
 
-		SearchNode [][] nodes_as_image = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
+		SearchVolume search = fromStart ? search_from_start : search_from_goal;
 
-		if( nodes_as_image[n.z] == null ) {
-			nodes_as_image[n.z] = new SearchNode[width*height];
-		}
+		int b = search.getBlockIndex( n.x, n.y, n.z );
+		int v = SearchVolume.getVoxelIndex( n.x, n.y, n.z );
 
-		if( nodes_as_image[n.z][n.y*width+n.x] != null ) {
+		if( search.status[b][v] != 0 ) {
 			// Then there's already a node there:
 			return;
 		}
 
-		if( n.searchStatus == OPEN_FROM_START ) {
-
-			open_from_start.add( n );
-			nodes_as_image[n.z][n.y*width+n.x] = n;
-
-		} else if( n.searchStatus == OPEN_FROM_GOAL ) {
-			assert bidirectional && definedGoal;
-
-			open_from_goal.add( n );
-			nodes_as_image[n.z][n.y*width+n.x] = n;
+		byte predecessor = SearchVolume.NO_PREDECESSOR;
+		SearchNode p = n.getPredecessor();
+		if( p != null )
+			predecessor = SearchVolume.getPredecessorIndex( n.x, n.y, n.z, p.x, p.y, p.z );
 
-		} else if( n.searchStatus == CLOSED_FROM_START ) {
+		if( n.searchStatus == OPEN_FROM_START || n.searchStatus == OPEN_FROM_GOAL ) {
+			assert fromStart == (n.searchStatus == OPEN_FROM_START);
 
-			closed_from_start.add( n );
-			nodes_as_image[n.z][n.y*width+n.x] = n;
+			search.open( b, v, n.g, n.f, predecessor );
 
-		} else if( n.searchStatus == CLOSED_FROM_GOAL ) {
-			assert bidirectional && definedGoal;
+		} else if( n.searchStatus == CLOSED_FROM_START || n.searchStatus == CLOSED_FROM_GOAL ) {
+			assert fromStart == (n.searchStatus == CLOSED_FROM_START);
 
-			closed_from_goal.add( n );
-			nodes_as_image[n.z][n.y*width+n.x] = n;
+			search.close( b, v, n.g, predecessor );
 
 		}
 
@@ -0,0 +1,368 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+/* This holds the state of one direction of a search (from the start
+   or from the goal) for every voxel of the image: the cost of the
+   best path found so far, the neighbour that path comes from, and
+   whether the voxel is in the open or closed list.
+
+   Rather than creating an object for each voxel, these are kept in
+   primitive arrays that are allocated for blocks of 16x16x16 voxels
+   the first time the search reaches a block.  A search along a
+   neurite in a large stack only allocates the blocks around the
+   neurite.
+
+   A voxel is identified by a long key made up of the index of its
+   block and the index of the voxel in that block.  The open list is a
+   binary heap of these keys ordered by f (= g + h), which also
+   records the position of each voxel in the heap, so that the
+   priority of a voxel can be lowered without searching for it. */
+
+public class SearchVolume {
+
+	static final int BLOCK_BITS = 4;
+	static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+	static final int BLOCK_MASK = BLOCK_SIZE - 1;
+	static final int VOXEL_BITS = 3 * BLOCK_BITS;
+	static final int VOXELS_PER_BLOCK = 1 << VOXEL_BITS;
+
+	/* The predecessor of a voxel is stored as the index of the
+	   neighbour, (zdiff+1)*9 + (ydiff+1)*3 + (xdiff+1), so the
+	   index of the voxel itself means that a path starts here. */
+
+	public static final byte NO_PREDECESSOR = 13;
+
+	final int width;
+	final int height;
+	final int depth;
+
+	final int blocksX;
+	final int blocksY;
+	final int blocksZ;
+
+	/* The status values used for open and closed voxels; 0 means
+	   that the search hasn't reached the voxel yet. */
+
+	final byte openStatus;
+	final byte closedStatus;
+
+	final float [][] g;
+	final byte [][] status;
+	final byte [][] predecessor;
+	final int [][] heapPosition;
+
+	long [] heap = new long[1024];
+	float [] heapF = new float[1024];
+	int heapSize = 0;
+
+	int closedCount = 0;
+
+	public SearchVolume( int width, int height, int depth, byte openStatus, byte closedStatus ) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.openStatus = openStatus;
+		this.closedStatus = closedStatus;
+
+		blocksX = (width + BLOCK_MASK) >> BLOCK_BITS;
+		blocksY = (height + BLOCK_MASK) >> BLOCK_BITS;
+		blocksZ = (depth + BLOCK_MASK) >> BLOCK_BITS;
+
+		int blocks = blocksX * blocksY * blocksZ;
+		g = new float[blocks][];
+		status = new byte[blocks][];
+		predecessor = new byte[blocks][];
+		heapPosition = new int[blocks][];
+	}
+
+	static int getVoxelIndex( int x, int y, int z ) {
+		return ((z & BLOCK_MASK) << (2 * BLOCK_BITS)) | ((y & BLOCK_MASK) << BLOCK_BITS) | (x & BLOCK_MASK);
+	}
+
+	/* Returns the index of the block containing this voxel,
+	   allocating the block if necessary. */
+
+	int getBlockIndex( int x, int y, int z ) {
+		int b = ((z >> BLOCK_BITS) * blocksY + (y >> BLOCK_BITS)) * blocksX + (x >> BLOCK_BITS);
+		if( status[b] == null ) {
+			g[b] = new float[VOXELS_PER_BLOCK];
+			predecessor[b] = new byte[VOXELS_PER_BLOCK];
+			heapPosition[b] = new int[VOXELS_PER_BLOCK];
+			// Set this last, since it's what shows that the block exists:
+			status[b] = new byte[VOXELS_PER_BLOCK];
+		}
+		return b;
+	}
+
+	public long getKey( int x, int y, int z ) {
+		long b = ((z >> BLOCK_BITS) * blocksY + (y >> BLOCK_BITS)) * blocksX + (x >> BLOCK_BITS);
+		return (b << VOXEL_BITS) | getVoxelIndex( x, y, z );
+	}
+
+	static long getKey( int b, int v ) {
+		return (((long)b) << VOXEL_BITS) | v;
+	}
+
+	public int getX( long key ) {
+		int b = (int)(key >> VOXEL_BITS);
+		int v = (int)key;
+		return ((b % blocksX) << BLOCK_BITS) | (v & BLOCK_MASK);
+	}
+
+	public int getY( long key ) {
+		int b = (int)(key >> VOXEL_BITS);
+		int v = (int)key;
+		return (((b / blocksX) % blocksY) << BLOCK_BITS) | ((v >> BLOCK_BITS) & BLOCK_MASK);
+	}
+
+	public int getZ( long key ) {
+		int b = (int)(key >> VOXEL_BITS);
+		int v = (int)key & (VOXELS_PER_BLOCK - 1);
+		return ((b / (blocksX * blocksY)) << BLOCK_BITS) | (v >> (2 * BLOCK_BITS));
+	}
+
+	/* Returns 0 if the search hasn't reached this voxel yet, or
+	   the open or closed status otherwise. */
+
+	public byte getStatus( int x, int y, int z ) {
+		long key = getKey( x, y, z );
+		byte [] s = status[(int)(key >> VOXEL_BITS)];
+		return s == null ? 0 : s[(int)key & (VOXELS_PER_BLOCK - 1)];
+	}
+
+	/* Returns the cost of the best path to this voxel found so far,
+	   or -1 if the search hasn't reached this voxel yet. */
+
+	public float getDistance( int x, int y, int z ) {
+		long key = getKey( x, y, z );
+		int b = (int)(key >> VOXEL_BITS);
+		int v = (int)key & (VOXELS_PER_BLOCK - 1);
+		byte [] s = status[b];
+		if( s == null || s[v] == 0 )
+			return -1;
+		return g[b][v];
+	}
+
+	public float getDistance( long key ) {
+		return g[(int)(key >> VOXEL_BITS)][(int)key & (VOXELS_PER_BLOCK - 1)];
+	}
+
+	/* Returns the key of the voxel that the best path to this
+	   voxel comes from, or -1 if a path starts at this voxel. */
+
+	public long getPredecessor( long key ) {
+		int d = predecessor[(int)(key >> VOXEL_BITS)][(int)key & (VOXELS_PER_BLOCK - 1)];
+		if( d == NO_PREDECESSOR )
+			return -1;
+		return getKey( getX( key ) + d % 3 - 1,
+			       getY( key ) + (d / 3) % 3 - 1,
+			       getZ( key ) + d / 9 - 1 );
+	}
+
+	/* Returns the predecessor index to use for the voxel at (x,y,z)
+	   when the path to it comes from (from_x,from_y,from_z), or
+	   NO_PREDECESSOR if those are not neighbours. */
+
+	public static byte getPredecessorIndex( int x, int y, int z, int from_x, int from_y, int from_z ) {
+		int xdiff = from_x - x, ydiff = from_y - y, zdiff = from_z - z;
+		if( xdiff < -1 || xdiff > 1 || ydiff < -1 || ydiff > 1 || zdiff < -1 || zdiff > 1 )
+			return NO_PREDECESSOR;
+		return (byte)((zdiff + 1) * 9 + (ydiff + 1) * 3 + (xdiff + 1));
+	}
+
+	public int openCount( ) {
+		return heapSize;
+	}
+
+	public int closedCount( ) {
+		return closedCount;
+	}
+
+	/* Adds the voxel to the open list, or, if it is already in the
+	   open list, moves it up to its new (lower) value of f.  A
+	   closed voxel is reopened. */
+
+	void open( int b, int v, float newG, float f, byte newPredecessor ) {
+		g[b][v] = newG;
+		predecessor[b][v] = newPredecessor;
+		if( status[b][v] == openStatus ) {
+			int i = heapPosition[b][v];
+			heapF[i] = f;
+			siftUp( i );
+			return;
+		}
+		if( status[b][v] == closedStatus )
+			-- closedCount;
+		status[b][v] = openStatus;
+		if( heapSize == heap.length ) {
+			long [] newHeap = new long[2 * heap.length];
+			System.arraycopy( heap, 0, newHeap, 0, heapSize );
+			heap = newHeap;
+			float [] newHeapF = new float[2 * heapF.length];
+			System.arraycopy( heapF, 0, newHeapF, 0, heapSize );
+			heapF = newHeapF;
+		}
+		heap[heapSize] = getKey( b, v );
+		heapF[heapSize] = f;
+		heapPosition[b][v] = heapSize;
+		siftUp( heapSize++ );
+	}
+
+	/* Adds a voxel directly to the closed list; this is only for
+	   setting up a search, e.g. from a saved fill. */
+
+	void close( int b, int v, float newG, byte newPredecessor ) {
+		if( status[b][v] != 0 )
+			return;
+		g[b][v] = newG;
+		predecessor[b][v] = newPredecessor;
+		status[b][v] = closedStatus;
+		++ closedCount;
+	}
+
+	/* Returns the key of the open voxel with the lowest value of f,
+	   or -1 if the open list is empty. */
+
+	public long peek( ) {
+		return heapSize == 0 ? -1 : heap[0];
+	}
+
+	/* Removes the open voxel with the lowest value of f and moves it
+	   to the closed list.  Returns its key, or -1 if the open list
+	   is empty. */
+
+	long poll( ) {
+		if( heapSize == 0 )
+			return -1;
+		long result = heap[0];
+		-- heapSize;
+		if( heapSize > 0 ) {
+			heap[0] = heap[heapSize];
+			heapF[0] = heapF[heapSize];
+			setHeapPosition( heap[0], 0 );
+			siftDown( 0 );
+		}
+		int b = (int)(result >> VOXEL_BITS);
+		int v = (int)result & (VOXELS_PER_BLOCK - 1);
+		status[b][v] = closedStatus;
+		++ closedCount;
+		return result;
+	}
+
+	private void setHeapPosition( long key, int i ) {
+		heapPosition[(int)(key >> VOXEL_BITS)][(int)key & (VOXELS_PER_BLOCK - 1)] = i;
+	}
+
+	private void siftUp( int i ) {
+		long key = heap[i];
+		float f = heapF[i];
+		while( i > 0 ) {
+			int parent = (i - 1) >> 1;
+			if( heapF[parent] <= f )
+				break;
+			heap[i] = heap[parent];
+			heapF[i] = heapF[parent];
+			setHeapPosition( heap[i], i );
+			i = parent;
+		}
+		heap[i] = key;
+		heapF[i] = f;
+		setHeapPosition( key, i );
+	}
+
+	private void siftDown( int i ) {
+		long key = heap[i];
+		float f = heapF[i];
+		for( ;; ) {
+			int child = 2 * i + 1;
+			if( child >= heapSize )
+				break;
+			if( child + 1 < heapSize && heapF[child + 1] < heapF[child] )
+				++ child;
+			if( heapF[child] >= f )
+				break;
+			heap[i] = heap[child];
+			heapF[i] = heapF[child];
+			setHeapPosition( heap[i], i );
+			i = child;
+		}
+		heap[i] = key;
+		heapF[i] = f;
+		setHeapPosition( key, i );
+	}
+
+	/* Returns the keys of all voxels with the given status in
+	   ascending order (so that they can be looked up with
+	   Arrays.binarySearch). */
+
+	public long [] getVoxels( byte wantedStatus ) {
+		int n = 0;
+		for( int b = 0; b < status.length; ++b ) {
+			byte [] s = status[b];
+			if( s == null )
+				continue;
+			for( int v = 0; v < VOXELS_PER_BLOCK; ++v )
+				if( s[v] == wantedStatus )
+					++ n;
+		}
+		long [] result = new long[n];
+		n = 0;
+		for( int b = 0; b < status.length; ++b ) {
+			byte [] s = status[b];
+			if( s == null )
+				continue;
+			for( int v = 0; v < VOXELS_PER_BLOCK; ++v )
+				if( s[v] == wantedStatus )
+					result[n++] = getKey( b, v );
+		}
+		return result;
+	}
+
+	/* The path from where the search started to this voxel: */
+
+	public Path asPath( long key, double x_spacing, double y_spacing, double z_spacing, String spacing_units ) {
+		return asPathReversed( key, x_spacing, y_spacing, z_spacing, spacing_units ).reversed();
+	}
+
+	public Path asPathReversed( long key, double x_spacing, double y_spacing, double z_spacing, String spacing_units ) {
+		Path result = new Path(x_spacing, y_spacing, z_spacing, spacing_units);
+		int x = getX( key ), y = getY( key ), z = getZ( key );
+		for( ;; ) {
+			result.addPointDouble( x * x_spacing, y * y_spacing, z * z_spacing );
+			int d = predecessor[(int)(key >> VOXEL_BITS)][(int)key & (VOXELS_PER_BLOCK - 1)];
+			if( d == NO_PREDECESSOR )
+				break;
+			x += d % 3 - 1;
+			y += (d / 3) % 3 - 1;
+			z += d / 9 - 1;
+			key = getKey( x, y, z );
+		}
+		return result;
+	}
+}
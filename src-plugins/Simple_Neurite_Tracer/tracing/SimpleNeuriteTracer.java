@@ -1286,6 +1286,7 @@ public void startHessian() {
 			resultsDialog.changeState(NeuriteTracerResultsDialog.CALCULATING_GAUSSIAN);
 			hessianSigma = resultsDialog.getSigma();
 			hessian = new ComputeCurvatures( xy, hessianSigma, this, true );
+			hessian.setComputeOnDemand( true );
 			new Thread(hessian).start();
 		} else {
 			double newSigma = resultsDialog.getSigma();
@@ -1293,6 +1294,7 @@ public void startHessian() {
 				resultsDialog.changeState(NeuriteTracerResultsDialog.CALCULATING_GAUSSIAN);
 				hessianSigma = newSigma;
 				hessian = new ComputeCurvatures( xy, hessianSigma, this, true );
+				hessian.setComputeOnDemand( true );
 				new Thread(hessian).start();
 			}
 		}
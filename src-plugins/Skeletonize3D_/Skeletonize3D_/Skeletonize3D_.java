@@ -19,10 +19,14 @@
  * 
  */
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.ImageStack;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
@@ -59,6 +63,26 @@ public class Skeletonize3D_ implements PlugInFilter
 	private int depth = 0;
 	/** working image stack*/
 	private ImageStack inputImage = null;
+
+	/** results of the simple point test, 2 bits for every configuration
+	 * of the 26 neighbors: 0 if not known yet, 1 if not simple, 2 if simple */
+	private int[] simplePoints = null;
+
+	/** minimal number of simple border points to re-check them in parallel */
+	private static final int MIN_PARALLEL_POINTS = 4096;
+
+	/** neighbors making up the octants of the Euler characteristic,
+	 * in the order of their bits in the LUT index (128, 64, ..., 2) */
+	private static final int[][] EULER_OCTANTS = {
+		{ 24, 25, 15, 16, 21, 22, 12 }, // SWU
+		{ 26, 23, 17, 14, 25, 22, 16 }, // SEU
+		{ 18, 21,  9, 12, 19, 22, 10 }, // NWU
+		{ 20, 23, 19, 22, 11, 14, 10 }, // NEU
+		{  6, 15,  7, 16,  3, 12,  4 }, // SWB
+		{  8,  7, 17, 16,  5,  4, 14 }, // SEB
+		{  0,  9,  3, 12,  1, 10,  4 }, // NWB
+		{  2,  1, 11, 10,  5,  4, 14 }  // NEB
+	};
 	
 	/* -----------------------------------------------------------------------*/
 	/**
@@ -140,324 +164,497 @@ private void prepareData(ImageStack outputImage)
 	/* -----------------------------------------------------------------------*/
 	/**
 	 * Post processing for computing thinning.
-	 * 
+	 *
+	 * Instead of scanning the whole image for each border direction, a
+	 * sorted list of the current border points (foreground points with
+	 * a background 6-neighbor) is kept; it only changes around deleted
+	 * points. The candidates are checked in parallel, and the sequential
+	 * re-checking is done row by row in raster order, processing rows
+	 * which cannot influence each other at the same time. The result is
+	 * the same as with a complete scan.
+	 *
 	 * @param outputImage output image stack
 	 */
-	public void computeThinImage(ImageStack outputImage) 
+	public void computeThinImage(ImageStack outputImage)
 	{
-		//IJ.write("Compute Thin Image Start");
 		IJ.showStatus("Computing thin image ...");
-		
-		ArrayList <int[]> simpleBorderPoints = new ArrayList<int[]>();
-		
+
+		byte[][] pixels = new byte[this.depth][];
+		for (int z = 0; z < this.depth; z++)
+			pixels[z] = (byte[]) outputImage.getPixels(z + 1);
+
+		int threads = Math.max(1, Prefs.getThreads());
+
 		// Prepare Euler LUT [Lee94]
-		int eulerLUT[] = new int[256]; 
+		int eulerLUT[] = new int[256];
 		fillEulerLUT( eulerLUT );
-		
+
+		// the simple point test is remembered for every configuration
+		this.simplePoints = new int[1 << 22];
+
+		long[] borderPoints = getBorderPoints(pixels, threads);
+
 		int iter = 1;
-		
+
 		// Loop through the image several times until there is no change.
 		int unchangedBorders = 0;
 		while( unchangedBorders < 6 )  // loop until no change for all the six border types
-		{						
+		{
 			unchangedBorders = 0;
 			for( int currentBorder = 1; currentBorder <= 6; currentBorder++)
 			{
 				IJ.showStatus("Thinning iteration " + iter + " (" + currentBorder +"/6 borders) ...");
-				
-				// Loop through the image.				 
-				for (int z = 0; z < depth; z++)
-				{
-					for (int y = 0; y < height; y++)
-					{
-						for (int x = 0; x < width; x++)						
-						{
-							// check if point is foreground
-					        if ( getPixel(outputImage, x, y, z) != 1 )
-					        {
-					          continue;         // current point is already background 
-					        }
-					        // check 6-neighbors if point is a border point of type currentBorder
-					        boolean isBorderPoint = false;
-					        // North
-					        if( currentBorder == 1 && N(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // South
-					        if( currentBorder == 2 && S(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // East
-					        if( currentBorder == 3 && E(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // West
-					        if( currentBorder == 4 && W(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // Up
-					        if( currentBorder == 5 && U(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // Bottom
-					        if( currentBorder == 6 && B(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        
-					        if( !isBorderPoint )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        
-					        // check if point is the end of an arc
-					        int numberOfNeighbors = -1;   // -1 and not 0 because the center pixel will be counted as well
-					        byte[] neighbor = getNeighborhood(outputImage, x, y, z);
-					        for( int i = 0; i < 27; i++ ) // i =  0..26
-					        {					        	
-					          if( neighbor[i] == 1 )
-					            numberOfNeighbors++;
-					        }
-
-					        if( numberOfNeighbors == 1 )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        
-					        // Check if point is Euler invariant
-					        if( !isEulerInvariant( getNeighborhood(outputImage, x, y, z), eulerLUT ) )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        // Check if point is simple (deletion does not change connectivity in the 3x3x3 neighborhood)
-					        if( !isSimplePoint(getNeighborhood(outputImage, x, y, z) ) )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        // add all simple border points to a list for sequential re-checking
-					        int[] index = new int[3];
-					        index[0] = x;
-					        index[1] = y;
-					        index[2] = z;
-					        simpleBorderPoints.add(index);
-						}
-					}					
-					IJ.showProgress(z, this.depth);				
-				}							
-				
+
+				long[] simpleBorderPoints = getSimpleBorderPoints(pixels,
+						borderPoints, currentBorder, eulerLUT, threads);
+
 				// sequential re-checking to preserve connectivity when
 				// deleting in a parallel way
-				boolean noChange = true;
-				int[] index = null;
-				for(int i = 0; 	i < simpleBorderPoints.size() ; i++)
-				{
-					index = simpleBorderPoints.get(i);
-					// 1. Set simple border point to 0
-					setPixel( outputImage, index[0], index[1], index[2], (byte) 0);
-					
-					// 2. Check if neighborhood is still connected
-					if( !isSimplePoint( getNeighborhood(outputImage, index[0], index[1], index[2]) ) )
-					{
-						// we cannot delete current point, so reset
-						setPixel( outputImage, index[0], index[1], index[2], (byte) 1);
-					}
-					else
-					{
-						noChange = false;
-					}
-				}
+				boolean noChange = !deleteSimpleBorderPoints(pixels,
+						simpleBorderPoints, threads);
 				if( noChange )
 					unchangedBorders++;
+				else
+					borderPoints = updateBorderPoints(pixels,
+							borderPoints, simpleBorderPoints);
 
-				//IJ.write("# simple border points = " + simpleBorderPoints.size());
-				/*
-				if(index != null)
-					IJ.write("# last point = [" + index[0] + ", " + index[1] + "," +  index[2]+ "]");
-				else 
-					IJ.write("# last point = [0, 0, 0]");
-					*/
-				simpleBorderPoints.clear();
-				//IJ.write("# simple border points = " + simpleBorderPoints.size() + "\n");
-							
+				IJ.showProgress(currentBorder, 6);
 			} // end currentBorder for loop
-			
+
 			// Progress bar iterations
 			iter++;
 		}
 
-		//IJ.write("Compute Thin Image End");
+		this.simplePoints = null;
+
 		IJ.showStatus("Computed thin image.");
-	} /* end computeThinImage */	
-	
+	} /* end computeThinImage */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Get neighborhood of a pixel in a 3D image (0 border conditions) 
-	 * 
-	 * @param image 3D image (ImageStack)
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding 27-pixels neighborhood (0 if out of image)
+	 * Get all foreground points with at least one background 6-neighbor,
+	 * in raster order. The points are encoded as z * width * height +
+	 * y * width + x.
+	 *
+	 * @param pixels slices of the 3D image
+	 * @param threads number of threads to use
+	 * @return sorted list of border points
 	 */
-	private byte[] getNeighborhood(ImageStack image, int x, int y, int z)
+	private long[] getBorderPoints(final byte[][] pixels, int threads)
 	{
-		byte[] neighborhood = new byte[27];
-		
-		neighborhood[ 0] = getPixel(image, x-1, y-1, z-1);
-		neighborhood[ 1] = getPixel(image, x  , y-1, z-1);
-		neighborhood[ 2] = getPixel(image, x+1, y-1, z-1);
-		
-		neighborhood[ 3] = getPixel(image, x-1, y,   z-1);
-		neighborhood[ 4] = getPixel(image, x,   y,   z-1);
-		neighborhood[ 5] = getPixel(image, x+1, y,   z-1);
-		
-		neighborhood[ 6] = getPixel(image, x-1, y+1, z-1);
-		neighborhood[ 7] = getPixel(image, x,   y+1, z-1);
-		neighborhood[ 8] = getPixel(image, x+1, y+1, z-1);
-		
-		neighborhood[ 9] = getPixel(image, x-1, y-1, z  );
-		neighborhood[10] = getPixel(image, x,   y-1, z  );
-		neighborhood[11] = getPixel(image, x+1, y-1, z  );
-		
-		neighborhood[12] = getPixel(image, x-1, y,   z  );
-		neighborhood[13] = getPixel(image, x,   y,   z  );
-		neighborhood[14] = getPixel(image, x+1, y,   z  );
-		
-		neighborhood[15] = getPixel(image, x-1, y+1, z  );
-		neighborhood[16] = getPixel(image, x,   y+1, z  );
-		neighborhood[17] = getPixel(image, x+1, y+1, z  );
-		
-		neighborhood[18] = getPixel(image, x-1, y-1, z+1);
-		neighborhood[19] = getPixel(image, x,   y-1, z+1);
-		neighborhood[20] = getPixel(image, x+1, y-1, z+1);
-		
-		neighborhood[21] = getPixel(image, x-1, y,   z+1);
-		neighborhood[22] = getPixel(image, x,   y,   z+1);
-		neighborhood[23] = getPixel(image, x+1, y,   z+1);
-		
-		neighborhood[24] = getPixel(image, x-1, y+1, z+1);
-		neighborhood[25] = getPixel(image, x,   y+1, z+1);
-		neighborhood[26] = getPixel(image, x+1, y+1, z+1);
-		
-		return neighborhood;
-	} /* end getNeighborhood */
-	
+		final AtomicInteger nextSlice = new AtomicInteger(0);
+		final int sliceSize = this.width * this.height;
+
+		// the slices are handed out in order, so the lists are sorted
+		// when they are concatenated slice by slice
+		final LongList[] slices = new LongList[depth];
+		Thread[] workers = new Thread[threads];
+		for (int ithread = 0; ithread < threads; ithread++)
+			workers[ithread] = new Thread() {
+				public void run() {
+					for (int z = nextSlice.getAndIncrement(); z < depth;
+							z = nextSlice.getAndIncrement()) {
+						LongList list = new LongList();
+						for (int i = 0; i < sliceSize; i++) {
+							if (pixels[z][i] != 1)
+								continue;
+							int x = i % width, y = i / width;
+							for (int border = 1; border <= 6; border++)
+								if (isBorderPoint(pixels, x, y, z, border)) {
+									list.add((long) z * sliceSize + i);
+									break;
+								}
+						}
+						slices[z] = list;
+					}
+				}
+			};
+		startAndJoin(workers);
+
+		LongList result = new LongList();
+		for (int z = 0; z < depth; z++)
+			result.addAll(slices[z]);
+		return result.toArray();
+	} /* end getBorderPoints */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Get pixel in 3D image (0 border conditions) 
-	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding pixel (0 if out of image)
+	 * Check which of the border points of a given border type may be
+	 * deleted, i.e. which are no end points of an arc, are Euler invariant
+	 * and are simple points. The image is not changed.
+	 *
+	 * @param pixels slices of the 3D image
+	 * @param borderPoints sorted list of border points
+	 * @param currentBorder border type (1 to 6: N, S, E, W, U, B)
+	 * @param eulerLUT Euler LUT
+	 * @param threads number of threads to use
+	 * @return sorted list of simple border points
 	 */
-	private byte getPixel(ImageStack image, int x, int y, int z)
+	private long[] getSimpleBorderPoints(final byte[][] pixels,
+			final long[] borderPoints, final int currentBorder,
+			final int[] eulerLUT, int threads)
 	{
-		if(x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0 && z < this.depth)
-			return ((byte[]) image.getPixels(z + 1))[x + y * this.width];
-		else return 0;
-	} /* end getPixel */
-	
+		final LongList[] lists = new LongList[threads];
+		final int chunk = (borderPoints.length + threads - 1) / threads;
+		final int sliceSize = this.width * this.height;
+
+		Thread[] workers = new Thread[threads];
+		for (int ithread = 0; ithread < threads; ithread++) {
+			final int start = ithread * chunk;
+			final int end = Math.min(start + chunk, borderPoints.length);
+			final LongList list = lists[ithread] = new LongList();
+			workers[ithread] = new Thread() {
+				public void run() {
+					for (int j = start; j < end; j++) {
+						long point = borderPoints[j];
+						int z = (int) (point / sliceSize);
+						int i = (int) (point % sliceSize);
+						int x = i % width, y = i / width;
+
+						// check 6-neighbors if point is a border point of type currentBorder
+						if( !isBorderPoint(pixels, x, y, z, currentBorder) )
+							continue;
+
+						int neighbors = getNeighborhood(pixels, x, y, z);
+
+						// check if point is the end of an arc (the center
+						// point is counted as well)
+						if( Integer.bitCount(neighbors) == 2 )
+							continue;
+
+						// Check if point is Euler invariant
+						if( !isEulerInvariant(neighbors, eulerLUT) )
+							continue;
+
+						// Check if point is simple (deletion does not change connectivity in the 3x3x3 neighborhood)
+						if( !isSimplePoint(neighbors) )
+							continue;
+
+						list.add(point);
+					}
+				}
+			};
+		}
+		startAndJoin(workers);
+
+		LongList result = new LongList();
+		for (int ithread = 0; ithread < threads; ithread++)
+			result.addAll(lists[ithread]);
+		return result.toArray();
+	} /* end getSimpleBorderPoints */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Set pixel in 3D image 
-	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @param value pixel value
+	 * Delete the simple border points one after the other, in raster
+	 * order, unless the point is not simple anymore because of the points
+	 * deleted before.
+	 *
+	 * Whether a point is deleted only depends on the points before it in
+	 * its own row and on the rows (z, y - 1), (z - 1, y - 1), (z - 1, y)
+	 * and (z - 1, y + 1). All rows with the same 2 * z + y are therefore
+	 * independent from each other, and are processed in parallel, one
+	 * such set of rows after the other.
+	 *
+	 * @param pixels slices of the 3D image
+	 * @param points sorted list of simple border points
+	 * @param threads number of threads to use
+	 * @return true if any point was deleted
 	 */
-	private void setPixel(ImageStack image, int x, int y, int z, byte value)
+	private boolean deleteSimpleBorderPoints(final byte[][] pixels,
+			final long[] points, final int threads)
 	{
-		if(x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0 && z < this.depth)
-			((byte[]) image.getPixels(z + 1))[x + y * this.width] = value;
-	} /* end getPixel */
-	
+		if (threads < 2 || points.length < MIN_PARALLEL_POINTS)
+			return deleteSimpleBorderPoints(pixels, points, 0, points.length);
+
+		// split the points into rows
+		int[] rowStart = new int[points.length + 1];
+		int rowCount = 0;
+		for (int j = 0; j < points.length; j++)
+			if (j == 0 || points[j] / width != points[j - 1] / width)
+				rowStart[rowCount++] = j;
+		rowStart[rowCount] = points.length;
+
+		// sort the rows by 2 * z + y
+		final int waveCount = 2 * (depth - 1) + height;
+		final int[] waveStart = new int[waveCount + 1];
+		int[] wave = new int[rowCount];
+		for (int r = 0; r < rowCount; r++) {
+			long row = points[rowStart[r]] / width;
+			wave[r] = 2 * (int) (row / height) + (int) (row % height);
+			waveStart[wave[r] + 1]++;
+		}
+		for (int w = 0; w < waveCount; w++)
+			waveStart[w + 1] += waveStart[w];
+		final int[] rows = new int[rowCount];
+		int[] next = waveStart.clone();
+		for (int r = 0; r < rowCount; r++)
+			rows[next[wave[r]]++] = r;
+
+		final int[] start = rowStart;
+		final boolean[] changed = new boolean[threads];
+		final CyclicBarrier barrier = new CyclicBarrier(threads);
+		Thread[] workers = new Thread[threads];
+		for (int ithread = 0; ithread < threads; ithread++) {
+			final int id = ithread;
+			workers[ithread] = new Thread() {
+				public void run() {
+					for (int w = 0; w < waveCount; w++) {
+						if (waveStart[w] == waveStart[w + 1])
+							continue;
+						for (int j = waveStart[w] + id; j < waveStart[w + 1]; j += threads) {
+							int r = rows[j];
+							if (deleteSimpleBorderPoints(pixels, points, start[r], start[r + 1]))
+								changed[id] = true;
+						}
+						try {
+							barrier.await();
+						} catch (InterruptedException e) {
+							throw new RuntimeException(e);
+						} catch (BrokenBarrierException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}
+			};
+		}
+		startAndJoin(workers);
+
+		for (int ithread = 0; ithread < threads; ithread++)
+			if (changed[ithread])
+				return true;
+		return false;
+	} /* end deleteSimpleBorderPoints */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * North neighborhood (0 border conditions) 
-	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding north pixel
+	 * Sequentially delete a range of simple border points.
+	 *
+	 * @param pixels slices of the 3D image
+	 * @param points sorted list of simple border points
+	 * @param start index of the first point
+	 * @param end index after the last point
+	 * @return true if any point was deleted
 	 */
-	private byte N(ImageStack image, int x, int y, int z)
+	private boolean deleteSimpleBorderPoints(byte[][] pixels, long[] points,
+			int start, int end)
 	{
-		return getPixel(image, x, y-1, z);
-	} /* end N */
-	
+		int sliceSize = this.width * this.height;
+		boolean changed = false;
+		for (int j = start; j < end; j++)
+		{
+			int z = (int) (points[j] / sliceSize);
+			int i = (int) (points[j] % sliceSize);
+			// 1. Set simple border point to 0
+			pixels[z][i] = 0;
+
+			// 2. Check if neighborhood is still connected
+			if( !isSimplePoint( getNeighborhood(pixels, i % width, i / width, z) ) )
+			{
+				// we cannot delete current point, so reset
+				pixels[z][i] = 1;
+			}
+			else
+			{
+				changed = true;
+			}
+		}
+		return changed;
+	} /* end deleteSimpleBorderPoints */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * South neighborhood (0 border conditions) 
-	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding south pixel
+	 * Update the list of border points after deleting points: the deleted
+	 * points are removed, and their foreground 6-neighbors are added.
+	 *
+	 * @param pixels slices of the 3D image
+	 * @param borderPoints sorted list of border points
+	 * @param simpleBorderPoints sorted list of the points which were
+	 *        possibly deleted
+	 * @return the new sorted list of border points
 	 */
-	private byte S(ImageStack image, int x, int y, int z)
+	private long[] updateBorderPoints(byte[][] pixels, long[] borderPoints,
+			long[] simpleBorderPoints)
 	{
-		return getPixel(image, x, y+1, z);
-	} /* end S */
-	
+		int sliceSize = this.width * this.height;
+		LongList added = new LongList();
+		for (long point : simpleBorderPoints)
+		{
+			int z = (int) (point / sliceSize);
+			int i = (int) (point % sliceSize);
+			if (pixels[z][i] != 0)
+				continue;
+			int x = i % width, y = i / width;
+			if (x > 0 && pixels[z][i - 1] == 1)
+				added.add(point - 1);
+			if (x < width - 1 && pixels[z][i + 1] == 1)
+				added.add(point + 1);
+			if (y > 0 && pixels[z][i - width] == 1)
+				added.add(point - width);
+			if (y < height - 1 && pixels[z][i + width] == 1)
+				added.add(point + width);
+			if (z > 0 && pixels[z - 1][i] == 1)
+				added.add(point - sliceSize);
+			if (z < depth - 1 && pixels[z + 1][i] == 1)
+				added.add(point + sliceSize);
+		}
+		long[] newPoints = added.toArray();
+		Arrays.sort(newPoints);
+
+		// merge both sorted lists, dropping deleted points and duplicates
+		LongList result = new LongList();
+		int j = 0, k = 0;
+		while (j < borderPoints.length || k < newPoints.length)
+		{
+			long point;
+			if (k >= newPoints.length || (j < borderPoints.length &&
+					borderPoints[j] <= newPoints[k]))
+				point = borderPoints[j++];
+			else
+				point = newPoints[k++];
+			int z = (int) (point / sliceSize);
+			int i = (int) (point % sliceSize);
+			if (pixels[z][i] != 1)
+				continue;
+			if (result.size() > 0 && result.get(result.size() - 1) == point)
+				continue;
+			result.add(point);
+		}
+		return result.toArray();
+	} /* end updateBorderPoints */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * East neighborhood (0 border conditions) 
-	 * 
-	 * @param image 3D image
+	 * Check if a point is a border point of the given type, i.e. if its
+	 * neighbor in the given direction is background (0 border conditions).
+	 *
+	 * @param pixels slices of the 3D image
 	 * @param x x- coordinate
 	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding east pixel
+	 * @param z z- coordinate (starting at 0)
+	 * @param border border type (1 to 6: N, S, E, W, U, B)
+	 * @return true if the point is a border point of this type
 	 */
-	private byte E(ImageStack image, int x, int y, int z)
+	private boolean isBorderPoint(byte[][] pixels, int x, int y, int z, int border)
 	{
-		return getPixel(image, x+1, y, z);
-	} /* end E */
-	
+		int i = x + y * this.width;
+		switch (border)
+		{
+		case 1: // North
+			return y == 0 || pixels[z][i - this.width] <= 0;
+		case 2: // South
+			return y == this.height - 1 || pixels[z][i + this.width] <= 0;
+		case 3: // East
+			return x == this.width - 1 || pixels[z][i + 1] <= 0;
+		case 4: // West
+			return x == 0 || pixels[z][i - 1] <= 0;
+		case 5: // Up
+			return z == this.depth - 1 || pixels[z + 1][i] <= 0;
+		case 6: // Bottom
+			return z == 0 || pixels[z - 1][i] <= 0;
+		}
+		return false;
+	} /* end isBorderPoint */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * West neighborhood (0 border conditions) 
-	 * 
-	 * @param image 3D image
+	 * Get neighborhood of a pixel in a 3D image (0 border conditions)
+	 *
+	 * @param pixels slices of the 3D image
 	 * @param x x- coordinate
 	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding west pixel
+	 * @param z z- coordinate (starting at 0)
+	 * @return corresponding 27-pixels neighborhood, bit i being set if
+	 *         neighbor i (as in isSimplePoint(byte[])) is 1
 	 */
-	private byte W(ImageStack image, int x, int y, int z)
+	private int getNeighborhood(byte[][] pixels, int x, int y, int z)
 	{
-		return getPixel(image, x-1, y, z);
-	} /* end W */
-	
+		int neighborhood = 0;
+		int bit = 1;
+		for (int zz = z - 1; zz <= z + 1; zz++)
+		{
+			if (zz < 0 || zz >= this.depth)
+			{
+				bit <<= 9;
+				continue;
+			}
+			byte[] slice = pixels[zz];
+			for (int yy = y - 1; yy <= y + 1; yy++)
+			{
+				if (yy < 0 || yy >= this.height)
+				{
+					bit <<= 3;
+					continue;
+				}
+				int offset = yy * this.width;
+				for (int xx = x - 1; xx <= x + 1; xx++, bit <<= 1)
+					if (xx >= 0 && xx < this.width && slice[offset + xx] == 1)
+						neighborhood |= bit;
+			}
+		}
+		return neighborhood;
+	} /* end getNeighborhood */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Up neighborhood (0 border conditions) 
-	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding up pixel
+	 * Run the threads and wait for them to finish.
+	 *
+	 * @param threads the threads
 	 */
-	private byte U(ImageStack image, int x, int y, int z)
+	private static void startAndJoin(Thread[] threads)
 	{
-		return getPixel(image, x, y, z+1);
-	} /* end U */
-	
-	/* -----------------------------------------------------------------------*/
+		for (int ithread = 0; ithread < threads.length; ++ithread)
+			threads[ithread].start();
+
+		try
+		{
+			for (int ithread = 0; ithread < threads.length; ++ithread)
+				threads[ithread].join();
+		} catch (InterruptedException ie)
+		{
+			throw new RuntimeException(ie);
+		}
+	} /* end startAndJoin */
+
 	/**
-	 * Bottom neighborhood (0 border conditions) 
-	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding bottom pixel
+	 * A growing list of long values.
 	 */
-	private byte B(ImageStack image, int x, int y, int z)
+	private static class LongList
 	{
-		return getPixel(image, x, y, z-1);
-	} /* end N */
-	
+		private long[] values = new long[64];
+		private int size = 0;
+
+		void add(long value)
+		{
+			if (size == values.length)
+				values = Arrays.copyOf(values, 2 * size);
+			values[size++] = value;
+		}
+
+		void addAll(LongList list)
+		{
+			if (size + list.size > values.length)
+				values = Arrays.copyOf(values,
+					Math.max(2 * values.length, size + list.size));
+			System.arraycopy(list.values, 0, values, size, list.size);
+			size += list.size;
+		}
+
+		long get(int index)
+		{
+			return values[index];
+		}
+
+		int size()
+		{
+			return size;
+		}
+
+		long[] toArray()
+		{
+			return Arrays.copyOf(values, size);
+		}
+	} /* end LongList */
+
 	/* -----------------------------------------------------------------------*/
 	/**
 	 * Fill Euler LUT
@@ -754,6 +951,57 @@ boolean isEulerInvariant(byte[] neighbors, int [] LUT)
 			return false;
 		}
 	
+	/**
+	 * Check if a point is Euler invariant
+	 *
+	 * @param neighbors neighbor pixels of the point, as returned by
+	 *        getNeighborhood(byte[][], int, int, int)
+	 * @param LUT Euler LUT
+	 * @return true or false if the point is Euler invariant or not
+	 */
+	boolean isEulerInvariant(int neighbors, int [] LUT)
+	{
+		int eulerChar = 0;
+		for( int[] octant : EULER_OCTANTS )
+		{
+			int n = 1;
+			for( int j = 0; j < 7; j++ )
+				if( (neighbors & (1 << octant[j])) != 0 )
+					n |= 128 >> j;
+			eulerChar += LUT[n];
+		}
+		return eulerChar == 0;
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Check if current point is a Simple Point, looking up the result
+	 * if this configuration was seen before.
+	 *
+	 * @param neighbors neighbor pixels of the point, as returned by
+	 *        getNeighborhood(byte[][], int, int, int)
+	 * @return true or false if the point is simple or not
+	 */
+	private boolean isSimplePoint(int neighbors)
+	{
+		// the center pixel is ignored
+		int key = (neighbors & 0x1fff) | ((neighbors >> 1) & ~0x1fff);
+		int index = key >>> 4;
+		int shift = (key & 15) << 1;
+		int state = (simplePoints[index] >>> shift) & 3;
+		if( state == 0 )
+		{
+			byte[] cube = new byte[27];
+			for( int i = 0; i < 27; i++ )
+				cube[i] = (byte) ((neighbors >> i) & 1);
+			state = isSimplePoint(cube) ? 2 : 1;
+			// not synchronized: when two threads update the same int,
+			// one result might get lost, and is simply computed again
+			simplePoints[index] |= state << shift;
+		}
+		return state == 2;
+	}
+
 	/* -----------------------------------------------------------------------*/
 	/**
 	 * Check if current point is a Simple Point.
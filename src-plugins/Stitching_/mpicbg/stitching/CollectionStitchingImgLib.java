@@ -5,8 +5,13 @@
 
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.util.Util;
@@ -32,9 +37,28 @@ public static ArrayList< ImagePlusTimePoint > stitchCollection( final ArrayList<
 				return null;
 			}
 			
+			// the biggest overlaps take longest, so they are computed first and
+			// each thread takes the next pair when it is done with the previous one
+			final Integer[] order = new Integer[ pairs.size() ];
+			final double[] overlapVolume = new double[ pairs.size() ];
+			
+			for ( int i = 0; i < pairs.size(); ++i )
+			{
+				order[ i ] = i;
+				overlapVolume[ i ] = getOverlapVolume( pairs.get( i ).getTile1().getElement(), pairs.get( i ).getTile2().getElement(), params.dimensionality );
+			}
+			
+			Arrays.sort( order, new Comparator< Integer >()
+			{
+				@Override
+				public int compare( final Integer o1, final Integer o2 ) { return Double.compare( overlapVolume[ o2 ], overlapVolume[ o1 ] ); }
+			} );
+			
 			// compute all compare pairs
 			// compute all matchings
-			final AtomicInteger ai = new AtomicInteger(0);
+			final AtomicInteger nextPair = new AtomicInteger(0);
+			final AtomicLong sumPairTime = new AtomicLong(0);
+			final AtomicLong maxPairTime = new AtomicLong(0);
 			
 			final int numThreads;
 			
@@ -44,45 +68,62 @@ public static ArrayList< ImagePlusTimePoint > stitchCollection( final ArrayList<
 				numThreads = Runtime.getRuntime().availableProcessors();
 			
 	        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+	        
+	        // the processors are shared by the pairs that are computed in parallel
+	        final int threadsPerPair = Math.max( 1, Runtime.getRuntime().availableProcessors() / numThreads );
 	    	
 	        for ( int ithread = 0; ithread < threads.length; ++ithread )
 	            threads[ ithread ] = new Thread(new Runnable()
 	            {
 	                public void run()
 	                {		
-	                   	final int myNumber = ai.getAndIncrement();
-	                    
-	                    for ( int i = 0; i < pairs.size(); i++ )
-	                    {
-	                    	if ( i % numThreads == myNumber )
-	                    	{
-	                    		final ComparePair pair = pairs.get( i );
-	                    		
+	                	// reuse the phase correlation buffers of this thread for pairs of the same size
+	                	PhaseCorrelationContext.openCache();
+	                	try
+	                	{
+		                    for ( int i = nextPair.getAndIncrement(); i < order.length; i = nextPair.getAndIncrement() )
+		                    {
+	                    		final ComparePair pair = pairs.get( order[ i ] );
+                    		
 	                    		long start = System.currentTimeMillis();			
-	                			
+                			
 	                    		// where do we approximately overlap?
 	                			final Roi roi1 = getROI( pair.getTile1().getElement(), pair.getTile2().getElement() );
 	                			final Roi roi2 = getROI( pair.getTile2().getElement(), pair.getTile1().getElement() );
-	                			
-	            				final PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), roi1, roi2, pair.getTimePoint1(), pair.getTimePoint2(), params );			
-	
+                			
+	            				final PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), roi1, roi2, pair.getTimePoint1(), pair.getTimePoint2(), params, threadsPerPair );			
+
 	            				if ( params.dimensionality == 2 )
 	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
 	            				else
 	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ), result.getOffset( 2 ) } );
-	            				
+            				
 	            				pair.setCrossCorrelation( result.getCrossCorrelation() );
-	
+
+	            				final long pairTime = System.currentTimeMillis() - start;
+	            				sumPairTime.addAndGet( pairTime );
+            				
+	            				long max = maxPairTime.get();
+	            				while ( pairTime > max && !maxPairTime.compareAndSet( max, pairTime ) )
+	            					max = maxPairTime.get();
+            				
 	            				IJ.log( pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1() + "]" + " <- " + pair.getImagePlus2().getTitle() + "[" + pair.getTimePoint2() + "]" + ": " + 
-	            						Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + (System.currentTimeMillis() - start) + " ms)");
-	                    	}
-	                    }
+	            						Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + pairTime + " ms)");
+		                    }
+	                	}
+	                	finally
+	                	{
+	                		PhaseCorrelationContext.closeCache();
+	                	}
 	                }
 	            });
 	        
 	        final long time = System.currentTimeMillis();
 	        SimpleMultiThreading.startAndJoin( threads );
 	        
+	        IJ.log( "Computed " + pairs.size() + " pairwise shifts in " + (System.currentTimeMillis() - time) + " ms using " + numThreads + " thread(s) " + 
+	        		"(sum of pair times " + sumPairTime.get() + " ms, slowest pair " + maxPairTime.get() + " ms)." );
+	        
 	        // get the final positions of all tiles
 			optimized = GlobalOptimization.optimize( pairs, pairs.get( 0 ).getTile1(), params );
 			IJ.log( "Finished registration process (" + (System.currentTimeMillis() - time) + " ms)." );
@@ -163,9 +204,84 @@ protected static Vector< ComparePair > findOverlappingTiles( final ArrayList< Im
 	
 		// get the connecting tiles
 		final Vector< ComparePair > overlappingTiles = new Vector< ComparePair >();
-
-		for ( int i = 0; i < elements.size() - 1; i++ )
-			for ( int j = i + 1; j < elements.size(); j++ )
+		
+		final int numElements = elements.size();
+		final int numDimensions = params.dimensionality;
+		
+		if ( numElements < 2 )
+			return overlappingTiles;
+		
+		// put the tiles into a regular grid whose cells are as big as the biggest tile,
+		// so that only tiles sharing a cell have to be compared
+		final float[] min = new float[ numDimensions ];
+		final float[] cellSize = new float[ numDimensions ];
+		final long[] numCells = new long[ numDimensions ];
+		
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			float max = -Float.MAX_VALUE;
+			min[ d ] = Float.MAX_VALUE;
+			
+			for ( final ImageCollectionElement e : elements )
+			{
+				min[ d ] = Math.min( min[ d ], e.offset[ d ] );
+				max = Math.max( max, e.offset[ d ] + e.size[ d ] );
+				cellSize[ d ] = Math.max( cellSize[ d ], e.size[ d ] );
+			}
+			
+			cellSize[ d ] = Math.max( 1, cellSize[ d ] );
+			numCells[ d ] = (long)Math.floor( ( max - min[ d ] ) / cellSize[ d ] ) + 1;
+		}
+		
+		final HashMap< Long, ArrayList< Integer > > grid = new HashMap< Long, ArrayList< Integer > >();
+		final int[][] firstCell = new int[ numElements ][ numDimensions ];
+		final int[][] lastCell = new int[ numElements ][ numDimensions ];
+		
+		for ( int i = 0; i < numElements; ++i )
+		{
+			final ImageCollectionElement e = elements.get( i );
+			
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				firstCell[ i ][ d ] = (int)Math.floor( ( e.offset[ d ] - min[ d ] ) / cellSize[ d ] );
+				lastCell[ i ][ d ] = (int)Math.floor( ( e.offset[ d ] + e.size[ d ] - min[ d ] ) / cellSize[ d ] );
+			}
+			
+			for ( final long cell : getCells( firstCell[ i ], lastCell[ i ], numCells ) )
+			{
+				ArrayList< Integer > list = grid.get( cell );
+				
+				if ( list == null )
+				{
+					list = new ArrayList< Integer >();
+					grid.put( cell, list );
+				}
+				
+				list.add( i );
+			}
+		}
+		
+		// the last tile i that tile j was compared to, so that each pair is tested only once
+		final int[] lastCompared = new int[ numElements ];
+		Arrays.fill( lastCompared, -1 );
+		final ArrayList< Integer > candidates = new ArrayList< Integer >();
+		
+		for ( int i = 0; i < numElements - 1; i++ )
+		{
+			candidates.clear();
+			
+			for ( final long cell : getCells( firstCell[ i ], lastCell[ i ], numCells ) )
+				for ( final int j : grid.get( cell ) )
+					if ( j > i && lastCompared[ j ] != i )
+					{
+						lastCompared[ j ] = i;
+						candidates.add( j );
+					}
+			
+			// keep the same order of pairs as comparing all of them
+			Collections.sort( candidates );
+			
+			for ( final int j : candidates )
 			{
 				final ImageCollectionElement e1 = elements.get( i );
 				final ImageCollectionElement e2 = elements.get( j );
@@ -188,7 +304,64 @@ protected static Vector< ComparePair > findOverlappingTiles( final ArrayList< Im
 					overlappingTiles.add( new ComparePair( listImp.get( i ), listImp.get( j ) ) );
 				}
 			}
+		}
 		
 		return overlappingTiles;
 	}
+
+	/**
+	 * Computes the indices of all grid cells in a range
+	 * 
+	 * @param first - the first cell in each dimension
+	 * @param last - the last cell in each dimension (inclusive)
+	 * @param numCells - the number of cells of the grid in each dimension
+	 * @return the linear indices of the cells
+	 */
+	protected static long[] getCells( final int[] first, final int[] last, final long[] numCells )
+	{
+		final int numDimensions = first.length;
+		int count = 1;
+		
+		for ( int d = 0; d < numDimensions; ++d )
+			count *= last[ d ] - first[ d ] + 1;
+		
+		final long[] cells = new long[ count ];
+		final int[] position = first.clone();
+		
+		for ( int k = 0; k < count; ++k )
+		{
+			long index = 0;
+			for ( int d = numDimensions - 1; d >= 0; --d )
+				index = index * numCells[ d ] + position[ d ];
+			cells[ k ] = index;
+			
+			// next cell
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				if ( ++position[ d ] <= last[ d ] )
+					break;
+				position[ d ] = first[ d ];
+			}
+		}
+		
+		return cells;
+	}
+	
+	/**
+	 * Computes the volume (area in 2d) of the approximate overlap of two tiles
+	 * 
+	 * @param e1 - the first tile
+	 * @param e2 - the second tile
+	 * @param dimensionality - 2 or 3
+	 * @return the overlapping volume, 0 if they do not overlap
+	 */
+	protected static double getOverlapVolume( final ImageCollectionElement e1, final ImageCollectionElement e2, final int dimensionality )
+	{
+		double volume = 1;
+		
+		for ( int d = 0; d < dimensionality; ++d )
+			volume *= Math.max( 0, Math.min( e1.offset[ d ] + e1.size[ d ], e2.offset[ d ] + e2.size[ d ] ) - Math.max( e1.offset[ d ], e2.offset[ d ] ) );
+		
+		return volume;
+	}
 }
@@ -9,7 +9,6 @@
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import mpicbg.imglib.algorithm.fft.PhaseCorrelation;
 import mpicbg.imglib.algorithm.fft.PhaseCorrelationPeak;
 import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
 import mpicbg.imglib.algorithm.scalespace.SubpixelLocalization;
@@ -38,6 +37,15 @@
 public class PairWiseStitchingImgLib 
 {
 	public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, Roi roi1, Roi roi2, final int timepoint1, final int timepoint2, final StitchingParameters params )
+	{
+		return stitchPairwise( imp1, imp2, roi1, roi2, timepoint1, timepoint2, params, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * @param numThreads - how many threads the phase correlation of this pair may use, callers that stitch
+	 * several pairs in parallel pass their share of the processors
+	 */
+	public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, Roi roi1, Roi roi2, final int timepoint1, final int timepoint2, final StitchingParameters params, final int numThreads )
 	{
 		PairWiseStitchingResult result = null;
 		roi1 = getOnlyRectangularRoi( roi1 );
@@ -57,11 +65,11 @@ public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, fina
 				final Image<FloatType> image1 = getWrappedImageFloat( imp1, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getWrappedImageFloat( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageFloat( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getWrappedImageUnsignedShort( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageUnsignedShort( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getWrappedImageUnsignedByte( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageUnsignedByte( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else
 					IJ.log( "Unknown image type: " + imp2.getType() );
 				
@@ -72,11 +80,11 @@ else if ( imp1.getType() == ImagePlus.GRAY16 )
 				final Image<UnsignedShortType> image1 = getWrappedImageUnsignedShort( imp1, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getWrappedImageFloat( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageFloat( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getWrappedImageUnsignedShort( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageUnsignedShort( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getWrappedImageUnsignedByte( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageUnsignedByte( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else
 					IJ.log( "Unknown image type: " + imp2.getType() );
 
@@ -87,11 +95,11 @@ else if ( imp1.getType() == ImagePlus.GRAY8 )
 				final Image<UnsignedByteType> image1 = getWrappedImageUnsignedByte( imp1, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getWrappedImageFloat( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageFloat( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getWrappedImageUnsignedShort( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageUnsignedShort( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getWrappedImageUnsignedByte( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageUnsignedByte( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else
 					IJ.log( "Unknown image type: " + imp2.getType() );
 				
@@ -113,11 +121,11 @@ else if ( imp2.getType() == ImagePlus.GRAY8 )
 				final Image< FloatType > image1 = getImage( imp1, roi1, imgFactoryFloat, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryFloat, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, imgFactoryFloat, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryShort, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, imgFactoryShort, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryByte, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, imgFactoryByte, params.channel2, timepoint2 ), params, numThreads );
 				else
 					IJ.log( "Unknown image type: " + imp2.getType() );					
 			}
@@ -126,11 +134,11 @@ else if ( imp1.getType() == ImagePlus.GRAY16 )
 				final Image< UnsignedShortType > image1 = getImage( imp1, roi1, imgFactoryShort, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryFloat, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, imgFactoryFloat, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryShort, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, imgFactoryShort, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryByte, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, imgFactoryByte, params.channel2, timepoint2 ), params, numThreads );
 				else
 					IJ.log( "Unknown image type: " + imp2.getType() );					
 			}
@@ -139,11 +147,11 @@ else if ( imp1.getType() == ImagePlus.GRAY8 )
 				final Image< UnsignedByteType > image1 = getImage( imp1, roi1, imgFactoryByte, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryFloat, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, imgFactoryFloat, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryShort, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, imgFactoryShort, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryByte, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, imgFactoryByte, params.channel2, timepoint2 ), params, numThreads );
 				else
 					IJ.log( "Unknown image type: " + imp2.getType() );					
 			}
@@ -170,6 +178,11 @@ else if ( imp2.getType() == ImagePlus.GRAY8 )
 	}
 
 	public static < T extends RealType<T>, S extends RealType<S> > PairWiseStitchingResult performStitching( final Image<T> img1, final Image<S> img2, final StitchingParameters params )
+	{
+		return performStitching( img1, img2, params, Runtime.getRuntime().availableProcessors() );
+	}
+
+	public static < T extends RealType<T>, S extends RealType<S> > PairWiseStitchingResult performStitching( final Image<T> img1, final Image<S> img2, final StitchingParameters params, final int numThreads )
 	{
 		if ( img1 == null )
 		{
@@ -187,30 +200,31 @@ else if ( params == null )
 			return null;
 		}
 		
-		final PairWiseStitchingResult result = computePhaseCorrelation( img1, img2, params.checkPeaks, params.subpixelAccuracy );
+		final PairWiseStitchingResult result = computePhaseCorrelation( img1, img2, params.checkPeaks, params.subpixelAccuracy, numThreads );
 		
 		return result;
 	}
 	
 	public static < T extends RealType<T>, S extends RealType<S> > PairWiseStitchingResult computePhaseCorrelation( final Image<T> img1, final Image<S> img2, final int numPeaks, final boolean subpixelAccuracy )
 	{
-		final PhaseCorrelation< T, S > phaseCorr = new PhaseCorrelation<T, S>( img1, img2 );
-		phaseCorr.setInvestigateNumPeaks( numPeaks );
-		
-		if ( subpixelAccuracy )
-			phaseCorr.setKeepPhaseCorrelationMatrix( true );
-		
-		phaseCorr.setComputeFFTinParalell( true );
-		phaseCorr.process();
+		return computePhaseCorrelation( img1, img2, numPeaks, subpixelAccuracy, Runtime.getRuntime().availableProcessors() );
+	}
+
+	public static < T extends RealType<T>, S extends RealType<S> > PairWiseStitchingResult computePhaseCorrelation( final Image<T> img1, final Image<S> img2, final int numPeaks, final boolean subpixelAccuracy, final int numThreads )
+	{
+		// reuse the FFTs and buffers of this thread if it opened a cache and the last pairs had the same size
+		final PhaseCorrelationContext context = PhaseCorrelationContext.getContext( PhaseCorrelationContext.getPaddedSize( img1, img2 ) );
+		final ArrayList<PhaseCorrelationPeak> peaks = context.computePhaseCorrelation( img1, img2, numPeaks, numThreads );
 
 		// result
-		final PhaseCorrelationPeak pcp = phaseCorr.getShift();
+		final PhaseCorrelationPeak pcp = peaks.get( peaks.size() - 1 );
 		final float[] shift = new float[ img1.getNumDimensions() ];
 		final PairWiseStitchingResult result;
 		
 		if ( subpixelAccuracy )
 		{
-			final Image<FloatType> pcm = phaseCorr.getPhaseCorrelationMatrix();		
+			// belongs to the context, do not close it
+			final Image<FloatType> pcm = context.getPhaseCorrelationMatrix();
 		
 			final ArrayList<DifferenceOfGaussianPeak<FloatType>> list = new ArrayList<DifferenceOfGaussianPeak<FloatType>>();		
 			final Peak p = new Peak( pcp );
@@ -231,8 +245,6 @@ public static < T extends RealType<T>, S extends RealType<S> > PairWiseStitching
 			for ( int d = 0; d < img1.getNumDimensions(); ++d )
 				shift[ d ] = peak.getPCPeak().getPosition()[ d ] + peak.getSubPixelPositionOffset( d );
 			
-			pcm.close();
-			
 			result = new PairWiseStitchingResult( shift, pcp.getCrossCorrelationPeak(), p.getValue().get() );
 		}
 		else
@@ -0,0 +1,664 @@
+package mpicbg.stitching;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+
+import mpicbg.imglib.algorithm.fft.PhaseCorrelation;
+import mpicbg.imglib.algorithm.fft.PhaseCorrelationPeak;
+import mpicbg.imglib.container.array.Array;
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.container.basictypecontainer.array.FloatArray;
+import mpicbg.imglib.cursor.LocalizableByDimCursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.multithreading.Chunk;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorExpWindowingFactory;
+import mpicbg.imglib.type.numeric.RealType;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.imglib.util.Util;
+
+/**
+ * Computes the phase correlation of many pairs of images with the same (zero-padded) size, as
+ * {@link PhaseCorrelation} does, but keeps the FFTs, the fourier spectra and the phase correlation
+ * matrix between calls. In a regular grid all overlaps have the same size, so a stitching of a
+ * time-lapse computes thousands of transforms of the same size and would otherwise spend a large
+ * amount of time allocating and setting them up.
+ *
+ * A context is not thread-safe, every thread gets its own ones using {@link #getContext(int[])}.
+ * Contexts are only kept between calls while the thread has a cache, which a stitching run opens
+ * with {@link #openCache()} and must close in a finally block with {@link #closeCache()}, so that no
+ * buffers stay referenced by long-lived threads after the run.
+ */
+public class PhaseCorrelationContext
+{
+	/**
+	 * How many contexts (of different sizes) every thread keeps
+	 */
+	public static int maxCachedSizes = 2;
+
+	// the contexts of every thread that has opened a cache (null otherwise)
+	final static ThreadLocal< LinkedHashMap< String, PhaseCorrelationContext > > contexts = new ThreadLocal< LinkedHashMap< String, PhaseCorrelationContext > >();
+
+	/**
+	 * Keeps the contexts used by the current thread until {@link #closeCache()} is called, so that
+	 * consecutive pairs of the same size reuse them
+	 */
+	public static void openCache()
+	{
+		contexts.set( new LinkedHashMap< String, PhaseCorrelationContext >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< String, PhaseCorrelationContext > eldest )
+			{
+				return size() > maxCachedSizes;
+			}
+		} );
+	}
+
+	/**
+	 * Releases the contexts kept by the current thread since {@link #openCache()}
+	 */
+	public static void closeCache()
+	{
+		contexts.remove();
+	}
+
+	/**
+	 * Returns the context of the current thread for a certain zero-padded size. If the thread has opened
+	 * a cache the context is reused, otherwise a new context is created that is only valid for one call.
+	 *
+	 * @param paddedSize - the size of the zero-padded images, see {@link #getPaddedSize(Image, Image)}
+	 * @return the {@link PhaseCorrelationContext}
+	 */
+	public static PhaseCorrelationContext getContext( final int[] paddedSize )
+	{
+		final LinkedHashMap< String, PhaseCorrelationContext > map = contexts.get();
+
+		if ( map == null )
+			return new PhaseCorrelationContext( paddedSize );
+
+		final String key = Util.printCoordinates( paddedSize );
+
+		PhaseCorrelationContext context = map.get( key );
+
+		if ( context == null )
+		{
+			context = new PhaseCorrelationContext( paddedSize );
+			map.put( key, context );
+		}
+
+		return context;
+	}
+
+	/**
+	 * Computes the size both images are extended and zero-padded to, exactly like {@link PhaseCorrelation}
+	 * does (extension by 10% but at least 12 pixels, so that both images have the same extended size, then
+	 * padding to a size the FFT is fast for).
+	 *
+	 * @param img1 - the first image
+	 * @param img2 - the second image
+	 * @return the zero-padded size
+	 */
+	public static int[] getPaddedSize( final Image< ? > img1, final Image< ? > img2 )
+	{
+		final int numDimensions = img1.getNumDimensions();
+		final int[] maxDim = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+			maxDim[ d ] = Math.max( img1.getDimension( d ), img2.getDimension( d ) );
+
+		boolean sizeFound;
+
+		do
+		{
+			sizeFound = true;
+
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				final int diff = Math.abs( getExtendedSize( img1.getDimension( d ), maxDim[ d ] ) - getExtendedSize( img2.getDimension( d ), maxDim[ d ] ) );
+
+				if ( diff > 0 )
+				{
+					maxDim[ d ] += diff;
+					sizeFound = false;
+				}
+			}
+		}
+		while ( !sizeFound );
+
+		final int[] paddedSize = new int[ numDimensions ];
+
+		paddedSize[ 0 ] = FftReal.nfftFast( getExtendedSize( img1.getDimension( 0 ), maxDim[ 0 ] ) );
+
+		for ( int d = 1; d < numDimensions; ++d )
+			paddedSize[ d ] = FftComplex.nfftFast( getExtendedSize( img1.getDimension( d ), maxDim[ d ] ) );
+
+		return paddedSize;
+	}
+
+	protected static int getExtendedSize( final int size, final int maxSize )
+	{
+		return Math.max( Util.round( maxSize * 1.1f ), size + 12 );
+	}
+
+	final int numDimensions;
+	final int[] paddedSize;
+	final int complexWidth;
+
+	final FftReal fftReal;
+	final FftComplex[] fftComplex;
+
+	// the fourier spectra, complex numbers interleaved, dimension 0 is the fastest
+	final float[] fft1, fft2;
+
+	// the inverse of the phase correlation matrix, wrapped in an image for the subpixel localization
+	final Image< FloatType > invPCM;
+	final float[] invPCMData;
+
+	/**
+	 * Use {@link #getContext(int[])} to reuse contexts
+	 *
+	 * @param paddedSize - the size of the zero-padded images
+	 */
+	protected PhaseCorrelationContext( final int[] paddedSize )
+	{
+		this.numDimensions = paddedSize.length;
+		this.paddedSize = paddedSize.clone();
+		this.complexWidth = paddedSize[ 0 ] / 2 + 1;
+
+		this.fftReal = new FftReal( paddedSize[ 0 ] );
+		this.fftComplex = new FftComplex[ numDimensions ];
+
+		for ( int d = 1; d < numDimensions; ++d )
+			fftComplex[ d ] = new FftComplex( paddedSize[ d ] );
+
+		int numComplex = complexWidth;
+
+		for ( int d = 1; d < numDimensions; ++d )
+			numComplex *= paddedSize[ d ];
+
+		this.fft1 = new float[ numComplex * 2 ];
+		this.fft2 = new float[ numComplex * 2 ];
+
+		final ImageFactory< FloatType > factory = new ImageFactory< FloatType >( new FloatType(), new ArrayContainerFactory() );
+		this.invPCM = factory.createImage( paddedSize );
+		this.invPCMData = getFloatArray( invPCM );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	protected static float[] getFloatArray( final Image< FloatType > img )
+	{
+		return ( ( Array< FloatType, FloatArray > ) img.getContainer() ).update( null ).getCurrentStorageArray();
+	}
+
+	/**
+	 * @return the size of the zero-padded images this context is made for
+	 */
+	public int[] getPaddedSize() { return paddedSize.clone(); }
+
+	/**
+	 * The inverse of the phase correlation matrix of the last call of {@link #computePhaseCorrelation(Image, Image, int)}.
+	 * It belongs to the context and will be overwritten by the next call, so do not close it.
+	 *
+	 * @return the inverse phase correlation matrix
+	 */
+	public Image< FloatType > getPhaseCorrelationMatrix() { return invPCM; }
+
+	/**
+	 * Computes the phase correlation of two images and verifies the peaks using cross correlation, exactly like
+	 * {@link PhaseCorrelation#process()}. The padded size of this context must be the one
+	 * {@link #getPaddedSize(Image, Image)} returns for these images.
+	 *
+	 * @param img1 - the first image
+	 * @param img2 - the second image
+	 * @param numPeaks - how many peaks of the phase correlation matrix to investigate
+	 * @return all shifts that have been tested, sorted by cross correlation (the best one is the last one)
+	 */
+	public < T extends RealType< T >, S extends RealType< S > > ArrayList< PhaseCorrelationPeak > computePhaseCorrelation( final Image< T > img1, final Image< S > img2, final int numPeaks )
+	{
+		return computePhaseCorrelation( img1, img2, numPeaks, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Like {@link #computePhaseCorrelation(Image, Image, int)}, but with a given number of threads for each
+	 * stage, so that callers which already process several pairs in parallel do not oversubscribe the CPUs.
+	 *
+	 * @param img1 - the first image
+	 * @param img2 - the second image
+	 * @param numPeaks - how many peaks of the phase correlation matrix to investigate
+	 * @param numThreads - how many threads each stage uses
+	 * @return all shifts that have been tested, sorted by cross correlation (the best one is the last one)
+	 */
+	public < T extends RealType< T >, S extends RealType< S > > ArrayList< PhaseCorrelationPeak > computePhaseCorrelation( final Image< T > img1, final Image< S > img2, final int numPeaks, final int numThreads )
+	{
+		final int[] offset1 = new int[ numDimensions ];
+		final int[] offset2 = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			offset1[ d ] = ( paddedSize[ d ] - img1.getDimension( d ) ) / 2;
+			offset2[ d ] = ( paddedSize[ d ] - img2.getDimension( d ) ) / 2;
+		}
+
+		// the fourier spectra of both images
+		computeFFT( img1, offset1, fft1, numThreads );
+		computeFFT( img2, offset2, fft2, numThreads );
+
+		// the normalized cross power spectrum
+		multiplyNormalized( fft1, fft2 );
+
+		// its inverse
+		computeInverseFFT( fft1, invPCMData, numThreads );
+
+		// the best peaks of the inverse phase correlation matrix
+		final int[] offsetDiff = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+			offsetDiff[ d ] = offset2[ d ] - offset1[ d ];
+
+		final ArrayList< PhaseCorrelationPeak > peaks = extractPhaseCorrelationPeaks( numPeaks, offsetDiff );
+
+		// test all possible shifts of each peak using cross correlation
+		return verifyWithCrossCorrelation( peaks, img1, img2, numThreads );
+	}
+
+	/**
+	 * Computes the fourier spectrum of an image, placed at an offset inside the padded size and extended
+	 * by mirroring with an exponential fading like {@link PhaseCorrelation} does
+	 */
+	protected < T extends RealType< T > > void computeFFT( final Image< T > img, final int[] offset, final float[] fft, final int numThreads )
+	{
+		final int numLines = fft.length / ( complexWidth * 2 );
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+		final Vector< Chunk > threadChunks = SimpleMultiThreading.divideIntoChunks( numLines, threads.length );
+
+		final OutOfBoundsStrategyMirrorExpWindowingFactory< T > outOfBounds = new OutOfBoundsStrategyMirrorExpWindowingFactory< T >( 0.1f );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final Chunk myChunk = threadChunks.get( ai.getAndIncrement() );
+					final int startLine = (int)myChunk.getStartPosition();
+					final int numMyLines = (int)myChunk.getLoopSize();
+
+					final LocalizableByDimCursor< T > cursor = img.createLocalizableByDimCursor( outOfBounds );
+					final int[] position = new int[ numDimensions ];
+					final float[] tempIn = new float[ paddedSize[ 0 ] ];
+					final float[] tempOut = new float[ complexWidth * 2 ];
+
+					for ( int line = startLine; line < startLine + numMyLines; ++line )
+					{
+						// the position of the line in the image
+						int l = line;
+
+						for ( int d = 1; d < numDimensions; ++d )
+						{
+							position[ d ] = l % paddedSize[ d ] - offset[ d ];
+							l /= paddedSize[ d ];
+						}
+
+						for ( int x = 0; x < paddedSize[ 0 ]; ++x )
+						{
+							position[ 0 ] = x - offset[ 0 ];
+							cursor.setPosition( position );
+							tempIn[ x ] = cursor.getType().getRealFloat();
+						}
+
+						fftReal.realToComplex( -1, tempIn, tempOut );
+						System.arraycopy( tempOut, 0, fft, line * complexWidth * 2, complexWidth * 2 );
+					}
+
+					cursor.close();
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		for ( int d = 1; d < numDimensions; ++d )
+			transformDimension( fft, d, -1, numThreads );
+	}
+
+	/**
+	 * Computes the inverse transform of a fourier spectrum, scaled by the number of pixels
+	 */
+	protected void computeInverseFFT( final float[] fft, final float[] result, final int numThreads )
+	{
+		for ( int d = numDimensions - 1; d > 0; --d )
+			transformDimension( fft, d, 1, numThreads );
+
+		final int numLines = fft.length / ( complexWidth * 2 );
+
+		float scale = 1;
+
+		for ( int d = 0; d < numDimensions; ++d )
+			scale *= paddedSize[ d ];
+
+		final float norm = scale;
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+		final Vector< Chunk > threadChunks = SimpleMultiThreading.divideIntoChunks( numLines, threads.length );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final Chunk myChunk = threadChunks.get( ai.getAndIncrement() );
+					final int startLine = (int)myChunk.getStartPosition();
+					final int numMyLines = (int)myChunk.getLoopSize();
+
+					final float[] tempIn = new float[ complexWidth * 2 ];
+					final float[] tempOut = new float[ paddedSize[ 0 ] ];
+
+					for ( int line = startLine; line < startLine + numMyLines; ++line )
+					{
+						System.arraycopy( fft, line * complexWidth * 2, tempIn, 0, complexWidth * 2 );
+						fftReal.complexToReal( 1, tempIn, tempOut );
+
+						final int offset = line * paddedSize[ 0 ];
+
+						for ( int x = 0; x < paddedSize[ 0 ]; ++x )
+							result[ offset + x ] = tempOut[ x ] / norm;
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+	}
+
+	/**
+	 * Computes the complex FFT of all lines of a spectrum along one dimension (greater than 0), in place
+	 */
+	protected void transformDimension( final float[] fft, final int dim, final int sign, final int numThreads )
+	{
+		// the step between two complex numbers along this dimension
+		int step = complexWidth;
+
+		for ( int d = 1; d < dim; ++d )
+			step *= paddedSize[ d ];
+
+		final int size = paddedSize[ dim ];
+		final int stride = step;
+		final int numLines = fft.length / ( 2 * size );
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+		final Vector< Chunk > threadChunks = SimpleMultiThreading.divideIntoChunks( numLines, threads.length );
+		final FftComplex fftc = fftComplex[ dim ];
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final Chunk myChunk = threadChunks.get( ai.getAndIncrement() );
+					final int startLine = (int)myChunk.getStartPosition();
+					final int numMyLines = (int)myChunk.getLoopSize();
+
+					final float[] tempIn = new float[ size * 2 ];
+					final float[] tempOut = new float[ size * 2 ];
+
+					for ( int line = startLine; line < startLine + numMyLines; ++line )
+					{
+						// lines are numbered by their position before and after this dimension
+						final int start = ( line % stride ) + ( line / stride ) * stride * size;
+
+						for ( int i = 0; i < size; ++i )
+						{
+							final int index = ( start + i * stride ) * 2;
+							tempIn[ i * 2 ] = fft[ index ];
+							tempIn[ i * 2 + 1 ] = fft[ index + 1 ];
+						}
+
+						fftc.complexToComplex( sign, tempIn, tempOut );
+
+						for ( int i = 0; i < size; ++i )
+						{
+							final int index = ( start + i * stride ) * 2;
+							fft[ index ] = tempOut[ i * 2 ];
+							fft[ index + 1 ] = tempOut[ i * 2 + 1 ];
+						}
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+	}
+
+	/**
+	 * Normalizes both spectra to unit length, conjugates the second one and multiplies it into the first one
+	 */
+	protected void multiplyNormalized( final float[] fft1, final float[] fft2 )
+	{
+		final float threshold = 1E-5f;
+
+		for ( int i = 0; i < fft1.length; i += 2 )
+		{
+			float a = fft1[ i ];
+			float b = fft1[ i + 1 ];
+			float c = fft2[ i ];
+			float d = -fft2[ i + 1 ];
+
+			final float length1 = (float)Math.sqrt( a * a + b * b );
+
+			if ( length1 < threshold )
+			{
+				a = b = 0;
+			}
+			else
+			{
+				a /= length1;
+				b /= length1;
+			}
+
+			final float length2 = (float)Math.sqrt( c * c + d * d );
+
+			if ( length2 < threshold )
+			{
+				c = d = 0;
+			}
+			else
+			{
+				c /= length2;
+				d /= length2;
+			}
+
+			fft1[ i ] = a * c - b * d;
+			fft1[ i + 1 ] = a * d + b * c;
+		}
+	}
+
+	/**
+	 * Finds the highest local maxima of the inverse phase correlation matrix (periodic boundaries)
+	 * and converts them into shifts between the two images
+	 */
+	protected ArrayList< PhaseCorrelationPeak > extractPhaseCorrelationPeaks( final int numPeaks, final int[] offsetDiff )
+	{
+		final ArrayList< PhaseCorrelationPeak > peaks = new ArrayList< PhaseCorrelationPeak >();
+
+		for ( int i = 0; i < numPeaks; ++i )
+			peaks.add( new PhaseCorrelationPeak( new int[ numDimensions ], -Float.MAX_VALUE ) );
+
+		// the offsets of all neighbors
+		final int numNeighbors = (int)Math.pow( 3, numDimensions ) - 1;
+		final int[][] neighbors = new int[ numNeighbors ][ numDimensions ];
+
+		for ( int n = 0, i = 0; n <= numNeighbors; ++n )
+		{
+			int m = n;
+			boolean center = true;
+			final int[] neighbor = new int[ numDimensions ];
+
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				neighbor[ d ] = m % 3 - 1;
+				m /= 3;
+				center &= neighbor[ d ] == 0;
+			}
+
+			if ( !center )
+				neighbors[ i++ ] = neighbor;
+		}
+
+		final int[] step = new int[ numDimensions ];
+		step[ 0 ] = 1;
+
+		for ( int d = 1; d < numDimensions; ++d )
+			step[ d ] = step[ d - 1 ] * paddedSize[ d - 1 ];
+
+		final int[] position = new int[ numDimensions ];
+
+		for ( int index = 0; index < invPCMData.length; ++index )
+		{
+			// position of the current pixel
+			for ( int d = 0, l = index; d < numDimensions; ++d )
+			{
+				position[ d ] = l % paddedSize[ d ];
+				l /= paddedSize[ d ];
+			}
+
+			final float value = invPCMData[ index ];
+			boolean isMax = true;
+
+			for ( int n = 0; n < numNeighbors && isMax; ++n )
+			{
+				int neighborIndex = 0;
+
+				for ( int d = 0; d < numDimensions; ++d )
+				{
+					int p = position[ d ] + neighbors[ n ][ d ];
+
+					if ( p < 0 )
+						p += paddedSize[ d ];
+					else if ( p >= paddedSize[ d ] )
+						p -= paddedSize[ d ];
+
+					neighborIndex += p * step[ d ];
+				}
+
+				isMax = invPCMData[ neighborIndex ] <= value;
+			}
+
+			if ( !isMax )
+				continue;
+
+			float minValue = Float.MAX_VALUE;
+			int minIndex = -1;
+
+			for ( int i = 0; i < numPeaks; ++i )
+			{
+				final float peakValue = peaks.get( i ).getPhaseCorrelationPeak();
+
+				if ( peakValue < minValue )
+				{
+					minValue = peakValue;
+					minIndex = i;
+				}
+			}
+
+			if ( value > minValue )
+			{
+				peaks.remove( minIndex );
+
+				final int[] shift = new int[ numDimensions ];
+
+				for ( int d = 0; d < numDimensions; ++d )
+				{
+					shift[ d ] = ( position[ d ] + offsetDiff[ d ] ) % paddedSize[ d ];
+
+					if ( shift[ d ] > paddedSize[ d ] / 2 )
+						shift[ d ] -= paddedSize[ d ];
+				}
+
+				final PhaseCorrelationPeak peak = new PhaseCorrelationPeak( shift, value );
+				peak.setOriginalInvPCMPosition( position.clone() );
+				peaks.add( peak );
+			}
+		}
+
+		Collections.sort( peaks );
+
+		return peaks;
+	}
+
+	/**
+	 * Tests all possible shifts each peak of the phase correlation matrix stands for using cross correlation
+	 */
+	protected < T extends RealType< T >, S extends RealType< S > > ArrayList< PhaseCorrelationPeak > verifyWithCrossCorrelation( final ArrayList< PhaseCorrelationPeak > peaks, final Image< T > img1, final Image< S > img2, final int numThreads )
+	{
+		final boolean[][] coordinates = Util.getRecursiveCoordinates( numDimensions );
+		final ArrayList< PhaseCorrelationPeak > newPeakList = new ArrayList< PhaseCorrelationPeak >();
+
+		for ( final PhaseCorrelationPeak peak : peaks )
+		{
+			for ( int i = 0; i < coordinates.length; ++i )
+			{
+				final int[] shift = peak.getPosition();
+
+				for ( int d = 0; d < numDimensions; ++d )
+				{
+					if ( coordinates[ i ][ d ] )
+					{
+						if ( shift[ d ] < 0 )
+							shift[ d ] += paddedSize[ d ];
+						else
+							shift[ d ] -= paddedSize[ d ];
+					}
+				}
+
+				final PhaseCorrelationPeak newPeak = new PhaseCorrelationPeak( shift, peak.getPhaseCorrelationPeak() );
+				newPeak.setOriginalInvPCMPosition( peak.getOriginalInvPCMPosition() );
+				newPeakList.add( newPeak );
+			}
+		}
+
+		final int[] minOverlapPx = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+			minOverlapPx[ d ] = 3;
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final int myNumber = ai.getAndIncrement();
+
+					for ( int i = 0; i < newPeakList.size(); ++i )
+						if ( i % numThreads == myNumber )
+						{
+							final PhaseCorrelationPeak peak = newPeakList.get( i );
+							final long[] numPixels = new long[ 1 ];
+
+							peak.setCrossCorrelationPeak( (float)PhaseCorrelation.testCrossCorrelation( peak.getPosition(), img1, img2, minOverlapPx, numPixels ) );
+							peak.setNumPixels( numPixels[ 0 ] );
+
+							// sort by cross correlation from now on
+							peak.setSortPhaseCorrelation( false );
+						}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		Collections.sort( newPeakList );
+
+		return newPeakList;
+	}
+}
@@ -28,7 +28,7 @@ public BlendingPixelFusion( final ArrayList< ? extends ImageInterpolation< ? > >
 	 * Instantiates the per-pixel blending
 	 * 
 	 * @param images - all input images (the position in the list has to be the same as Id provided by addValue!)
-	 * @param percentScaling - which percentage of the image should be blended ( e.g. 0,3 means 15% on the left and 15% on the right)
+	 * @param fractionBlended - which percentage of the image should be blended ( e.g. 0,3 means 15% on the left and 15% on the right)
 	 */
 	public BlendingPixelFusion( final ArrayList< ? extends ImageInterpolation< ? > > images, final float fractionBlended )
 	{
@@ -53,6 +53,46 @@ public BlendingPixelFusion( final ArrayList< ? extends ImageInterpolation< ? > >
 		clear();
 	}
 	
+	/**
+	 * Instantiates the per-pixel blending from the dimensions of the input images, so that it does not need
+	 * the images themselves (e.g. if only parts of them are loaded)
+	 * 
+	 * @param imageSizes - the dimensions of all input images (the position has to be the same as Id provided by addValue!)
+	 */
+	public BlendingPixelFusion( final int[][] imageSizes )
+	{
+		this( imageSizes, 0.2f );
+	}
+	
+	/**
+	 * Instantiates the per-pixel blending from the dimensions of the input images
+	 * 
+	 * @param imageSizes - the dimensions of all input images (the position has to be the same as Id provided by addValue!)
+	 * @param fractionBlended - which percentage of the image should be blended ( e.g. 0,3 means 15% on the left and 15% on the right)
+	 */
+	public BlendingPixelFusion( final int[][] imageSizes, final float fractionBlended )
+	{
+		this.images = null;
+		this.percentScaling = fractionBlended;
+		
+		this.numDimensions = imageSizes[ 0 ].length;
+		this.numImages = imageSizes.length;
+		this.dimensions = new int[ numImages ][ numDimensions ];
+		
+		for ( int i = 0; i < numImages; ++i )
+			for ( int d = 0; d < numDimensions; ++d )
+				dimensions[ i ][ d ] = imageSizes[ i ][ d ] - 1; 
+
+		this.dimensionScaling = new float[ numDimensions ];
+		this.border = new float[ numDimensions ];
+		
+		for ( int d = 0; d < numDimensions; ++d )
+			dimensionScaling[ d ] = 1;
+		
+		// reset
+		clear();
+	}
+	
 	@Override
 	public void clear() { valueSum = weightSum = 0;	}
 
@@ -76,7 +116,20 @@ public float getValue()
 	}
 
 	@Override
-	public PixelFusion copy() { return new BlendingPixelFusion( images ); }
+	public PixelFusion copy() 
+	{ 
+		if ( images == null )
+		{
+			final int[][] imageSizes = new int[ numImages ][ numDimensions ];
+			for ( int i = 0; i < numImages; ++i )
+				for ( int d = 0; d < numDimensions; ++d )
+					imageSizes[ i ][ d ] = dimensions[ i ][ d ] + 1;
+			
+			return new BlendingPixelFusion( imageSizes, percentScaling );
+		}
+		
+		return new BlendingPixelFusion( images ); 
+	}
 
 	/**
 	 * From SPIM Registration
@@ -8,10 +8,15 @@
 import ij.ImageStack;
 import ij.io.FileSaver;
 
+import ij.process.ImageProcessor;
+
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.imglib.container.array.ArrayContainerFactory;
@@ -45,6 +50,11 @@
  */
 public class Fusion 
 {
+	/**
+	 * The number of output planes fused with the same (partially loaded) input tiles
+	 */
+	public static int defaultSlabSize = 32;
+	
 	/**
 	 * 
 	 * @param targetType
@@ -55,6 +65,28 @@ public class Fusion
 	 */
 	public static < T extends RealType< T > > ImagePlus fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
 			final int dimensionality, final boolean subpixelResolution, final int fusionType, final String outputDirectory )
+	{
+		return fuse( targetType, images, models, dimensionality, subpixelResolution, fusionType, outputDirectory, defaultSlabSize );
+	}
+	
+	/**
+	 * Fuses the output image slab by slab (a slab is a set of consecutive z-planes). For each slab only the tiles
+	 * whose bounding box intersects it are loaded, and only the z-range of them that is needed, so neither the 
+	 * complete input images nor the complete output image have to be in memory if the input images are virtual 
+	 * stacks and the result is written to disk. Each plane is written (or added to the output stack) as soon as 
+	 * it is fused.
+	 * 
+	 * @param targetType
+	 * @param images
+	 * @param models
+	 * @param dimensionality
+	 * @param subpixelResolution - if there is no subpixel resolution, we do not need to convert to float as no interpolation is necessary, we can compute everything with RealType
+	 * @param fusionType
+	 * @param outputDirectory - where to write the planes, or null to return the fused image
+	 * @param slabSize - how many output planes are fused with the same tile data
+	 */
+	public static < T extends RealType< T > > ImagePlus fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final String outputDirectory, final int slabSize )
 	{
 		// first we need to estimate the boundaries of the new image
 		final float[] offset = new float[ dimensionality ];
@@ -80,20 +112,39 @@ public static < T extends RealType< T > > ImagePlus fuse( final T targetType, fi
 		else
 			stack = null;
 
+		// the bounding box of each tile in global coordinates, used to find the tiles that contribute to each slab
+		final int numImages = images.size();
+		final float[][] tileMin = new float[ numImages ][ dimensionality ];
+		final float[][] tileMax = new float[ numImages ][ dimensionality ];
+		final int[][] imgSizes = new int[ numImages ][ dimensionality ];
+		
+		for ( int i = 0; i < numImages; ++i )
+		{
+			imgSizes[ i ][ 0 ] = images.get( i ).getWidth();
+			imgSizes[ i ][ 1 ] = images.get( i ).getHeight();
+			if ( dimensionality == 3 )
+				imgSizes[ i ][ 2 ] = images.get( i ).getNSlices();
+			
+			for ( int d = 0; d < dimensionality; ++d )
+				tileMax[ i ][ d ] = imgSizes[ i ][ d ];
+			
+			models.get( i ).estimateBounds( tileMin[ i ], tileMax[ i ] );
+			
+			// the image might be rotated so that min is actually max
+			for ( int d = 0; d < dimensionality; ++d )
+			{
+				final float min = Math.min( tileMin[ i ][ d ], tileMax[ i ][ d ] );
+				final float max = Math.max( tileMin[ i ][ d ], tileMax[ i ][ d ] );
+				tileMin[ i ][ d ] = min;
+				tileMax[ i ][ d ] = max;
+			}
+		}
+
 		//"Overlay into composite image"
 		for ( int t = 1; t <= numTimePoints; ++t )
 		{
 			for ( int c = 1; c <= numChannels; ++c )
 			{
-				// create the 2d/3d target image for the current channel and timepoint 
-				final Image< T > out;
-				
-				// we just create one slice if we write to disk
-				if ( outputDirectory == null )
-					out = f.createImage( size );
-				else
-					out = f.createImage( new int[] { size[ 0 ], size[ 1 ] } ); // just create a slice
-
 				// init the fusion
 				PixelFusion fusion = null;
 				
@@ -105,94 +156,12 @@ else if ( fusionType == 3 )
 					fusion = new MaxPixelFusion();
 				else if ( fusionType == 4)
 					fusion = new MinPixelFusion();	
+				else if ( fusionType == 0 )
+					fusion = new BlendingPixelFusion( imgSizes );
 				
-				// extract the complete blockdata
-				if ( subpixelResolution )
-				{
-					final ArrayList< ImageInterpolation< FloatType > > blockData = new ArrayList< ImageInterpolation< FloatType > >();
-
-					// for linear interpolation we want to mirror, otherwise we get black areas at the first and last pixel of each image
-					final InterpolatorFactory< FloatType > interpolatorFactory = new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() );
-					
-					for ( final ImagePlus imp : images )
-						blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactory ) );
-					
-					// init blending with the images
-					if ( fusionType == 0 )
-						fusion = new BlendingPixelFusion( blockData );
-					
-					if ( outputDirectory == null )
-					{
-						fuseBlock( out, blockData, offset, models, fusion );
-					}
-					else
-					{
-						final int numSlices;
-						
-						if ( dimensionality == 2 )
-							numSlices = 1;
-						else
-							numSlices = size[ 2 ];
-						
-						writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory );
-						out.close();
-					}
-				}
-				else
-				{
-					// can be a mixture of different RealTypes
-					final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
-
-					final InterpolatorFactory< FloatType > interpolatorFactoryFloat = new NearestNeighborInterpolatorFactory< FloatType >( new OutOfBoundsStrategyValueFactory<FloatType>() );
-					final InterpolatorFactory< UnsignedShortType > interpolatorFactoryShort = new NearestNeighborInterpolatorFactory< UnsignedShortType >( new OutOfBoundsStrategyValueFactory<UnsignedShortType>() );
-					final InterpolatorFactory< UnsignedByteType > interpolatorFactoryByte = new NearestNeighborInterpolatorFactory< UnsignedByteType >( new OutOfBoundsStrategyValueFactory<UnsignedByteType>() );
-
-					for ( final ImagePlus imp : images )
-					{
-						if ( imp.getType() == ImagePlus.GRAY32 )
-							blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryFloat ) );
-						else if ( imp.getType() == ImagePlus.GRAY16 )
-							blockData.add( new ImageInterpolation<UnsignedShortType>( ImageJFunctions.wrapShort( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryShort ) );
-						else
-							blockData.add( new ImageInterpolation<UnsignedByteType>( ImageJFunctions.wrapByte( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryByte ) );
-					}
-					
-					// init blending with the images
-					if ( fusionType == 0 )
-						fusion = new BlendingPixelFusion( blockData );					
-
-					if ( outputDirectory == null )
-					{
-						fuseBlock( out, blockData, offset, models, fusion );
-					}
-					else
-					{
-						final int numSlices;
-						
-						if ( dimensionality == 2 )
-							numSlices = 1;
-						else
-							numSlices = size[ 2 ];
-						
-						writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory );
-						out.close();
-					}
-				}
-				
-				// add to stack
-				try 
-				{
-					if ( stack != null )
-					{
-						final ImagePlus outImp = ((ImagePlusContainer<?,?>)out.getContainer()).getImagePlus();
-						for ( int z = 1; z <= out.getDimension( 2 ); ++z )
-							stack.addSlice( "", outImp.getStack().getProcessor( z ) );
-					}
-				} 
-				catch (ImgLibException e) 
-				{
-					IJ.log( "Output image has no ImageJ type: " + e );
-				}				
+				if ( !fuseSlabs( f, size, offset, images, models, imgSizes, tileMin, tileMax, subpixelResolution, fusion, 
+						t, numTimePoints, c, numChannels, stack, outputDirectory, slabSize ) )
+					return null;
 			}
 		}
 
@@ -225,29 +194,224 @@ else if ( imp.getType() == ImagePlus.GRAY16 )
 	}
 	
 	/**
-	 * Fuse one slice/volume (one channel)
+	 * Fuse one channel of one timepoint slab by slab. The tiles are sorted by their minimal z-coordinate, so the tiles 
+	 * intersecting the current slab are found by sweeping through them.
 	 * 
-	 * @param output - same the type of the ImagePlus input
-	 * @param input - FloatType, because of Interpolation that needs to be done
-	 * @param transform - the transformation
+	 * @param f - the factory for the output planes
+	 * @param size - the size of the output image
+	 * @param offset - the offset of the output image
+	 * @param images - the input images
+	 * @param models - the transformation of each input image
+	 * @param imgSizes - the dimensions of each input image
+	 * @param tileMin - the minimal global coordinates of each input image
+	 * @param tileMax - the maximal global coordinates of each input image
+	 * @param subpixelResolution - if true the input is converted to float and linearly interpolated
+	 * @param fusion - the fusion method
+	 * @param t - the timepoint
+	 * @param numTimePoints - the number of timepoints
+	 * @param c - the channel
+	 * @param numChannels - the number of channels
+	 * @param stack - where to add the planes, or null to write them to disk
+	 * @param outputDirectory - where to write the planes if there is no stack
+	 * @param slabSize - how many output planes are fused with the same tile data
+	 * @return false if the fusion failed
 	 */
-	protected static <T extends RealType<T>> void fuseBlock( final Image<T> output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final float[] offset, 
-			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion )
+	protected static < T extends RealType< T > > boolean fuseSlabs( final ImageFactory< T > f, final int[] size, final float[] offset, 
+			final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, final int[][] imgSizes, 
+			final float[][] tileMin, final float[][] tileMax, final boolean subpixelResolution, final PixelFusion fusion, 
+			final int t, final int numTimePoints, final int c, final int numChannels, 
+			final ImageStack stack, final String outputDirectory, final int slabSize )
 	{
-		final int numDimensions = output.getNumDimensions();
-		final int numImages = input.size();
-		long imageSize = output.getDimension( 0 );
+		final int numDimensions = offset.length;
+		final int numImages = images.size();
+		final int numSlices = numDimensions == 2 ? 1 : size[ 2 ];
 		
-		for ( int d = 1; d < output.getNumDimensions(); ++d )
-			imageSize *= output.getDimension( d );
-
-		final int[][] max = new int[ numImages ][ numDimensions ];
+		// sort the tiles by their minimal z-coordinate
+		final Integer[] order = new Integer[ numImages ];
 		for ( int i = 0; i < numImages; ++i )
-			for ( int d = 0; d < numDimensions; ++d )
-				max[ i ][ d ] = input.get( i ).getImage().getDimension( d ) - 1; 
+			order[ i ] = i;
 		
-		// run multithreaded
+		if ( numDimensions == 3 )
+			Arrays.sort( order, new Comparator< Integer >()
+			{
+				@Override
+				public int compare( final Integer o1, final Integer o2 ) { return Float.compare( tileMin[ o1 ][ 2 ], tileMin[ o2 ][ 2 ] ); }
+			} );
+		
+		// the tiles that might intersect the current slab
+		final ArrayList< Integer > candidates = new ArrayList< Integer >();
+		int nextTile = 0;
+
+		// for linear interpolation we want to mirror, otherwise we get black areas at the first and last pixel of each image
+		final InterpolatorFactory< FloatType > interpolatorFactory = new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() );
+		final InterpolatorFactory< FloatType > interpolatorFactoryFloat = new NearestNeighborInterpolatorFactory< FloatType >( new OutOfBoundsStrategyValueFactory<FloatType>() );
+		final InterpolatorFactory< UnsignedShortType > interpolatorFactoryShort = new NearestNeighborInterpolatorFactory< UnsignedShortType >( new OutOfBoundsStrategyValueFactory<UnsignedShortType>() );
+		final InterpolatorFactory< UnsignedByteType > interpolatorFactoryByte = new NearestNeighborInterpolatorFactory< UnsignedByteType >( new OutOfBoundsStrategyValueFactory<UnsignedByteType>() );
+
+		// we reuse the output plane if we write to disk
+		final Image< T > outputPlane = stack == null ? f.createImage( new int[] { size[ 0 ], size[ 1 ] } ) : null;
+		
+		try
+		{
+			for ( int z0 = 0; z0 < numSlices; z0 += slabSize )
+			{
+				final int z1 = Math.min( numSlices, z0 + slabSize ) - 1;
+				
+				// the global bounding box of the slab
+				final float[] slabMin = new float[ numDimensions ];
+				final float[] slabMax = new float[ numDimensions ];
+				
+				for ( int d = 0; d < 2; ++d )
+				{
+					slabMin[ d ] = offset[ d ];
+					slabMax[ d ] = offset[ d ] + size[ d ] - 1;
+				}
+				
+				if ( numDimensions == 3 )
+				{
+					slabMin[ 2 ] = offset[ 2 ] + z0;
+					slabMax[ 2 ] = offset[ 2 ] + z1;
+					
+					// add the tiles that start before the end of the slab, remove the ones that ended before it
+					while ( nextTile < numImages && tileMin[ order[ nextTile ] ][ 2 ] <= slabMax[ 2 ] )
+						candidates.add( order[ nextTile++ ] );
+					
+					for ( int k = candidates.size() - 1; k >= 0; --k )
+						if ( tileMax[ candidates.get( k ) ][ 2 ] < slabMin[ 2 ] )
+							candidates.remove( k );
+				}
+				else
+				{
+					while ( nextTile < numImages )
+						candidates.add( order[ nextTile++ ] );
+				}
+				
+				// load the part of each tile that is needed for this slab
+				final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
+				final ArrayList< Integer > tileIds = new ArrayList< Integer >();
+				final ArrayList< Integer > zStart = new ArrayList< Integer >();
+				
+				for ( final int i : candidates )
+				{
+					final ImagePlus imp = images.get( i );
+					int from = 0;
+					int to = imp.getNSlices() - 1;
+					
+					if ( numDimensions == 3 && imp.getNSlices() > 1 )
+					{
+						final float[] localMin = new float[ numDimensions ];
+						final float[] localMax = new float[ numDimensions ];
+						
+						if ( !getLocalBounds( models.get( i ), slabMin, slabMax, tileMin[ i ], tileMax[ i ], localMin, localMax ) )
+							continue;
+
+						// one more plane on each side for the interpolation
+						from = Math.max( 0, (int)Math.floor( localMin[ 2 ] ) - 1 );
+						to = Math.min( imp.getNSlices() - 1, (int)Math.floor( localMax[ 2 ] ) + 1 );
+						
+						if ( from > to )
+							continue;
+					}
+					
+					final ImagePlus chunk = getImageChunk( imp, c, t, from, to );
+					
+					if ( subpixelResolution )
+						blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.convertFloat( chunk ), interpolatorFactory ) );
+					else if ( imp.getType() == ImagePlus.GRAY32 )
+						blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( chunk ), interpolatorFactoryFloat ) );
+					else if ( imp.getType() == ImagePlus.GRAY16 )
+						blockData.add( new ImageInterpolation<UnsignedShortType>( ImageJFunctions.wrapShort( chunk ), interpolatorFactoryShort ) );
+					else
+						blockData.add( new ImageInterpolation<UnsignedByteType>( ImageJFunctions.wrapByte( chunk ), interpolatorFactoryByte ) );
+					
+					tileIds.add( i );
+					zStart.add( from );
+				}
+				
+				for ( int z = z0; z <= z1; ++z )
+				{
+					final Image< T > out = stack == null ? outputPlane : f.createImage( new int[] { size[ 0 ], size[ 1 ] } );
+					
+					fusePlane( out, z, blockData, tileIds, zStart, offset, models, imgSizes, tileMin, tileMax, fusion );
+					
+					final ImagePlus outImp = ((ImagePlusContainer<?,?>)out.getContainer()).getImagePlus();
+					
+					if ( stack != null )
+					{
+						stack.addSlice( "", outImp.getStack().getProcessor( 1 ) );
+					}
+					else
+					{
+						// write the slice
+						final FileSaver fs = new FileSaver( outImp );
+						fs.saveAsTiff( new File( outputDirectory, "img_t" + lz( t, numTimePoints ) + "_z" + lz( z+1, numSlices ) + "_c" + lz( c, numChannels ) ).getAbsolutePath() );
+					}
+				}
+
+			}
+		}
+		catch ( NoninvertibleModelException e ) 
+		{
+			IJ.log( "Cannot invert model, qutting." );
+			return false;
+		} 
+		catch ( ImgLibException e ) 
+		{
+			IJ.log( "Output image has no ImageJ type: " + e );
+			return false;
+		}
+		finally
+		{
+			if ( outputPlane != null )
+				outputPlane.close();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Fuse one plane of the output image (multithreaded)
+	 * 
+	 * @param output - the 2d output plane
+	 * @param z - the index of the plane in the output image
+	 * @param input - the loaded part of each tile intersecting the current slab
+	 * @param tileIds - the index of the tile of each input
+	 * @param zStart - the first z-plane of the tile contained in each input
+	 * @param offset - the offset of the output image
+	 * @param transform - the transformations of all tiles
+	 * @param imgSizes - the dimensions of all tiles
+	 * @param tileMin - the minimal global coordinates of all tiles
+	 * @param tileMax - the maximal global coordinates of all tiles
+	 * @param fusion - the fusion method
+	 */
+	protected static <T extends RealType<T>> void fusePlane( final Image<T> output, final int z, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, 
+			final ArrayList< Integer > tileIds, final ArrayList< Integer > zStart, final float[] offset, final ArrayList< InvertibleBoundable > transform, 
+			final int[][] imgSizes, final float[][] tileMin, final float[][] tileMax, final PixelFusion fusion ) throws NoninvertibleModelException
+	{
+		final int numDimensions = offset.length;
+		final float zPosition = numDimensions == 3 ? z + offset[ 2 ] : 0;
+		
+		// only the tiles whose bounding box contains this plane
+		final ArrayList< Integer > inputs = new ArrayList< Integer >();
+		for ( int k = 0; k < input.size(); ++k )
+		{
+			final int i = tileIds.get( k );
+			if ( numDimensions == 2 || ( zPosition >= tileMin[ i ][ 2 ] && zPosition <= tileMax[ i ][ 2 ] ) )
+				inputs.add( k );
+		}
+		final int numInputs = inputs.size();
+		
+		final int[] ids = new int[ numInputs ];
+		final int[] starts = new int[ numInputs ];
+		for ( int j = 0; j < numInputs; ++j )
+		{
+			ids[ j ] = tileIds.get( inputs.get( j ) );
+			starts[ j ] = zStart.get( inputs.get( j ) );
+		}
+		
+		final long imageSize = output.getDimension( 0 ) * output.getDimension( 1 );
 		final AtomicInteger ai = new AtomicInteger(0);					
+		final AtomicBoolean failed = new AtomicBoolean( false );
         final Thread[] threads = SimpleMultiThreading.newThreads();
 
         final Vector<Chunk> threadChunks = SimpleMultiThreading.divideIntoChunks( imageSize, threads.length );
@@ -268,10 +432,11 @@ public void run()
             		final LocalizableCursor<T> out = output.createLocalizableCursor();
             		final ArrayList<Interpolator<? extends RealType<?>>> in = new ArrayList<Interpolator<? extends RealType<?>>>();
             		
-            		for ( int i = 0; i < numImages; ++i )
-            			in.add( input.get( i ).createInterpolator() );
+            		for ( int j = 0; j < numInputs; ++j )
+            			in.add( input.get( inputs.get( j ) ).createInterpolator() );
             		
-            		final float[][] tmp = new float[ numImages ][ output.getNumDimensions() ];
+            		final float[] tmp = new float[ numDimensions ];
+            		final float[] position = new float[ numDimensions ];
             		final PixelFusion myFusion = fusion.copy();
             		
             		try 
@@ -280,34 +445,45 @@ public void run()
             			out.fwd( startPos );
             			
                 		// do as many pixels as wanted by this thread
-                        for ( long j = 0; j < loopSize; ++j )
+                        for ( long p = 0; p < loopSize; ++p )
                         {
             				out.fwd();
             				
-            				// get the current position in the output image
-            				for ( int d = 0; d < numDimensions; ++d )
-            				{
-            					final float value = out.getPosition( d ) + offset[ d ];
-            					
-            					for ( int i = 0; i < numImages; ++i )
-            						tmp[ i ][ d ] = value;
-            				}
+            				final float x = out.getPosition( 0 ) + offset[ 0 ];
+            				final float y = out.getPosition( 1 ) + offset[ 1 ];
             				
             				// transform and compute output value
             				myFusion.clear();
             				
             				// loop over all images for this output location
-A:        					for ( int i = 0; i < numImages; ++i )
+A:        					for ( int j = 0; j < numInputs; ++j )
         					{
-        						transform.get( i ).applyInverseInPlace( tmp[ i ] );
+        						final int i = ids[ j ];
+        						
+        						// the tile cannot contain the location if its bounding box does not
+        						if ( x < tileMin[ i ][ 0 ] || x > tileMax[ i ][ 0 ] || y < tileMin[ i ][ 1 ] || y > tileMax[ i ][ 1 ] )
+        							continue;
+        						
+        						tmp[ 0 ] = x;
+        						tmp[ 1 ] = y;
+        						if ( numDimensions == 3 )
+        							tmp[ 2 ] = zPosition;
+        						
+        						transform.get( i ).applyInverseInPlace( tmp );
             	
         						// test if inside
         						for ( int d = 0; d < numDimensions; ++d )
-        							if ( tmp[ i ][ d ] < 0 || tmp[ i ][ d ] > max[ i ][ d ] )
+        							if ( tmp[ d ] < 0 || tmp[ d ] > imgSizes[ i ][ d ] - 1 )
         								continue A;
         						
-        						in.get( i ).setPosition( tmp[ i ] );			
-        						myFusion.addValue( in.get( i ).getType().getRealFloat(), i, tmp[ i ] );
+        						// the position inside the loaded part of the tile
+        						for ( int d = 0; d < numDimensions; ++d )
+        							position[ d ] = tmp[ d ];
+        						if ( numDimensions == 3 )
+        							position[ 2 ] -= starts[ j ];
+        						
+        						in.get( j ).setPosition( position );			
+        						myFusion.addValue( in.get( j ).getType().getRealFloat(), i, tmp );
         					}
             				
             				// set value
@@ -316,111 +492,98 @@ public void run()
             		} 
             		catch ( NoninvertibleModelException e ) 
             		{
-            			IJ.log( "Cannot invert model, qutting." );
-            			return;
+            			failed.set( true );
+            		}
+            		finally
+            		{
+            			out.close();
+            			for ( final Interpolator<? extends RealType<?>> interpolator : in )
+            				interpolator.close();
             		}
-
                 }
             });
         
         SimpleMultiThreading.startAndJoin( threads );
+        
+        if ( failed.get() )
+        	throw new NoninvertibleModelException( "Cannot invert model" );
 	}
-
+	
 	/**
-	 * Fuse one slice/volume (one channel)
+	 * Computes the bounding box in local coordinates of a tile of the part of it that is inside a global bounding box
 	 * 
-	 * @param outputSlice - same the type of the ImagePlus input, just one slice which will be written to the output directory
-	 * @param input - FloatType, because of Interpolation that needs to be done
-	 * @param transform - the transformation
+	 * @param model - the transformation of the tile
+	 * @param min - the minimal global coordinates of the box
+	 * @param max - the maximal global coordinates of the box
+	 * @param tileMin - the minimal global coordinates of the tile
+	 * @param tileMax - the maximal global coordinates of the tile
+	 * @param localMin - the minimal local coordinates, will be computed
+	 * @param localMax - the maximal local coordinates, will be computed
+	 * @return false if the box does not intersect the tile
 	 */
-	protected static <T extends RealType<T>> void writeBlock( final Image<T> outputSlice, final int numSlices, final int t, final int numTimePoints, final int c, final int numChannels, 
-			final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final float[] offset, 
-			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final String outputDirectory )
+	protected static boolean getLocalBounds( final InvertibleBoundable model, final float[] min, final float[] max, final float[] tileMin, final float[] tileMax, 
+			final float[] localMin, final float[] localMax ) throws NoninvertibleModelException
 	{
-		final int numImages = input.size();
-		final int numDimensions = offset.length;
-
-		// the maximal dimensions of each image
-		final int[][] max = new int[ numImages ][ numDimensions ];
-		for ( int i = 0; i < numImages; ++i )
-			for ( int d = 0; d < numDimensions; ++d )
-				max[ i ][ d ] = input.get( i ).getImage().getDimension( d ) - 1; 
-		
-		final LocalizableCursor<T> out = outputSlice.createLocalizableCursor();
-		final ArrayList<Interpolator<? extends RealType<?>>> in = new ArrayList<Interpolator<? extends RealType<?>>>();
-		
-		for ( int i = 0; i < numImages; ++i )
-			in.add( input.get( i ).createInterpolator() );
+		final int numDimensions = min.length;
+		final float[] boxMin = new float[ numDimensions ];
+		final float[] boxMax = new float[ numDimensions ];
 		
-		final float[][] tmp = new float[ numImages ][ numDimensions ];
-		final PixelFusion myFusion = fusion.copy();
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			boxMin[ d ] = Math.max( min[ d ], tileMin[ d ] );
+			boxMax[ d ] = Math.min( max[ d ], tileMax[ d ] );
+			
+			if ( boxMin[ d ] > boxMax[ d ] )
+				return false;
+			
+			localMin[ d ] = Float.MAX_VALUE;
+			localMax[ d ] = -Float.MAX_VALUE;
+		}
 		
-		try 
+		// the transformations are affine, so the bounding box of the transformed corners contains the whole box
+		final float[] corner = new float[ numDimensions ];
+		for ( int k = 0; k < ( 1 << numDimensions ); ++k )
 		{
-			for ( int slice = 0; slice < numSlices; ++slice )
+			for ( int d = 0; d < numDimensions; ++d )
+				corner[ d ] = ( k & ( 1 << d ) ) == 0 ? boxMin[ d ] : boxMax[ d ];
+			
+			model.applyInverseInPlace( corner );
+			
+			for ( int d = 0; d < numDimensions; ++d )
 			{
-				out.reset();
-				
-				// fill all pixels of the current slice
-				while ( out.hasNext() )
-				{
-					out.fwd();
-					
-					// get the current position in the output image
-					for ( int d = 0; d < 2; ++d )
-					{
-						final float value = out.getPosition( d ) + offset[ d ];
-						
-						for ( int i = 0; i < numImages; ++i )
-							tmp[ i ][ d ] = value;
-					}
-					
-					// if there is a third dimension, use the slice index
-					if ( numDimensions == 3 )
-					{
-						final float value = slice + offset[ 2 ];
-						
-						for ( int i = 0; i < numImages; ++i )
-							tmp[ i ][ 2 ] = value;						
-					}
-					
-					// transform and compute output value
-					myFusion.clear();
-					
-					// loop over all images for this output location
-A:		        	for ( int i = 0; i < numImages; ++i )
-		        	{
-		        		transform.get( i ).applyInverseInPlace( tmp[ i ] );
-		            	
-		        		// test if inside
-						for ( int d = 0; d < numDimensions; ++d )
-							if ( tmp[ i ][ d ] < 0 || tmp[ i ][ d ] > max[ i ][ d ] )
-								continue A;
-						
-						in.get( i ).setPosition( tmp[ i ] );			
-						myFusion.addValue( in.get( i ).getType().getRealFloat(), i, tmp[ i ] );
-					}
-					
-					// set value
-					out.getType().setReal( myFusion.getValue() );
-				}
-				
-				// write the slice
-				final ImagePlus outImp = ((ImagePlusContainer<?,?>)outputSlice.getContainer()).getImagePlus();
-				final FileSaver fs = new FileSaver( outImp );
-				fs.saveAsTiff( new File( outputDirectory, "img_t" + lz( t, numTimePoints ) + "_z" + lz( slice+1, numSlices ) + "_c" + lz( c, numChannels ) ).getAbsolutePath() );
+				localMin[ d ] = Math.min( localMin[ d ], corner[ d ] );
+				localMax[ d ] = Math.max( localMax[ d ], corner[ d ] );
 			}
-		} 
-		catch ( NoninvertibleModelException e ) 
-		{
-			IJ.log( "Cannot invert model, qutting." );
-			return;
-		} 
-		catch ( ImgLibException e ) 
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Extracts a range of z-planes of one channel and timepoint. Only those planes are read if the image is a virtual stack.
+	 * 
+	 * @param imp - the input image
+	 * @param channel - the channel (starting at 1)
+	 * @param timepoint - the timepoint (starting at 1)
+	 * @param from - the first z-plane (starting at 0)
+	 * @param to - the last z-plane (inclusive)
+	 * @return the image with the selected planes
+	 */
+	protected static ImagePlus getImageChunk( final ImagePlus imp, final int channel, final int timepoint, final int from, final int to )
+	{
+		if ( imp.getNSlices() == 1 )
+			return Hyperstack_rearranger.getImageChunk( imp, channel, timepoint );
+
+		final ImageStack stack = new ImageStack( imp.getWidth(), imp.getHeight() );
+		
+		for ( int z = from; z <= to; ++z )
 		{
-			IJ.log( "Output image has no ImageJ type: " + e );
-			return;
+			final int index = imp.getStackIndex( channel, z + 1, timepoint );
+			final ImageProcessor ip = imp.getStack().getProcessor( index );
+			stack.addSlice( imp.getStack().getSliceLabel( index ), ip );
 		}
+		
+		return new ImagePlus( "", stack );
 	}
 
 	private static final String lz( final int num, final int max )
@@ -33,6 +33,7 @@
 import mpicbg.stitching.ImagePlusTimePoint;
 import mpicbg.stitching.PairWiseStitchingImgLib;
 import mpicbg.stitching.PairWiseStitchingResult;
+import mpicbg.stitching.PhaseCorrelationContext;
 import mpicbg.stitching.StitchingParameters;
 import mpicbg.stitching.fusion.Fusion;
 import mpicbg.stitching.fusion.OverlayFusion;
@@ -354,6 +355,9 @@ public static void performPairWiseStitching( final ImagePlus imp1, final ImagePl
 				numThreads = Runtime.getRuntime().availableProcessors();
 			
 	        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+	        
+	        // the processors are shared by the pairs that are computed in parallel
+	        final int threadsPerPair = Math.max( 1, Runtime.getRuntime().availableProcessors() / numThreads );
 	    	
 	        for ( int ithread = 0; ithread < threads.length; ++ithread )
 	            threads[ ithread ] = new Thread(new Runnable()
@@ -362,28 +366,37 @@ public void run()
 	                {		
 	                   	final int myNumber = ai.getAndIncrement();
 	                    
-	                    for ( int i = 0; i < pairs.size(); i++ )
-	                    {
-	                    	if ( i % numThreads == myNumber )
-	                    	{
-	                    		final ComparePair pair = pairs.get( i );
+	                	// reuse the phase correlation buffers of this thread for pairs of the same size
+	                	PhaseCorrelationContext.openCache();
+	                	try
+	                	{
+		                    for ( int i = 0; i < pairs.size(); i++ )
+		                    {
+		                    	if ( i % numThreads == myNumber )
+		                    	{
+		                    		final ComparePair pair = pairs.get( i );
 	                    		
-	                    		long start = System.currentTimeMillis();			
+		                    		long start = System.currentTimeMillis();			
 
-	            				final PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), 
-	            						pair.getImagePlus1().getRoi(), pair.getImagePlus2().getRoi(), pair.getTimePoint1(), pair.getTimePoint2(), params );			
+		            				final PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), 
+		            						pair.getImagePlus1().getRoi(), pair.getImagePlus2().getRoi(), pair.getTimePoint1(), pair.getTimePoint2(), params, threadsPerPair );			
 
-	            				if ( params.dimensionality == 2 )
-	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
-	            				else
-	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ), result.getOffset( 2 ) } );
+		            				if ( params.dimensionality == 2 )
+		            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
+		            				else
+		            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ), result.getOffset( 2 ) } );
 	            				
-	            				pair.setCrossCorrelation( result.getCrossCorrelation() );
-
-	            				IJ.log( pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1() + "]" + " <- " + pair.getImagePlus2().getTitle() + "[" + pair.getTimePoint2() + "]" + ": " + 
-	            						Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + (System.currentTimeMillis() - start) + " ms)");
-	                    	}
-	                    }
+		            				pair.setCrossCorrelation( result.getCrossCorrelation() );
+
+		            				IJ.log( pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1() + "]" + " <- " + pair.getImagePlus2().getTitle() + "[" + pair.getTimePoint2() + "]" + ": " + 
+		            						Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + (System.currentTimeMillis() - start) + " ms)");
+		                    	}
+		                    }
+	                	}
+	                	finally
+	                	{
+	                		PhaseCorrelationContext.closeCache();
+	                	}
 	                }
 	            });
 	        
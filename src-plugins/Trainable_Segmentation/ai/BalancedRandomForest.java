@@ -332,6 +332,23 @@ public double[] distributionForInstance(Instance instance)
 		return sums;
 	}
 
+	/**
+	 * Compile the forest into flat arrays, to classify samples
+	 * directly from their feature values.
+	 *
+	 * @return flattened version of the forest, or null if it is not trained
+	 */
+	public FlattenedForest flatten()
+	{
+		if (null == tree)
+			return null;
+
+		final FlattenedForest forest = new FlattenedForest(tree[0].getNumClasses(), true);
+		for (int i=0; i < numTrees; i++)
+			tree[i].flatten(forest);
+		return forest;
+	}
+
 
 	/**
 	 * Gets the current settings of the forest.
@@ -82,6 +82,29 @@ public double[] evaluate(Instance instance)
 		return rootNode.eval(instance);
 	}
 
+	/**
+	 * Add this tree to a flattened forest
+	 * 
+	 * @param forest flattened forest to add the nodes to
+	 */
+	public void flatten(final FlattenedForest forest)
+	{
+		forest.addTree( rootNode.flatten( forest ) );
+	}
+
+	/**
+	 * Get the number of classes the tree was trained with
+	 * 
+	 * @return length of the class probability arrays of the leaves
+	 */
+	public int getNumClasses()
+	{
+		BaseNode node = rootNode;
+		while( node instanceof InteriorNode )
+			node = ((InteriorNode) node).left;
+		return ((LeafNode) node).probability.length;
+	}
+
 
 	/**
 	 * Basic node of the tree
@@ -98,6 +121,12 @@ abstract class BaseNode implements Serializable
 		 * @return class probabilities
 		 */
 		public abstract double[] eval( Instance instance );
+		/**
+		 * Add this node and its sons to a flattened forest
+		 * @param forest flattened forest
+		 * @return index of the node in the flattened forest
+		 */
+		public abstract int flatten( FlattenedForest forest );
 		/**
 		 * Get the node depth
 		 * 
@@ -125,6 +154,12 @@ public double[] eval(Instance instance)
 		{		
 			return probability;
 		}
+
+		@Override
+		public int flatten(FlattenedForest forest)
+		{
+			return forest.addLeaf( probability );
+		}
 		/**
 		 * Create a leaf node
 		 * 
@@ -260,6 +295,22 @@ public double[] eval(Instance instance)
 				return left.eval(instance);				
 		}
 
+		/**
+		 * Add node and sons to a flattened forest
+		 */
+		public int flatten(FlattenedForest forest)
+		{
+			// nodes without right son just pass the samples to the left
+			if( null == right || splitFn.isAllSame() )
+				return left.flatten( forest );
+
+			final int node = forest.addInteriorNode( splitFn.getIndex(), splitFn.getThreshold(), -1 );
+			final int leftSon = left.flatten( forest );
+			final int rightSon = right.flatten( forest );
+			forest.setSons( node, leftSon, rightSon );
+			return node;
+		}
+
 
 		/**
 		 * Get node depth
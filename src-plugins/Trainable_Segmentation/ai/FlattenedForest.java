@@ -0,0 +1,343 @@
+package ai;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras (iarganda@mit.edu),
+ * 			Albert Cardona (acardona@ini.phys.ethz.ch)
+ */
+
+/**
+ * This class stores a trained random forest as flat arrays of primitives
+ * (split attribute, threshold and sons of every node, plus the class
+ * distributions of the leaves) so it can be evaluated directly on planes
+ * of float feature values, without creating a Weka instance per sample.
+ *
+ * The forests fill it in with {@link #addInteriorNode}, {@link #addLeaf},
+ * {@link #setSons} and {@link #addTree}. Only numeric attributes are
+ * supported.
+ */
+public class FlattenedForest
+{
+	/** attribute to split on at each node (-1 for leaves) */
+	private int[] attribute = new int[ 64 ];
+	/** split threshold at each interior node (smaller values go left) */
+	private double[] threshold = new double[ 64 ];
+	/** proportion of training samples going left, used for missing values (negative to send them right) */
+	private double[] leftProportion = new double[ 64 ];
+	/** left son of interior nodes, or offset of the class distribution in leaves */
+	private int[] left = new int[ 64 ];
+	/** right son of interior nodes */
+	private int[] right = new int[ 64 ];
+	/** number of nodes in the forest */
+	private int numNodes = 0;
+
+	/** class distributions of all leaves, one after the other */
+	private double[] distributions = new double[ 256 ];
+	/** used length of the distribution array */
+	private int distributionsLength = 0;
+
+	/** root node of each tree */
+	private int[] roots = new int[ 16 ];
+	/** number of trees in the forest */
+	private int numTrees = 0;
+
+	/** number of classes */
+	private final int numClasses;
+	/** flag to average the tree votes (true) or normalize their sum (false) */
+	private final boolean averageVotes;
+
+	/**
+	 * Create an empty flattened forest
+	 *
+	 * @param numClasses number of classes
+	 * @param averageVotes true to divide the sum of the tree votes by the
+	 * number of trees, false to normalize it so it adds up to one
+	 */
+	public FlattenedForest(final int numClasses, final boolean averageVotes)
+	{
+		this.numClasses = numClasses;
+		this.averageVotes = averageVotes;
+	}
+
+	/**
+	 * Add an interior node. Its sons must be set with {@link #setSons}.
+	 *
+	 * @param attribute index of the attribute to split on
+	 * @param threshold split point (samples with smaller values go left)
+	 * @param leftProportion proportion of samples that go left when the
+	 * attribute value is missing, or a negative value to send them right
+	 * @return index of the new node
+	 */
+	public int addInteriorNode(
+			final int attribute,
+			final double threshold,
+			final double leftProportion)
+	{
+		ensureNodeCapacity();
+		this.attribute[ numNodes ] = attribute;
+		this.threshold[ numNodes ] = threshold;
+		this.leftProportion[ numNodes ] = leftProportion;
+		return numNodes++;
+	}
+
+	/**
+	 * Add a leaf node
+	 *
+	 * @param distribution class distribution returned by the leaf (it is copied)
+	 * @return index of the new node
+	 */
+	public int addLeaf(final double[] distribution)
+	{
+		ensureNodeCapacity();
+		if( distributionsLength + numClasses > distributions.length )
+		{
+			final double[] newDistributions = new double[ 2 * distributions.length + numClasses ];
+			System.arraycopy( distributions, 0, newDistributions, 0, distributionsLength );
+			distributions = newDistributions;
+		}
+		System.arraycopy( distribution, 0, distributions, distributionsLength, numClasses );
+
+		attribute[ numNodes ] = -1;
+		left[ numNodes ] = distributionsLength;
+		distributionsLength += numClasses;
+		return numNodes++;
+	}
+
+	/**
+	 * Set the sons of an interior node
+	 *
+	 * @param node interior node
+	 * @param leftSon node the samples with smaller values go to
+	 * @param rightSon node the rest of samples go to
+	 */
+	public void setSons(final int node, final int leftSon, final int rightSon)
+	{
+		left[ node ] = leftSon;
+		right[ node ] = rightSon;
+	}
+
+	/**
+	 * Add a tree to the forest
+	 *
+	 * @param root root node of the tree
+	 */
+	public void addTree(final int root)
+	{
+		if( numTrees == roots.length )
+		{
+			final int[] newRoots = new int[ 2 * roots.length ];
+			System.arraycopy( roots, 0, newRoots, 0, numTrees );
+			roots = newRoots;
+		}
+		roots[ numTrees++ ] = root;
+	}
+
+	/**
+	 * Get the number of classes
+	 *
+	 * @return number of classes
+	 */
+	public int getNumClasses()
+	{
+		return numClasses;
+	}
+
+	/**
+	 * Get the number of nodes
+	 *
+	 * @return total number of nodes (interior nodes and leaves) in the forest
+	 */
+	public int getNumNodes()
+	{
+		return numNodes;
+	}
+
+	/**
+	 * Calculate the class distributions of a range of samples, visiting the
+	 * forest tree by tree so each tree stays in cache for the whole range.
+	 *
+	 * @param features feature values, one array per attribute (indexed by sample)
+	 * @param from first sample (inclusive)
+	 * @param to last sample (exclusive)
+	 * @param result output class distributions, numClasses consecutive values
+	 * per sample, starting at 0 for sample "from"
+	 */
+	public void distributionForSamples(
+			final float[][] features,
+			final int from,
+			final int to,
+			final double[] result)
+	{
+		final int length = (to - from) * numClasses;
+		for(int i = 0; i < length; i++)
+			result[ i ] = 0;
+
+		for(int t = 0; t < numTrees; t++)
+		{
+			final int root = roots[ t ];
+			for(int sample = from, offset = 0; sample < to; sample++, offset += numClasses)
+			{
+				int node = root;
+				while( attribute[ node ] >= 0 )
+				{
+					final float value = features[ attribute[ node ] ][ sample ];
+					if( value < threshold[ node ] )
+						node = left[ node ];
+					else if( value == value || leftProportion[ node ] < 0 )
+						node = right[ node ];
+					else
+					{
+						// missing value: split the sample among both sons
+						addMissingDistribution( node, features, sample, 1.0, result, offset );
+						node = -1;
+						break;
+					}
+				}
+				if( node < 0 )
+					continue;
+				final int leaf = left[ node ];
+				for(int c = 0; c < numClasses; c++)
+					result[ offset + c ] += distributions[ leaf + c ];
+			}
+		}
+
+		// combine the votes
+		for(int offset = 0; offset < length; offset += numClasses)
+		{
+			if( averageVotes )
+			{
+				for(int c = 0; c < numClasses; c++)
+					result[ offset + c ] /= (double) numTrees;
+			}
+			else
+			{
+				double sum = 0;
+				for(int c = 0; c < numClasses; c++)
+					sum += result[ offset + c ];
+				if( sum != 0 )
+					for(int c = 0; c < numClasses; c++)
+						result[ offset + c ] /= sum;
+			}
+		}
+	}
+
+	/**
+	 * Classify a range of samples. As in the Weka classifiers, the class
+	 * with the highest probability is chosen, and samples with no votes
+	 * are assigned a missing value (NaN).
+	 *
+	 * @param features feature values, one array per attribute (indexed by sample)
+	 * @param from first sample (inclusive)
+	 * @param to last sample (exclusive)
+	 * @param buffer temporary storage, at least (to - from) * numClasses long
+	 * @param result output class of each sample, starting at 0 for sample "from"
+	 */
+	public void classifySamples(
+			final float[][] features,
+			final int from,
+			final int to,
+			final double[] buffer,
+			final double[] result)
+	{
+		distributionForSamples( features, from, to, buffer );
+		for(int i = 0, offset = 0; i < to - from; i++, offset += numClasses)
+		{
+			double max = 0;
+			int maxIndex = 0;
+			for(int c = 0; c < numClasses; c++)
+				if( buffer[ offset + c ] > max )
+				{
+					max = buffer[ offset + c ];
+					maxIndex = c;
+				}
+			result[ i ] = max > 0 ? maxIndex : Double.NaN;
+		}
+	}
+
+	/**
+	 * Add the distribution of a sample with missing values from a given node,
+	 * weighting each son by the proportion of training samples it received.
+	 *
+	 * @param node current node
+	 * @param features feature values, one array per attribute
+	 * @param sample sample index
+	 * @param weight weight of the current node
+	 * @param result array to add the distribution to
+	 * @param offset position of the sample in the result array
+	 */
+	private void addMissingDistribution(
+			final int node,
+			final float[][] features,
+			final int sample,
+			final double weight,
+			final double[] result,
+			final int offset)
+	{
+		if( attribute[ node ] < 0 )
+		{
+			final int leaf = left[ node ];
+			for(int c = 0; c < numClasses; c++)
+				result[ offset + c ] += weight * distributions[ leaf + c ];
+			return;
+		}
+
+		final float value = features[ attribute[ node ] ][ sample ];
+		if( value < threshold[ node ] )
+			addMissingDistribution( left[ node ], features, sample, weight, result, offset );
+		else if( value == value || leftProportion[ node ] < 0 )
+			addMissingDistribution( right[ node ], features, sample, weight, result, offset );
+		else
+		{
+			addMissingDistribution( left[ node ], features, sample,
+					weight * leftProportion[ node ], result, offset );
+			addMissingDistribution( right[ node ], features, sample,
+					weight * (1.0 - leftProportion[ node ]), result, offset );
+		}
+	}
+
+	/**
+	 * Make sure there is space for one more node
+	 */
+	private void ensureNodeCapacity()
+	{
+		if( numNodes < attribute.length )
+			return;
+		final int newLength = 2 * attribute.length;
+		attribute = copyOf( attribute, newLength );
+		left = copyOf( left, newLength );
+		right = copyOf( right, newLength );
+
+		final double[] newThreshold = new double[ newLength ];
+		System.arraycopy( threshold, 0, newThreshold, 0, numNodes );
+		threshold = newThreshold;
+
+		final double[] newLeftProportion = new double[ newLength ];
+		System.arraycopy( leftProportion, 0, newLeftProportion, 0, numNodes );
+		leftProportion = newLeftProportion;
+	}
+
+	/**
+	 * Copy the used part of a node array into a longer one
+	 */
+	private int[] copyOf(final int[] array, final int newLength)
+	{
+		final int[] copy = new int[ newLength ];
+		System.arraycopy( array, 0, copy, 0, numNodes );
+		return copy;
+	}
+}
@@ -207,4 +207,22 @@ public SplitFunction newInstance()
 		return new GiniFunction(this.numOfFeatures, this.random);
 	}
 
+	@Override
+	public int getIndex()
+	{
+		return this.index;
+	}
+
+	@Override
+	public double getThreshold()
+	{
+		return this.threshold;
+	}
+
+	@Override
+	public boolean isAllSame()
+	{
+		return this.allSame;
+	}
+
 }
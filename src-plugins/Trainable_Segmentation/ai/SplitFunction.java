@@ -18,4 +18,31 @@ public abstract class SplitFunction implements Serializable
 	public abstract void init(final Instances data, final ArrayList<Integer> indices);
 	public abstract boolean evaluate(final Instance instance);
 	public abstract SplitFunction newInstance();
+
+	/**
+	 * Get the index of the splitting attribute
+	 * @return attribute index
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * Get the splitting point (samples with smaller values go left)
+	 * @return threshold value
+	 */
+	public double getThreshold()
+	{
+		return threshold;
+	}
+
+	/**
+	 * Check if all samples go left (i.e. they all belong to the same class)
+	 * @return true if all samples go left
+	 */
+	public boolean isAllSame()
+	{
+		return allSame;
+	}
 }
@@ -23,6 +23,7 @@
 
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import weka.core.Instances;
 import weka.core.Utils;
 
@@ -34,13 +35,41 @@
  * Also stores the sorted order of the instances by any attribute, can create
  * bootstrap samples, and seed a random number generator from the stored data.
  * 
+ * Alternatively, the values can be stored binned: each attribute is then
+ * quantized into a limited number of bins (by quantiles of its values) and
+ * only the byte or short bin codes are kept, instead of the values and the
+ * sorted order. FastRandomTrees trained on binned data find their splits by
+ * building class histograms of the bins, and do not need per-tree copies of
+ * the sorted indices.
+ * 
  * @author Fran Supek (fran.supek[AT]irb.hr)
  */
 public class DataCache {
 
-  /** The dataset, first indexed by attribute, then by instance. */
+  /**
+   * The dataset, first indexed by attribute, then by instance (null if the
+   * data is binned).
+   */
   protected final float[][] vals;
 
+  /** Bin codes, indexed by attribute, then by instance (up to 255 bins). */
+  protected final byte[][] byteBins;
+
+  /** Bin codes, indexed by attribute, then by instance (more than 255 bins). */
+  protected final short[][] shortBins;
+
+  /**
+   * Number of bins of each attribute (0 if the data is not binned). The code
+   * numBins[attribute] is used for missing values.
+   */
+  protected final int[] numBins;
+
+  /** Smallest value in each bin, indexed by attribute, then by bin. */
+  protected final float[][] binMin;
+
+  /** Largest value in each bin, indexed by attribute, then by bin. */
+  protected final float[][] binMax;
+
   /**
    * Attribute description - holds a 0 for numeric attributes, and the number
    * of available categories for nominal attributes.
@@ -75,6 +104,15 @@ public class DataCache {
 
   /** Used in training of FastRandomTrees. */
   protected int[] whatGoesWhere = null;
+
+  /** Used in training of FastRandomTrees on binned data. */
+  protected int[] binnedScratch = null;
+
+  /**
+   * Used in training of FastRandomTrees on binned data. If not null, the
+   * attributes of big nodes are evaluated in parallel in this thread pool.
+   */
+  protected ExecutorService splitThreadPool = null;
   
   /**
    * Used in training of FastRandomTrees. Each tree can store its own
@@ -88,6 +126,18 @@ public class DataCache {
    * Creates a DataCache by copying data from a weka.core.Instances object.
    */
   public DataCache(Instances origData) throws Exception {
+    this(origData, 0);
+  }
+
+  /**
+   * Creates a DataCache by copying data from a weka.core.Instances object,
+   * optionally binning the numeric attributes.
+   *
+   * @param origData the original data
+   * @param maxBins maximum number of bins per numeric attribute (from 2 to
+   * 32767), or 0 to store the exact values and sorted orders
+   */
+  public DataCache(Instances origData, int maxBins) throws Exception {
 
     classIndex = origData.classIndex();
     numAttributes = origData.numAttributes();
@@ -104,14 +154,18 @@ public DataCache(Instances origData) throws Exception {
         throw new Exception("Only numeric and nominal attributes are supported.");
     }
 
+    if (maxBins != 0 && (maxBins < 2 || maxBins > Short.MAX_VALUE))
+      throw new Exception("The number of bins must be between 2 and "
+              + Short.MAX_VALUE + ".");
+
     /* Array is indexed by attribute first, to speed access in RF splitting. */
-    vals = new float[numAttributes][numInstances];
+    float[][] values = new float[numAttributes][numInstances];
     for (int a = 0; a < numAttributes; a++) {
       for (int i = 0; i < numInstances; i++) {
         if (origData.instance(i).isMissing(a))
-          vals[a][i] = Float.MAX_VALUE;
+          values[a][i] = Float.MAX_VALUE;
         else
-          vals[a][i] = (float) origData.instance(i).value(a);  // deep copy
+          values[a][i] = (float) origData.instance(i).value(a);  // deep copy
       }
     }
 
@@ -122,6 +176,53 @@ public DataCache(Instances origData) throws Exception {
       instClassValues[i] = (int) origData.instance(i).classValue();
     }
 
+    if (maxBins > 0) {
+
+      /* the sorted orders are used only to compute the bins, and the
+       * values are replaced by the bin codes */
+      vals = null;
+      numBins = new int[numAttributes];
+      binMin = new float[numAttributes][];
+      binMax = new float[numAttributes][];
+
+      // codes must fit the number of bins plus the missing value code
+      int maxCode = maxBins;
+      for (int a = 0; a < numAttributes; a++)
+        if (a != classIndex && attNumVals[a] > maxCode)
+          maxCode = attNumVals[a];
+      if (maxCode > Short.MAX_VALUE)
+        throw new Exception("Nominal attributes with more than "
+                + Short.MAX_VALUE + " values cannot be binned.");
+
+      byteBins = maxCode <= 255 ? new byte[numAttributes][] : null;
+      shortBins = maxCode <= 255 ? null : new short[numAttributes][];
+
+      for (int a = 0; a < numAttributes; a++) {
+        if (a == classIndex)
+          continue;
+        int[] codes = computeBins(a, values[a], maxBins);
+        if (byteBins != null) {
+          byteBins[a] = new byte[numInstances];
+          for (int i = 0; i < numInstances; i++)
+            byteBins[a][i] = (byte) codes[i];
+        } else {
+          shortBins[a] = new short[numInstances];
+          for (int i = 0; i < numInstances; i++)
+            shortBins[a][i] = (short) codes[i];
+        }
+        values[a] = null; // the original values can be GC'd
+      }
+
+      return;
+    }
+
+    vals = values;
+    byteBins = null;
+    shortBins = null;
+    numBins = null;
+    binMin = null;
+    binMax = null;
+
     /* compute the sortedInstances for the whole dataset */
     
     sortedIndices = new int[numAttributes][];
@@ -167,6 +268,74 @@ public DataCache(Instances origData) throws Exception {
 
   }
 
+
+  /**
+   * Quantizes the values of an attribute into bins. Nominal attributes get
+   * one bin per category. For numeric attributes, the bins are cut at
+   * (approximately) equally spaced quantiles, never between two equal
+   * values; if there are no more distinct values than bins, every distinct
+   * value gets its own bin, and the trees are exactly the same as the ones
+   * trained on unbinned data. Fills in numBins, binMin and binMax for the
+   * attribute.
+   *
+   * @param att the attribute index
+   * @param values the attribute values (missing values are Float.MAX_VALUE)
+   * @param maxBins the maximum number of bins
+   * @return the bin code of every instance (numBins[att] for missing values)
+   */
+  private int[] computeBins(int att, float[] values, int maxBins) {
+
+    int[] codes = new int[numInstances];
+
+    if (attNumVals[att] > 0) { // ------------------------------------- nominal
+
+      numBins[att] = attNumVals[att];
+      for (int i = 0; i < numInstances; i++)
+        codes[i] = values[i] == Float.MAX_VALUE ? numBins[att] : (int) values[i];
+      return codes;
+
+    } // -------------------------------------------------------------- numeric
+
+    // missing values are coded as Float.MAX_VALUE and go to the end
+    int[] sorted = FastRfUtils.sort(values);
+    int numNonMissing = 0;
+    int numDistinct = 0;
+    while (numNonMissing < numInstances
+            && values[sorted[numNonMissing]] != Float.MAX_VALUE) {
+      if (numNonMissing == 0 || values[sorted[numNonMissing]]
+              > values[sorted[numNonMissing - 1]])
+        numDistinct++;
+      numNonMissing++;
+    }
+
+    float[] min = new float[Math.max(1, Math.min(numDistinct, maxBins))];
+    float[] max = new float[min.length];
+    int bin = 0;
+    for (int j = 0; j < numNonMissing; j++) {
+      float value = values[sorted[j]];
+      if (j == 0) {
+        min[0] = value;
+      } else if (value > values[sorted[j - 1]]
+              && (numDistinct <= maxBins
+                  || j >= (long) (bin + 1) * numNonMissing / maxBins)
+              && bin < min.length - 1) {
+        bin++;
+        min[bin] = value;
+      }
+      max[bin] = value;
+      codes[sorted[j]] = bin;
+    }
+
+    numBins[att] = numNonMissing == 0 ? 0 : bin + 1;
+    for (int j = numNonMissing; j < numInstances; j++)
+      codes[sorted[j]] = numBins[att];
+
+    binMin[att] = Arrays.copyOf(min, numBins[att]);
+    binMax[att] = Arrays.copyOf(max, numBins[att]);
+    return codes;
+
+  }
+
   
   
   /**
@@ -188,12 +357,20 @@ public DataCache(DataCache origData) {
     vals = origData.vals;                   // shallow copied - very big array!
     sortedIndices = origData.sortedIndices; // shallow copied - also big
 
+    byteBins = origData.byteBins;           // shallow copied
+    shortBins = origData.shortBins;         // shallow copied
+    numBins = origData.numBins;             // shallow copied
+    binMin = origData.binMin;               // shallow copied
+    binMax = origData.binMax;               // shallow copied
+    splitThreadPool = origData.splitThreadPool;
+
     instWeights = origData.instWeights;     // shallow copied
 
     inBag = new boolean[numInstances];      // gets its own inBag array
     numInBag = 0;
     
     whatGoesWhere = null;     // this will be created when tree building starts
+    binnedScratch = null;     // as well as this one
 
   }
 
@@ -329,7 +506,7 @@ protected void createInBagSortedIndices() {
 
 	  // If the bag size is equal to the number of instances, there is
 	  // no need to create the indices again.
-	if(this.numInBag == this.numInstances)
+	if(this.numInBag == this.numInstances || isBinned())
 		  return;
 
 	  
@@ -362,9 +539,25 @@ protected void createInBagSortedIndices() {
   
   /** Does the given attribute - instance combination contain a missing value? */
   public final boolean isValueMissing( int attIndex, int instIndex ) {
+    if ( this.vals == null )
+      return getBin( attIndex, instIndex ) == this.numBins[attIndex];
     return this.vals[attIndex][instIndex] == Float.MAX_VALUE;
   }
 
+
+  /** Are the values stored as bin codes instead of the exact values? */
+  public final boolean isBinned() {
+    return this.numBins != null;
+  }
+
+
+  /** Returns the bin code of the given attribute - instance combination. */
+  public final int getBin( int attIndex, int instIndex ) {
+    if ( this.byteBins != null )
+      return this.byteBins[attIndex][instIndex] & 0xff;
+    return this.shortBins[attIndex][instIndex];
+  }
+
   
   /** Is an attribute with the given index nominal? */
   public final boolean isAttrNominal( int attIndex ) {
@@ -376,7 +569,8 @@ public final boolean isAttrNominal( int attIndex ) {
    * Returns a random number generator. The initial seed of the random
    * number generator depends on the given seed and the contents of the
    * sortedIndices array (a single attribute is picked, its sortedIndices
-   * converted to String and a hashcode computed).
+   * converted to String and a hashcode computed), or of the bin codes if
+   * the data is binned.
    *
    * @param seed the given seed
    * @return the random number generator
@@ -384,9 +578,14 @@ public final boolean isAttrNominal( int attIndex ) {
   public Random getRandomNumberGenerator(long seed) {
 
     Random r = new Random(seed);
-    long dataSignature
-            = Arrays.toString( sortedIndices[ r.nextInt( numAttributes ) ] )
-            .hashCode();
+    int att = r.nextInt( numAttributes );
+    long dataSignature;
+    if ( byteBins != null )
+      dataSignature = Arrays.hashCode( byteBins[ att ] );
+    else if ( shortBins != null )
+      dataSignature = Arrays.hashCode( shortBins[ att ] );
+    else
+      dataSignature = Arrays.toString( sortedIndices[ att ] ).hashCode();
     r.setSeed( dataSignature + seed );
     return r;
     
@@ -23,6 +23,8 @@
 
 package hr.irb.fastRandomForest;
 
+import ai.FlattenedForest;
+
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
 import weka.core.AdditionalMeasureProducer;
@@ -137,6 +139,12 @@ public class FastRandomForest
   /** The maximum depth of the trees (0 = unlimited) */
   protected int m_MaxDepth = 0;
 
+  /**
+   * The maximum number of bins per attribute for the histogram-based split
+   * search (0 = exact search on sorted values)
+   */
+  protected int m_NumBins = 0;
+
   /** The header information. */
   protected Instances m_Info = null;  
   
@@ -324,6 +332,41 @@ public void setNumThreads(int value) {
   }
 
 
+  /**
+   * Returns the tip text for this property
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String numBinsTipText() {
+    return "Maximum number of bins per attribute for the histogram-based "
+      + "split search (0 = exact search on sorted values).";
+  }
+
+  /**
+   * Get the maximum number of bins per attribute used in training, 0 for
+   * the exact split search.
+   *
+   * @return 		the maximum number of bins.
+   */
+  public int getNumBins() {
+    return m_NumBins;
+  }
+
+  /**
+   * Set the maximum number of bins per attribute used in training. With
+   * bins, the attributes are quantized once into byte (up to 255 bins) or
+   * short codes, the splits are searched on class histograms of the bins,
+   * and the attributes of big nodes are evaluated in parallel. This is much
+   * faster and lighter on memory for big training sets. Use 0 for the exact
+   * split search on sorted values.
+   *
+   * @param value 	the maximum number of bins (0 or between 2 and 32767).
+   */
+  public void setNumBins(int value) {
+    m_NumBins = value;
+  }
+
+
   /**
    * Gets the out of bag error that was calculated as the classifier was built.
    *
@@ -397,6 +440,12 @@ public Enumeration listOptions() {
       + "\t(default 0)",
       "threads", 1, "-threads <num>"));
 
+    newVector.addElement(new Option(
+      "\tThe maximum number of bins per attribute for the histogram-based\n"
+      + "\tsplit search, 0 for the exact search on sorted values.\n"
+      + "\t(default 0)",
+      "bins", 1, "-bins <num>"));
+
     Enumeration enu = super.listOptions();
     while (enu.hasMoreElements()) {
       newVector.addElement(enu.nextElement());
@@ -435,6 +484,11 @@ public String[] getOptions() {
       result.add("-threads");
       result.add("" + getNumThreads());
     }
+
+    if (getNumBins() > 0) {
+      result.add("-bins");
+      result.add("" + getNumBins());
+    }
     
     options = super.getOptions();
     for (i = 0; i < options.length; i++)
@@ -468,6 +522,11 @@ public String[] getOptions() {
    *  Number of simultaneous threads to use.
    *  (default 0 = autodetect number of available cores)</pre>
    * 
+   * <pre> -bins &lt;num&gt;
+   *  The maximum number of bins per attribute for the histogram-based
+   *  split search, 0 for the exact search on sorted values.
+   *  (default 0)</pre>
+   * 
    * <pre> -D
    *  If set, classifier is run in debug mode and
    *  may output additional info to the console</pre>
@@ -516,6 +575,13 @@ public void setOptions(String[] options) throws Exception{
       setNumThreads(0);
     }
 
+    tmpStr = Utils.getOption("bins", options);
+    if (tmpStr.length() != 0) {
+      setNumBins(Integer.parseInt(tmpStr));
+    } else {
+      setNumBins(0);
+    }
+
     super.setOptions(options);
     
     Utils.checkForRemainingOptions(options);
@@ -601,6 +667,23 @@ public double[] distributionForInstance(Instance instance) throws Exception {
     
   }
 
+  /**
+   * Compiles the trained forest into flat arrays, so samples can be
+   * classified straight from their feature values.
+   *
+   * @return the flattened forest, or null if the forest is not trained, is
+   * a default (ZeroR) model, predicts a numeric class or splits on
+   * nominal attributes
+   */
+  public FlattenedForest flatten() {
+
+    if (m_bagger == null || m_ZeroR != null || m_Info.classAttribute().isNumeric())
+      return null;
+
+    return m_bagger.flatten(m_Info.numClasses());
+
+  }
+
   /**
    * Outputs a description of this classifier.
    *
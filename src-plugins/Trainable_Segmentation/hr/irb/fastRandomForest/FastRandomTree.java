@@ -32,9 +32,15 @@
 import weka.core.WeightedInstancesHandler;
 import weka.core.Capabilities.Capability;
 
+import ai.FlattenedForest;
+
 import ij.IJ;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import weka.core.RevisionUtils;
 
 
@@ -83,6 +89,12 @@
 
   /** Minimum number of instances for leaf. */
   protected static final int m_MinNum = 1;
+
+  /**
+   * Minimum number of instances in a node for its attributes to be
+   * evaluated in parallel (only when training on binned data).
+   */
+  protected static final int MIN_PARALLEL_SPLIT_SIZE = 20000;
   
   /**
    * Get the value of MinNum.
@@ -192,12 +204,31 @@ public void run() {
 
     // prepare the DataCache by:
     // ... creating an array for the whatGoesWhere field of the data
-    // ... creating the sortedIndices
+    // ... creating the sortedIndices, or a single array with the in-bag
+    //     instances if the data is binned
     data.whatGoesWhere = new int[ data.inBag.length ];
-    data.createInBagSortedIndices();
 
-    buildTree(data.sortedIndices, classProbs, m_Debug,
-            attIndicesWindow, 0);
+    if ( data.isBinned() ) {
+
+      data.binnedScratch = new int[ data.numInBag ];
+      int[] indices = new int[ data.numInBag ];
+      int count = 0;
+      for (int i = 0; i < data.numInstances; i++) {
+        if ( data.inBag[i] )
+          indices[count++] = i;
+      }
+
+      buildTreeBinned(indices, 0, count, classProbs, m_Debug,
+              attIndicesWindow, 0);
+
+    } else {
+
+      data.createInBagSortedIndices();
+
+      buildTree(data.sortedIndices, classProbs, m_Debug,
+              attIndicesWindow, 0);
+
+    }
   
     this.data = null;
 //final long end = System.currentTimeMillis();
@@ -268,6 +299,38 @@ public double[] distributionForInstance(Instance instance) throws Exception {
   }
 
 
+  /**
+   * Adds this (sub)tree to a flattened forest. The leaf distributions are
+   * stored already normalized, as returned by distributionForInstance, and
+   * m_Prop is kept to split up instances with missing values.
+   *
+   * @param forest the flattened forest to add the nodes to
+   * @return the index of this node in the forest, or -1 if the tree splits
+   * on a nominal attribute (not supported by the flattened forest)
+   */
+  protected int flatten(FlattenedForest forest) {
+
+    if (m_Attribute == -1) {  // leaf
+      double[] normalizedDistribution = (double[]) m_ClassProbs.clone();
+      if (Utils.sum(normalizedDistribution) != 0)
+        Utils.normalize(normalizedDistribution);
+      return forest.addLeaf(normalizedDistribution);
+    }
+
+    if (m_MotherForest.m_Info.attribute(m_Attribute).isNominal())
+      return -1;
+
+    int node = forest.addInteriorNode(m_Attribute, m_SplitPoint, m_Prop[0]);
+    int left = m_Successors[0].flatten(forest);
+    int right = m_Successors[1].flatten(forest);
+    if (left == -1 || right == -1)
+      return -1;
+    forest.setSons(node, left, right);
+    return node;
+
+  }
+
+
   
   /**
    * Recursively generates a tree. A derivative of the buildTree function from
@@ -425,6 +488,381 @@ protected void buildTree(int[][] sortedIndices,
   }
 
 
+  /**
+   * Recursively generates a tree from binned data. Same as buildTree, but
+   * the instances of the node are given as a range of a single index array
+   * (which gets reordered when splitting) instead of one sorted index array
+   * per attribute, and the distribution of each attribute is computed from
+   * a histogram of its bins. When the node is big enough and the DataCache
+   * has a splitThreadPool, the K attributes are evaluated in parallel.
+   *
+   * @param indices the indices of the instances
+   * @param start first position of the node instances in indices
+   * @param end last position (exclusive) of the node instances in indices
+   * @param classProbs the class distribution
+   * @param debug whether debugging is on
+   * @param attIndicesWindow the attribute window to choose attributes from
+   * @param depth the current depth
+   */
+  protected void buildTreeBinned(int[] indices,
+          int start, int end,
+          double[] classProbs,
+          boolean debug,
+          int[] attIndicesWindow,
+          int depth)  {
+
+    m_Debug = debug;
+
+    // Check if node doesn't contain enough instances or is pure 
+    // or maximum depth reached, make leaf.
+    if ( ( end - start < Math.max(2, getMinNum()) )                                            // small
+            || Utils.eq( classProbs[Utils.maxIndex(classProbs)], Utils.sum(classProbs) )       // pure
+            || ( (getMaxDepth() > 0)  &&  (depth >= getMaxDepth()) )                           // deep
+            ) {
+
+      m_Attribute = -1;
+      
+      m_ClassProbs = classProbs;
+      this.data = null;
+      
+      if(depth > this.m_MotherForest.maxRealDepth)
+      {
+    	  this.m_MotherForest.maxRealDepth = depth;
+      }
+      
+      return;
+    }
+    
+    final double[] vals = new double[data.numAttributes]; // value of splitting criterion for each attribute
+    final double[][][] dists = new double[data.numAttributes][][];  // class distributions for each attribute 
+    final double[][] props = new double[data.numAttributes][];
+    final double[] splits = new double[data.numAttributes];
+
+    // Investigate K random attributes
+    int attIndex = 0;
+    int windowSize = attIndicesWindow.length;
+    int k = getKValue();
+    boolean sensibleSplitFound = false;
+    double prior = Double.NaN;
+
+    if ( data.splitThreadPool != null && end - start >= MIN_PARALLEL_SPLIT_SIZE
+            && k > 1 && windowSize > 1 ) {
+
+      // the first K attributes are always investigated, so they can be
+      // chosen first and evaluated concurrently
+      List< Future<?> > futures = new ArrayList< Future<?> >();
+      int firstAttIndex = -1;
+      while ( windowSize > 0 && k-- > 0 ) {
+
+        int chosenIndex = data.reusableRandomGenerator.nextInt(windowSize);
+        attIndex = attIndicesWindow[chosenIndex];
+        attIndicesWindow[chosenIndex] = attIndicesWindow[windowSize - 1];
+        attIndicesWindow[windowSize - 1] = attIndex;
+        windowSize--;
+
+        if ( firstAttIndex < 0 )
+          firstAttIndex = attIndex;
+        futures.add( data.splitThreadPool.submit( evaluateAttributeBinned(
+                vals, dists, props, splits, attIndex, indices, start, end ) ) );
+      }
+
+      try {
+        for ( Future<?> future : futures )
+          future.get();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+
+      prior = SplitCriteria.entropyOverColumns(dists[firstAttIndex]);
+      for ( int i = windowSize; i < attIndicesWindow.length; i++ ) {
+        int a = attIndicesWindow[i];
+        vals[a] = prior - vals[a];
+        if ( vals[a] > 1e-2 )
+          sensibleSplitFound = true;
+      }
+      k = 0;
+
+    }
+
+    while ((windowSize > 0) && (k-- > 0 || !sensibleSplitFound ) ) {
+
+      int chosenIndex = data.reusableRandomGenerator.nextInt(windowSize);
+      attIndex = attIndicesWindow[chosenIndex];
+
+      // shift chosen attIndex out of window
+      attIndicesWindow[chosenIndex] = attIndicesWindow[windowSize - 1];
+      attIndicesWindow[windowSize - 1] = attIndex;
+      windowSize--;
+
+      splits[attIndex] = distributionBinned( props, dists,
+              attIndex, indices, start, end );
+
+      if ( Double.isNaN(prior) ) // needs to be computed only once per branch
+        prior = SplitCriteria.entropyOverColumns(dists[attIndex]);
+      
+      double posterior = SplitCriteria.entropyConditionedOnRows(dists[attIndex]);
+      vals[attIndex] = prior - posterior;  // we want the greatest reduction in entropy
+
+      if ( vals[attIndex] > 1e-2 )   // we allow some leeway here to compensate
+        sensibleSplitFound = true;   // for imprecision in entropy computation
+      
+    }
+
+    if ( sensibleSplitFound ) { 
+
+      m_Attribute = Utils.maxIndex(vals);   // find best attribute
+
+      m_SplitPoint = splits[m_Attribute]; 
+      m_Prop = props[m_Attribute];
+      double[][] chosenAttDists = dists[m_Attribute]; // remember dist for most important attribute
+
+      int[] branchStarts = splitDataBinned( indices, start, end,
+              m_Attribute, m_SplitPoint, chosenAttDists.length );
+
+      m_Successors = new FastRandomTree[chosenAttDists.length];
+      for (int i = 0; i < chosenAttDists.length; i++) {
+        m_Successors[i] = new FastRandomTree();
+        m_Successors[i].m_MotherForest = this.m_MotherForest;
+        m_Successors[i].data = this.data;
+
+        m_Successors[i].buildTreeBinned(indices,
+                branchStarts[i], branchStarts[i + 1],
+                chosenAttDists[i], m_Debug,
+                attIndicesWindow, depth + 1);
+
+        chosenAttDists[i] = null;
+        
+      }
+
+    } else { // Make leaf
+
+      m_Attribute = -1;
+      
+      m_ClassProbs = classProbs;      
+    }
+
+    this.data = null; // dereference all pointers so data can be GC'd after tree is built
+    
+  }
+
+
+  /**
+   * Creates the task of computing the distribution of an attribute on
+   * binned data (see distributionBinned). The task stores the split point,
+   * branch proportions and distribution of the attribute in the given
+   * arrays, plus its entropy after splitting (posterior) in vals.
+   */
+  private Callable<Object> evaluateAttributeBinned( final double[] vals,
+          final double[][][] dists, final double[][] props,
+          final double[] splits, final int att,
+          final int[] indices, final int start, final int end ) {
+
+    return new Callable<Object>() {
+      public Object call() {
+        splits[att] = distributionBinned( props, dists, att,
+                indices, start, end );
+        vals[att] = SplitCriteria.entropyConditionedOnRows(dists[att]);
+        return null;
+      }
+    };
+
+  }
+
+
+  /**
+   * Splits a range of instances of binned data into subsets, reordering
+   * them so the instances of each branch are contiguous. Instances with
+   * missing values are assigned to a random branch as in splitData.
+   *
+   * @param indices the indices of the instances
+   * @param start first position of the node instances in indices
+   * @param end last position (exclusive) of the node instances in indices
+   * @param att the attribute index
+   * @param splitPoint the splitpoint for numeric attributes
+   * @param numBranches number of branches
+   * @return the start position of each branch in indices (plus end)
+   */
+  protected int[] splitDataBinned( int[] indices, int start, int end,
+          int att, double splitPoint, int numBranches ) {
+
+    Random random = data.reusableRandomGenerator;
+    int[] num = new int[ numBranches ]; // how many instances go to each branch
+    int missing = data.numBins[att];
+    boolean nominal = data.isAttrNominal(att);
+
+    for (int j = start; j < end; j++) {
+
+      int inst = indices[j];
+      int bin = data.getBin(att, inst);
+      int branch;
+
+      if ( bin == missing ) { // ---------------------------- has missing value
+
+        // decide where to put this instance randomly, with bigger branches
+        // getting a higher chance
+        double rn = random.nextDouble();
+        branch = m_Prop.length - 1;
+        for (int k = 0; k < m_Prop.length; k++) {
+          rn -= m_Prop[k];
+          if ( rn <= 0 ) {
+            branch = k;
+            break;
+          }
+        }
+
+      } else if ( nominal ) {
+
+        branch = bin;
+
+      } else {
+
+        // all values of the bin are on the same side of the split point
+        branch = ( data.binMax[att][bin] < splitPoint ) ? 0 : 1;
+
+      }
+
+      data.whatGoesWhere[ inst ] = branch;
+      num[ branch ]++;
+
+    }
+
+    int[] branchStarts = new int[ numBranches + 1 ];
+    branchStarts[0] = start;
+    for (int branch = 0; branch < numBranches; branch++) {
+      branchStarts[branch + 1] = branchStarts[branch] + num[branch];
+      num[branch] = branchStarts[branch] - start;
+    }
+
+    int[] scratch = data.binnedScratch;
+    for (int j = start; j < end; j++) {
+      int inst = indices[j];
+      scratch[ num[ data.whatGoesWhere[inst] ]++ ] = inst;
+    }
+    System.arraycopy(scratch, 0, indices, start, end - start);
+
+    return branchStarts;
+
+  }
+
+
+  /**
+   * Computes class distribution for an attribute of binned data. Same as
+   * distribution, but the class weights are first accumulated in a
+   * histogram of the attribute bins, and the split points are only tried
+   * between bins, so the cost does not depend on sorting. The split point
+   * is placed halfway between the largest value left of the split and the
+   * smallest value right of it.
+   *
+   * @param props gets filled with relative sizes of branches (total = 1)
+   * @param dists gets filled with the class distribution of each branch
+   * @param att the attribute index
+   * @param indices the indices of the instances
+   * @param start first position of the node instances in indices
+   * @param end last position (exclusive) of the node instances in indices
+   * @return the split point
+   */
+  protected double distributionBinned( double[][] props, double[][][] dists,
+          int att, int[] indices, int start, int end ) {
+
+    int numBins = data.numBins[att];
+    int numClasses = data.numClasses;
+
+    // class weights and number of instances of each bin, the last "bin"
+    // holds the missing values
+    double[][] histogram = new double[numBins + 1][numClasses];
+    int[] counts = new int[numBins + 1];
+    for (int j = start; j < end; j++) {
+      int inst = indices[j];
+      int bin = data.getBin(att, inst);
+      histogram[ bin ][ data.instClassValues[inst] ] += data.instWeights[inst];
+      counts[ bin ]++;
+    }
+
+    double splitPoint = -Double.MAX_VALUE;
+    double[][] dist;
+
+    if ( data.isAttrNominal(att) ) { // ====================== nominal attributes
+
+      dist = new double[numBins][];
+      for (int b = 0; b < numBins; b++)
+        dist[b] = histogram[b];
+
+      splitPoint = 0; // by definition, a split on a nominal attribute is sensible
+
+    } else { // ============================================ numeric attributes
+
+      double[][] currDist = new double[2][numClasses];
+      dist = new double[2][numClasses];
+
+      //begin with moving all instances into second subset
+      for (int b = 0; b < numBins; b++)
+        for (int c = 0; c < numClasses; c++)
+          currDist[1][c] += histogram[b][c];
+      System.arraycopy(currDist[1], 0, dist[1], 0, numClasses);
+
+      double bestVal = -Double.MAX_VALUE; // best value of splitting criterion
+      int bestBin = -1; // the first bin right of the best split point
+      int prevBin = -1; // last non-empty bin
+
+      for (int b = 0; b < numBins; b++) {  // --- try all split points
+
+        // do not allow splitting between two instances in the same bin
+        if ( counts[b] == 0 )
+          continue;
+
+        if ( prevBin >= 0 ) {
+          for (int c = 0; c < numClasses; c++) {
+            currDist[0][c] += histogram[prevBin][c];
+            currDist[1][c] -= histogram[prevBin][c];
+          }
+
+          // we want the lowest impurity after split
+          double currVal = -SplitCriteria.entropyConditionedOnRows(currDist);
+          if (currVal > bestVal) {
+            bestVal = currVal;
+            bestBin = b;
+          }
+        }
+        prevBin = b;
+
+      }                                             // ------- end split points
+
+      if ( bestBin > 0 ) { // ...at least one valid splitpoint was found
+
+        int lastBinBeforeSplit = bestBin - 1;
+        while ( counts[lastBinBeforeSplit] == 0 )
+          lastBinBeforeSplit--;
+        splitPoint = ( data.binMin[att][bestBin]
+                + data.binMax[att][lastBinBeforeSplit] ) / 2.0;
+
+        for (int b = 0; b < bestBin; b++) {
+          for (int c = 0; c < numClasses; c++) {
+            dist[0][c] += histogram[b][c];
+            dist[1][c] -= histogram[b][c];
+          }
+        }
+
+      }
+
+    } // ================================================== nominal or numeric?
+
+    // compute total weights for each branch (= props)
+    props[att] = countsToFreqs(dist);
+
+    // distribute counts of instances with missing values
+    for (int branch = 0; branch < dist.length; branch++) {
+      for (int c = 0; c < numClasses; c++) {
+        dist[ branch ][ c ] += props[ att ][ branch ] * histogram[ numBins ][ c ];
+      }
+    }
+
+    // return distribution after split and best split point
+    dists[att] = dist;
+    return splitPoint;
+
+  }
+
+
   /**
    * Computes size of the tree.
    * 
@@ -23,6 +23,8 @@
 
 package hr.irb.fastRandomForest;
 
+import ai.FlattenedForest;
+
 import java.util.ArrayList;
 import weka.classifiers.RandomizableIteratedSingleClassifierEnhancer;
 import weka.core.AdditionalMeasureProducer;
@@ -68,6 +70,10 @@
  * <li>Estimating the out-of-bag (OOB) error is also multithreaded, using
  *     the VotesCollector class
  *
+ * <li>If the mother forest uses bins, the DataCache is binned and the trees
+ *     also evaluate the attributes of big nodes in parallel, in a second
+ *     thread pool
+ *
  * <li>OOB estimation in Weka's Bagging is one tree - one vote. In FastRF 0.97
  *     onwards, some trees will have a heavier weight in the overall vote
  *     depending on the averaged weights of instances that ended in the specific
@@ -136,8 +142,8 @@ public void buildClassifier(Instances data, int numThreads,
     }
     
     
-    // sorting is performed inside this constructor
-    DataCache myData = new DataCache(data);
+    // sorting (or binning) is performed inside this constructor
+    DataCache myData = new DataCache(data, motherForest.m_NumBins);
 
     int bagSize = data.numInstances() * m_BagSizePercent / 100;
     Random random = new Random(m_Seed);
@@ -150,6 +156,11 @@ public void buildClassifier(Instances data, int numThreads,
     List< Future<?> > futures =
             new ArrayList< Future<?> >( m_Classifiers.length );
 
+    // the split pool is separate, as the tree tasks wait for its tasks
+    if ( myData.isBinned() )
+      myData.splitThreadPool = Executors.newFixedThreadPool(
+            numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors() );
+
     try {
 
       for (int treeIdx = 0; treeIdx < m_Classifiers.length; treeIdx++) {
@@ -227,6 +238,8 @@ public void buildClassifier(Instances data, int numThreads,
     } finally {
 
       threadPool.shutdownNow();
+      if ( myData.splitThreadPool != null )
+        myData.splitThreadPool.shutdownNow();
 
     }
 
@@ -524,6 +537,25 @@ public double[] distributionForInstance(Instance instance) throws Exception {
     
   }
 
+  /**
+   * Compiles the trees of the ensemble into a flattened forest.
+   *
+   * @param numClasses the number of classes
+   * @return the flattened forest, or null if some tree can not be flattened
+   */
+  public FlattenedForest flatten(int numClasses) {
+
+    FlattenedForest forest = new FlattenedForest(numClasses, false);
+    for (int i = 0; i < m_NumIterations; i++) {
+      int root = ((FastRandomTree) m_Classifiers[i]).flatten(forest);
+      if (root == -1)
+        return null;
+      forest.addTree(root);
+    }
+    return forest;
+
+  }
+
   /**
    * Returns description of the bagged classifier.
    *
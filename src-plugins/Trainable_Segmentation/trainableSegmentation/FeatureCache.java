@@ -0,0 +1,422 @@
+package trainableSegmentation;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras (iarganda@mit.edu), Verena Kaynig (verena.kaynig@inf.ethz.ch),
+ *          Albert Cardona (acardona@ini.phys.ethz.ch)
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * This class stores feature images on disk so they do not need to be
+ * calculated again. Each filter result is saved as a raw file (float or
+ * RGB pixels) named after the hash of the source slice and the filter name
+ * and parameters, and it is read back through memory mapping. When the
+ * files take more than the maximum size, the least recently used ones are
+ * deleted.
+ */
+public class FeatureCache
+{
+	/** extension of the cached feature files */
+	private static final String EXTENSION = ".features";
+	/** number identifying the cached feature files */
+	private static final int MAGIC = 0x46454132;
+	/** slice types in the cached feature files */
+	private static final int FLOAT_SLICE = 0;
+	private static final int RGB_SLICE = 1;
+
+	/** folder containing the cached features */
+	private final File folder;
+	/** maximum size (in bytes) of the cached features */
+	private final long maximumSize;
+	/** current size (in bytes) of the cached features, -1 if not known yet */
+	private long currentSize = -1;
+
+	/**
+	 * Create a feature cache on a folder (it is created if it does not exist)
+	 *
+	 * @param folder path to the folder to store the features in
+	 * @param maximumSize maximum size of the cache (in bytes)
+	 */
+	public FeatureCache(
+			final String folder,
+			final long maximumSize)
+	{
+		this.folder = new File(folder);
+		this.maximumSize = maximumSize;
+		if( !this.folder.exists() )
+			this.folder.mkdirs();
+	}
+
+	/**
+	 * Get the folder containing the cached features
+	 *
+	 * @return cache folder
+	 */
+	public File getFolder()
+	{
+		return folder;
+	}
+
+	/**
+	 * Get the maximum size of the cache
+	 *
+	 * @return maximum size in bytes
+	 */
+	public long getMaximumSize()
+	{
+		return maximumSize;
+	}
+
+	/**
+	 * Calculate the hash of the contents of a slice
+	 *
+	 * @param ip slice to hash
+	 * @return hexadecimal SHA-1 digest of the slice type, size and pixels
+	 */
+	public static String hash(final ImageProcessor ip)
+	{
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final ByteBuffer buffer = ByteBuffer.allocate( Math.max( 8, 4 * width ) );
+		final MessageDigest digest = getDigest();
+
+		digest.update( (byte) (ip instanceof ColorProcessor ? 1 : 0) );
+		buffer.putInt( width ).putInt( height );
+		digest.update( buffer.array(), 0, 8 );
+
+		for(int y = 0; y < height; y++)
+		{
+			buffer.clear();
+			for(int x = 0; x < width; x++)
+			{
+				if( ip instanceof ColorProcessor )
+					buffer.putInt( ip.getPixel(x, y) );
+				else
+					buffer.putFloat( ip.getPixelValue(x, y) );
+			}
+			digest.update( buffer.array(), 0, 4 * width );
+		}
+		return toHex( digest.digest() );
+	}
+
+	/**
+	 * Get the features produced by a filter on a slice
+	 *
+	 * @param sliceHash hash of the source slice (see {@link #hash(ImageProcessor)})
+	 * @param filterKey filter name and parameters
+	 * @return cached filter result, or null if it is not in the cache
+	 */
+	public ImagePlus get(
+			final String sliceHash,
+			final String filterKey)
+	{
+		final File file = getFile( sliceHash, filterKey );
+		if( !file.exists() )
+			return null;
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile( file, "r" );
+			final MappedByteBuffer buffer = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, raf.length() );
+
+			if( buffer.getInt() != MAGIC )
+				return null;
+			final int width = buffer.getInt();
+			final int height = buffer.getInt();
+			final int numSlices = buffer.getInt();
+
+			final String[] labels = new String[ numSlices ];
+			for(int i = 0; i < numSlices; i++)
+			{
+				final byte[] label = new byte[ buffer.getInt() ];
+				buffer.get( label );
+				labels[ i ] = new String( label, "UTF-8" );
+			}
+			final int[] types = new int[ numSlices ];
+			for(int i = 0; i < numSlices; i++)
+				types[ i ] = buffer.getInt();
+
+			final ImageStack stack = new ImageStack( width, height );
+			for(int i = 0; i < numSlices; i++)
+			{
+				if( types[ i ] == RGB_SLICE )
+				{
+					final int[] pixels = new int[ width * height ];
+					buffer.asIntBuffer().get( pixels );
+					buffer.position( buffer.position() + 4 * pixels.length );
+					stack.addSlice( labels[ i ], new ColorProcessor( width, height, pixels ) );
+				}
+				else
+				{
+					final float[] pixels = new float[ width * height ];
+					buffer.asFloatBuffer().get( pixels );
+					buffer.position( buffer.position() + 4 * pixels.length );
+					stack.addSlice( labels[ i ], new FloatProcessor( width, height, pixels, null ) );
+				}
+			}
+
+			// mark the file as recently used
+			file.setLastModified( System.currentTimeMillis() );
+
+			if( numSlices == 1 )
+				return new ImagePlus( labels[ 0 ], stack.getProcessor( 1 ) );
+			return new ImagePlus( filterKey, stack );
+		} catch (Exception e) {
+			IJ.log("Error when reading cached features " + file + ": " + e.getMessage());
+			return null;
+		} finally {
+			close( raf );
+		}
+	}
+
+	/**
+	 * Store the features produced by a filter on a slice. Only float
+	 * and RGB features are stored.
+	 *
+	 * @param sliceHash hash of the source slice (see {@link #hash(ImageProcessor)})
+	 * @param filterKey filter name and parameters
+	 * @param features filter result
+	 */
+	public void put(
+			final String sliceHash,
+			final String filterKey,
+			final ImagePlus features)
+	{
+		final ImageStack stack = features.getImageStack();
+		final int numSlices = stack.getSize();
+		final byte[][] labels = new byte[ numSlices ][];
+		final int[] types = new int[ numSlices ];
+		long length = 16;
+		try {
+			for(int i = 1; i <= numSlices; i++)
+			{
+				final ImageProcessor ip = stack.getProcessor( i );
+				if( ip instanceof FloatProcessor )
+					types[ i-1 ] = FLOAT_SLICE;
+				else if( ip instanceof ColorProcessor )
+					types[ i-1 ] = RGB_SLICE;
+				else
+					return;
+				final String label = numSlices == 1 ? features.getTitle() : stack.getSliceLabel( i );
+				labels[ i-1 ] = (null == label ? "" : label).getBytes( "UTF-8" );
+				length += 8 + labels[ i-1 ].length;
+			}
+		} catch (IOException e) {
+			return;
+		}
+		length += 4L * stack.getWidth() * stack.getHeight() * numSlices;
+
+		final File file = getFile( sliceHash, filterKey );
+		File tmp = null;
+		RandomAccessFile raf = null;
+		try {
+			// write to a temporary file first, so readers never see half written features
+			tmp = File.createTempFile( "features", ".tmp", folder );
+			raf = new RandomAccessFile( tmp, "rw" );
+			final MappedByteBuffer buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, length );
+			buffer.putInt( MAGIC ).putInt( stack.getWidth() ).putInt( stack.getHeight() ).putInt( numSlices );
+			for(int i = 0; i < numSlices; i++)
+				buffer.putInt( labels[ i ].length ).put( labels[ i ] );
+			for(int i = 0; i < numSlices; i++)
+				buffer.putInt( types[ i ] );
+			for(int i = 1; i <= numSlices; i++)
+			{
+				final Object pixels = stack.getProcessor( i ).getPixels();
+				if( types[ i-1 ] == RGB_SLICE )
+				{
+					buffer.asIntBuffer().put( (int[]) pixels );
+					buffer.position( buffer.position() + 4 * ((int[]) pixels).length );
+				}
+				else
+				{
+					buffer.asFloatBuffer().put( (float[]) pixels );
+					buffer.position( buffer.position() + 4 * ((float[]) pixels).length );
+				}
+			}
+			buffer.force();
+			close( raf );
+			raf = null;
+
+			// renaming may replace features stored by another thread in the
+			// meantime, so only the difference is added to the cache size
+			final long replacedLength = file.exists() ? file.length() : 0;
+			if( !tmp.renameTo( file ) )
+			{
+				tmp.delete();
+				return;
+			}
+			tmp = null;
+			addToSize( length - replacedLength );
+		} catch (IOException e) {
+			IJ.log("Error when caching features " + file + ": " + e.getMessage());
+		} finally {
+			close( raf );
+			if( null != tmp )
+				tmp.delete();
+		}
+	}
+
+	/**
+	 * Remove all cached features
+	 */
+	public synchronized void clear()
+	{
+		for(final File file : listFiles())
+			file.delete();
+		currentSize = 0;
+	}
+
+	/**
+	 * Update the size of the cache and delete the least recently used
+	 * files if it is over the maximum size
+	 *
+	 * @param length number of bytes added to the cache (negative if it shrank)
+	 */
+	private synchronized void addToSize(final long length)
+	{
+		if( currentSize < 0 )
+		{
+			currentSize = 0;
+			for(final File file : listFiles())
+				currentSize += file.length();
+		}
+		else
+			currentSize += length;
+
+		if( currentSize <= maximumSize )
+			return;
+
+		final File[] files = listFiles();
+		final long[] lastModified = new long[ files.length ];
+		for(int i = 0; i < files.length; i++)
+			lastModified[ i ] = files[ i ].lastModified();
+		final Integer[] order = new Integer[ files.length ];
+		for(int i = 0; i < files.length; i++)
+			order[ i ] = i;
+		Arrays.sort( order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return lastModified[ a ] < lastModified[ b ] ? -1 : (lastModified[ a ] > lastModified[ b ] ? 1 : 0);
+			}
+		});
+
+		for(int i = 0; i < order.length && currentSize > maximumSize; i++)
+		{
+			final File file = files[ order[ i ] ];
+			final long fileLength = file.length();
+			if( file.delete() )
+				currentSize -= fileLength;
+		}
+	}
+
+	/**
+	 * List the cached feature files
+	 *
+	 * @return array of cached feature files
+	 */
+	private File[] listFiles()
+	{
+		final File[] files = folder.listFiles();
+		if( null == files )
+			return new File[ 0 ];
+		int n = 0;
+		for(final File file : files)
+			if( file.getName().endsWith( EXTENSION ) )
+				files[ n++ ] = file;
+		return Arrays.copyOf( files, n );
+	}
+
+	/**
+	 * Get the file storing the features of a filter on a slice
+	 *
+	 * @param sliceHash hash of the source slice
+	 * @param filterKey filter name and parameters
+	 * @return feature file
+	 */
+	private File getFile(
+			final String sliceHash,
+			final String filterKey)
+	{
+		final MessageDigest digest = getDigest();
+		try {
+			digest.update( sliceHash.getBytes( "UTF-8" ) );
+			digest.update( filterKey.getBytes( "UTF-8" ) );
+		} catch (IOException e) {
+			throw new RuntimeException( e );
+		}
+		return new File( folder, toHex( digest.digest() ) + EXTENSION );
+	}
+
+	/**
+	 * Get a SHA-1 message digest
+	 */
+	private static MessageDigest getDigest()
+	{
+		try {
+			return MessageDigest.getInstance( "SHA-1" );
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * Convert bytes to a hexadecimal string
+	 */
+	private static String toHex(final byte[] bytes)
+	{
+		final StringBuilder builder = new StringBuilder();
+		for(final byte b : bytes)
+			builder.append( String.format( "%02x", b & 0xff ) );
+		return builder.toString();
+	}
+
+	/**
+	 * Close a file ignoring errors
+	 */
+	private static void close(final RandomAccessFile raf)
+	{
+		if( null == raf )
+			return;
+		try {
+			raf.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+}
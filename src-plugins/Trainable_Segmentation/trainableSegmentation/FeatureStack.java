@@ -201,6 +201,16 @@
 	/** executor service to produce concurrent threads */
 	ExecutorService exe = Executors.newFixedThreadPool( Prefs.getThreads() );
 	
+	/** version of the filter implementations, it must be increased every time
+	 * a filter changes its results so they are not read from old cache entries */
+	public static final int FEATURES_VERSION = 1;
+	/** cache to store/read the filter results (null to always calculate them) */
+	private FeatureCache featureCache = null;
+	/** hash of the original image (used as key in the feature cache) */
+	private String originalHash = null;
+	/** Gaussian blurs of the original image shared by the filters */
+	private ScaleSpace scaleSpace = null;
+	
 	/**
 	 * Construct object to store stack of image features
 	 * @param image original image
@@ -320,16 +330,104 @@ public void setMembranePatchSize(int patchSize)
 			patchSize ++;
 		this.membranePatchSize = patchSize;
 	}
-	
+
+	/**
+	 * Get the distance (in pixels) up to which the values of the enabled
+	 * features of a pixel depend on its neighbors, i.e. the largest radius
+	 * of the kernels used to calculate them. Classifying an image by tiles
+	 * gives the same result as classifying it at once if every tile is
+	 * padded by this distance.
+	 *
+	 * @return support radius of the enabled features, or -1 if some of them
+	 * depend on the whole image (anisotropic diffusion, bilateral and
+	 * Lipschitz filters rescale or propagate over the full intensity range)
+	 */
+	public int getSupportRadius()
+	{
+		if( enableFeatures[ ANISOTROPIC_DIFFUSION ] || enableFeatures[ BILATERAL ] || enableFeatures[ LIPSCHITZ ] )
+			return -1;
+
+		int radius = useNeighbors ? 1 : 0;
+
+		// Sobel and Hessian filters without blur
+		if( minimumSigma < 2 )
+		{
+			if( enableFeatures[ SOBEL ] )
+				radius = Math.max( radius, 1 );
+			if( enableFeatures[ HESSIAN ] )
+				radius = Math.max( radius, 2 );
+		}
+
+		for (float i=minimumSigma; i<= maximumSigma; i *=2)
+		{
+			final int gaussian = getGaussianSupport( i );
+			// Gaussian blur and difference of Gaussians
+			if( enableFeatures[ GAUSSIAN ] || enableFeatures[ DOG ] )
+				radius = Math.max( radius, gaussian );
+			// blur followed by one or two 3x3 Sobel kernels
+			if( enableFeatures[ SOBEL ] )
+				radius = Math.max( radius, gaussian + 1 );
+			if( enableFeatures[ HESSIAN ] )
+				radius = Math.max( radius, gaussian + 2 );
+			// circular kernels of the rank filters
+			if( enableFeatures[ VARIANCE ] || enableFeatures[ MEAN ] || enableFeatures[ MINIMUM ]
+			     || enableFeatures[ MAXIMUM ] || enableFeatures[ MEDIAN ] )
+				radius = Math.max( radius, (int) Math.sqrt( i * i + 1 ) );
+			if( enableFeatures[ ENTROPY ] )
+				radius = Math.max( radius, (int) i );
+			// imagescience truncates the Gaussian derivative kernels at 3, 4
+			// and 5 standard deviations (smoothing, orders 1-2, higher orders)
+			if( enableFeatures[ DERIVATIVES ] )
+				radius = Math.max( radius, (int) ( i * ( maxDerivativeOrder > 2 ? 5 : 4 ) ) );
+			if( enableFeatures[ LAPLACIAN ] )
+				radius = Math.max( radius, (int) ( i * 4 ) );
+			// first derivatives smoothed at the largest integration scale (3)
+			if( enableFeatures[ STRUCTURE ] )
+				radius = Math.max( radius, (int) ( i * 4 ) + 3 * 3 );
+		}
+
+		if( enableFeatures[ MEMBRANE ] )
+			radius = Math.max( radius, membranePatchSize / 2 );
+		// mean and variance along the oriented lines around the pixel
+		if( enableFeatures[ KUWAHARA ] )
+			radius = Math.max( radius, membranePatchSize );
+		// the largest Gabor kernels use sigma = 4 (6 * sigma + 1 pixels wide)
+		if( enableFeatures[ GABOR ] )
+			radius = Math.max( radius, 3 * 4 );
+
+		return radius;
+	}
+
+	/**
+	 * Get the radius of the kernel used by {@link GaussianBlur#blur(ImageProcessor, double)},
+	 * measured as the farthest pixel reached by the blur of a single point
+	 *
+	 * @param sigma Gaussian radius
+	 * @return kernel radius (in pixels)
+	 */
+	private static int getGaussianSupport(float sigma)
+	{
+		final int center = (int) Math.ceil( 3 * sigma ) + 20;
+		final FloatProcessor impulse = new FloatProcessor( 2 * center + 1, 1 );
+		impulse.setf( center, 0, 1 );
+		new GaussianBlur().blur( impulse, sigma );
+		int support = 0;
+		for(int x = 0; x < center; x++)
+			if( impulse.getf( x, 0 ) != 0 || impulse.getf( 2 * center - x, 0 ) != 0 )
+			{
+				support = center - x;
+				break;
+			}
+		return support;
+	}
+
 	/**
 	 * Add Gaussian blur slice to current stack
 	 * @param sigma Gaussian radius
 	 */
 	public void addGaussianBlur(float sigma)
 	{
-		ImageProcessor ip = originalImage.getProcessor().duplicate();
-		GaussianBlur gs = new GaussianBlur();
-		gs.blur(ip, sigma);
+		ImageProcessor ip = getBlurredOriginal(originalImage, sigma);
 		wholeStack.addSlice(availableFeatures[GAUSSIAN] + "_" + sigma, ip);
 	}
 	/**
@@ -348,9 +446,7 @@ public Callable<ImagePlus> getGaussianBlur(
 		return new Callable<ImagePlus>(){
 			public ImagePlus call(){
 		
-				ImageProcessor ip = originalImage.getProcessor().duplicate();
-				GaussianBlur gs = new GaussianBlur();
-				gs.blur(ip, sigma);
+				ImageProcessor ip = getBlurredOriginal(originalImage, sigma);
 				return new ImagePlus (availableFeatures[GAUSSIAN] + "_" + sigma, ip);
 			}
 		};
@@ -671,15 +767,12 @@ public void addGradient(float sigma)
 		for(int ch=0; ch < channels.length; ch++)
 		{
 
-			GaussianBlur gs = new GaussianBlur();
-			ImageProcessor ip_x = channels[ch].getProcessor().convertToFloat();
-			gs.blur(ip_x, sigma);
+			ImageProcessor ip_x = getBlurredChannel(originalImage, channels, ch, sigma);
 			Convolver c = new Convolver();
 			float[] sobelFilter_x = {1f,2f,1f,0f,0f,0f,-1f,-2f,-1f};
 			c.convolveFloat(ip_x, sobelFilter_x, 3, 3);
 
-			ImageProcessor ip_y = channels[ch].getProcessor().convertToFloat();
-			gs.blur(ip_y, sigma);
+			ImageProcessor ip_y = getBlurredChannel(originalImage, channels, ch, sigma);
 			c = new Convolver();
 			float[] sobelFilter_y = {1f,0f,-1f,2f,0f,-2f,1f,0f,-1f};
 			c.convolveFloat(ip_y, sobelFilter_y, 3, 3);
@@ -725,15 +818,12 @@ public ImagePlus call(){
 				for(int ch=0; ch < channels.length; ch++)
 				{
 
-					GaussianBlur gs = new GaussianBlur();
-					ImageProcessor ip_x = channels[ch].getProcessor().convertToFloat();
-					gs.blur(ip_x, sigma);
+					ImageProcessor ip_x = getBlurredChannel(originalImage, channels, ch, sigma);
 					Convolver c = new Convolver();
 					float[] sobelFilter_x = {1f,2f,1f,0f,0f,0f,-1f,-2f,-1f};
 					c.convolveFloat(ip_x, sobelFilter_x, 3, 3);
 
-					ImageProcessor ip_y = channels[ch].getProcessor().convertToFloat();
-					gs.blur(ip_y, sigma);
+					ImageProcessor ip_y = getBlurredChannel(originalImage, channels, ch, sigma);
 					c = new Convolver();
 					float[] sobelFilter_y = {1f,0f,-1f,2f,0f,-2f,1f,0f,-1f};
 					c.convolveFloat(ip_y, sobelFilter_y, 3, 3);
@@ -768,7 +858,6 @@ public void addHessian(float sigma)
 		float[] sobelFilter_x = {1f,2f,1f,0f,0f,0f,-1f,-2f,-1f};
 		float[] sobelFilter_y = {1f,0f,-1f,2f,0f,-2f,1f,0f,-1f};
 		Convolver c = new Convolver();				
-		GaussianBlur gs = new GaussianBlur();
 	
 		// Get channel(s) to process
 		ImagePlus[] channels = extractChannels(originalImage);
@@ -778,12 +867,10 @@ public void addHessian(float sigma)
 		for(int ch=0; ch < channels.length; ch++)
 		{
 		
-			ImageProcessor ip_x = channels[ch].getProcessor().convertToFloat();
-			gs.blur(ip_x, sigma);		
+			ImageProcessor ip_x = getBlurredChannel(originalImage, channels, ch, sigma);
 			c.convolveFloat(ip_x, sobelFilter_x, 3, 3);		
 
-			ImageProcessor ip_y = channels[ch].getProcessor().convertToFloat();
-			gs.blur(ip_y, sigma);
+			ImageProcessor ip_y = getBlurredChannel(originalImage, channels, ch, sigma);
 			c = new Convolver();
 			c.convolveFloat(ip_y, sobelFilter_y, 3, 3);
 
@@ -904,7 +991,6 @@ public ImagePlus call(){
 				float[] sobelFilter_x = {1f,2f,1f,0f,0f,0f,-1f,-2f,-1f};
 				float[] sobelFilter_y = {1f,0f,-1f,2f,0f,-2f,1f,0f,-1f};
 				Convolver c = new Convolver();				
-				GaussianBlur gs = new GaussianBlur();
 
 				// Get channel(s) to process
 				ImagePlus[] channels = extractChannels(originalImage);
@@ -914,12 +1000,10 @@ public ImagePlus call(){
 				for(int ch=0; ch < channels.length; ch++)
 				{
 
-					ImageProcessor ip_x = channels[ch].getProcessor().convertToFloat();
-					gs.blur(ip_x, sigma);		
+					ImageProcessor ip_x = getBlurredChannel(originalImage, channels, ch, sigma);
 					c.convolveFloat(ip_x, sobelFilter_x, 3, 3);		
 
-					ImageProcessor ip_y = channels[ch].getProcessor().convertToFloat();
-					gs.blur(ip_y, sigma);
+					ImageProcessor ip_y = getBlurredChannel(originalImage, channels, ch, sigma);
 					c = new Convolver();
 					c.convolveFloat(ip_y, sobelFilter_y, 3, 3);
 
@@ -1020,8 +1104,6 @@ public ImagePlus call(){
 	 */
 	public void addDoG(float sigma1, float sigma2)
 	{
-		GaussianBlur gs = new GaussianBlur();
-		
 		// Get channel(s) to process
 		ImagePlus[] channels = extractChannels(originalImage);
 
@@ -1029,10 +1111,8 @@ public void addDoG(float sigma1, float sigma2)
 
 		for(int ch=0; ch < channels.length; ch++)
 		{
-			ImageProcessor ip_1 = channels[ch].getProcessor().duplicate();
-			gs.blur(ip_1, sigma1);
-			ImageProcessor ip_2 = channels[ch].getProcessor().duplicate();
-			gs.blur(ip_2, sigma2);
+			ImageProcessor ip_1 = getBlurredChannel(originalImage, channels, ch, sigma1);
+			ImageProcessor ip_2 = getBlurredChannel(originalImage, channels, ch, sigma2);
 
 			ImageProcessor ip = new FloatProcessor(width, height);
 
@@ -1072,7 +1152,6 @@ public ImagePlus call(){
 				final int width = originalImage.getWidth();
 				final int height = originalImage.getHeight();
 				
-				GaussianBlur gs = new GaussianBlur();
 				// Get channel(s) to process
 				ImagePlus[] channels = extractChannels(originalImage);
 
@@ -1080,10 +1159,8 @@ public ImagePlus call(){
 
 				for(int ch=0; ch < channels.length; ch++)
 				{
-					ImageProcessor ip_1 = channels[ch].getProcessor().duplicate();
-					gs.blur(ip_1, sigma1);
-					ImageProcessor ip_2 = channels[ch].getProcessor().duplicate();
-					gs.blur(ip_2, sigma2);
+					ImageProcessor ip_1 = getBlurredChannel(originalImage, channels, ch, sigma1);
+					ImageProcessor ip_2 = getBlurredChannel(originalImage, channels, ch, sigma2);
 
 					ImageProcessor ip = new FloatProcessor(width, height);
 
@@ -1256,6 +1333,68 @@ public ImagePlus call(){
 	}
 	
 
+	/**
+	 * Get the scale space of the original image, creating it if necessary
+	 * @return Gaussian scale space of the original image channels
+	 */
+	private synchronized ScaleSpace getScaleSpace()
+	{
+		if( null == scaleSpace )
+			scaleSpace = new ScaleSpace( extractChannels( originalImage ) );
+		return scaleSpace;
+	}
+
+	/**
+	 * Release the Gaussian blurs stored while calculating the features
+	 */
+	private synchronized void clearScaleSpace()
+	{
+		scaleSpace = null;
+	}
+
+	/**
+	 * Get a channel blurred by a Gaussian. The blurs of the original image
+	 * are shared between filters through the scale space.
+	 * @param image input image
+	 * @param channels channels of the input image
+	 * @param ch channel index
+	 * @param sigma Gaussian radius
+	 * @return blurred channel (float)
+	 */
+	private ImageProcessor getBlurredChannel(
+			final ImagePlus image,
+			final ImagePlus[] channels,
+			final int ch,
+			final float sigma)
+	{
+		if( image == originalImage )
+			return getScaleSpace().getBlurred( ch, sigma );
+
+		final ImageProcessor ip = channels[ ch ].getProcessor().duplicate();
+		new GaussianBlur().blur( ip, sigma );
+		return ip;
+	}
+
+	/**
+	 * Get the input image blurred by a Gaussian. The image is blurred in its
+	 * own type (8 and 16-bit blurs are rounded), so only 32-bit images can
+	 * reuse the shared scale space of the original image.
+	 * @param image input image
+	 * @param sigma Gaussian radius
+	 * @return blurred image
+	 */
+	private ImageProcessor getBlurredOriginal(
+			final ImagePlus image,
+			final float sigma)
+	{
+		if( image == originalImage && image.getType() == ImagePlus.GRAY32 )
+			return getScaleSpace().getBlurred( 0, sigma );
+
+		final ImageProcessor ip = image.getProcessor().duplicate();
+		new GaussianBlur().blur( ip, sigma );
+		return ip;
+	}
+
 	/**
 	 * Extract channels from input image if it is RGB
 	 * @param originalImage input image
@@ -2610,6 +2749,7 @@ public void addFeaturesMT(final ImagePlus filterList)
 		}
 		finally{
 			exe.shutdown();
+			clearScaleSpace();
 		}	
 		
 	}
@@ -2621,6 +2761,9 @@ public void addFeaturesMT(final ImagePlus filterList)
 	 */
 	public boolean updateFeaturesST()
 	{
+		if( null != featureCache )
+			return updateFeaturesCachedST();
+		
 		wholeStack = new ImageStack(width, height);
 		if( originalImage.getType() == ImagePlus.COLOR_RGB)
 		{		
@@ -2830,9 +2973,58 @@ public boolean updateFeaturesST()
 		
 		IJ.showProgress(1.0);
 		IJ.showStatus("Features stack is updated now!");
+		clearScaleSpace();
 		return true;
 	}
 
+	/**
+	 * Update features with current list in a single thread, reading the
+	 * features from the feature cache when they are there (the features
+	 * missing in the cache are calculated and stored in it)
+	 * 
+	 * @return true if the features are correctly updated
+	 */
+	private boolean updateFeaturesCachedST()
+	{
+		wholeStack = new ImageStack(width, height);
+		if( originalImage.getType() == ImagePlus.COLOR_RGB)
+			wholeStack.addSlice("original", originalImage.getProcessor().duplicate());
+		else
+			wholeStack.addSlice("original", originalImage.getProcessor().duplicate().convertToFloat());
+		
+		final ArrayList< Callable<ImagePlus> > filters = createFilters( true );
+		if( null == filters )
+			return false;
+		
+		try{
+			for(Callable<ImagePlus> filter : filters)
+			{
+				if (Thread.currentThread().isInterrupted()) 
+					return false;
+				final ImagePlus res = filter.call();
+				if(res.getImageStackSize() == 1)
+					this.wholeStack.addSlice(res.getTitle(), res.getProcessor());
+				else
+				{
+					final ImageStack slices = res.getImageStack();
+					for(int i = 1; i <= slices.getSize() ; i++)
+						this.wholeStack.addSlice(slices.getSliceLabel(i), slices.getProcessor(i));
+				}
+			}
+		}
+		catch(Exception ex)
+		{
+			IJ.log("Error when updating feature stack.");
+			ex.printStackTrace();
+			return false;
+		}
+		
+		IJ.showProgress(1.0);
+		IJ.showStatus("Features stack is updated now!");
+		clearScaleSpace();
+		return true;
+	}
+	
 	/**
 	 * Add HSB features
 	 */
@@ -2871,6 +3063,232 @@ public ImagePlus call(){
 	}
 	
 	
+	/**
+	 * Create the list of filters to apply on the original image in order
+	 * to calculate the enabled features (in the order of the stack slices).
+	 * Every filter reads its result from the feature cache when possible.
+	 * 
+	 * @param hsbFirst flag to put the HSB channels of color images before
+	 * any other feature (as in {@link #updateFeaturesST()}) or after the
+	 * anisotropic diffusion (as in {@link #updateFeaturesMT()})
+	 * @return list of filters or null if the thread was interrupted
+	 */
+	private ArrayList< Callable<ImagePlus> > createFilters(final boolean hsbFirst)
+	{
+		final ArrayList< Callable<ImagePlus> > filters = new ArrayList< Callable<ImagePlus> >();
+		
+		// HSB
+		if( hsbFirst && originalImage.getType() == ImagePlus.COLOR_RGB)
+			filters.add( cached( getHSB(originalImage), "HSB" ) );
+		
+		// Anisotropic Diffusion
+		if(enableFeatures[ANISOTROPIC_DIFFUSION])
+		{
+			//for(int i = 1; i < 8; i += 3)
+			for (float i=minimumSigma; i<= maximumSigma; i *=2)
+				for(float j = 0.10f; j < 0.5f; j+= 0.25f)
+				{
+					if (Thread.currentThread().isInterrupted()) 
+						return null;
+					//IJ.log( n++ +": Calculating anisotropic diffusion (20, 20, " + i + ", " + j + ", 0.9f" + ", " + membraneSize + ")");
+				//for(float j = 0.10f; j <= 0.5f; j+= 0.2f)
+					//for(float k = 0.5f; k < 6f; k+= 1f)
+						filters.add( cached( getAnisotropicDiffusion(originalImage, 20, 20,(int) i, j, 0.9f, (float) membraneSize), "AnisotropicDiffusion", 20, 20,(int) i, j, 0.9f, (float) membraneSize ) );
+						//filters.add( getAnisotropicDiffusion(originalImage, 20, 20, (int) i, j, 0.9f, k) );
+				}				
+		}
+		
+		// HSB
+		if( !hsbFirst && originalImage.getType() == ImagePlus.COLOR_RGB)
+			filters.add( cached( getHSB(originalImage), "HSB" ) );
+		
+		// Bilateral filter
+		if(enableFeatures[BILATERAL])			
+		{
+			for(double i = 5; i < 20; i *= 2)
+				for(double j = 50; j <= 100; j*= 2)
+				{
+					if (Thread.currentThread().isInterrupted()) 
+						return null;
+					//IJ.log( n++ +": Calculating bilateral filter (" + i + ", " + j + ")");
+					filters.add( cached( getBilateralFilter(originalImage, i, j), "BilateralFilter", i, j ) );
+				}
+		}
+		
+		// Lipschitz filter
+		if(enableFeatures[LIPSCHITZ])			
+		{
+			for(double i = 5; i < 30; i += 5)					
+			{
+				if (Thread.currentThread().isInterrupted()) 
+					return null;
+				//IJ.log( n++ +": Calculating Lipschitz filter (true, true, " + i + ")");
+				filters.add( cached( getLipschitzFilter(originalImage, true, true, i), "LipschitzFilter", true, true, i ) );
+			}
+		}
+		
+		// Kuwahara filter
+		if(enableFeatures[KUWAHARA])			
+		{			
+			for(int i = 0; i < 3; i++)
+			{
+				if (Thread.currentThread().isInterrupted()) 
+					return null;
+				//IJ.log( n++ +": Calculating Kuwahara filter (" + membranePatchSize + ", " + nAngles + ", " + i + ")");
+				filters.add( cached( getKuwaharaFeatures(originalImage, membranePatchSize, nAngles, i), "KuwaharaFeatures", membranePatchSize, nAngles, i ) );
+			}
+		}
+		
+		// Gabor filters
+		if ( enableFeatures[ GABOR ] )
+		{				
+			// elongated filters in y- axis (sigma = 1.0, gamma = [1.0 - 0.25])
+			for(int i=0; i < 2; i++)
+				for(double gamma = 1; gamma >= 0.25; gamma /= 2)						
+					for(int frequency = 2; frequency<3; frequency ++)
+					{
+						if (Thread.currentThread().isInterrupted()) 
+							return null;
+						final double psi = Math.PI / 2 * i;
+						//System.out.println( " Calculating Gabor filter (1.0, " + gamma + ", " + psi + ", " + frequency + ", " + nAngles + ")");
+						filters.add( cached( getGabor(originalImage, 1.0, gamma, psi, frequency, nAngles), "Gabor", 1.0, gamma, psi, frequency, nAngles ) );
+					}
+			// elongated filters in x- axis (sigma = [2.0 - 4.0], gamma = [1.0 - 2.0])
+			for(int i=0; i < 2; i++)
+				for(double sigma = 2.0; sigma <= 4.0; sigma *= 2)					
+					for(double gamma = 1.0; gamma <= 2.0; gamma *= 2)
+						for(int frequency = 2; frequency<=3; frequency ++)
+						{
+							if (Thread.currentThread().isInterrupted()) 
+								return null;
+							final double psi = Math.PI / 2 * i;
+							//System.out.println( " Calculating Gabor filter (" + sigma + " , " + gamma + ", " + psi + ", " + frequency + ", " + nAngles + ")");
+							filters.add( cached( getGabor(originalImage, sigma, gamma, psi, frequency, nAngles), "Gabor", sigma, gamma, psi, frequency, nAngles ) );
+						}								
+		}
+		
+		// Sobel (no blur)
+		if(enableFeatures[SOBEL] && minimumSigma < 2)
+		{
+			if ( Thread.currentThread().isInterrupted() ) 
+				return null;
+			//IJ.log(n++ + ": Calculating Sobel filter (0.0)");
+			filters.add( cached( getGradient(originalImage, 0), "Gradient", 0 ) );
+		}
+		// Hessian (no blur)
+		if(enableFeatures[HESSIAN] && minimumSigma < 2)
+		{
+			if (Thread.currentThread().isInterrupted()) 
+				return null;
+			//IJ.log( n++ +": Calculating Hessian filter (0.0)");
+			filters.add( cached( getHessian(originalImage, 0), "Hessian", 0 ) );
+		}
+		
+		
+		for (float i=minimumSigma; i<= maximumSigma; i *=2)
+		{		
+			if (Thread.currentThread().isInterrupted()) 
+				return null;
+			// Gaussian blur
+			if(enableFeatures[GAUSSIAN])
+			{
+				//IJ.log( n++ +": Calculating Gaussian filter ("+ i + ")");
+				filters.add( cached( getGaussianBlur(originalImage, i), "GaussianBlur", i ) );
+			}
+			// Sobel
+			if(enableFeatures[SOBEL])
+			{
+				//IJ.log( n++ +": Calculating Sobel filter ("+ i + ")");
+				filters.add( cached( getGradient(originalImage, i), "Gradient", i ) );
+			}
+			// Hessian
+			if(enableFeatures[HESSIAN])
+			{
+				//IJ.log("Calculating Hessian filter ("+ i + ")");
+				filters.add( cached( getHessian(originalImage, i), "Hessian", i ) );
+			}
+			// Difference of gaussians
+			if(enableFeatures[DOG])
+			{
+				for (float j=minimumSigma; j<i; j*=2)
+				{
+					//IJ.log( n++ +": Calculating DoG filter ("+ i + ", " + j + ")");
+					filters.add( cached( getDoG(originalImage, i, j), "DoG", i, j ) );
+				}
+			}
+			// Variance
+			if(enableFeatures[VARIANCE])
+			{
+				//IJ.log( n++ +": Calculating Variance filter ("+ i + ")");
+				filters.add( cached( getVariance(originalImage, i), "Variance", i ) );
+			}
+			// Mean
+			if(enableFeatures[MEAN])
+			{
+				//IJ.log( n++ +": Calculating Mean filter ("+ i + ")");
+				filters.add( cached( getMean(originalImage, i), "Mean", i ) );
+			}
+
+			// Min
+			if(enableFeatures[MINIMUM])
+			{
+				//IJ.log( n++ +": Calculating Minimum filter ("+ i + ")");
+				filters.add( cached( getMin(originalImage, i), "Min", i ) );
+			}
+			// Max
+			if(enableFeatures[MAXIMUM])
+			{
+				//IJ.log( n++ +": Calculating Maximum filter ("+ i + ")");
+				filters.add( cached( getMax(originalImage, i), "Max", i ) );
+			}
+		
+			// Median
+			if(enableFeatures[MEDIAN])
+			{
+				//IJ.log( n++ +": Calculating Median filter ("+ i + ")");
+				filters.add( cached( getMedian(originalImage, i), "Median", i ) );
+			}
+			
+			// Derivatives
+			if(enableFeatures[DERIVATIVES])
+			{					
+				for(int order = minDerivativeOrder; order<=maxDerivativeOrder; order++)
+					filters.add( cached( getDerivatives(originalImage, i, order, order), "Derivatives", i, order, order ) );
+			}
+			
+			// Laplacian
+			if(enableFeatures[LAPLACIAN])
+			{
+				filters.add( cached( getLaplacian(originalImage, i), "Laplacian", i ) );
+			}
+			
+			// Structure tensor
+			if(enableFeatures[ STRUCTURE ])
+			{					
+				for(int integrationScale = 1; integrationScale <= 3; integrationScale+=2)
+					filters.add( cached( getStructure(originalImage, i, integrationScale ), "Structure", i, integrationScale ) );
+			}
+			
+			// Entropy
+			if(enableFeatures[ENTROPY])
+			{
+				for(int nBins = 32; nBins <= 256; nBins *=2)
+					filters.add( cached( getEntropy(originalImage, (int) i, nBins), "Entropy", (int) i, nBins ) );
+			}
+
+		}
+		// Membrane projections
+		if(enableFeatures[MEMBRANE])
+		{
+			if (Thread.currentThread().isInterrupted()) 
+				return null;
+			//IJ.log( n++ +": Calculating Membranes projections ("+ membranePatchSize + ", " + membraneSize + ")");
+			filters.add( cached( getMembraneFeatures(originalImage, membranePatchSize, membraneSize), "MembraneFeatures", membranePatchSize, membraneSize, nAngles ) );
+		}
+		
+		return filters;
+	}
+	
 	/**
 	 * Update features with current list in a multi-thread fashion
 	 * 
@@ -2902,211 +3320,12 @@ public boolean updateFeaturesMT()
 		IJ.showStatus("Updating features...");
 		try{
 			
-			// Anisotropic Diffusion
-			if(enableFeatures[ANISOTROPIC_DIFFUSION])
-			{
-				//for(int i = 1; i < 8; i += 3)
-				for (float i=minimumSigma; i<= maximumSigma; i *=2)
-					for(float j = 0.10f; j < 0.5f; j+= 0.25f)
-					{
-						if (Thread.currentThread().isInterrupted()) 
-							return false;
-						//IJ.log( n++ +": Calculating anisotropic diffusion (20, 20, " + i + ", " + j + ", 0.9f" + ", " + membraneSize + ")");
-					//for(float j = 0.10f; j <= 0.5f; j+= 0.2f)
-						//for(float k = 0.5f; k < 6f; k+= 1f)
-							futures.add(exe.submit( getAnisotropicDiffusion(originalImage, 20, 20,(int) i, j, 0.9f, (float) membraneSize) ) );
-							//futures.add(exe.submit( getAnisotropicDiffusion(originalImage, 20, 20, (int) i, j, 0.9f, k) ) );
-					}				
-			}
-			
-			// HSB
-			if( originalImage.getType() == ImagePlus.COLOR_RGB)
-				futures.add(exe.submit( getHSB(originalImage) ) );
-			
-			// Bilateral filter
-			if(enableFeatures[BILATERAL])			
-			{
-				for(double i = 5; i < 20; i *= 2)
-					for(double j = 50; j <= 100; j*= 2)
-					{
-						if (Thread.currentThread().isInterrupted()) 
-							return false;
-						//IJ.log( n++ +": Calculating bilateral filter (" + i + ", " + j + ")");
-						futures.add(exe.submit( getBilateralFilter(originalImage, i, j) ) );
-					}
-			}
-			
-			// Lipschitz filter
-			if(enableFeatures[LIPSCHITZ])			
-			{
-				for(double i = 5; i < 30; i += 5)					
-				{
-					if (Thread.currentThread().isInterrupted()) 
-						return false;
-					//IJ.log( n++ +": Calculating Lipschitz filter (true, true, " + i + ")");
-					futures.add(exe.submit( getLipschitzFilter(originalImage, true, true, i) ) );
-				}
-			}
-			
-			// Kuwahara filter
-			if(enableFeatures[KUWAHARA])			
-			{			
-				for(int i = 0; i < 3; i++)
-				{
-					if (Thread.currentThread().isInterrupted()) 
-						return false;
-					//IJ.log( n++ +": Calculating Kuwahara filter (" + membranePatchSize + ", " + nAngles + ", " + i + ")");
-					futures.add(exe.submit( getKuwaharaFeatures(originalImage, membranePatchSize, nAngles, i) ) );
-				}
-			}
-			
-			// Gabor filters
-			if ( enableFeatures[ GABOR ] )
-			{				
-				// elongated filters in y- axis (sigma = 1.0, gamma = [1.0 - 0.25])
-				for(int i=0; i < 2; i++)
-					for(double gamma = 1; gamma >= 0.25; gamma /= 2)						
-						for(int frequency = 2; frequency<3; frequency ++)
-						{
-							if (Thread.currentThread().isInterrupted()) 
-								return false;
-							final double psi = Math.PI / 2 * i;
-							//System.out.println( " Calculating Gabor filter (1.0, " + gamma + ", " + psi + ", " + frequency + ", " + nAngles + ")");
-							futures.add(exe.submit( getGabor(originalImage, 1.0, gamma, psi, frequency, nAngles) ) );
-						}
-				// elongated filters in x- axis (sigma = [2.0 - 4.0], gamma = [1.0 - 2.0])
-				for(int i=0; i < 2; i++)
-					for(double sigma = 2.0; sigma <= 4.0; sigma *= 2)					
-						for(double gamma = 1.0; gamma <= 2.0; gamma *= 2)
-							for(int frequency = 2; frequency<=3; frequency ++)
-							{
-								if (Thread.currentThread().isInterrupted()) 
-									return false;
-								final double psi = Math.PI / 2 * i;
-								//System.out.println( " Calculating Gabor filter (" + sigma + " , " + gamma + ", " + psi + ", " + frequency + ", " + nAngles + ")");
-								futures.add(exe.submit( getGabor(originalImage, sigma, gamma, psi, frequency, nAngles) ) );
-							}								
-			}
-			
-			// Sobel (no blur)
-			if(enableFeatures[SOBEL] && minimumSigma < 2)
-			{
-				if ( Thread.currentThread().isInterrupted() ) 
-					return false;
-				//IJ.log(n++ + ": Calculating Sobel filter (0.0)");
-				futures.add(exe.submit( getGradient(originalImage, 0)) );
-			}
-			// Hessian (no blur)
-			if(enableFeatures[HESSIAN] && minimumSigma < 2)
-			{
-				if (Thread.currentThread().isInterrupted()) 
-					return false;
-				//IJ.log( n++ +": Calculating Hessian filter (0.0)");
-				futures.add(exe.submit( getHessian(originalImage, 0)) );
-			}
-			
-			
-			for (float i=minimumSigma; i<= maximumSigma; i *=2)
-			{		
-				if (Thread.currentThread().isInterrupted()) 
-					return false;
-				// Gaussian blur
-				if(enableFeatures[GAUSSIAN])
-				{
-					//IJ.log( n++ +": Calculating Gaussian filter ("+ i + ")");
-					futures.add(exe.submit( getGaussianBlur(originalImage, i)) );
-				}
-				// Sobel
-				if(enableFeatures[SOBEL])
-				{
-					//IJ.log( n++ +": Calculating Sobel filter ("+ i + ")");
-					futures.add(exe.submit( getGradient(originalImage, i)) );
-				}
-				// Hessian
-				if(enableFeatures[HESSIAN])
-				{
-					//IJ.log("Calculating Hessian filter ("+ i + ")");
-					futures.add(exe.submit( getHessian(originalImage, i)) );
-				}
-				// Difference of gaussians
-				if(enableFeatures[DOG])
-				{
-					for (float j=minimumSigma; j<i; j*=2)
-					{
-						//IJ.log( n++ +": Calculating DoG filter ("+ i + ", " + j + ")");
-						futures.add(exe.submit( getDoG(originalImage, i, j)) );
-					}
-				}
-				// Variance
-				if(enableFeatures[VARIANCE])
-				{
-					//IJ.log( n++ +": Calculating Variance filter ("+ i + ")");
-					futures.add(exe.submit( getVariance(originalImage, i)) );
-				}
-				// Mean
-				if(enableFeatures[MEAN])
-				{
-					//IJ.log( n++ +": Calculating Mean filter ("+ i + ")");
-					futures.add(exe.submit( getMean(originalImage, i)) );
-				}
-
-				// Min
-				if(enableFeatures[MINIMUM])
-				{
-					//IJ.log( n++ +": Calculating Minimum filter ("+ i + ")");
-					futures.add(exe.submit( getMin(originalImage, i)) );
-				}
-				// Max
-				if(enableFeatures[MAXIMUM])
-				{
-					//IJ.log( n++ +": Calculating Maximum filter ("+ i + ")");
-					futures.add(exe.submit( getMax(originalImage, i)) );
-				}
+			final ArrayList< Callable<ImagePlus> > filters = createFilters( false );
+			if( null == filters )
+				return false;
+			for(Callable<ImagePlus> filter : filters)
+				futures.add( exe.submit( filter ) );
 			
-				// Median
-				if(enableFeatures[MEDIAN])
-				{
-					//IJ.log( n++ +": Calculating Median filter ("+ i + ")");
-					futures.add(exe.submit( getMedian(originalImage, i)) );
-				}
-				
-				// Derivatives
-				if(enableFeatures[DERIVATIVES])
-				{					
-					for(int order = minDerivativeOrder; order<=maxDerivativeOrder; order++)
-						futures.add(exe.submit( getDerivatives(originalImage, i, order, order)) );
-				}
-				
-				// Laplacian
-				if(enableFeatures[LAPLACIAN])
-				{
-					futures.add(exe.submit( getLaplacian(originalImage, i)) );
-				}
-				
-				// Structure tensor
-				if(enableFeatures[ STRUCTURE ])
-				{					
-					for(int integrationScale = 1; integrationScale <= 3; integrationScale+=2)
-						futures.add(exe.submit( getStructure(originalImage, i, integrationScale )) );
-				}
-				
-				// Entropy
-				if(enableFeatures[ENTROPY])
-				{
-					for(int nBins = 32; nBins <= 256; nBins *=2)
-						futures.add(exe.submit( getEntropy(originalImage, (int) i, nBins)) );
-				}
-
-			}
-			// Membrane projections
-			if(enableFeatures[MEMBRANE])
-			{
-				if (Thread.currentThread().isInterrupted()) 
-					return false;
-				//IJ.log( n++ +": Calculating Membranes projections ("+ membranePatchSize + ", " + membraneSize + ")");
-				futures.add(exe.submit( getMembraneFeatures(originalImage, membranePatchSize, membraneSize) ));
-			}
-
 			// Wait for the jobs to be done
 			for(Future<ImagePlus> f : futures)
 			{
@@ -3140,6 +3359,7 @@ public boolean updateFeaturesMT()
 		}
 		finally{
 			exe.shutdownNow();
+			clearScaleSpace();
 		}	
 		
 		IJ.showProgress(1.0);
@@ -3147,6 +3367,72 @@ public boolean updateFeaturesMT()
 		return true;
 	}
 	
+	/**
+	 * Set the cache to read the features from and store them in
+	 * @param featureCache feature cache (null to always calculate the features)
+	 */
+	public void setFeatureCache(FeatureCache featureCache)
+	{
+		this.featureCache = featureCache;
+	}
+	
+	/**
+	 * Get the cache used to read and store the features
+	 * @return feature cache (null if there is none)
+	 */
+	public FeatureCache getFeatureCache()
+	{
+		return featureCache;
+	}
+	
+	/**
+	 * Read a filter result from the feature cache, or calculate it and store
+	 * it in the cache if it is not there yet (when there is a cache)
+	 * 
+	 * @param filter filter to apply on the original image
+	 * @param filterName name of the filter
+	 * @param parameters parameters of the filter (they must identify its result)
+	 * @return callable returning the filter result
+	 */
+	private Callable<ImagePlus> cached(
+			final Callable<ImagePlus> filter,
+			final String filterName,
+			final Object... parameters)
+	{
+		if( null == featureCache || null == filter )
+			return filter;
+		
+		final StringBuilder key = new StringBuilder( "v" + FEATURES_VERSION + "_" + filterName );
+		for(final Object parameter : parameters)
+			key.append( '_' ).append( parameter );
+		final String filterKey = key.toString();
+		
+		return new Callable<ImagePlus>(){
+			public ImagePlus call() throws Exception
+			{
+				final String sliceHash = getOriginalHash();
+				ImagePlus result = featureCache.get( sliceHash, filterKey );
+				if( null == result )
+				{
+					result = filter.call();
+					featureCache.put( sliceHash, filterKey, result );
+				}
+				return result;
+			}
+		};
+	}
+	
+	/**
+	 * Get the hash of the original image (calculated only once)
+	 * @return hash of the original image contents
+	 */
+	private synchronized String getOriginalHash()
+	{
+		if( null == originalHash )
+			originalHash = FeatureCache.hash( originalImage.getProcessor() );
+		return originalHash;
+	}
+	
 	/**
 	 * Set list of boolean flags for enabled features
 	 * @param enableFeatures list of boolean flags to enable features
@@ -3277,6 +3563,54 @@ public DenseInstance createInstance(int x, int y, int classValue)
 		return new DenseInstance(1.0, values);
 	}
 	
+	/**
+	 * Get the feature values of all pixels, one array per attribute, in the
+	 * same order as the values of the instances created by
+	 * {@link #createInstance(int, int, int)} (without the class value).
+	 * Float features are not copied.
+	 * 
+	 * @return feature values indexed by attribute and pixel (x + y * width)
+	 */
+	public float[][] getFeatureValues()
+	{
+		final int extra = useNeighbors ? 8 : 0;
+		final int width = getWidth();
+		final int height = getHeight();
+
+		final float[][] values = new float[ getSize() + extra ][];
+		for (int z=1; z<=getSize(); z++)
+		{
+			final ImageProcessor ip = getProcessor(z);
+			if( colorFeatures == false && ip instanceof FloatProcessor )
+				values[z-1] = (float[]) ip.getPixels();
+			else
+			{
+				values[z-1] = new float[ width * height ];
+				for(int y=0, i=0; y<height; y++)
+					for(int x=0; x<width; x++, i++)
+						values[z-1][i] = colorFeatures ? ip.getPixel(x, y) : ip.getPixelValue(x, y);
+			}
+		}
+
+		// neighbors of original image
+		if(useNeighbors)
+		{
+			int n = getSize();
+			for(int i=-1;  i < 2; i++)
+				for(int j = -1; j < 2; j++)
+				{
+					if(i==0 && j==0)
+						continue;
+					values[n] = new float[ width * height ];
+					for(int y=0, k=0; y<height; y++)
+						for(int x=0; x<width; x++, k++)
+							values[n][k] = (float) getPixelMirrorConditions(getProcessor(1), x+i, y+j);
+					n++;
+				}
+		}
+		return values;
+	}
+
 	/**
 	 * Get pixel value from an ImageProcessor with mirror boundary conditions
 	 * @param ip input image
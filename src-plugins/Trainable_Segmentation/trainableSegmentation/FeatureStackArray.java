@@ -60,6 +60,8 @@ public class FeatureStackArray
 	private int membranePatchSize = 19;
 	/** common enabled features */
 	private boolean[] enabledFeatures = null;
+	/** cache to store/read the features of all stacks (null if not used) */
+	private FeatureCache featureCache = null;
 	
 	/**
 	 * Initialize a feature stack list of a specific size
@@ -140,6 +142,15 @@ public void set(FeatureStack fs, int index)
 		this.featureStackArray[ index ] = fs;
 	}
 	
+	/**
+	 * Set the cache to read the features from and store them in
+	 * @param featureCache feature cache (null to always calculate the features)
+	 */
+	public void setFeatureCache(FeatureCache featureCache)
+	{
+		this.featureCache = featureCache;
+	}
+	
 	/**
 	 * Update specific feature stacks in the list (multi-thread fashion)
 	 * 
@@ -169,6 +180,7 @@ public boolean updateFeaturesMT(boolean[] update)
 						featureStackArray[i].setMaximumSigma(maximumSigma);
 						featureStackArray[i].setMinimumSigma(minimumSigma);
 						featureStackArray[i].setUseNeighbors(useNeighbors);
+						featureStackArray[i].setFeatureCache(featureCache);
 						if ( featureStackArray.length == 1 )
 						{
 							if(false == featureStackArray[i].updateFeaturesMT() )							
@@ -235,6 +247,7 @@ public boolean updateFeaturesMT()
 					featureStackArray[i].setMaximumSigma(maximumSigma);
 					featureStackArray[i].setMinimumSigma(minimumSigma);
 					featureStackArray[i].setUseNeighbors(useNeighbors);
+					featureStackArray[i].setFeatureCache(featureCache);
 					if ( featureStackArray.length == 1 )
 					{
 						if(false == featureStackArray[i].updateFeaturesMT() )						
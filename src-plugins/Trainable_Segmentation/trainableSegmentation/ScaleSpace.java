@@ -0,0 +1,129 @@
+package trainableSegmentation;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras (iarganda@mit.edu), Verena Kaynig (verena.kaynig@inf.ethz.ch),
+ *          Albert Cardona (acardona@ini.phys.ethz.ch)
+ */
+
+import ij.ImagePlus;
+
+import ij.plugin.filter.GaussianBlur;
+
+import ij.process.ImageProcessor;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * This class stores the Gaussian blurs of the float channels of an image, so
+ * the filters working at the same scale share them instead of blurring the
+ * image again. Each blur is calculated from the channel itself, exactly as
+ * the filters did on their own, so the features do not change. Different
+ * radii are calculated concurrently; a thread asking for a blur that is
+ * being calculated waits for it.
+ */
+public class ScaleSpace
+{
+	/** float channels of the original image */
+	private final ImageProcessor[] channels;
+	/** blurred channels (being) calculated, indexed by radius */
+	private final ConcurrentHashMap<Float, FutureTask<ImageProcessor>>[] blurs;
+
+	/**
+	 * Create the scale space of a set of channels
+	 *
+	 * @param channels channels of the original image
+	 */
+	@SuppressWarnings("unchecked")
+	public ScaleSpace(final ImagePlus[] channels)
+	{
+		this.channels = new ImageProcessor[ channels.length ];
+		this.blurs = new ConcurrentHashMap[ channels.length ];
+		for(int ch = 0; ch < channels.length; ch++)
+		{
+			this.channels[ ch ] = channels[ ch ].getProcessor().convertToFloat();
+			this.blurs[ ch ] = new ConcurrentHashMap<Float, FutureTask<ImageProcessor>>();
+		}
+	}
+
+	/**
+	 * Get the number of channels
+	 *
+	 * @return number of channels
+	 */
+	public int getNumChannels()
+	{
+		return channels.length;
+	}
+
+	/**
+	 * Get a copy of a channel blurred by a Gaussian
+	 *
+	 * @param ch channel index
+	 * @param radius blur radius (as used in {@link GaussianBlur#blur(ImageProcessor, double)})
+	 * @return blurred channel (it can be modified by the caller)
+	 */
+	public ImageProcessor getBlurred(final int ch, final float radius)
+	{
+		return getBlur( ch, radius ).duplicate();
+	}
+
+	/**
+	 * Get the stored blur of a channel, calculating it if necessary
+	 *
+	 * @param ch channel index
+	 * @param radius blur radius
+	 * @return blurred channel (shared, it must not be modified)
+	 */
+	private ImageProcessor getBlur(final int ch, final float radius)
+	{
+		if( radius <= 0 )
+			return channels[ ch ];
+
+		FutureTask<ImageProcessor> task = blurs[ ch ].get( radius );
+		if( null == task )
+		{
+			final FutureTask<ImageProcessor> newTask = new FutureTask<ImageProcessor>( new Callable<ImageProcessor>() {
+				public ImageProcessor call()
+				{
+					final ImageProcessor blur = channels[ ch ].duplicate();
+					new GaussianBlur().blur( blur, radius );
+					return blur;
+				}
+			});
+			task = blurs[ ch ].putIfAbsent( radius, newTask );
+			if( null == task )
+			{
+				task = newTask;
+				task.run();
+			}
+		}
+
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		} catch (ExecutionException e) {
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+}
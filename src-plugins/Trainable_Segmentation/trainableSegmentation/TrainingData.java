@@ -0,0 +1,627 @@
+package trainableSegmentation;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras (iarganda@mit.edu), Verena Kaynig (verena.kaynig@inf.ethz.ch),
+ *          Albert Cardona (acardona@ini.phys.ethz.ch)
+ */
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Random;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * This class stores training samples column by column: one float array per
+ * attribute plus a vector with the class of each sample. While the samples
+ * are only kept (between images, or until the classifier is trained) they
+ * take less than half of the memory of a set of Weka instances (one object
+ * with a double array per sample).
+ * <p>
+ * Weka still needs its own instances to train, evaluate or save. The ones
+ * created by {@link #toInstances()} and {@link #appendTo(Instances)} do not
+ * copy the values: they read them from the columns of this store, and only
+ * an instance that is modified gets its own copy of its values.
+ */
+public class TrainingData
+{
+	/** attribute information (no instances) */
+	private final Instances header;
+	/** attribute values, indexed by attribute and instance (null for the class) */
+	private final float[][] columns;
+	/** class of each instance (-1 if missing) */
+	private int[] classes;
+	/** weight of each instance (null while all weights are 1) */
+	private double[] weights = null;
+	/** number of stored instances */
+	private int numInstances = 0;
+	/** true while Weka instances read the current class vector */
+	private boolean classesShared = false;
+
+	/**
+	 * Create a training data store with the attributes of a set of instances
+	 * and copy those instances into it. If the class index is not set, the
+	 * last attribute is used as class.
+	 *
+	 * @param data input instances (they can be empty)
+	 */
+	public TrainingData(final Instances data)
+	{
+		this( data, Math.max( 16, data.numInstances() ) );
+		add( data );
+	}
+
+	/**
+	 * Create an empty training data store
+	 *
+	 * @param data instances with the attribute information
+	 * @param capacity initial number of instances to make space for
+	 */
+	private TrainingData(final Instances data, final int capacity)
+	{
+		header = new Instances( data, 0 );
+		if( header.classIndex() < 0 )
+			header.setClassIndex( header.numAttributes() - 1 );
+
+		columns = new float[ header.numAttributes() ][];
+		for(int a = 0; a < columns.length; a++)
+			if( a != header.classIndex() )
+				columns[ a ] = new float[ capacity ];
+		classes = new int[ capacity ];
+	}
+
+	/**
+	 * Get the attribute information
+	 *
+	 * @return empty set of instances with the same attributes and class index
+	 */
+	public Instances getHeader()
+	{
+		return new Instances( header, 0 );
+	}
+
+	/**
+	 * Get the number of stored instances
+	 *
+	 * @return number of instances
+	 */
+	public int numInstances()
+	{
+		return numInstances;
+	}
+
+	/**
+	 * Get the number of attributes (including the class)
+	 *
+	 * @return number of attributes
+	 */
+	public int numAttributes()
+	{
+		return header.numAttributes();
+	}
+
+	/**
+	 * Get the number of classes
+	 *
+	 * @return number of values of the class attribute
+	 */
+	public int numClasses()
+	{
+		return header.numClasses();
+	}
+
+	/**
+	 * Get an attribute
+	 *
+	 * @param index attribute index
+	 * @return attribute
+	 */
+	public Attribute attribute(final int index)
+	{
+		return header.attribute( index );
+	}
+
+	/**
+	 * Get the class attribute
+	 *
+	 * @return class attribute
+	 */
+	public Attribute classAttribute()
+	{
+		return header.classAttribute();
+	}
+
+	/**
+	 * Enumerate all attributes but the class
+	 *
+	 * @return enumeration of the attributes
+	 */
+	@SuppressWarnings("unchecked")
+	public Enumeration<Attribute> enumerateAttributes()
+	{
+		return header.enumerateAttributes();
+	}
+
+	/**
+	 * Get an attribute value
+	 *
+	 * @param instance instance index
+	 * @param attribute attribute index (not the class)
+	 * @return attribute value (NaN if missing)
+	 */
+	public float value(final int instance, final int attribute)
+	{
+		return columns[ attribute ][ instance ];
+	}
+
+	/**
+	 * Get the class of an instance
+	 *
+	 * @param instance instance index
+	 * @return class index (-1 if missing)
+	 */
+	public int classValue(final int instance)
+	{
+		return classes[ instance ];
+	}
+
+	/**
+	 * Set the class of an instance
+	 *
+	 * @param instance instance index
+	 * @param classValue new class index
+	 */
+	public void setClassValue(final int instance, final int classValue)
+	{
+		// the Weka instances created so far keep their class
+		if( classesShared )
+		{
+			classes = classes.clone();
+			classesShared = false;
+		}
+		classes[ instance ] = classValue;
+	}
+
+	/**
+	 * Get the weight of an instance
+	 *
+	 * @param instance instance index
+	 * @return instance weight
+	 */
+	public double weight(final int instance)
+	{
+		return null == weights ? 1.0 : weights[ instance ];
+	}
+
+	/**
+	 * Get the number of instances of each class
+	 *
+	 * @return array with the number of instances of each class
+	 */
+	public int[] getClassCounts()
+	{
+		final int[] counts = new int[ numClasses() ];
+		for(int i = 0; i < numInstances; i++)
+			if( classes[ i ] >= 0 )
+				counts[ classes[ i ] ]++;
+		return counts;
+	}
+
+	/**
+	 * Add an instance (its values are stored as floats)
+	 *
+	 * @param instance instance with the same attributes as this data
+	 */
+	public void add(final Instance instance)
+	{
+		ensureCapacity( numInstances + 1 );
+		final int classIndex = header.classIndex();
+		for(int a = 0; a < columns.length; a++)
+			if( a != classIndex )
+				columns[ a ][ numInstances ] = (float) instance.value( a );
+		classes[ numInstances ] = instance.classIsMissing() ? -1 : (int) instance.classValue();
+		setWeight( numInstances, instance.weight() );
+		numInstances++;
+	}
+
+	/**
+	 * Add a set of instances
+	 *
+	 * @param data instances with the same attributes as this data
+	 */
+	public void add(final Instances data)
+	{
+		ensureCapacity( numInstances + data.numInstances() );
+		for(int i = 0; i < data.numInstances(); i++)
+			add( data.instance( i ) );
+	}
+
+	/**
+	 * Add the instances of another training data store
+	 *
+	 * @param data training data with the same attributes as this data
+	 */
+	public void add(final TrainingData data)
+	{
+		ensureCapacity( numInstances + data.numInstances );
+		for(int i = 0; i < data.numInstances; i++)
+			copyInstance( data, i );
+	}
+
+	/**
+	 * Add the stored instances to a set of Weka instances. The instances
+	 * read their values from this store, so they take almost no memory
+	 * until they are modified. Later changes to this store do not change
+	 * them.
+	 *
+	 * @param data instances with the same attributes as this data
+	 */
+	public void appendTo(final Instances data)
+	{
+		final Columns values = new Columns( columns, classes, header.classIndex() );
+		classesShared = true;
+		for(int i = 0; i < numInstances; i++)
+			data.add( new ColumnInstance( values, i, weight( i ) ) );
+	}
+
+	/**
+	 * Create the Weka instances of the stored data. The instances do not
+	 * copy the values (see {@link #appendTo(Instances)}).
+	 *
+	 * @return new set of instances
+	 */
+	public Instances toInstances()
+	{
+		final Instances data = new Instances( header, numInstances );
+		appendTo( data );
+		return data;
+	}
+
+	/**
+	 * Take a random subsample of the data (without replacement). The
+	 * instances keep their original order.
+	 *
+	 * @param size number of instances of the subsample
+	 * @param random random number generator
+	 * @return new training data with the selected instances
+	 */
+	public TrainingData subsample(final int size, final Random random)
+	{
+		if( size >= numInstances )
+			return copy();
+
+		// partial Fisher-Yates shuffle
+		final int[] indices = new int[ numInstances ];
+		for(int i = 0; i < numInstances; i++)
+			indices[ i ] = i;
+		for(int i = 0; i < size; i++)
+		{
+			final int j = i + random.nextInt( numInstances - i );
+			final int tmp = indices[ i ];
+			indices[ i ] = indices[ j ];
+			indices[ j ] = tmp;
+		}
+		Arrays.sort( indices, 0, size );
+
+		final TrainingData result = new TrainingData( header, Math.max( 16, size ) );
+		for(int i = 0; i < size; i++)
+			result.copyInstance( this, indices[ i ] );
+		return result;
+	}
+
+	/**
+	 * Homogenize the number of instances per class. This reproduces the
+	 * Weka Resample filter with replacement, a sample size of 100% and a
+	 * bias to uniform class distribution of 1.0: for every instance a random
+	 * number is drawn to choose between the uniform and the original class
+	 * distribution (always uniform with a bias of 1.0), then a random class
+	 * among the classes present in the data and a random instance of that
+	 * class (in their original order, as the filter sorts the data by class
+	 * with a stable sort). With the same random number generator the result
+	 * is the same as the filter's.
+	 *
+	 * @param random random number generator (the filter uses new Random(seed))
+	 * @return new training data with the resampled instances
+	 */
+	public TrainingData homogenize(final Random random)
+	{
+		final int[] counts = getClassCounts();
+
+		// group instances by class
+		final int[][] instancesOfClass = new int[ counts.length ][];
+		int numActualClasses = 0;
+		for(int c = 0; c < counts.length; c++)
+		{
+			instancesOfClass[ c ] = new int[ counts[ c ] ];
+			if( counts[ c ] > 0 )
+				numActualClasses++;
+		}
+		final int[] actualClasses = new int[ numActualClasses ];
+		for(int c = 0, n = 0; c < counts.length; c++)
+			if( counts[ c ] > 0 )
+				actualClasses[ n++ ] = c;
+		Arrays.fill( counts, 0 );
+		for(int i = 0; i < numInstances; i++)
+			if( classes[ i ] >= 0 )
+				instancesOfClass[ classes[ i ] ][ counts[ classes[ i ] ]++ ] = i;
+
+		final TrainingData result = new TrainingData( header, Math.max( 16, numInstances ) );
+		if( numActualClasses == 0 )
+			return result;
+		for(int i = 0; i < numInstances; i++)
+		{
+			// bias to uniform class (never below 1.0)
+			random.nextDouble();
+			final int[] candidates = instancesOfClass[ actualClasses[ random.nextInt( numActualClasses ) ] ];
+			result.copyInstance( this, candidates[ random.nextInt( candidates.length ) ] );
+		}
+		return result;
+	}
+
+	/**
+	 * Copy the data
+	 *
+	 * @return new training data with the same instances
+	 */
+	public TrainingData copy()
+	{
+		final TrainingData result = new TrainingData( header, Math.max( 16, numInstances ) );
+		result.add( this );
+		return result;
+	}
+
+	/**
+	 * Append an instance of another training data store
+	 *
+	 * @param data source training data
+	 * @param instance index of the instance to copy
+	 */
+	private void copyInstance(final TrainingData data, final int instance)
+	{
+		ensureCapacity( numInstances + 1 );
+		for(int a = 0; a < columns.length; a++)
+			if( null != columns[ a ] )
+				columns[ a ][ numInstances ] = data.columns[ a ][ instance ];
+		classes[ numInstances ] = data.classes[ instance ];
+		setWeight( numInstances, data.weight( instance ) );
+		numInstances++;
+	}
+
+	/**
+	 * Set the weight of an instance, allocating the weights only when
+	 * they are not all 1
+	 *
+	 * @param instance instance index
+	 * @param weight new weight
+	 */
+	private void setWeight(final int instance, final double weight)
+	{
+		if( null == weights )
+		{
+			if( weight == 1.0 )
+				return;
+			weights = new double[ classes.length ];
+			Arrays.fill( weights, 1.0 );
+		}
+		weights[ instance ] = weight;
+	}
+
+	/**
+	 * Make sure there is space for a number of instances
+	 *
+	 * @param capacity required number of instances
+	 */
+	private void ensureCapacity(final int capacity)
+	{
+		if( capacity <= classes.length )
+			return;
+		final int newCapacity = Math.max( capacity, classes.length + (classes.length >> 1) );
+		for(int a = 0; a < columns.length; a++)
+			if( null != columns[ a ] )
+				columns[ a ] = Arrays.copyOf( columns[ a ], newCapacity );
+		classes = Arrays.copyOf( classes, newCapacity );
+		if( null != weights )
+		{
+			final int oldLength = weights.length;
+			weights = Arrays.copyOf( weights, newCapacity );
+			Arrays.fill( weights, oldLength, newCapacity, 1.0 );
+		}
+	}
+
+	/**
+	 * Columns read by a set of Weka instances. The values of the existing
+	 * instances are never overwritten in the attribute columns (growing
+	 * them only copies them), and the class vector is copied before it is
+	 * modified, so the instances always see the values they were created
+	 * with.
+	 */
+	private static final class Columns
+	{
+		/** attribute values (the arrays may be replaced by larger copies) */
+		private final float[][] columns;
+		/** class of each instance */
+		private final int[] classes;
+		/** index of the class attribute */
+		private final int classIndex;
+
+		private Columns(final float[][] columns, final int[] classes, final int classIndex)
+		{
+			this.columns = columns;
+			this.classes = classes;
+			this.classIndex = classIndex;
+		}
+
+		private double value(final int instance, final int attribute)
+		{
+			if( attribute == classIndex )
+				return classes[ instance ] < 0 ? Utils.missingValue() : classes[ instance ];
+			return columns[ attribute ][ instance ];
+		}
+	}
+
+	/**
+	 * Weka instance that reads its values from the columns of a training
+	 * data store. Copies of it (as made by {@link Instances#add(Instance)})
+	 * read the same columns; it gets its own values, like any dense
+	 * instance, as soon as one of them is modified. It must be copied with
+	 * {@link #copy()}: the copy constructor of the dense instances takes
+	 * their value array, which this instance does not have.
+	 */
+	private static final class ColumnInstance extends DenseInstance
+	{
+		private static final long serialVersionUID = 1L;
+
+		/** columns with the values (null once the values are copied) */
+		private transient Columns values;
+		/** index of the instance in the columns */
+		private final int index;
+
+		private ColumnInstance(final Columns values, final int index, final double weight)
+		{
+			super( weight, null );
+			this.values = values;
+			this.index = index;
+		}
+
+		public Object copy()
+		{
+			if( null == values )
+				return super.copy();
+			final ColumnInstance result = new ColumnInstance( values, index, weight() );
+			result.setDataset( dataset() );
+			return result;
+		}
+
+		public double value(final int attIndex)
+		{
+			return null == values ? super.value( attIndex ) : values.value( index, attIndex );
+		}
+
+		public double valueSparse(final int indexOfIndex)
+		{
+			return value( indexOfIndex );
+		}
+
+		public boolean isMissingSparse(final int indexOfIndex)
+		{
+			return Utils.isMissingValue( valueSparse( indexOfIndex ) );
+		}
+
+		public int numAttributes()
+		{
+			return null == values ? super.numAttributes() : values.columns.length;
+		}
+
+		public int numValues()
+		{
+			return numAttributes();
+		}
+
+		public double[] toDoubleArray()
+		{
+			if( null == values )
+				return super.toDoubleArray();
+			final double[] result = new double[ values.columns.length ];
+			for(int a = 0; a < result.length; a++)
+				result[ a ] = values.value( index, a );
+			return result;
+		}
+
+		public Instance mergeInstance(final Instance inst)
+		{
+			return detached().mergeInstance( inst );
+		}
+
+		public String toStringNoWeight()
+		{
+			return null == values ? super.toStringNoWeight() : detached().toStringNoWeight();
+		}
+
+		public String toStringNoWeight(final int afterDecimalPoint)
+		{
+			return null == values ? super.toStringNoWeight( afterDecimalPoint )
+					: detached().toStringNoWeight( afterDecimalPoint );
+		}
+
+		public void replaceMissingValues(final double[] array)
+		{
+			ownValues();
+			super.replaceMissingValues( array );
+		}
+
+		public void setValue(final int attIndex, final double value)
+		{
+			ownValues();
+			super.setValue( attIndex, value );
+		}
+
+		public void setValueSparse(final int indexOfIndex, final double value)
+		{
+			ownValues();
+			super.setValueSparse( indexOfIndex, value );
+		}
+
+		protected void forceDeleteAttributeAt(final int position)
+		{
+			ownValues();
+			super.forceDeleteAttributeAt( position );
+		}
+
+		protected void forceInsertAttributeAt(final int position)
+		{
+			ownValues();
+			super.forceInsertAttributeAt( position );
+		}
+
+		/**
+		 * Copy the values into the instance (before modifying them)
+		 */
+		private void ownValues()
+		{
+			if( null == values )
+				return;
+			m_AttValues = toDoubleArray();
+			values = null;
+		}
+
+		/**
+		 * Create a plain dense instance with a copy of the values
+		 *
+		 * @return new instance (with the same dataset)
+		 */
+		private DenseInstance detached()
+		{
+			final DenseInstance result = new DenseInstance( weight(), toDoubleArray() );
+			result.setDataset( dataset() );
+			return result;
+		}
+
+		/**
+		 * Serialize a plain dense instance (the columns are not serializable)
+		 */
+		private Object writeReplace()
+		{
+			return detached();
+		}
+	}
+}
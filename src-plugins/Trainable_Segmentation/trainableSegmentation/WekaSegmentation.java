@@ -40,6 +40,9 @@
 
 import javax.vecmath.Point3f;
 
+import ai.BalancedRandomForest;
+import ai.FlattenedForest;
+
 import hr.irb.fastRandomForest.FastRandomForest;
 
 import ij.IJ;
@@ -123,12 +126,16 @@ public class WekaSegmentation {
 	private FeatureStackArray featureStackArray = null;
 	/** set of instances for the whole training image */
 	private Instances wholeImageData;
-	/** set of instances from loaded data (previously saved segmentation) */
-	private Instances loadedTrainingData = null;
+	/** set of instances from loaded data (previously saved segmentation), stored by columns */
+	private TrainingData loadedTrainingData = null;
 	/** set of instances from the user's traces */
 	private Instances traceTrainingData = null;
 	/** current classifier */
 	private AbstractClassifier classifier = null;
+	/** current classifier compiled into flat arrays (null if it cannot be flattened) */
+	private FlattenedForest flattenedClassifier = null;
+	/** flag to compile the current classifier again before using its flattened version */
+	private boolean updateFlattenedClassifier = true;
 	/** train header */
 	Instances trainHeader = null;
 
@@ -204,6 +211,9 @@ public class WekaSegmentation {
 	/** Project folder name. It is used to stored temporary data if different from null */
 	private String projectFolder = null;
 	
+	/** cache to store the features on disk and reuse them (null if not used) */
+	private FeatureCache featureCache = null;
+	
 	/** executor service to launch threads for the library operations */
 	private ExecutorService exe = Executors.newFixedThreadPool(  Prefs.getThreads() );
 	
@@ -232,6 +242,7 @@ public WekaSegmentation(ImagePlus trainingImage)
 		featureStackArray = new FeatureStackArray(trainingImage.getImageStackSize(),
 				minimumSigma, maximumSigma, useNeighbors, membraneThickness, membranePatchSize,
 				enabledFeatures);
+		featureStackArray.setFeatureCache(featureCache);
 		
 		featureStackToUpdateTrain = new boolean[trainingImage.getImageStackSize()];
 		featureStackToUpdateTest = new boolean[trainingImage.getImageStackSize()];
@@ -289,6 +300,7 @@ public void setTrainingImage(ImagePlus imp)
 		featureStackArray = new FeatureStackArray(trainingImage.getImageStackSize(),
 				minimumSigma, maximumSigma, useNeighbors, membraneThickness, membranePatchSize,
 				enabledFeatures);
+		featureStackArray.setFeatureCache(featureCache);
 		
 		featureStackToUpdateTrain = new boolean[trainingImage.getImageStackSize()];
 		featureStackToUpdateTest = new boolean[trainingImage.getImageStackSize()];
@@ -439,7 +451,10 @@ public String getClassLabel(int classNum)
 	public boolean loadTrainingData(String pathname)
 	{
 		IJ.log("Loading data from " + pathname + "...");
-		loadedTrainingData = readDataFromARFF(pathname);
+		final Instances data = readDataFromARFF(pathname);
+		if( null == data )
+			return false;
+		loadedTrainingData = new TrainingData(data);
 
 		// Check the features that were used in the loaded data
 		Enumeration<Attribute> attributes = loadedTrainingData.enumerateAttributes();
@@ -504,7 +519,7 @@ public boolean loadTrainingData(String pathname)
 			
 		}
 
-		if (false == adjustSegmentationStateToData(loadedTrainingData) )
+		if (false == adjustSegmentationStateToData(loadedTrainingData.getHeader()) )
 			loadedTrainingData = null;
 		else
 			IJ.log("Loaded data: " + loadedTrainingData.numInstances() + " instances (" + loadedTrainingData.numAttributes() + " attributes)");
@@ -513,11 +528,23 @@ public boolean loadTrainingData(String pathname)
 	}
 
 	/**
-	 * Returns a the loaded training data or null, if no training data was
-	 * loaded.
+	 * Returns a copy of the loaded training data or null, if no training
+	 * data was loaded. The data is stored by columns, so a new set of
+	 * instances is created on every call; its instances read their values
+	 * from the stored columns, and changes to them are not stored. Use
+	 * {@link #hasLoadedTrainingData()} to check if there is data.
+	 */
+	public Instances getLoadedTrainingDataCopy() {
+		return null == loadedTrainingData ? null : loadedTrainingData.toInstances();
+	}
+
+	/**
+	 * Check if there is loaded (or accumulated) training data
+	 *
+	 * @return true if there is loaded training data
 	 */
-	public Instances getLoadedTrainingData() {
-		return loadedTrainingData;
+	public boolean hasLoadedTrainingData() {
+		return null != loadedTrainingData;
 	}
 
 	/**
@@ -613,6 +640,7 @@ public boolean loadClassifier(String filename)
 		
 		this.classifier = newClassifier;
 		this.trainHeader = newHeader;
+		this.updateFlattenedClassifier = true;
 
 		return true;
 	}
@@ -705,14 +733,11 @@ public boolean saveData(final String pathname)
 		}
 		if (null != loadedTrainingData && null != data){
 			IJ.log("Merging data...");
-			for (int i=0; i < loadedTrainingData.numInstances(); i++){
-				// IJ.log("" + i)
-				data.add(loadedTrainingData.instance(i));
-			}
+			loadedTrainingData.appendTo(data);
 			IJ.log("Finished: total number of instances = " + data.numInstances());
 		}
 		else if (null == data)
-			data = loadedTrainingData;
+			data = loadedTrainingData.toInstances();
 
 
 		IJ.log("Writing training data: " + data.numInstances() + " instances...");
@@ -782,9 +807,7 @@ public boolean addBinaryData(
 			for(int i = 0; i < numOfClasses ; i ++)
 				loadedClassNames.add(getClassLabels()[i]);
 			attributes.add(new Attribute("class", loadedClassNames));
-			loadedTrainingData = new Instances("segment", attributes, 1);
-
-			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
+			loadedTrainingData = new TrainingData(new Instances("segment", attributes, 1));
 		}
 
 
@@ -894,9 +917,7 @@ public boolean addBinaryData(
 			for(int i = 0; i < numOfClasses ; i ++)
 				loadedClassNames.add(getClassLabels()[i]);
 			attributes.add(new Attribute("class", loadedClassNames));
-			loadedTrainingData = new Instances("segment", attributes, 1);
-
-			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
+			loadedTrainingData = new TrainingData(new Instances("segment", attributes, 1));
 		}
 
 		// Check all pixels 
@@ -1017,9 +1038,7 @@ public boolean addRandomBalancedBinaryData(
 			for(int i = 0; i < numOfClasses ; i ++)
 				loadedClassNames.add(getClassLabels()[i]);
 			attributes.add(new Attribute("class", loadedClassNames));
-			loadedTrainingData = new Instances("segment", attributes, 1);
-
-			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
+			loadedTrainingData = new TrainingData(new Instances("segment", attributes, 1));
 		}
 
 		// Create lists of coordinates of pixels of both classes
@@ -1140,9 +1159,7 @@ public boolean addRandomBalancedBinaryData(
 			for(int i = 0; i < numOfClasses ; i ++)
 				loadedClassNames.add(getClassLabels()[i]);
 			attributes.add(new Attribute("class", loadedClassNames));
-			loadedTrainingData = new Instances("segment", attributes, 1);
-
-			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
+			loadedTrainingData = new TrainingData(new Instances("segment", attributes, 1));
 		}
 
 		// Create lists of coordinates of pixels of both classes
@@ -1270,9 +1287,7 @@ public boolean addRandomBalancedBinaryData(
 			for(int i = 0; i < numOfClasses ; i ++)
 				loadedClassNames.add(getClassLabels()[i]);
 			attributes.add(new Attribute("class", loadedClassNames));
-			loadedTrainingData = new Instances("segment", attributes, 1);
-
-			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
+			loadedTrainingData = new TrainingData(new Instances("segment", attributes, 1));
 		}
 
 		// Create lists of coordinates of pixels of both classes
@@ -1391,9 +1406,7 @@ public boolean addRandomData(
 			for(int i = 0; i < numOfClasses ; i ++)
 				loadedClassNames.add(getClassLabels()[i]);
 			attributes.add(new Attribute("class", loadedClassNames));
-			loadedTrainingData = new Instances("segment", attributes, 1);
-
-			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
+			loadedTrainingData = new TrainingData(new Instances("segment", attributes, 1));
 		}
 
 		// Create lists of coordinates of pixels of white class
@@ -1450,13 +1463,14 @@ public FeatureStackArray getFeatureStackArray()
 	}
 	
 	/**
-	 * Get loaded (or accumulated) training instances
+	 * Get a copy of the loaded (or accumulated) training instances
 	 *
-	 * @return loaded/accumulated training instances
+	 * @return new copy of the loaded/accumulated training instances
+	 * (see {@link #getLoadedTrainingDataCopy()})
 	 */
-	public Instances getTrainingInstances()
+	public Instances getTrainingInstancesCopy()
 	{
-		return this.loadedTrainingData;
+		return getLoadedTrainingDataCopy();
 	}
 
 	/**
@@ -1466,6 +1480,7 @@ public Instances getTrainingInstances()
 	public void setClassifier(AbstractClassifier cls)
 	{
 		this.classifier = cls;
+		this.updateFlattenedClassifier = true;
 	}
 
 	/**
@@ -1496,17 +1511,14 @@ public boolean loadNewImage( ImagePlus newImage )
 		{
 			data.setClassIndex(data.numAttributes() - 1);
 			IJ.log("Merging data...");
-			for (int i=0; i < loadedTrainingData.numInstances(); i++){
-				// IJ.log("" + i)
-				data.add(loadedTrainingData.instance(i));
-			}
+			// Store merged data (new instances first) as loaded data
+			final TrainingData merged = new TrainingData(data);
+			merged.add(loadedTrainingData);
+			loadedTrainingData = merged;
 			IJ.log("Finished");
 		}
-		else if (null == data)
-			data = loadedTrainingData;
-
-		// Store merged data as loaded data
-		loadedTrainingData = data;
+		else if (null != data)
+			loadedTrainingData = new TrainingData(data);
 
 		if(null != loadedTrainingData)
 		{
@@ -1535,6 +1547,7 @@ else if (null == data)
 		featureStackArray = new FeatureStackArray(trainingImage.getImageStackSize(),
 				minimumSigma, maximumSigma, useNeighbors, membraneThickness, membranePatchSize,
 				enabledFeatures);
+		featureStackArray.setFeatureCache(featureCache);
 		
 		// Remove traces from the lists and ROI overlays and initialize each feature stack
 		IJ.log("Removing previous markings...");
@@ -2212,12 +2225,13 @@ public boolean addErodedBinaryData(
 	}
 
 	/**
-	 * Set pre-loaded training data (not from the user traces)
+	 * Set pre-loaded training data (not from the user traces). The data is
+	 * copied into a column store, so later changes to it are not seen.
 	 * @param data new data
 	 */
-	public void setLoadedTrainingData(Instances data)
+	public void setLoadedTrainingDataCopy(Instances data)
 	{
-		this.loadedTrainingData = data;
+		this.loadedTrainingData = null == data ? null : new TrainingData(data);
 	}
 
 	/**
@@ -2240,6 +2254,27 @@ public void setProjectFolder(final String projectFolder)
 		this.projectFolder = projectFolder;
 	}
 
+	/**
+	 * Set the cache to store the features on disk, so they are not
+	 * calculated again for the same images and filter parameters
+	 * @param featureCache feature cache (null to always calculate the features)
+	 */
+	public void setFeatureCache(final FeatureCache featureCache)
+	{
+		this.featureCache = featureCache;
+		if( null != featureStackArray )
+			featureStackArray.setFeatureCache(featureCache);
+	}
+
+	/**
+	 * Get the cache used to store the features on disk
+	 * @return feature cache (null if the features are always calculated)
+	 */
+	public FeatureCache getFeatureCache()
+	{
+		return featureCache;
+	}
+
 
 	/**
 	 * Homogenize number of instances per class
@@ -2270,19 +2305,13 @@ public static Instances homogenizeTrainingData(Instances data)
 	 */
 	public void homogenizeTrainingData()
 	{
-		final Resample filter = new Resample();
-		Instances filteredIns = null;
-		filter.setBiasToUniformClass(1.0);
-		try {
-			filter.setInputFormat(this.loadedTrainingData);
-			filter.setNoReplacement(false);
-			filter.setSampleSizePercent(100);
-			filteredIns = Filter.useFilter(this.loadedTrainingData, filter);
-		} catch (Exception e) {
+		if( null == this.loadedTrainingData )
+		{
 			IJ.log("Error when resampling input data!");
-			e.printStackTrace();
+			return;
 		}
-		this.loadedTrainingData = filteredIns;
+		// same random numbers as the Weka Resample filter
+		this.loadedTrainingData = this.loadedTrainingData.homogenize(new Random(new Resample().getRandomSeed()));
 	}
 
 	/**
@@ -2299,7 +2328,7 @@ public boolean selectAttributes()
 			return false;
 		}
 		// Select attributes by BestFirst
-		loadedTrainingData = selectAttributes(loadedTrainingData);
+		loadedTrainingData = new TrainingData(selectAttributes(loadedTrainingData.toInstances()));
 		// Update list of features to use
 		this.featureNames = new ArrayList<String>();
 		IJ.log("Selected attributes:");
@@ -2360,8 +2389,9 @@ public double getTrainingError(boolean verbose)
 
 		double error = -1;
 		try {
-			final Evaluation evaluation = new Evaluation(this.loadedTrainingData);
-			evaluation.evaluateModel(classifier, this.loadedTrainingData);
+			final Instances data = this.loadedTrainingData.toInstances();
+			final Evaluation evaluation = new Evaluation(data);
+			evaluation.evaluateModel(classifier, data);
 			if(verbose)
 				IJ.log(evaluation.toSummaryString("\n=== Training set evaluation ===\n", false));
 			error = evaluation.errorRate();
@@ -2823,6 +2853,44 @@ public void udpateDataClassification(
 		updateDataClassification(this.loadedTrainingData, labels, classIndex1, classIndex2);
 	}
 
+	/**
+	 * Update the class attribute of "data" from
+	 * the input binary labels. The number of instances of "data"
+	 * must match the size of the input labels image (or stack)
+	 *
+	 * @param data input training data
+	 * @param labels binary labels
+	 * @param classIndex1 index of the white (different from 0) class
+	 * @param classIndex2 index of the black (0) class
+	 */
+	public static void updateDataClassification(
+			TrainingData data,
+			ImagePlus labels,
+			int classIndex1,
+			int classIndex2)
+	{
+		// Check sizes
+		final int size = labels.getWidth() * labels.getHeight() * labels.getStackSize();
+		if (size != data.numInstances())
+		{
+			IJ.log("Error: labels size does not match loaded training data set size.");
+			return;
+		}
+
+		final int width = labels.getWidth();
+		final int height = labels.getHeight();
+		final int depth = labels.getStackSize();
+		// Update class with new labels
+		for(int n=0, z=1; z <= depth; z++)
+		{
+			final ImageProcessor slice = labels.getImageStack().getProcessor(z);
+			for(int y=0; y<height; y++)
+				for(int x=0; x<width; x++, n++)
+					data.setClassValue(n, slice.getPixel(x, y) > 0 ? classIndex1 : classIndex2);
+
+		}
+	}
+
 	/**
 	 * Update the class attribute of "data" from
 	 * the input binary labels. The number of instances of "data"
@@ -3384,13 +3452,12 @@ public boolean trainClassifier()
 		if (loadedTrainingData != null && data != null)
 		{
 			IJ.log("Merging data...");
-			for (int i=0; i < loadedTrainingData.numInstances(); i++)
-				data.add(loadedTrainingData.instance(i));
+			loadedTrainingData.appendTo(data);
 			IJ.log("Finished: total number of instances = " + data.numInstances());
 		}
-		else if (data == null)
+		else if (data == null && loadedTrainingData != null)
 		{
-			data = loadedTrainingData;
+			data = loadedTrainingData.toInstances();
 			IJ.log("Taking loaded data as only data...");
 		}
 
@@ -3425,6 +3492,7 @@ else if (data == null)
 		final long start = System.currentTimeMillis();
 		try{
 			classifier.buildClassifier(data);
+			updateFlattenedClassifier = true;
 		}
 		catch (InterruptedException ie)
 		{
@@ -3475,45 +3543,22 @@ public ImagePlus applyClassifier(
 		if (numThreads == 0)
 			numThreads = Prefs.getThreads();
 		
+		// Classify large images by tiles if their features do not fit in memory
+		final int halo = getFeatureSupportRadius();
+		if( halo >= 0 )
+		{
+			final int tileSize = getTileSizeToFitMemory( imp, numThreads, halo );
+			if( tileSize > 0 && tileSize < Math.max( imp.getWidth(), imp.getHeight() ) )
+				return applyClassifierTiled( imp, tileSize, numThreads, probabilityMaps );
+		}
 		
 		final int numClasses = numOfClasses;
 		final int numChannels = (probabilityMaps ? numClasses : 1);		
 
 		IJ.log("Classifying data from image " + imp.getTitle() + " using " + numThreads + " thread(s)...");
 
-		// Set proper class names (skip empty list ones)
-		ArrayList<String> classNames = new ArrayList<String>();
-		if( null == loadedClassNames )
-		{
-			for(int i = 0; i < numOfClasses; i++)
-				for(int j=0; j<trainingImage.getImageStackSize(); j++)
-					if(examples[j].get(i).size() > 0)
-					{
-						classNames.add(getClassLabels()[i]);
-						break;
-					}
-		}
-		else
-			classNames = loadedClassNames;
-		
 		// Create instances information (each instance needs a pointer to this)
-		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-		for (int i=1; i<=featureStackArray.getNumOfFeatures(); i++)
-		{
-			String attString = featureStackArray.getLabel(i);
-			attributes.add(new Attribute(attString));
-		}
-
-		if(featureStackArray.useNeighborhood())
-			for (int i=0; i<8; i++)
-			{
-				IJ.log("Adding extra attribute original_neighbor_" + (i+1) + "...");
-				attributes.add(new Attribute(new String("original_neighbor_" + (i+1))));
-			}
-		
-		attributes.add(new Attribute("class", classNames));
-		Instances dataInfo = new Instances("segment", attributes, 1);
-		dataInfo.setClassIndex(dataInfo.numAttributes()-1);
+		final Instances dataInfo = createDataInfo();
 				
 		final long start = System.currentTimeMillis();
 
@@ -3767,42 +3812,52 @@ public ImagePlus call()
 										
 				IJ.log("Classifying slice " + slice.getTitle() + "...");
 				
-				for (int x=0; x<width; x++)
-					for(int y=0; y<height; y++)
-					{
-						try{
+				final FlattenedForest flatForest = getFlattenedClassifier( classifier, numClasses );
+				if( null != flatForest )
+				{
+					if( false == classifyPixels( flatForest, sliceFeatures.getFeatureValues(), 
+							width, height, probArray, probabilityMaps, counter ) )
+						return null;
+				}
+				else
+				{
+					for (int x=0; x<width; x++)
+						for(int y=0; y<height; y++)
+						{
+							try{
 
-							if (0 == (x+y*width) % 4000)
-							{
-								if (Thread.currentThread().isInterrupted()) 
-									return null;
-								counter.addAndGet(4000);
-							}
+								if (0 == (x+y*width) % 4000)
+								{
+									if (Thread.currentThread().isInterrupted()) 
+										return null;
+									counter.addAndGet(4000);
+								}
 							
-							final DenseInstance ins = sliceFeatures.createInstance(x, y, 0);
-							ins.setDataset(dataInfo);
+								final DenseInstance ins = sliceFeatures.createInstance(x, y, 0);
+								ins.setDataset(dataInfo);
 
-							if (probabilityMaps)
-							{							
-								double[] prob = classifier.distributionForInstance( ins );
-								for(int k = 0 ; k < numClasses; k++)
+								if (probabilityMaps)
+								{							
+									double[] prob = classifier.distributionForInstance( ins );
+									for(int k = 0 ; k < numClasses; k++)
+									{
+										probArray[k][x+y*width] = prob[ k ];
+									}
+								}
+								else
 								{
-									probArray[k][x+y*width] = prob[ k ];
+									probArray[0][ x+y*width ] = classifier.classifyInstance( ins );
 								}
-							}
-							else
-							{
-								probArray[0][ x+y*width ] = classifier.classifyInstance( ins );
-							}
 
-						}catch(Exception e){
+							}catch(Exception e){
 
-							IJ.showMessage("Could not apply Classifier!");
-							e.printStackTrace();
-							return null;
+								IJ.showMessage("Could not apply Classifier!");
+								e.printStackTrace();
+								return null;
+							}
 						}
-					}		
-				
+				}
+
 				if( probabilityMaps )
 				{
 					for(int k = 0 ; k < numClasses; k++)
@@ -3839,6 +3894,7 @@ public Callable< ArrayList< ImagePlus >> classifyListOfImages(
 			public ArrayList < ImagePlus > call()
 			{			
 				ArrayList < ImagePlus > result = new ArrayList < ImagePlus >();
+				final FlattenedForest flatForest = getFlattenedClassifier( classifier, dataInfo.numClasses() );
 				
 				for(ImagePlus image : images )
 				{
@@ -3876,41 +3932,50 @@ public ArrayList < ImagePlus > call()
 
 					//IJ.log("Classifying slice " + image.getTitle() + "...");
 
-					for (int x=0; x<width; x++)
-						for(int y=0; y<height; y++)
-						{
-							try{
+					if( null != flatForest )
+					{
+						if( false == classifyPixels( flatForest, sliceFeatures.getFeatureValues(), 
+								width, height, probArray, probabilityMaps, counter ) )
+							return null;
+					}
+					else
+					{
+						for (int x=0; x<width; x++)
+							for(int y=0; y<height; y++)
+							{
+								try{
 
-								if (0 == (x+y*width) % 4000)
-								{
-									if (Thread.currentThread().isInterrupted()) 
-										return null;
-									counter.addAndGet(4000);
-								}
+									if (0 == (x+y*width) % 4000)
+									{
+										if (Thread.currentThread().isInterrupted()) 
+											return null;
+										counter.addAndGet(4000);
+									}
 
-								final DenseInstance ins = sliceFeatures.createInstance(x, y, 0);
-								ins.setDataset(dataInfo);
+									final DenseInstance ins = sliceFeatures.createInstance(x, y, 0);
+									ins.setDataset(dataInfo);
 
-								if (probabilityMaps)
-								{							
-									double[] prob = classifier.distributionForInstance( ins );
-									for(int k = 0 ; k < numClasses; k++)
+									if (probabilityMaps)
+									{							
+										double[] prob = classifier.distributionForInstance( ins );
+										for(int k = 0 ; k < numClasses; k++)
+										{
+											probArray[k][x+y*width] = prob[ k ];
+										}
+									}
+									else
 									{
-										probArray[k][x+y*width] = prob[ k ];
+										probArray[0][ x+y*width ] = classifier.classifyInstance( ins );
 									}
-								}
-								else
-								{
-									probArray[0][ x+y*width ] = classifier.classifyInstance( ins );
-								}
 
-							}catch(Exception e){
+								}catch(Exception e){
 
-								IJ.showMessage("Could not apply Classifier!");
-								e.printStackTrace();
-								return null;
+									IJ.showMessage("Could not apply Classifier!");
+									e.printStackTrace();
+									return null;
+								}
 							}
-						}		
+					}
 
 					if( probabilityMaps )
 					{
@@ -3927,6 +3992,468 @@ public ArrayList < ImagePlus > call()
 		};
 	}
 
+	/**
+	 * Create the empty set of instances containing the data structure
+	 * (attributes and classes) used to classify with the current classifier.
+	 *
+	 * @return empty set of instances with the class index set
+	 */
+	private Instances createDataInfo()
+	{
+		// Set proper class names (skip empty list ones)
+		ArrayList<String> classNames = new ArrayList<String>();
+		if( null == loadedClassNames )
+		{
+			for(int i = 0; i < numOfClasses; i++)
+				for(int j=0; j<trainingImage.getImageStackSize(); j++)
+					if(examples[j].get(i).size() > 0)
+					{
+						classNames.add(getClassLabels()[i]);
+						break;
+					}
+		}
+		else
+			classNames = loadedClassNames;
+		
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for (int i=1; i<=featureStackArray.getNumOfFeatures(); i++)
+		{
+			String attString = featureStackArray.getLabel(i);
+			attributes.add(new Attribute(attString));
+		}
+
+		if(featureStackArray.useNeighborhood())
+			for (int i=0; i<8; i++)
+			{
+				IJ.log("Adding extra attribute original_neighbor_" + (i+1) + "...");
+				attributes.add(new Attribute(new String("original_neighbor_" + (i+1))));
+			}
+		
+		attributes.add(new Attribute("class", classNames));
+		Instances dataInfo = new Instances("segment", attributes, 1);
+		dataInfo.setClassIndex(dataInfo.numAttributes()-1);
+		return dataInfo;
+	}
+
+	/**
+	 * Get the flattened version of a classifier (compiling it if necessary)
+	 * to classify pixels directly from their feature values.
+	 *
+	 * @param cls classifier to flatten
+	 * @param numClasses number of classes the result must have
+	 * @return flattened classifier, or null if the classifier is not a random
+	 * forest that can be flattened
+	 */
+	private synchronized FlattenedForest getFlattenedClassifier(
+			final AbstractClassifier cls,
+			final int numClasses)
+	{
+		FlattenedForest forest = null;
+		if( cls == classifier )
+		{
+			// the current classifier is only compiled once
+			if( updateFlattenedClassifier )
+			{
+				flattenedClassifier = flatten( classifier );
+				updateFlattenedClassifier = false;
+			}
+			forest = flattenedClassifier;
+		}
+		else
+			forest = flatten( cls );
+
+		if( null != forest && forest.getNumClasses() != numClasses )
+			return null;
+		return forest;
+	}
+
+	/**
+	 * Compile a random forest into flat arrays
+	 *
+	 * @param cls classifier to flatten
+	 * @return flattened forest or null if the classifier cannot be flattened
+	 */
+	private static FlattenedForest flatten(final AbstractClassifier cls)
+	{
+		if( cls instanceof FastRandomForest )
+			return ((FastRandomForest) cls).flatten();
+		if( cls instanceof BalancedRandomForest )
+			return ((BalancedRandomForest) cls).flatten();
+		return null;
+	}
+
+	/**
+	 * Classify all pixels of a slice with a flattened forest, row by row
+	 *
+	 * @param forest flattened forest
+	 * @param values feature values of the slice (one array per attribute)
+	 * @param width slice width
+	 * @param height slice height
+	 * @param probArray output probabilities (one array per class) or classes (one array)
+	 * @param probabilityMaps flag to calculate probabilities or binary results
+	 * @param counter counter used to display the progress in the tool bar
+	 * @return false if the classification was interrupted
+	 */
+	private static boolean classifyPixels(
+			final FlattenedForest forest,
+			final float[][] values,
+			final int width,
+			final int height,
+			final double[][] probArray,
+			final boolean probabilityMaps,
+			final AtomicInteger counter)
+	{
+		final int numClasses = forest.getNumClasses();
+		final double[] buffer = new double[ width * numClasses ];
+		final double[] classes = new double[ width ];
+
+		for(int y=0; y<height; y++)
+		{
+			if (Thread.currentThread().isInterrupted()) 
+				return false;
+
+			final int offset = y * width;
+			if( probabilityMaps )
+			{
+				forest.distributionForSamples( values, offset, offset + width, buffer );
+				for(int x=0; x<width; x++)
+					for(int k = 0 ; k < numClasses; k++)
+						probArray[k][offset + x] = buffer[ x * numClasses + k ];
+			}
+			else
+			{
+				forest.classifySamples( values, offset, offset + width, buffer, classes );
+				System.arraycopy( classes, 0, probArray[0], offset, width );
+			}
+			counter.addAndGet( width );
+		}
+		return true;
+	}
+
+	/**
+	 * Apply current classifier to a given image tile by tile. The features
+	 * are only calculated for the tiles being classified at the moment, plus
+	 * a halo as wide as the support of the enabled filters (so the result
+	 * is the same as classifying the whole image), and the memory needed
+	 * depends on the tile size and the number of threads, not on the image
+	 * size. Features that depend on the whole image cannot be calculated by
+	 * tiles; in that case the image is classified at once.
+	 *
+	 * @param imp image (2D single image or stack)
+	 * @param tileSize side (in pixels) of the square tiles to classify
+	 * @param numThreads The number of threads to use. Set to zero for
+	 * auto-detection.
+	 * @param probabilityMaps create probability maps for each class instead of
+	 * a classification
+	 * @return result image
+	 */
+	public ImagePlus applyClassifierTiled(
+			final ImagePlus imp,
+			final int tileSize,
+			int numThreads,
+			final boolean probabilityMaps)
+	{
+		if (numThreads == 0)
+			numThreads = Prefs.getThreads();
+
+		// the filters need to see the same neighborhood they would see on the whole image
+		final int halo = getFeatureSupportRadius();
+		if( halo < 0 )
+		{
+			IJ.log("The selected features depend on the whole image, it cannot be classified by tiles.");
+			return applyClassifier( imp, numThreads, probabilityMaps );
+		}
+
+		final int numClasses = numOfClasses;
+		final int numChannels = (probabilityMaps ? numClasses : 1);
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+
+		IJ.log("Classifying data from image " + imp.getTitle() + " in " + tileSize + "x" + tileSize 
+				+ " tiles using " + numThreads + " thread(s)...");
+
+		// Create instances information (each instance needs a pointer to this)
+		final Instances dataInfo = createDataInfo();
+
+		final long start = System.currentTimeMillis();
+
+		// Initialize executor service
+		if(exe.isShutdown())
+			exe = Executors.newFixedThreadPool(numThreads);
+
+		// create classified image (the tiles are written directly on it)
+		final ImageStack classified = new ImageStack(width, height);
+		for(int i=0; i < imp.getStackSize(); i++)
+		{
+			if(numChannels > 1)
+			{
+				for (int c = 0; c < numChannels; c++)
+					classified.addSlice("", new FloatProcessor(width, height));
+			}
+			else
+				classified.addSlice("", new ByteProcessor(width, height));
+		}
+
+		// counter to display the progress
+		final AtomicInteger counter = new AtomicInteger();
+		// index of the next tile to be classified (shared by all threads)
+		final AtomicInteger nextTile = new AtomicInteger();
+
+		final ArrayList< Future<Boolean> > fu = new ArrayList< Future<Boolean> >();
+		for(int i = 0; i < numThreads; i++)
+		{
+			AbstractClassifier classifierCopy = null;
+			try {
+				// The Weka random forest classifiers do not need to be duplicated on each thread 
+				// (that saves much memory)
+				if( classifier instanceof FastRandomForest || classifier instanceof RandomForest )
+					classifierCopy = classifier;
+				else
+					classifierCopy = (AbstractClassifier) (AbstractClassifier.makeCopy( classifier ));
+			} catch (Exception e) {
+				IJ.log("Error: classifier could not be copied to classify in a multi-thread way.");
+				e.printStackTrace();
+			}
+
+			fu.add( exe.submit( classifyTiles( imp, classified, tileSize, halo, nextTile, dataInfo, 
+					classifierCopy, counter, probabilityMaps ) ) );
+		}
+
+		final int numInstances = width * height * imp.getStackSize();
+
+		ScheduledExecutorService monitor = Executors.newScheduledThreadPool(1);
+		ScheduledFuture task = monitor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				IJ.showProgress(counter.get(), numInstances);
+			}
+		}, 0, 1, TimeUnit.SECONDS);
+
+		// Join threads
+		try {
+			for(Future<Boolean> f : fu)
+				if( false == f.get() )
+					return null;
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return null;
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			task.cancel(true);
+			monitor.shutdownNow();
+			IJ.showProgress(1);
+		}
+
+		ImagePlus result = new ImagePlus("Classification result", classified);
+
+		if (probabilityMaps)
+		{
+			result.setDimensions(numOfClasses, imp.getNSlices(), imp.getNFrames());
+			if (imp.getNSlices()*imp.getNFrames() > 1)
+				result.setOpenAsHyperStack(true);
+		}
+
+		final long end = System.currentTimeMillis();
+		IJ.log("Whole image classification took " + (end-start) + " ms.");
+		return result;
+	}
+
+	/**
+	 * Classify tiles of an image in a concurrent way until there are no
+	 * tiles left. Each tile is cropped with a halo around it, its features
+	 * are calculated and classified, and the result is written into the
+	 * output stack. The features are released before taking the next tile.
+	 *
+	 * @param imp image to classify
+	 * @param classified output stack (one slice per channel and input slice)
+	 * @param tileSize side (in pixels) of the square tiles
+	 * @param halo padding (in pixels) added around each tile before calculating its features
+	 * @param nextTile index of the next tile to classify (shared by all threads)
+	 * @param dataInfo empty set of instances containing the data structure (attributes and classes)
+	 * @param classifier classifier to use
+	 * @param counter counter used to display the progress in the tool bar
+	 * @param probabilityMaps flag to calculate probabilities or binary results
+	 * @return false if the classification was interrupted or failed
+	 */
+	private Callable<Boolean> classifyTiles(
+			final ImagePlus imp,
+			final ImageStack classified,
+			final int tileSize,
+			final int halo,
+			final AtomicInteger nextTile,
+			final Instances dataInfo,
+			final AbstractClassifier classifier,
+			final AtomicInteger counter,
+			final boolean probabilityMaps)
+	{
+		return new Callable<Boolean>(){
+			public Boolean call()
+			{
+				final int width = imp.getWidth();
+				final int height = imp.getHeight();
+				final int numTilesX = (width + tileSize - 1) / tileSize;
+				final int numTilesY = (height + tileSize - 1) / tileSize;
+				final int numTilesPerSlice = numTilesX * numTilesY;
+				final int numTiles = numTilesPerSlice * imp.getStackSize();
+				final int numClasses = dataInfo.numClasses();
+				final int numChannels = (probabilityMaps ? numClasses : 1);
+				final FlattenedForest flatForest = getFlattenedClassifier( classifier, numClasses );
+
+				for(int t = nextTile.getAndIncrement(); t < numTiles; t = nextTile.getAndIncrement())
+				{
+					if (Thread.currentThread().isInterrupted()) 
+						return false;
+
+					final int slice = t / numTilesPerSlice;
+					final int x0 = (t % numTilesPerSlice % numTilesX) * tileSize;
+					final int y0 = (t % numTilesPerSlice / numTilesX) * tileSize;
+					final int x1 = Math.min(x0 + tileSize, width);
+					final int y1 = Math.min(y0 + tileSize, height);
+
+					// padded area, clipped to the image borders
+					final int paddedX0 = Math.max(0, x0 - halo);
+					final int paddedY0 = Math.max(0, y0 - halo);
+					final int paddedX1 = Math.min(width, x1 + halo);
+					final int paddedY1 = Math.min(height, y1 + halo);
+
+					final ImageProcessor sliceImage = imp.getImageStack().getProcessor(slice+1);
+					sliceImage.setRoi(new Rectangle(paddedX0, paddedY0, paddedX1-paddedX0, paddedY1-paddedY0));
+					final ImagePlus tile = new ImagePlus("slice-" + slice + "-" + x0 + "-" + y0, sliceImage.crop());
+
+					// Create feature stack for the tile
+					final FeatureStack tileFeatures = createTileFeatureStack( tile );
+					if(false == tileFeatures.updateFeaturesST())
+					{
+						IJ.log("Classifier execution was interrupted.");
+						return false;
+					}
+					filterFeatureStackByList(featureNames, tileFeatures);
+
+					final Object[] target = new Object[numChannels];
+					for (int c = 0; c < numChannels; c++)
+						target[c] = classified.getPixels(slice * numChannels + c + 1);
+
+					if( null != flatForest )
+					{
+						final float[][] values = tileFeatures.getFeatureValues();
+						final int tileWidth = paddedX1 - paddedX0;
+						final int rowLength = x1 - x0;
+						final double[] buffer = new double[ rowLength * numClasses ];
+						final double[] classes = new double[ rowLength ];
+						for(int y=y0; y<y1; y++)
+						{
+							final int from = (y - paddedY0) * tileWidth + x0 - paddedX0;
+							if( probabilityMaps )
+							{
+								flatForest.distributionForSamples( values, from, from + rowLength, buffer );
+								for(int x=x0, i=0; x<x1; x++, i++)
+									for(int k = 0 ; k < numClasses; k++)
+										((float[]) target[k])[x+y*width] = (float) buffer[ i * numClasses + k ];
+							}
+							else
+							{
+								flatForest.classifySamples( values, from, from + rowLength, buffer, classes );
+								for(int x=x0, i=0; x<x1; x++, i++)
+									((byte[]) target[0])[x+y*width] = (byte) classes[ i ];
+							}
+						}
+					}
+					else
+					{
+						for(int y=y0; y<y1; y++)
+							for (int x=x0; x<x1; x++)
+							{
+								try{
+									final DenseInstance ins = tileFeatures.createInstance(x - paddedX0, y - paddedY0, 0);
+									ins.setDataset(dataInfo);
+
+									if (probabilityMaps)
+									{
+										double[] prob = classifier.distributionForInstance( ins );
+										for(int k = 0 ; k < numClasses; k++)
+											((float[]) target[k])[x+y*width] = (float) prob[ k ];
+									}
+									else
+										((byte[]) target[0])[x+y*width] = (byte) classifier.classifyInstance( ins );
+
+								}catch(Exception e){
+
+									IJ.showMessage("Could not apply Classifier!");
+									e.printStackTrace();
+									return false;
+								}
+							}
+					}
+
+					counter.addAndGet((x1-x0) * (y1-y0));
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Create the feature stack of an image tile, using the same features
+	 * as the current classifier.
+	 *
+	 * @param tile image tile
+	 * @return feature stack of the tile (the features are not calculated yet)
+	 */
+	private FeatureStack createTileFeatureStack(final ImagePlus tile)
+	{
+		final FeatureStack tileFeatures = new FeatureStack( tile );
+		tileFeatures.setEnabledFeatures(featureStackArray.getEnabledFeatures());
+		tileFeatures.setUseNeighbors(featureStackArray.useNeighborhood());
+		tileFeatures.setMaximumSigma(maximumSigma);
+		tileFeatures.setMinimumSigma(minimumSigma);
+		tileFeatures.setMembranePatchSize(membranePatchSize);
+		tileFeatures.setMembraneSize(membraneThickness);
+		return tileFeatures;
+	}
+
+	/**
+	 * Get the distance (in pixels) up to which the features used by the
+	 * current classifier depend on the neighbors of a pixel.
+	 *
+	 * @return support radius of the features, or -1 if they depend on the whole image
+	 * @see FeatureStack#getSupportRadius()
+	 */
+	private int getFeatureSupportRadius()
+	{
+		return createTileFeatureStack( new ImagePlus( "", new FloatProcessor(1, 1) ) ).getSupportRadius();
+	}
+
+	/**
+	 * Get the side of the tiles needed to classify an image without running
+	 * out of memory.
+	 *
+	 * @param imp image to classify
+	 * @param numThreads number of threads classifying at the same time
+	 * @param halo padding added around each tile
+	 * @return 0 if the features of the rows classified at the same time fit
+	 * in the free memory, otherwise the side (in pixels) of the tiles that do
+	 */
+	private int getTileSizeToFitMemory(
+			final ImagePlus imp,
+			final int numThreads,
+			final int halo)
+	{
+		final int numFeatures = null != featureNames ? featureNames.size() : featureStackArray.getNumOfFeatures();
+		// features are stored in the feature stack and in the arrays passed to the classifier
+		final long bytesPerPixel = 2L * 4 * Math.max( 1, numFeatures );
+		final long sliceSize = (long) imp.getWidth() * imp.getHeight();
+		final long pixelsPerThread = Math.min( sliceSize, sliceSize * imp.getStackSize() / numThreads + imp.getWidth() );
+		final long freeMemory = IJ.maxMemory() - IJ.currentMemory();
+
+		if( freeMemory <= 0 || numThreads * pixelsPerThread * bytesPerPixel < freeMemory )
+			return 0;
+
+		// use half of the free memory for the padded tiles
+		final int paddedSide = (int) Math.sqrt( freeMemory / ( 2 * numThreads * bytesPerPixel ) );
+		return Math.max( 64, paddedSide - 2 * halo );
+	}
+
 	/**
 	 * Apply current classifier to a given image with precomputed features.
 	 *
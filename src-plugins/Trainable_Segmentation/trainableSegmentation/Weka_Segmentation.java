@@ -237,6 +237,8 @@ public class Weka_Segmentation implements PlugIn
 	public static final String CHANGE_CLASS_NAME = "changeClassName";
 	/** name of the macro method to set the overlay opacity */
 	public static final String SET_OPACITY = "setOpacity";
+	/** name of the macro method to set the feature cache */
+	public static final String SET_FEATURE_CACHE = "setFeatureCache";
 	/** boolean flag set to true while training */
 	boolean trainingFlag = false;
 		
@@ -1103,7 +1105,7 @@ protected void updateButtonsEnabling()
 						examplesEmpty = false;
 						break;
 					}
-				boolean loadedTrainingData = null != wekaSegmentation.getLoadedTrainingData();
+				boolean loadedTrainingData = wekaSegmentation.hasLoadedTrainingData();
 
 				saveDataButton.setEnabled(!examplesEmpty || loadedTrainingData);
 
@@ -1500,7 +1502,7 @@ void plotResult()
 		if (wekaSegmentation.getTraceTrainingData() != null)
 			data = wekaSegmentation.getTraceTrainingData();
 		else
-			data = wekaSegmentation.getLoadedTrainingData();
+			data = wekaSegmentation.getLoadedTrainingDataCopy();
 		
 		if(null == data)
 		{
@@ -2015,7 +2017,7 @@ public boolean showSettingsDialog()
 		final int rows = (int)Math.round(FeatureStack.availableFeatures.length/2.0);
 		gd.addCheckboxGroup(rows, 2, FeatureStack.availableFeatures, oldEnableFeatures);
 
-		if(wekaSegmentation.getLoadedTrainingData() != null)
+		if(wekaSegmentation.hasLoadedTrainingData())
 		{
 			final Vector<Checkbox> v = gd.getCheckboxes();
 			for(Checkbox c : v)
@@ -2031,7 +2033,7 @@ public boolean showSettingsDialog()
 		gd.addNumericField("Minimum sigma:", wekaSegmentation.getMinimumSigma(), 1);
 		gd.addNumericField("Maximum sigma:", wekaSegmentation.getMaximumSigma(), 1);
 
-		if(wekaSegmentation.getLoadedTrainingData() != null)
+		if(wekaSegmentation.hasLoadedTrainingData())
 		{
 			for(int i = 0; i < 4; i++)
 				((TextField) gd.getNumericFields().get( i )).setEnabled(false);
@@ -2062,6 +2064,9 @@ public boolean showSettingsDialog()
 
 		gd.addMessage("Advanced options:");
 		gd.addCheckbox("Homogenize classes", wekaSegmentation.doHomogenizeClasses());
+		final FeatureCache oldFeatureCache = wekaSegmentation.getFeatureCache();
+		gd.addDirectoryField("Feature cache folder (empty to disable)", null == oldFeatureCache ? "" : oldFeatureCache.getFolder().getPath());
+		gd.addNumericField("Feature cache size (MB)", null == oldFeatureCache ? 1024 : oldFeatureCache.getMaximumSize() / (1024 * 1024), 0);
 		gd.addButton("Save feature stack", new SaveFeatureStackButtonListener("Select location to save feature stack", wekaSegmentation.getFeatureStackArray()));
 		gd.addSlider("Result overlay opacity", 0, 100, win.overlayOpacity);
 		gd.addHelp("http://fiji.sc/wiki/Trainable_Segmentation_Plugin");
@@ -2196,6 +2201,19 @@ public boolean showSettingsDialog()
 			// Macro recording
 			record(SET_HOMOGENIZATION, new String[] { Boolean.toString( homogenizeClasses )});
 		}
+
+		// Update feature cache
+		final String cacheFolder = gd.getNextString().trim();
+		final long cacheSize = (long) gd.getNextNumber();
+		final boolean cacheChanged = null == oldFeatureCache ?
+				cacheFolder.length() > 0 :
+				!cacheFolder.equals( oldFeatureCache.getFolder().getPath() ) || cacheSize * 1024 * 1024 != oldFeatureCache.getMaximumSize();
+		if( cacheChanged )
+		{
+			wekaSegmentation.setFeatureCache( cacheFolder.length() == 0 ? null : new FeatureCache( cacheFolder, cacheSize * 1024 * 1024 ) );
+			// Macro recording
+			record(SET_FEATURE_CACHE, new String[] { cacheFolder, Long.toString( cacheSize )});
+		}
 		
 		// Update result overlay alpha
 		final int newOpacity = (int) gd.getNextNumber();
@@ -2538,7 +2556,7 @@ public static void plotResultGraphs()
 			if (wekaSegmentation.getTraceTrainingData() != null)
 				data = wekaSegmentation.getTraceTrainingData();
 			else
-				data = wekaSegmentation.getLoadedTrainingData();
+				data = wekaSegmentation.getLoadedTrainingDataCopy();
 
 			if(null == data)
 			{
@@ -3009,5 +3027,26 @@ public static void setOpacity( String newOpacity )
 		}
 	}
 	
+	/**
+	 * Set the folder to store the calculated features in, so they are
+	 * read from disk the next time they are needed
+	 * 
+	 * @param folder path to the cache folder (empty to disable the cache)
+	 * @param maximumSize maximum size of the cache (in MB)
+	 */
+	public static void setFeatureCache( String folder, String maximumSize )
+	{
+		final ImageWindow iw = WindowManager.getCurrentImage().getWindow();
+		if( iw instanceof CustomWindow )
+		{
+			final CustomWindow win = (CustomWindow) iw;
+			final WekaSegmentation wekaSegmentation = win.getWekaSegmentation();
+			if( null == folder || folder.trim().length() == 0 )
+				wekaSegmentation.setFeatureCache( null );
+			else
+				wekaSegmentation.setFeatureCache( new FeatureCache( folder.trim(), Long.parseLong( maximumSize ) * 1024 * 1024 ) );
+		}
+	}
+	
 }// end of Weka_Segmentation class
 
@@ -22,6 +22,8 @@
 
 import ij.ImagePlus;
 
+import java.util.ArrayList;
+
 /**
  * This is the mother class for 2D segmentation metrics 
  */
@@ -41,4 +43,62 @@ public Metrics(ImagePlus originalLabels, ImagePlus proposedLabels)
 	
 	public abstract double getMetricValue(double binaryThreshold);
 
+	/**
+	 * Calculate the metric value for a set of thresholds. By default the
+	 * metric is calculated threshold by threshold, but metrics that support
+	 * it evaluate all thresholds in a single pass over the stack (see
+	 * {@link SliceMetrics}).
+	 *
+	 * @param thresholds threshold values to binarize the input images
+	 * @return metric value for each threshold
+	 */
+	public double[] getMetricValues(double[] thresholds)
+	{
+		final double[] values = new double[ thresholds.length ];
+		for(int i = 0; i < thresholds.length; i++)
+			values[ i ] = getMetricValue( thresholds[ i ] );
+		return values;
+	}
+
+	/**
+	 * Calculate the score curve of the metric (its value for each threshold
+	 * between a minimum and a maximum value).
+	 *
+	 * @param minThreshold minimum threshold value to binarize the input images
+	 * @param maxThreshold maximum threshold value to binarize the input images
+	 * @param stepThreshold threshold step value to use during binarization
+	 * @return metric value for each threshold
+	 */
+	public double[] getScoreCurve(
+			double minThreshold,
+			double maxThreshold,
+			double stepThreshold)
+	{
+		return getMetricValues( getThresholds( minThreshold, maxThreshold, stepThreshold ) );
+	}
+
+	/**
+	 * Get the threshold values between a minimum and a maximum value
+	 * (both included) separated by a step value
+	 *
+	 * @param minThreshold minimum threshold value
+	 * @param maxThreshold maximum threshold value
+	 * @param stepThreshold threshold step value
+	 * @return threshold values in increasing order
+	 */
+	public static double[] getThresholds(
+			double minThreshold,
+			double maxThreshold,
+			double stepThreshold)
+	{
+		final ArrayList<Double> list = new ArrayList<Double>();
+		// accumulate the step to get exactly the same values as the threshold loops
+		for(double th = minThreshold; th <= maxThreshold; th += stepThreshold)
+			list.add( th );
+		final double[] thresholds = new double[ list.size() ];
+		for(int i = 0; i < thresholds.length; i++)
+			thresholds[ i ] = list.get( i );
+		return thresholds;
+	}
+
 }
@@ -21,6 +21,7 @@
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -34,7 +35,7 @@
 /**
  * This class implements the pixel error metric
  */
-public class PixelError extends Metrics
+public class PixelError extends SliceMetrics
 {
 
 	/** boolean flag to set the level of detail on the standard output messages */
@@ -60,42 +61,99 @@ public PixelError(ImagePlus originalLabels, ImagePlus proposedLabels)
 	@Override
 	public double getMetricValue(double binaryThreshold)
 	{
+		return getMetricValues( new double[]{ binaryThreshold } )[ 0 ];
+	}
+	
+	/**
+	 * Calculate the pixel error for a set of thresholds in a single
+	 * (concurrent) pass over the slices of the stack.
+	 * 
+	 * @param thresholds threshold values to binarize the input images
+	 * @return pixel error for each threshold
+	 */
+	@Override
+	public double[] getMetricValues(double[] thresholds)
+	{
+		final ArrayList< ClassificationStatistics > stats = getStackStatistics( thresholds );
+		final double[] pixelError = new double[ thresholds.length ];
+		for(int i = 0; i < thresholds.length; i++)
+			pixelError[ i ] = stats.get( i ).metricValue;
+		return pixelError;
+	}
+	
+	/**
+	 * Calculate the pixel error statistics of a pair of slices for a set
+	 * of thresholds, visiting each pixel only once. The pixels are counted 
+	 * in a joint histogram of the number of thresholds below the label and
+	 * the proposal values, from which the statistics of every threshold are
+	 * read.
+	 * 
+	 * @param slice slice number
+	 * @param label 2D image with the original labels
+	 * @param proposal 2D image with the proposed labels
+	 * @param thresholds threshold values to binarize the input images
+	 * @return pixel error value and derived statistics for each threshold
+	 */
+	@Override
+	protected ClassificationStatistics[] getSliceStatistics(
+			int slice,
+			ImageProcessor label,
+			ImageProcessor proposal,
+			double[] thresholds)
+	{
+		final float[] labelPix = (float[]) label.getPixels();
+		final float[] proposalPix = (float[]) proposal.getPixels();
 		
-		final ImageStack labelSlices = originalLabels.getImageStack();
-		final ImageStack proposalSlices = proposedLabels.getImageStack();
-
-		double pixelError = 0;
-
-		// Executor service to produce concurrent threads
-		final ExecutorService exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-		final ArrayList< Future<Double> > futures = new ArrayList< Future<Double> >();
-
-		try{
-			for(int i = 1; i <= labelSlices.getSize(); i++)
-			{
-				futures.add(exe.submit( getPixelErrorConcurrent(labelSlices.getProcessor(i).convertToFloat(),
-											proposalSlices.getProcessor(i).convertToFloat(),										
-											binaryThreshold ) ) );
-			}
-
-			// Wait for the jobs to be done
-			for(Future<Double> f : futures)
-			{
-				pixelError += f.get();				
-
-			}			
-		}
-		catch(Exception ex)
+		final double[] sorted = thresholds.clone();
+		Arrays.sort( sorted );
+		final int numLevels = sorted.length + 1;
+		
+		// joint histogram of the number of thresholds below each value
+		final double[][] histogram = new double[ numLevels + 1 ][ numLevels + 1 ];
+		for(int i=0; i<labelPix.length; i++)
+			histogram[ countBelow( sorted, labelPix[ i ] ) ][ countBelow( sorted, proposalPix[ i ] ) ] ++;
+		
+		// turn it into the number of pixels with both levels at least (a, b)
+		for(int a=numLevels-1; a>=0; a--)
+			for(int b=numLevels-1; b>=0; b--)
+				histogram[ a ][ b ] += histogram[ a+1 ][ b ] + histogram[ a ][ b+1 ] - histogram[ a+1 ][ b+1 ];
+		
+		final double n = labelPix.length;
+		final ClassificationStatistics[] stats = new ClassificationStatistics[ thresholds.length ];
+		for(int i=0; i<thresholds.length; i++)
 		{
-			IJ.log("Error when warping ground truth in a concurrent way.");
-			ex.printStackTrace();
+			// a value is over the threshold if more than t thresholds are below it
+			final int t = Arrays.binarySearch( sorted, thresholds[ i ] );
+			final double truePositives = histogram[ t+1 ][ t+1 ];
+			final double falsePositives = histogram[ t+1 ][ 0 ] - truePositives;
+			final double falseNegatives = histogram[ 0 ][ t+1 ] - truePositives;
+			final double trueNegatives = n - truePositives - falsePositives - falseNegatives;
+			stats[ i ] = new ClassificationStatistics( truePositives, trueNegatives, falsePositives, 
+					falseNegatives, (falsePositives + falseNegatives) / n );
 		}
-		finally{
-			exe.shutdown();
+		return stats;
+	}
+	
+	/**
+	 * Count the number of (sorted) thresholds strictly below a value
+	 * 
+	 * @param sorted threshold values in increasing order
+	 * @param value pixel value
+	 * @return number of thresholds smaller than the value (0 for NaN)
+	 */
+	private static int countBelow(final double[] sorted, final float value)
+	{
+		int low = 0;
+		int high = sorted.length;
+		while( low < high )
+		{
+			final int mid = (low + high) >>> 1;
+			if( value > sorted[ mid ] )
+				low = mid + 1;
+			else
+				high = mid;
 		}
-
-		return pixelError / labelSlices.getSize();
+		return low;
 	}
 		
 	/**
@@ -228,25 +286,27 @@ public ArrayList< ClassificationStatistics > getPrecisionRecallStats(
 			return null;
 		}
 		
-		ArrayList< ClassificationStatistics > cs = new ArrayList<ClassificationStatistics>();
+		final double[] thresholds = getThresholds( minThreshold, maxThreshold, stepThreshold );
+		
+		if( verbose ) 
+			IJ.log("  Calculating pixel error statistics for " + thresholds.length + " threshold values...");
+		
+		// all thresholds are evaluated in one pass over the stack
+		ArrayList< ClassificationStatistics > cs = getStackStatistics( thresholds );
 				
 		double bestFscore = 0;
 		double bestTh = minThreshold;
 		
-		for(double th =  minThreshold; th <= maxThreshold; th += stepThreshold)
+		for(int i = 0; i < thresholds.length; i++)
 		{
-			if( verbose ) 
-				IJ.log("  Calculating pixel error statistics for threshold value " + String.format("%.2f", th) + "...");
-			cs.add( getPrecisionRecallStats( th ));
-			
-			final double fScore = cs.get( cs.size()-1 ).fScore;
+			final double fScore = cs.get( i ).fScore;
 			if( fScore > bestFscore )
 			{
 				bestFscore = fScore;
-				bestTh = th;
+				bestTh = thresholds[ i ];
 			}
 			if( verbose )
-				IJ.log("    F-score = " + fScore);
+				IJ.log("    Threshold " + String.format("%.2f", thresholds[ i ]) + ": F-score = " + fScore);
 		}
 		
 		if( verbose )
@@ -265,49 +325,7 @@ public ArrayList< ClassificationStatistics > getPrecisionRecallStats(
 	 */
 	public ClassificationStatistics getPrecisionRecallStats( double binaryThreshold )
 	{
-		final ImageStack labelSlices = originalLabels.getImageStack();
-		final ImageStack proposalSlices = proposedLabels.getImageStack();
-
-		double randIndex = 0;
-		double tp = 0;
-		double tn = 0;
-		double fp = 0;
-		double fn = 0;
-
-		// Executor service to produce concurrent threads
-		final ExecutorService exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-		final ArrayList< Future<ClassificationStatistics> > futures = new ArrayList< Future<ClassificationStatistics> >();
-
-		try{
-			for(int i = 1; i <= labelSlices.getSize(); i++)
-			{
-				futures.add(exe.submit( getPrecisionRecallStatsConcurrent(labelSlices.getProcessor(i).convertToFloat(),
-											proposalSlices.getProcessor(i).convertToFloat(),										
-											binaryThreshold ) ) );
-			}
-
-			// Wait for the jobs to be done
-			for(Future<ClassificationStatistics> f : futures)
-			{
-				ClassificationStatistics cs = f.get();
-				randIndex += cs.metricValue;
-				tp += cs.truePositives;
-				tn += cs.trueNegatives;
-				fp += cs.falsePositives;
-				fn += cs.falseNegatives;
-			}			
-		}
-		catch(Exception ex)
-		{
-			IJ.log("Error when calculating pixel error in a concurrent way.");
-			ex.printStackTrace();
-		}
-		finally{
-			exe.shutdown();
-		}
-
-		return new ClassificationStatistics( tp, tn, fp, fn, randIndex / labelSlices.getSize() );
+		return getStackStatistics( new double[]{ binaryThreshold } ).get( 0 );
 	}
 	
 	/**
@@ -22,15 +22,11 @@
 
 import java.util.ArrayList;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import trainableSegmentation.utils.Utils;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
@@ -55,7 +51,7 @@
  * </pre>
  *
  */
-public class RandError extends Metrics
+public class RandError extends SliceMetrics
 {
 	/** boolean flag to set the level of detail on the standard output messages */
 	private boolean verbose = true;
@@ -96,41 +92,51 @@ public RandError(ImagePlus originalLabels, ImagePlus proposedLabels)
 	 */
 	public double getMetricValue(double binaryThreshold)
 	{
+		return getMetricValues( new double[]{ binaryThreshold } )[ 0 ];
+	}
 
-		final ImageStack labelSlices = originalLabels.getImageStack();
-		final ImageStack proposalSlices = proposedLabels.getImageStack();
-
-		double randError = 0;
-
-		// Executor service to produce concurrent threads
-		final ExecutorService exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-		final ArrayList< Future<Double> > futures = new ArrayList< Future<Double> >();
-
-		try{
-			for(int i = 1; i <= labelSlices.getSize(); i++)
-			{
-				futures.add(exe.submit( getRandErrorConcurrent(labelSlices.getProcessor(i).convertToFloat(),
-											proposalSlices.getProcessor(i).convertToFloat(),										
-											binaryThreshold ) ) );
-			}
-
-			// Wait for the jobs to be done
-			for(Future<Double> f : futures)
-			{
-				randError += f.get();				
-			}			
-		}
-		catch(Exception ex)
-		{
-			IJ.log("Error when calculating rand error in a concurrent way.");
-			ex.printStackTrace();
-		}
-		finally{
-			exe.shutdown();
-		}
+	/**
+	 * Calculate the Rand error for a set of thresholds in a single
+	 * (concurrent) pass over the slices of the stack.
+	 *
+	 * @param thresholds threshold values to binarize the input images
+	 * @return Rand error for each threshold
+	 */
+	@Override
+	public double[] getMetricValues(double[] thresholds)
+	{
+		final ArrayList< ClassificationStatistics > stats = getStackStatistics( thresholds );
+		final double[] randError = new double[ thresholds.length ];
+		for(int i = 0; i < thresholds.length; i++)
+			randError[ i ] = 1 - stats.get( i ).metricValue;
+		return randError;
+	}
 
-		return randError / labelSlices.getSize();
+	/**
+	 * Calculate the Rand index statistics of a pair of slices for a set
+	 * of thresholds. The components of all thresholds are found in a single
+	 * sweep over the thresholds (see {@link RandIndexSweep}) instead of
+	 * labeling both slices once per threshold.
+	 *
+	 * @param slice slice number
+	 * @param label 2D image with the original labels
+	 * @param proposal 2D image with the proposed labels
+	 * @param thresholds threshold values to binarize the input images
+	 * @return Rand index value and derived statistics for each threshold
+	 */
+	@Override
+	protected ClassificationStatistics[] getSliceStatistics(
+			int slice,
+			ImageProcessor label,
+			ImageProcessor proposal,
+			double[] thresholds)
+	{
+		final double[][] sums = RandIndexSweep.contingencySums( (float[]) label.getPixels(),
+				(float[]) proposal.getPixels(), label.getWidth(), thresholds );
+		final ClassificationStatistics[] stats = new ClassificationStatistics[ thresholds.length ];
+		for(int i = 0; i < thresholds.length; i++)
+			stats[ i ] = getRandIndexStats( sums[ i ] );
+		return stats;
 	}
 	
 	/**
@@ -158,49 +164,7 @@ public double getMetricValue(double binaryThreshold)
 	 */
 	public ClassificationStatistics getRandIndexStats( double binaryThreshold )
 	{
-		final ImageStack labelSlices = originalLabels.getImageStack();
-		final ImageStack proposalSlices = proposedLabels.getImageStack();
-
-		double randIndex = 0;
-		double tp = 0;
-		double tn = 0;
-		double fp = 0;
-		double fn = 0;
-
-		// Executor service to produce concurrent threads
-		final ExecutorService exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-		final ArrayList< Future<ClassificationStatistics> > futures = new ArrayList< Future<ClassificationStatistics> >();
-
-		try{
-			for(int i = 1; i <= labelSlices.getSize(); i++)
-			{
-				futures.add(exe.submit( getRandIndexStatsConcurrent(labelSlices.getProcessor(i).convertToFloat(),
-											proposalSlices.getProcessor(i).convertToFloat(),										
-											binaryThreshold ) ) );
-			}
-
-			// Wait for the jobs to be done
-			for(Future<ClassificationStatistics> f : futures)
-			{
-				ClassificationStatistics cs = f.get();
-				randIndex += cs.metricValue;
-				tp += cs.truePositives;
-				tn += cs.trueNegatives;
-				fp += cs.falsePositives;
-				fn += cs.falseNegatives;
-			}			
-		}
-		catch(Exception ex)
-		{
-			IJ.log("Error when calculating rand error in a concurrent way.");
-			ex.printStackTrace();
-		}
-		finally{
-			exe.shutdown();
-		}
-
-		return new ClassificationStatistics( tp, tn, fp, fn, randIndex / labelSlices.getSize() );
+		return getStackStatistics( new double[]{ binaryThreshold } ).get( 0 );
 	}
 	
 	/**
@@ -240,24 +204,27 @@ public ArrayList< ClassificationStatistics > getRandIndexStats(
 			return null;
 		}
 		
-		ArrayList< ClassificationStatistics > cs = new ArrayList<ClassificationStatistics>();
+		final double[] thresholds = getThresholds( minThreshold, maxThreshold, stepThreshold );
+		
+		if( verbose ) 
+			IJ.log("  Calculating Rand index statistics for " + thresholds.length + " threshold values...");
+		
+		// all thresholds are evaluated in one pass over the stack
+		ArrayList< ClassificationStatistics > cs = getStackStatistics( thresholds );
 		
 		double bestFscore = 0;
 		double bestTh = minThreshold;
 		
-		for(double th = minThreshold; th <= maxThreshold; th += stepThreshold)
+		for(int i = 0; i < thresholds.length; i++)
 		{
-			if( verbose ) 
-				IJ.log("  Calculating Rand index statistics for threshold value " + String.format("%.2f", th) + "...");
-			cs.add( getRandIndexStats( th ));
-			final double fScore = cs.get( cs.size()-1 ).fScore;
+			final double fScore = cs.get( i ).fScore;
 			if( fScore > bestFscore )
 			{
 				bestFscore = fScore;
-				bestTh = th;
+				bestTh = thresholds[ i ];
 			}
 			if( verbose )
-				IJ.log("    F-score = " + fScore);
+				IJ.log("    Threshold " + String.format("%.2f", thresholds[ i ]) + ": F-score = " + fScore);
 		}
 		
 		if( verbose )
@@ -549,74 +516,7 @@ public double randIndex(
 			ShortProcessor cluster1,
 			ShortProcessor cluster2)
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
-		//(new ImagePlus("cluster 1", cluster1)).show();
-		//(new ImagePlus("cluster 2", cluster2)).show();
-		
-		double nPixels = pixels1.length;
-		
-		// number of pixels that are "in" (not background)
-		double n = 0;
-		
-		// Form the contingency matrix
-		int[][]cont = new int[(int) cluster1.getMax() + 1] [ (int) cluster2.getMax() + 1];		
-
-		for(int i=0; i<nPixels; i++)
-		{						
-			cont[ pixels1[i] ] [ pixels2[i] ] ++;
-			if( pixels1[ i ] > 0)
-				n++;
-		}
-
-		// sum of squares of sums of rows
-		// (skip background objects in the first cluster)
-		double[] ni = new double[ cont.length ];
-		for(int i=1; i<cont.length; i++)
-			for(int j=0; j<cont[0].length; j++)
-			{
-				ni[ i ] += cont[ i ][ j ];				
-			}
-
-		// sum of squares of sums of columns
-		// (prune out the zero component in the labeling (un-assigned "out" space))
-		double[] nj = new double[ cont[0].length ];
-		for(int j=1; j<cont[0].length; j++)
-			for(int i=1; i<cont.length; i++)
-			{
-				nj[ j ] += cont[ i ][ j ];
-			}
-		
-		// true positives - type (i): objects in the pair are placed in the 
-		// same class in cluster1 and in the same class in claster2
-		// (prune out the zero component in the labeling (un-assigned "out" space))
-		double truePositives = 0;
-		for(int j=1; j<cont[0].length; j++)
-			for(int i=1; i<cont.length; i++)			
-				truePositives += cont[ i ][ j ] * ( cont[ i ][ j ] - 1 ) / 2;			
-						
-		// total number of pairs
-		double nPairsTotal = n * (n-1) / 2 ;
-		
-		double nPosTrue = 0;
-		for(int k=0; k<ni.length; k++)
-			nPosTrue += ni[ k ] * (ni[ k ]-1) /2;
-		
-		double nPosActual = 0;
-		for(int k=0; k<nj.length; k++)
-			nPosActual += nj[ k ] * (nj[ k ]-1)/2;				
-				
-		// true negatives - type (ii): objects in the pair are placed in different 
-		// classes in cluster1 and in different classes in claster2
-		//double trueNegatives = (n*n + t2 - nis - njs) / 2;		
-		double trueNegatives = nPairsTotal + truePositives - nPosTrue - nPosActual;
-		
-		double agreements = truePositives + trueNegatives;		// number of agreements
-		
-		double randIndex = agreements / nPairsTotal;
-		
-		return randIndex;
+		return getRandIndexStats( cluster1, cluster2 ).metricValue;
 	}
 	
 	
@@ -641,7 +541,7 @@ public double randIndex(
 	 * 
 	 * @param cluster1 2D segmented image (objects are labeled with different numbers) 
 	 * @param cluster2 2D segmented image (objects are labeled with different numbers)
-	 * @return Rand index
+	 * @return Rand index value and derived statistics
 	 */
 	public ClassificationStatistics getRandIndexStats(
 			ShortProcessor cluster1,
@@ -650,87 +550,39 @@ public ClassificationStatistics getRandIndexStats(
 		final short[] pixels1 = (short[]) cluster1.getPixels();
 		final short[] pixels2 = (short[]) cluster2.getPixels();
 		
-		//(new ImagePlus("cluster 1", cluster1)).show();
-		//(new ImagePlus("cluster 2", cluster2)).show();
-		
-		double nPixels = pixels1.length;
-		
+		// sparse contingency table sums
+		return getRandIndexStats( contingencySums( pixels1, pixels2 ) );
+	}
+	
+	/**
+	 * Calculate the Rand index and its derived statistics from the sums of
+	 * the contingency table of two clusterings (see
+	 * {@link #contingencySums(short[], short[])})
+	 * 
+	 * @param sums number of non-background pixels in the first clustering,
+	 * number of pairs in the same object in both clusterings, number of pairs
+	 * in the same object in the first clustering and number of pairs in the
+	 * same (non-background) object in the second clustering
+	 * @return Rand index value and derived statistics
+	 */
+	static ClassificationStatistics getRandIndexStats(final double[] sums)
+	{
 		// number of pixels that are "in" (not background)
-		double n = 0;
-		
-		// reset min and max of the cluster processors (neede in order to have correct values)
-		cluster1.resetMinAndMax();
-		cluster2.resetMinAndMax();
-		
-		// Form the contingency matrix
-		int[][]cont = new int[(int) cluster1.getMax() + 1] [ (int) cluster2.getMax() + 1];		
-		
-		//IJ.log(" cont.length = " +cont.length );
-		//IJ.log(" cont[0].length = " +cont[0].length );
-
-		for(int i=0; i<nPixels; i++)
-		{						
-			cont[ pixels1[i] ] [ pixels2[i] ] ++;
-			if( pixels1[ i ] > 0)
-				n++;
-		}
-		// sum over rows & columnns of nij^2
-		//double t2 = 0;				
-		
-		// sums of rows
-		// (skip background objects in the first cluster)
-		double[] ni = new double[ cont.length ];
-		for(int i=1; i<cont.length; i++)
-			for(int j=0; j<cont[0].length; j++)
-			{
-				ni[ i ] += cont[ i ][ j ];				
-			}
-		/*
-		// sum of squares of sums of rows
-		double nis = 0;
-		for(int k=0; k<ni.length; k++)
-			nis += ni[ k ] * ni[ k ];
-		*/
-		
-		// sums of columns
-		// (prune out the zero component in the labeling (un-assigned "out" space))
-		double[] nj = new double[ cont[0].length ];
-		for(int j=1; j<cont[0].length; j++)
-			for(int i=1; i<cont.length; i++)
-			{
-				nj[ j ] += cont[ i ][ j ];
-				//t2 += cont[ i ][ j ] * cont[ i ][ j ];
-			}
-		/*
-		// sum of squares of sums of columns
-		double njs = 0;
-		for(int k=0; k<nj.length; k++)
-			njs += nj[ k ] * nj[ k ];
-		*/
+		final double n = sums[ 0 ];
 		
 		// true positives - type (i): objects in the pair are placed in the 
 		// same class in cluster1 and in the same class in claster2
 		// (prune out the zero component in the labeling (un-assigned "out" space))
-		double truePositives = 0;
-		for(int j=1; j<cont[0].length; j++)
-			for(int i=1; i<cont.length; i++)
-			{
-				truePositives += cont[ i ][ j ] * ( cont[ i ][ j ] - 1.0 ) / 2.0;
-			}
-							
-						
-		// total number of pairs
-		double nPairsTotal = n * (n-1) / 2 ;
+		final double truePositives = sums[ 1 ];
 		
-		// 
-		double nPosTrue = 0;
-		for(int k=0; k<ni.length; k++)
-			nPosTrue += ni[ k ] * (ni[ k ]-1) /2;
+		// number of pairs that are in the same object of cluster1
+		final double nPosTrue = sums[ 2 ];
 		
 		// number of pairs that were actually classified as positive
-		double nPosActual = 0;
-		for(int k=0; k<nj.length; k++)
-			nPosActual += nj[ k ] * (nj[ k ]-1)/2;				
+		final double nPosActual = sums[ 3 ];
+		
+		// total number of pairs
+		double nPairsTotal = n * (n-1) / 2 ;
 		
 		double nNegCorrect = nPairsTotal + truePositives - nPosTrue - nPosActual;
 		
@@ -784,6 +636,89 @@ public ClassificationStatistics getRandIndexStats(
 									falsePositives,  falseNegatives, randIndex);
 	}
 	
+	/**
+	 * Calculate the sums needed by the Rand index from the contingency table
+	 * of two labelings, pruning out the zero component (background). Only
+	 * the label pairs that actually appear are counted: the pixels are
+	 * grouped by their label in the first clustering (counting sort) and the
+	 * labels of each group in the second clustering are counted with a
+	 * reusable array, so neither time nor memory depend on the product of
+	 * the number of labels.
+	 * 
+	 * @param pixels1 labels of the first clustering (unsigned 16-bit)
+	 * @param pixels2 labels of the second clustering (unsigned 16-bit)
+	 * @return array with the number of non-background pixels in the first
+	 * clustering, the number of pairs in the same object in both clusterings,
+	 * the number of pairs in the same object in the first clustering and the
+	 * number of pairs in the same (non-background) object in the second 
+	 * clustering
+	 */
+	static double[] contingencySums(
+			final short[] pixels1,
+			final short[] pixels2)
+	{
+		int max1 = 0;
+		int max2 = 0;
+		for(int i=0; i<pixels1.length; i++)
+		{
+			max1 = Math.max( max1, pixels1[ i ] & 0xffff );
+			max2 = Math.max( max2, pixels2[ i ] & 0xffff );
+		}
+		
+		// group the pixels by their label in the first clustering
+		final int[] start = new int[ max1 + 2 ];
+		for(int i=0; i<pixels1.length; i++)
+			start[ (pixels1[ i ] & 0xffff) + 1 ] ++;
+		for(int l=1; l<start.length; l++)
+			start[ l ] += start[ l-1 ];
+		final int[] next = new int[ max1 + 1 ];
+		System.arraycopy( start, 0, next, 0, max1 + 1 );
+		final short[] grouped = new short[ pixels1.length ];
+		for(int i=0; i<pixels1.length; i++)
+			grouped[ next[ pixels1[ i ] & 0xffff ] ++ ] = pixels2[ i ];
+		
+		final int[] count = new int[ max2 + 1 ];
+		final int[] touched = new int[ max2 + 1 ];
+		final double[] nj = new double[ max2 + 1 ];
+		
+		double n = 0;
+		double truePositives = 0;
+		double nPosTrue = 0;
+		
+		// skip background objects in the first cluster
+		for(int l1=1; l1<=max1; l1++)
+		{
+			final double ni = start[ l1 + 1 ] - start[ l1 ];
+			n += ni;
+			nPosTrue += ni * (ni - 1) / 2;
+			
+			int numTouched = 0;
+			for(int k=start[ l1 ]; k<start[ l1 + 1 ]; k++)
+			{
+				final int l2 = grouped[ k ] & 0xffff;
+				if( count[ l2 ] ++ == 0 )
+					touched[ numTouched ++ ] = l2;
+			}
+			for(int k=0; k<numTouched; k++)
+			{
+				final int l2 = touched[ k ];
+				final double c = count[ l2 ];
+				count[ l2 ] = 0;
+				// prune out the zero component in the labeling (un-assigned "out" space)
+				if( l2 == 0 )
+					continue;
+				truePositives += c * ( c - 1.0 ) / 2.0;
+				nj[ l2 ] += c;
+			}
+		}
+		
+		double nPosActual = 0;
+		for(int l2=1; l2<=max2; l2++)
+			nPosActual += nj[ l2 ] * (nj[ l2 ]-1)/2;
+		
+		return new double[]{ n, truePositives, nPosTrue, nPosActual };
+	}
+	
 	/**
 	 * Get the best F-score of the Rand index over a set of thresholds 
 	 * 
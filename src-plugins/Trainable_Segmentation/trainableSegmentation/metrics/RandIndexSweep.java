@@ -0,0 +1,453 @@
+package trainableSegmentation.metrics;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras (iarganda@mit.edu)
+ */
+
+import java.util.Arrays;
+
+/**
+ * This class calculates the sums of the contingency table needed by the
+ * Rand index (see {@link RandError#contingencySums(short[], short[])})
+ * of a pair of 2D images binarized at a set of thresholds, in a single
+ * sweep over the thresholds instead of labeling both images once per
+ * threshold.
+ * <p>
+ * The foreground of a higher threshold is contained in the foreground of
+ * a lower one, so the thresholds are visited from the highest to the
+ * lowest one, the pixels that become foreground are added to the 4-connected
+ * components of each image (kept in union-find forests) and the sums are
+ * updated with every pixel and every merge of two components. The number of
+ * pixels shared by each pair of components is kept in a hash table with
+ * only the pairs that actually appear, and the pairs of the smaller
+ * component are moved to the larger one when they merge.
+ */
+final class RandIndexSweep
+{
+	/** parent of each pixel in the components of the labels (-1 for background) */
+	private final int[] parent1;
+	/** parent of each pixel in the components of the proposal (-1 for background) */
+	private final int[] parent2;
+	/** number of pixels of each component of the labels (valid for the roots) */
+	private final int[] size1;
+	/** number of foreground pixels of the labels in each component of the proposal */
+	private final int[] size2;
+	/** components of the other image that share pixels with each component */
+	private final PartnerLists partners1;
+	private final PartnerLists partners2;
+	/** number of pixels shared by each pair of components (by their roots) */
+	private final PairCounts pairs = new PairCounts();
+
+	/** number of foreground pixels of the labels */
+	private double n = 0;
+	/** number of pairs in the same component in both images */
+	private double truePositives = 0;
+	/** number of pairs in the same component of the labels */
+	private double nPosTrue = 0;
+	/** number of pairs (of foreground pixels of the labels) in the same component of the proposal */
+	private double nPosActual = 0;
+
+	private RandIndexSweep(final int numPixels)
+	{
+		parent1 = new int[ numPixels ];
+		parent2 = new int[ numPixels ];
+		Arrays.fill( parent1, -1 );
+		Arrays.fill( parent2, -1 );
+		size1 = new int[ numPixels ];
+		size2 = new int[ numPixels ];
+		partners1 = new PartnerLists( numPixels );
+		partners2 = new PartnerLists( numPixels );
+	}
+
+	/**
+	 * Calculate the sums needed by the Rand index between two 2D images
+	 * binarized at a set of thresholds (a pixel is foreground if its value
+	 * is larger than the threshold), using 4-connected components and
+	 * pruning out the background.
+	 *
+	 * @param label pixels of the original labels
+	 * @param proposal pixels of the proposed labels
+	 * @param width image width
+	 * @param thresholds threshold values (in any order)
+	 * @return for each threshold, the number of foreground pixels of the
+	 * labels, the number of pairs in the same object in both images, the
+	 * number of pairs in the same object of the labels and the number of
+	 * pairs in the same object of the proposal
+	 */
+	static double[][] contingencySums(
+			final float[] label,
+			final float[] proposal,
+			final int width,
+			final double[] thresholds)
+	{
+		final double[] sorted = thresholds.clone();
+		Arrays.sort( sorted );
+
+		final int[][] order1 = sortByLevel( label, sorted );
+		final int[][] order2 = sortByLevel( proposal, sorted );
+
+		final RandIndexSweep sweep = new RandIndexSweep( label.length );
+		final double[][] sortedSums = new double[ sorted.length ][];
+		// the pixels of level k + 1 become foreground at the k-th threshold
+		for(int k = sorted.length - 1; k >= 0; k--)
+		{
+			for(int i = order1[ 1 ][ k + 1 ]; i < order1[ 1 ][ k + 2 ]; i++)
+				sweep.addLabelPixel( order1[ 0 ][ i ], width );
+			for(int i = order2[ 1 ][ k + 1 ]; i < order2[ 1 ][ k + 2 ]; i++)
+				sweep.addProposalPixel( order2[ 0 ][ i ], width );
+			sortedSums[ k ] = new double[]{ sweep.n, sweep.truePositives, sweep.nPosTrue, sweep.nPosActual };
+		}
+
+		final double[][] sums = new double[ thresholds.length ][];
+		for(int t = 0; t < thresholds.length; t++)
+			sums[ t ] = sortedSums[ Arrays.binarySearch( sorted, thresholds[ t ] ) ].clone();
+		return sums;
+	}
+
+	/**
+	 * Sort the pixels by their level, the number of thresholds below their
+	 * value (counting sort)
+	 *
+	 * @param pixels pixel values
+	 * @param sorted thresholds in increasing order
+	 * @return pixel indices sorted by level and start of each level in them
+	 * (with an extra entry for the end)
+	 */
+	private static int[][] sortByLevel(final float[] pixels, final double[] sorted)
+	{
+		final int[] level = new int[ pixels.length ];
+		final int[] start = new int[ sorted.length + 2 ];
+		for(int i = 0; i < pixels.length; i++)
+		{
+			// NaN is below every threshold
+			int low = 0;
+			int high = sorted.length;
+			while( low < high )
+			{
+				final int mid = (low + high) >>> 1;
+				if( pixels[ i ] > sorted[ mid ] )
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			level[ i ] = low;
+			start[ low + 1 ]++;
+		}
+		for(int l = 1; l < start.length; l++)
+			start[ l ] += start[ l - 1 ];
+
+		final int[] next = start.clone();
+		final int[] order = new int[ pixels.length ];
+		for(int i = 0; i < pixels.length; i++)
+			order[ next[ level[ i ] ]++ ] = i;
+		return new int[][]{ order, start };
+	}
+
+	/**
+	 * Make a pixel of the labels foreground
+	 */
+	private void addLabelPixel(final int pixel, final int width)
+	{
+		parent1[ pixel ] = pixel;
+		size1[ pixel ] = 1;
+		n++;
+		if( parent2[ pixel ] >= 0 )
+		{
+			final int root2 = find( parent2, pixel );
+			nPosActual += size2[ root2 ];
+			size2[ root2 ]++;
+			addPair( pixel, root2 );
+		}
+		final int x = pixel % width;
+		if( x > 0 && parent1[ pixel - 1 ] >= 0 )
+			union1( pixel, pixel - 1 );
+		if( x < width - 1 && parent1[ pixel + 1 ] >= 0 )
+			union1( pixel, pixel + 1 );
+		if( pixel >= width && parent1[ pixel - width ] >= 0 )
+			union1( pixel, pixel - width );
+		if( pixel + width < parent1.length && parent1[ pixel + width ] >= 0 )
+			union1( pixel, pixel + width );
+	}
+
+	/**
+	 * Make a pixel of the proposal foreground
+	 */
+	private void addProposalPixel(final int pixel, final int width)
+	{
+		parent2[ pixel ] = pixel;
+		if( parent1[ pixel ] >= 0 )
+		{
+			size2[ pixel ] = 1;
+			addPair( find( parent1, pixel ), pixel );
+		}
+		final int x = pixel % width;
+		if( x > 0 && parent2[ pixel - 1 ] >= 0 )
+			union2( pixel, pixel - 1 );
+		if( x < width - 1 && parent2[ pixel + 1 ] >= 0 )
+			union2( pixel, pixel + 1 );
+		if( pixel >= width && parent2[ pixel - width ] >= 0 )
+			union2( pixel, pixel - width );
+		if( pixel + width < parent2.length && parent2[ pixel + width ] >= 0 )
+			union2( pixel, pixel + width );
+	}
+
+	/**
+	 * Count a pixel shared by a new component (of a single pixel) and
+	 * another one
+	 */
+	private void addPair(final int root1, final int root2)
+	{
+		final long key = key( root1, root2 );
+		final int count = pairs.get( key );
+		// a pair with a single pixel more adds as many pairs of pixels as it had
+		truePositives += count;
+		pairs.put( key, count + 1 );
+		if( count == 0 )
+		{
+			partners1.add( root1, root2 );
+			partners2.add( root2, root1 );
+		}
+	}
+
+	/**
+	 * Merge the components of two pixels of the labels
+	 */
+	private void union1(final int pixel1, final int pixel2)
+	{
+		int root = find( parent1, pixel1 );
+		int other = find( parent1, pixel2 );
+		if( root == other )
+			return;
+		// move the pairs of the component with less partners
+		if( partners1.count[ root ] < partners1.count[ other ] )
+		{
+			final int tmp = root;
+			root = other;
+			other = tmp;
+		}
+		nPosTrue += (double) size1[ root ] * size1[ other ];
+		size1[ root ] += size1[ other ];
+		parent1[ other ] = root;
+
+		for(int node = partners1.head[ other ]; node >= 0; node = partners1.next[ node ])
+		{
+			final int root2 = find( parent2, partners1.value[ node ] );
+			final int count = pairs.remove( key( other, root2 ) );
+			if( count == 0 )
+				continue;
+			final int old = pairs.get( key( root, root2 ) );
+			truePositives += (double) count * old;
+			pairs.put( key( root, root2 ), old + count );
+		}
+		partners1.append( root, other );
+	}
+
+	/**
+	 * Merge the components of two pixels of the proposal
+	 */
+	private void union2(final int pixel1, final int pixel2)
+	{
+		int root = find( parent2, pixel1 );
+		int other = find( parent2, pixel2 );
+		if( root == other )
+			return;
+		if( partners2.count[ root ] < partners2.count[ other ] )
+		{
+			final int tmp = root;
+			root = other;
+			other = tmp;
+		}
+		nPosActual += (double) size2[ root ] * size2[ other ];
+		size2[ root ] += size2[ other ];
+		parent2[ other ] = root;
+
+		for(int node = partners2.head[ other ]; node >= 0; node = partners2.next[ node ])
+		{
+			final int root1 = find( parent1, partners2.value[ node ] );
+			final int count = pairs.remove( key( root1, other ) );
+			if( count == 0 )
+				continue;
+			final int old = pairs.get( key( root1, root ) );
+			truePositives += (double) count * old;
+			pairs.put( key( root1, root ), old + count );
+		}
+		partners2.append( root, other );
+	}
+
+	/**
+	 * Key of a pair of components in the hash table
+	 */
+	private long key(final int root1, final int root2)
+	{
+		return (long) root1 * parent1.length + root2;
+	}
+
+	/**
+	 * Find the root of the component of a pixel (with path halving)
+	 */
+	private static int find(final int[] parent, int pixel)
+	{
+		while( parent[ pixel ] != pixel )
+		{
+			parent[ pixel ] = parent[ parent[ pixel ] ];
+			pixel = parent[ pixel ];
+		}
+		return pixel;
+	}
+
+	/**
+	 * Linked lists with the partners of each component. The lists may keep
+	 * pixels that are no longer roots (their root is the actual partner)
+	 * and repeated partners, which are skipped when moving the pairs.
+	 */
+	private static final class PartnerLists
+	{
+		final int[] head;
+		final int[] tail;
+		final int[] count;
+		final int[] value;
+		final int[] next;
+		int numNodes = 0;
+
+		PartnerLists(final int numPixels)
+		{
+			head = new int[ numPixels ];
+			tail = new int[ numPixels ];
+			count = new int[ numPixels ];
+			Arrays.fill( head, -1 );
+			// every pixel adds at most one partner to each side
+			value = new int[ numPixels ];
+			next = new int[ numPixels ];
+		}
+
+		void add(final int root, final int partner)
+		{
+			final int node = numNodes++;
+			value[ node ] = partner;
+			next[ node ] = head[ root ];
+			head[ root ] = node;
+			if( next[ node ] < 0 )
+				tail[ root ] = node;
+			count[ root ]++;
+		}
+
+		/** move the list of a component to the end of another one */
+		void append(final int root, final int other)
+		{
+			if( head[ other ] < 0 )
+				return;
+			if( head[ root ] < 0 )
+				head[ root ] = head[ other ];
+			else
+				next[ tail[ root ] ] = head[ other ];
+			tail[ root ] = tail[ other ];
+			count[ root ] += count[ other ];
+			head[ other ] = -1;
+			count[ other ] = 0;
+		}
+	}
+
+	/**
+	 * Hash table (open addressing) from non-negative long keys to positive
+	 * counts; missing keys have a count of 0
+	 */
+	private static final class PairCounts
+	{
+		private long[] keys;
+		private int[] values;
+		private int size = 0;
+
+		PairCounts()
+		{
+			allocate( 1024 );
+		}
+
+		private void allocate(final int capacity)
+		{
+			keys = new long[ capacity ];
+			values = new int[ capacity ];
+			Arrays.fill( keys, -1 );
+		}
+
+		private int slot(final long key)
+		{
+			final long hash = key * 0x9E3779B97F4A7C15L;
+			return (int) (hash ^ (hash >>> 32)) & (keys.length - 1);
+		}
+
+		int get(final long key)
+		{
+			for(int i = slot( key ); keys[ i ] >= 0; i = (i + 1) & (keys.length - 1))
+				if( keys[ i ] == key )
+					return values[ i ];
+			return 0;
+		}
+
+		void put(final long key, final int value)
+		{
+			int i = slot( key );
+			for(; keys[ i ] >= 0; i = (i + 1) & (keys.length - 1))
+				if( keys[ i ] == key )
+				{
+					values[ i ] = value;
+					return;
+				}
+			keys[ i ] = key;
+			values[ i ] = value;
+			if( ++size > keys.length / 2 )
+				grow();
+		}
+
+		int remove(final long key)
+		{
+			final int mask = keys.length - 1;
+			int i = slot( key );
+			for(; keys[ i ] != key; i = (i + 1) & mask)
+				if( keys[ i ] < 0 )
+					return 0;
+			final int value = values[ i ];
+			size--;
+			// shift back the following entries of the cluster
+			for(int j = (i + 1) & mask; keys[ j ] >= 0; j = (j + 1) & mask)
+			{
+				final int home = slot( keys[ j ] );
+				// move the entry if its home slot is not between i and j
+				if( ((j - home) & mask) >= ((j - i) & mask) )
+				{
+					keys[ i ] = keys[ j ];
+					values[ i ] = values[ j ];
+					i = j;
+				}
+			}
+			keys[ i ] = -1;
+			return value;
+		}
+
+		private void grow()
+		{
+			final long[] oldKeys = keys;
+			final int[] oldValues = values;
+			allocate( oldKeys.length * 2 );
+			size = 0;
+			for(int i = 0; i < oldKeys.length; i++)
+				if( oldKeys[ i ] >= 0 )
+					put( oldKeys[ i ], oldValues[ i ] );
+		}
+	}
+}
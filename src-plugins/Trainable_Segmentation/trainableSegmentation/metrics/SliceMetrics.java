@@ -0,0 +1,221 @@
+package trainableSegmentation.metrics;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras (iarganda@mit.edu)
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This is the mother class for the metrics that are calculated slice by
+ * slice, so all thresholds can be evaluated in a single pass over the stack:
+ * each slice produces partial counts for every threshold and they are added
+ * up at the end.
+ */
+public abstract class SliceMetrics extends Metrics
+{
+	/** threads shared by the metrics (created when first needed) */
+	private static ExecutorService executor = null;
+
+	public SliceMetrics(ImagePlus originalLabels, ImagePlus proposedLabels)
+	{
+		super(originalLabels, proposedLabels);
+	}
+
+	/**
+	 * Partial counts of a pair of slices for a set of thresholds
+	 */
+	protected interface SliceCounts
+	{
+		/**
+		 * Calculate the counts of a pair of slices
+		 *
+		 * @param slice slice number (1-based)
+		 * @param label 2D image with the original labels (float)
+		 * @param proposal 2D image with the proposed labels (float)
+		 * @return counts for each threshold
+		 */
+		double[][] getCounts(int slice, ImageProcessor label, ImageProcessor proposal);
+	}
+
+	/**
+	 * Calculate the statistics of a pair of 2D slices for a set of thresholds.
+	 *
+	 * @param slice slice number (1-based)
+	 * @param label 2D image with the original labels (float)
+	 * @param proposal 2D image with the proposed labels (float)
+	 * @param thresholds threshold values to binarize the input images
+	 * @return statistics of the slice for each threshold
+	 */
+	protected abstract ClassificationStatistics[] getSliceStatistics(
+			int slice,
+			ImageProcessor label,
+			ImageProcessor proposal,
+			double[] thresholds);
+
+	/**
+	 * Calculate the statistics of the whole stack for a set of thresholds
+	 * in a single pass (see {@link #getStackCounts(SliceCounts)}): the
+	 * classification counts are added up and the metric value is averaged
+	 * over the slices.
+	 *
+	 * @param thresholds threshold values to binarize the input images
+	 * @return statistics for each threshold
+	 */
+	protected ArrayList< ClassificationStatistics > getStackStatistics(final double[] thresholds)
+	{
+		final double[][] sums = getStackCounts( new SliceCounts()
+		{
+			public double[][] getCounts(int slice, ImageProcessor label, ImageProcessor proposal)
+			{
+				final ClassificationStatistics[] sliceStats = getSliceStatistics( slice, label, proposal, thresholds );
+				final double[][] counts = new double[ thresholds.length ][];
+				for(int t = 0; t < thresholds.length; t++)
+					counts[ t ] = new double[]{ sliceStats[ t ].truePositives, sliceStats[ t ].trueNegatives,
+							sliceStats[ t ].falsePositives, sliceStats[ t ].falseNegatives,
+							sliceStats[ t ].metricValue };
+				return counts;
+			}
+		});
+
+		final int numSlices = originalLabels.getImageStackSize();
+		final ArrayList< ClassificationStatistics > stats = new ArrayList< ClassificationStatistics >();
+		for(int t = 0; t < thresholds.length; t++)
+			stats.add( new ClassificationStatistics( sums[ t ][ 0 ], sums[ t ][ 1 ], sums[ t ][ 2 ],
+					sums[ t ][ 3 ], sums[ t ][ 4 ] / numSlices ) );
+		return stats;
+	}
+
+	/**
+	 * Add up the partial counts of all slices of the stack. Each slice is
+	 * converted to float only once, inside its own task, so only as many
+	 * slices as threads are in memory at the same time.
+	 *
+	 * @param counts partial counts of each pair of slices
+	 * @return sum of the counts over the slices
+	 */
+	protected double[][] getStackCounts(final SliceCounts counts)
+	{
+		final ImageStack labelSlices = originalLabels.getImageStack();
+		final ImageStack proposalSlices = proposedLabels.getImageStack();
+
+		final ArrayList< Callable<double[][]> > tasks = new ArrayList< Callable<double[][]> >();
+		for(int i = 1; i <= labelSlices.getSize(); i++)
+		{
+			final int slice = i;
+			tasks.add( new Callable<double[][]>()
+			{
+				public double[][] call()
+				{
+					return counts.getCounts( slice, labelSlices.getProcessor( slice ).convertToFloat(),
+							proposalSlices.getProcessor( slice ).convertToFloat() );
+				}
+			});
+		}
+
+		double[][] sums = null;
+		for(final double[][] sliceCounts : processSlices( tasks ))
+		{
+			if( null == sums )
+			{
+				sums = new double[ sliceCounts.length ][];
+				for(int t = 0; t < sums.length; t++)
+					sums[ t ] = new double[ sliceCounts[ t ].length ];
+			}
+			for(int t = 0; t < sums.length; t++)
+				for(int c = 0; c < sums[ t ].length; c++)
+					sums[ t ][ c ] += sliceCounts[ t ][ c ];
+		}
+		return sums;
+	}
+
+	/**
+	 * Run a set of tasks (typically one per slice) with the threads shared
+	 * by the metrics and wait for all of them. The tasks must not wait for
+	 * other tasks of the metrics.
+	 *
+	 * @param tasks tasks to run
+	 * @return results of the tasks, in the same order
+	 * @throws RuntimeException if a task fails (the other tasks are cancelled)
+	 */
+	protected static < T > ArrayList< T > processSlices(final ArrayList< Callable< T > > tasks)
+	{
+		final ExecutorService exe = getExecutor();
+		final ArrayList< Future< T > > futures = new ArrayList< Future< T > >();
+		final ArrayList< T > results = new ArrayList< T >();
+		try{
+			for(final Callable< T > task : tasks)
+				futures.add( exe.submit( task ) );
+			for(final Future< T > f : futures)
+				results.add( f.get() );
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while calculating the metric", ex );
+		}
+		catch(ExecutionException ex)
+		{
+			final Throwable cause = ex.getCause();
+			if( cause instanceof RuntimeException )
+				throw (RuntimeException) cause;
+			if( cause instanceof Error )
+				throw (Error) cause;
+			throw new RuntimeException( "Error when calculating the metric", cause );
+		}
+		finally{
+			// only the unfinished tasks of a failed run are affected
+			for(final Future< T > f : futures)
+				f.cancel( true );
+		}
+		return results;
+	}
+
+	/**
+	 * Get the threads shared by the metrics. They are daemon threads, so
+	 * they do not keep the virtual machine running.
+	 *
+	 * @return executor with as many threads as processors
+	 */
+	private static synchronized ExecutorService getExecutor()
+	{
+		if( null == executor )
+			executor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					final Thread thread = new Thread( r, "Metrics" );
+					thread.setDaemon( true );
+					return thread;
+				}
+			});
+		return executor;
+	}
+
+}
@@ -26,9 +26,6 @@
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import javax.vecmath.Point3f;
 
@@ -37,7 +34,6 @@
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.process.Blitter;
 import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
@@ -62,7 +58,7 @@
  * }
  * </pre>   
  */
-public class WarpingError extends Metrics {
+public class WarpingError extends SliceMetrics {
 
 	/** simple point threshold value */
 	public static final double SIMPLE_POINT_THRESHOLD = 0;
@@ -161,30 +157,227 @@ public WarpingError(
 	 * @return total warping error (it counts all type of mismatches as errors)
 	 */	
 	@Override
-	public double getMetricValue(double binaryThreshold) 	
-	{		
+	public double getMetricValue(double binaryThreshold)
+	{
+		return getMetricValues( new double[]{ binaryThreshold } )[ 0 ];
+	}
+
+	/**
+	 * Calculate the classic warping error for a set of thresholds in a
+	 * single (concurrent) pass over the slices of the stack: each slice is
+	 * warped for every threshold and the errors are averaged over the slices.
+	 *
+	 * @param thresholds threshold values to binarize the proposal
+	 * @return total warping error for each threshold (-1 if the image sizes do not fit)
+	 */
+	@Override
+	public double[] getMetricValues(double[] thresholds)
+	{
+		final double[] warpingError = new double[ thresholds.length ];
+		if( false == sizesFit( originalLabels, proposedLabels ) )
+		{
+			Arrays.fill( warpingError, -1 );
+			return warpingError;
+		}
+
 		if( verbose )
 			IJ.log("  Warping ground truth...");
-		
+
 		// Warp ground truth, relax original labels to proposal. Only simple
 		// points warping is allowed.
-		WarpingResults[] wrs = simplePointWarp2dMT(super.originalLabels, super.proposedLabels, mask, binaryThreshold);		
+		final ArrayList< ClassificationStatistics > stats = getStackStatistics( thresholds );
+		for(int i = 0; i < thresholds.length; i++)
+			warpingError[ i ] = stats.get( i ).metricValue;
+		return warpingError;
+	}
 
-		if(null == wrs)
-			return -1;
+	/**
+	 * Calculate the warping statistics of a pair of slices for a set of
+	 * thresholds: the pixel classification of the warped labels against the
+	 * proposal and the warping error.
+	 *
+	 * @param slice slice number (to read the mask)
+	 * @param label 2D image with the original labels
+	 * @param proposal 2D image with the proposed labels
+	 * @param thresholds threshold values to binarize the proposal
+	 * @return statistics with the warping error as metric value for each threshold
+	 */
+	@Override
+	protected ClassificationStatistics[] getSliceStatistics(
+			int slice,
+			ImageProcessor label,
+			ImageProcessor proposal,
+			double[] thresholds)
+	{
+		final double[][] counts = getWarpingCounts( slice, label, proposal, thresholds );
+		final ClassificationStatistics[] stats = new ClassificationStatistics[ thresholds.length ];
+		for(int i = 0; i < thresholds.length; i++)
+			stats[ i ] = new ClassificationStatistics( counts[ i ][ 0 ], counts[ i ][ 1 ],
+					counts[ i ][ 2 ], counts[ i ][ 3 ], counts[ i ][ 5 ] );
+		return stats;
+	}
 
-		double error = 0;
+	/**
+	 * Warp a slice of the original labels into the proposal for a set of
+	 * thresholds and count the pixels of the warped labels against the
+	 * binarized proposal (as {@link PixelError} does).
+	 *
+	 * @param slice slice number (to read the mask)
+	 * @param label 2D image with the original labels
+	 * @param proposal 2D image with the proposed labels (float)
+	 * @param thresholds threshold values to binarize the proposal
+	 * @return true positives, true negatives, false positives, false
+	 * negatives, pixel error and warping error for each threshold
+	 */
+	private double[][] getWarpingCounts(
+			final int slice,
+			final ImageProcessor label,
+			final ImageProcessor proposal,
+			final double[] thresholds)
+	{
+		final PaddedSlice paddedSlice = new PaddedSlice( label, proposal, getMaskSlice( slice ) );
+		final float[] proposalPix = (float[]) proposal.getPixels();
 
-		for(int j=0; j<wrs.length; j++)			
-			error += wrs[ j ].warpingError;
-		
-		if(wrs.length != 0)
-			return error / wrs.length;
-		else
-			return -1;
+		final double[][] counts = new double[ thresholds.length ][];
+		for(int t = 0; t < thresholds.length; t++)
+		{
+			final WarpingResults wr = simplePointWarp2d( paddedSlice, thresholds[ t ] );
+			final float[] warpedPix = (float[]) wr.warpedSource.getProcessor().getPixels();
+
+			double truePositives = 0;
+			double trueNegatives = 0;
+			double falsePositives = 0;
+			double falseNegatives = 0;
+			for(int i = 0; i < warpedPix.length; i++)
+			{
+				final boolean warped = warpedPix[ i ] > thresholds[ t ];
+				final boolean proposed = proposalPix[ i ] > thresholds[ t ];
+				if( warped )
+				{
+					if( proposed )
+						truePositives ++;
+					else
+						falsePositives ++;
+				}
+				else if( proposed )
+					falseNegatives ++;
+				else
+					trueNegatives ++;
+			}
+			counts[ t ] = new double[]{ truePositives, trueNegatives, falsePositives, falseNegatives,
+					(falsePositives + falseNegatives) / warpedPix.length, wr.warpingError };
+		}
+		return counts;
 	}
-	
-	
+
+	/**
+	 * Warp a slice of the original labels into the proposal for a set of
+	 * thresholds and count its clustered mismatches.
+	 *
+	 * @param slice slice number (to read the mask)
+	 * @param label 2D image with the original labels
+	 * @param proposal 2D image with the proposed labels
+	 * @param thresholds threshold values to binarize the proposal
+	 * @param clusterByError if false, cluster mismatches by type, otherwise cluster them by error and type
+	 * @param radius radius in pixels of the local area to look when deciding some cases (-1 to use whole image)
+	 * @return number of object additions, hole deletions, mergers, hole
+	 * additions, object deletions and splits for each threshold
+	 */
+	private double[][] getClusteredCounts(
+			final int slice,
+			final ImageProcessor label,
+			final ImageProcessor proposal,
+			final double[] thresholds,
+			final boolean clusterByError,
+			final int radius)
+	{
+		final PaddedSlice paddedSlice = new PaddedSlice( label, proposal, getMaskSlice( slice ) );
+
+		final double[][] counts = new double[ thresholds.length ][];
+		for(int t = 0; t < thresholds.length; t++)
+		{
+			final WarpingResults wr = simplePointWarp2d( paddedSlice, thresholds[ t ] );
+			final int[] mismatchesLabels = classifyMismatches2d( wr.warpedSource, wr.mismatches, radius );
+			final ClusteredWarpingMismatches cwm = clusterByError ?
+					clusterMismatchesByError( wr.warpedSource, wr.mismatches, mismatchesLabels )
+					: clusterMismatchesByType( mismatchesLabels );
+			counts[ t ] = new double[]{ cwm.numOfObjectAdditions, cwm.numOfHoleDeletions, cwm.numOfMergers,
+					cwm.numOfHoleAdditions, cwm.numOfObjectDeletions, cwm.numOfSplits };
+		}
+		return counts;
+	}
+
+	/**
+	 * Sum the clustered mismatches of all slices for a set of thresholds
+	 * in a single pass over the stack
+	 *
+	 * @param thresholds threshold values to binarize the proposal
+	 * @param clusterByError if false, cluster mismatches by type, otherwise cluster them by error and type
+	 * @param radius radius in pixels of the local area to look when deciding some cases (-1 to use whole image)
+	 * @return number of object additions, hole deletions, mergers, hole
+	 * additions, object deletions and splits for each threshold
+	 */
+	private double[][] getStackClusteredCounts(
+			final double[] thresholds,
+			final boolean clusterByError,
+			final int radius)
+	{
+		return getStackCounts( new SliceCounts()
+		{
+			public double[][] getCounts(int slice, ImageProcessor label, ImageProcessor proposal)
+			{
+				return getClusteredCounts( slice, label, proposal, thresholds, clusterByError, radius );
+			}
+		});
+	}
+
+	/**
+	 * Calculate the clustered warping error (with the current flags) for a
+	 * set of thresholds in a single pass over the stack
+	 *
+	 * @param thresholds threshold values to binarize the proposal
+	 * @param clusterByError if false, cluster mismatches by type, otherwise cluster them by error and type
+	 * @param radius radius in pixels of the local area to look when deciding some cases (-1 to use whole image)
+	 * @return clustered warping error for each threshold (-1 if the image sizes do not fit)
+	 */
+	private double[] getClusteredErrors(
+			final double[] thresholds,
+			final boolean clusterByError,
+			final int radius)
+	{
+		final double[] errors = new double[ thresholds.length ];
+		Arrays.fill( errors, -1 );
+		if( false == sizesFit( originalLabels, proposedLabels ) )
+			return errors;
+
+		// Get clustered mismatches after warping ground truth, i.e. relaxing original labels to proposal.
+		// Only simple points warping is allowed.
+		final double[][] counts = getStackClusteredCounts( thresholds, clusterByError, radius );
+
+		final double count = originalLabels.getWidth() * originalLabels.getHeight() * originalLabels.getImageStackSize();
+		if( count == 0 )
+			return errors;
+
+		for(int t = 0; t < thresholds.length; t++)
+		{
+			double error = 0;
+			if( (flags & OBJECT_ADDITION) != 0)
+				error += counts[ t ][ 0 ];
+			if( (flags & HOLE_DELETION) != 0)
+				error += counts[ t ][ 1 ];
+			if( (flags & MERGE) != 0)
+				error += counts[ t ][ 2 ];
+			if( (flags & HOLE_ADDITION) != 0)
+				error += counts[ t ][ 3 ];
+			if( (flags & OBJECT_DELETION) != 0)
+				error += counts[ t ][ 4 ];
+			if( (flags & SPLIT) != 0)
+				error += counts[ t ][ 5 ];
+			errors[ t ] = error / count;
+		}
+		return errors;
+	}
+
 	/**
 	 * Calculate the topology-preserving warping error in 2D between some
 	 * original labels and the corresponding proposed labels. Pixels belonging 
@@ -202,43 +395,7 @@ public double getMetricValue(
 			double binaryThreshold,
 			boolean clusterByError)
 	{
-		
-		if( verbose )
-			IJ.log("  Warping ground truth...");
-		
-		// Get clustered mismatches after warping ground truth, i.e. relaxing original labels to proposal. 
-		// Only simple points warping is allowed.
-		ClusteredWarpingMismatches[] cwm = getClusteredWarpingMismatches(originalLabels, proposedLabels, 
-																		mask, binaryThreshold, clusterByError, -1);		
-		if(null == cwm)
-			return -1;
-
-		double error = 0;
-		double count = originalLabels.getWidth() * originalLabels.getHeight() * originalLabels.getImageStackSize();
-		
-		if( (flags & HOLE_ADDITION) != 0)
-			for(int j=0; j<cwm.length; j++)					
-				error += cwm[ j ].numOfHoleAdditions;
-		if( (flags & HOLE_DELETION) != 0)
-			for(int j=0; j<cwm.length; j++)					
-				error += cwm[ j ].numOfHoleDeletions;
-		if( (flags & MERGE) != 0)
-			for(int j=0; j<cwm.length; j++)					
-				error += cwm[ j ].numOfMergers; 
-		if( (flags & OBJECT_ADDITION) != 0)
-			for(int j=0; j<cwm.length; j++)					
-				error += cwm[ j ].numOfObjectAdditions;
-		if( (flags & OBJECT_DELETION) != 0)
-			for(int j=0; j<cwm.length; j++)					
-				error += cwm[ j ].numOfObjectDeletions; 
-		if( (flags & SPLIT) != 0)
-			for(int j=0; j<cwm.length; j++)					
-				error += cwm[ j ].numOfSplits;
-
-		if(count != 0)
-			return error / count;
-		else
-			return -1;
+		return getMetricValue( binaryThreshold, clusterByError, -1 );
 	}
 
 	
@@ -265,39 +422,7 @@ public double getMetricValue(
 		if( verbose )
 			IJ.log("  Warping ground truth...");
 		
-		// Get clustered mismatches after warping ground truth, i.e. relaxing original labels to proposal. 
-		// Only simple points warping is allowed.
-		ClusteredWarpingMismatches[] cwm = getClusteredWarpingMismatches(originalLabels, proposedLabels, 
-																		mask, binaryThreshold, clusterByError, radius);		
-		if(null == cwm)
-			return -1;
-
-		double error = 0;
-		double count = originalLabels.getWidth() * originalLabels.getHeight() * originalLabels.getImageStackSize();
-		
-		if( (flags & HOLE_ADDITION) != 0)
-			for(int j=0; j<cwm.length; j++)					
-				error += cwm[ j ].numOfHoleAdditions;
-		if( (flags & HOLE_DELETION) != 0)
-			for(int j=0; j<cwm.length; j++)					
-				error += cwm[ j ].numOfHoleDeletions;
-		if( (flags & MERGE) != 0)
-			for(int j=0; j<cwm.length; j++)					
-				error += cwm[ j ].numOfMergers; 
-		if( (flags & OBJECT_ADDITION) != 0)
-			for(int j=0; j<cwm.length; j++)					
-				error += cwm[ j ].numOfObjectAdditions;
-		if( (flags & OBJECT_DELETION) != 0)
-			for(int j=0; j<cwm.length; j++)					
-				error += cwm[ j ].numOfObjectDeletions; 
-		if( (flags & SPLIT) != 0)
-			for(int j=0; j<cwm.length; j++)					
-				error += cwm[ j ].numOfSplits;
-
-		if(count != 0)
-			return error / count;
-		else
-			return -1;
+		return getClusteredErrors( new double[]{ binaryThreshold }, clusterByError, radius )[ 0 ];
 	}
 
 	/**
@@ -315,44 +440,12 @@ public ArrayList<int[]> getSplitsAndMergers(
 			double stepThreshold,
 			boolean clusterByError)
 	{
-		
-		if( minThreshold < 0 || minThreshold >= maxThreshold || maxThreshold > 1)
-		{
-			IJ.log("Error: unvalid threshold values.");
-			return null;
-		}
-						
-		ArrayList < int[] > listOfSplitsAndMergers = new ArrayList<int[]>();
-				
-		for(double th = minThreshold; th<=maxThreshold; th += stepThreshold)
-		{						
-			if( verbose )
-				IJ.log("  Calculating splits and mergers for threshold value " + String.format("%.2f", th) + "...");
-			ClusteredWarpingMismatches[] cwm = 
-						getClusteredWarpingMismatches(originalLabels, proposedLabels, 
-														mask, th, clusterByError, -1);		
-			if(null == cwm)
-				return null;
-			
-			int[] splitsAndMergers = new int[2];
-			
-			for(int j=0; j<cwm.length; j++)
-			{
-				splitsAndMergers[ 0 ] += cwm[ j ].numOfSplits;
-				splitsAndMergers[ 1 ] += cwm[ j ].numOfMergers;
-			}
-			
-			listOfSplitsAndMergers.add( splitsAndMergers );
-			
-			if( verbose )
-				IJ.log( "  # splits = " + splitsAndMergers[ 0 ] + ", # mergers = " + splitsAndMergers[ 1 ]);
-		}
-						
-		return listOfSplitsAndMergers;
+		return getSplitsAndMergers( minThreshold, maxThreshold, stepThreshold, clusterByError, -1 );
 	}
 	
 	/**
 	 * Calculate the number of splits and mergers for different thresholds
+	 * (all thresholds are evaluated in a single pass over the stack)
 	 * 
 	 * @param minThreshold minimum threshold value to binarize the input images
 	 * @param maxThreshold maximum threshold value to binarize the input images
@@ -374,31 +467,27 @@ public ArrayList<int[]> getSplitsAndMergers(
 			IJ.log("Error: unvalid threshold values.");
 			return null;
 		}
+		if( false == sizesFit( originalLabels, proposedLabels ) )
+			return null;
+		
+		final double[] thresholds = getThresholds( minThreshold, maxThreshold, stepThreshold );
+		
+		if( verbose )
+			IJ.log("  Calculating splits and mergers for " + thresholds.length + " threshold values...");
+		
+		final double[][] counts = getStackClusteredCounts( thresholds, clusterByError, radius );
 						
 		ArrayList < int[] > listOfSplitsAndMergers = new ArrayList<int[]>();
 				
-		for(double th = minThreshold; th<=maxThreshold; th += stepThreshold)
-		{						
-			if( verbose )
-				IJ.log("  Calculating splits and mergers for threshold value " + String.format("%.2f", th) + "...");
-			ClusteredWarpingMismatches[] cwm = 
-						getClusteredWarpingMismatches(originalLabels, proposedLabels, 
-														mask, th, clusterByError, radius );		
-			if(null == cwm)
-				return null;
-			
-			int[] splitsAndMergers = new int[2];
-			
-			for(int j=0; j<cwm.length; j++)
-			{
-				splitsAndMergers[ 0 ] += cwm[ j ].numOfSplits;
-				splitsAndMergers[ 1 ] += cwm[ j ].numOfMergers;
-			}
+		for(int t = 0; t < thresholds.length; t++)
+		{
+			int[] splitsAndMergers = new int[]{ (int) counts[ t ][ 5 ], (int) counts[ t ][ 2 ] };
 			
 			listOfSplitsAndMergers.add( splitsAndMergers );
 			
 			if( verbose )
-				IJ.log( "  # splits = " + splitsAndMergers[ 0 ] + ", # mergers = " + splitsAndMergers[ 1 ]);
+				IJ.log( "    Threshold " + String.format("%.2f", thresholds[ t ]) + ": # splits = "
+						+ splitsAndMergers[ 0 ] + ", # mergers = " + splitsAndMergers[ 1 ]);
 		}
 						
 		return listOfSplitsAndMergers;
@@ -419,40 +508,12 @@ public double getMinimumSplitsAndMergersErrorValue(
 			double stepThreshold,
 			boolean clusterByError)
 	{
-		
-		if( minThreshold < 0 || minThreshold >= maxThreshold || maxThreshold > 1)
-		{
-			IJ.log("Error: unvalid threshold values.");
-			return -1;
-		}
-						
-		flags = MERGE + SPLIT;
-		
-		double minError = Double.MAX_VALUE;
-		double bestTh = minThreshold;
-		
-		for(double th = minThreshold; th<=maxThreshold; th += stepThreshold)
-		{						
-			if( verbose )
-				IJ.log("  Calculating splits and mergers for threshold value " + String.format("%.2f", th) + "...");
-			double error = getMetricValue( th, clusterByError );
-			if ( verbose )
-				IJ.log("    error = " + error);
-			if ( error < minError)
-			{
-				minError = error;
-				bestTh = th;
-			}
-		}
-		
-		if (verbose)
-			IJ.log(" **  Minimum error = " + minError + ", with threshold = " + bestTh + " **\n");
-						
-		return minError;
+		return getMinimumSplitsAndMergersErrorValue( minThreshold, maxThreshold, stepThreshold, clusterByError, -1 );
 	}
 		
 	/**
 	 * Calculate error with the minimum number of splits and mergers for different thresholds
+	 * (all thresholds are evaluated in a single pass over the stack)
 	 * 
 	 * @param minThreshold minimum threshold value to binarize the input images
 	 * @param maxThreshold maximum threshold value to binarize the input images
@@ -477,20 +538,24 @@ public double getMinimumSplitsAndMergersErrorValue(
 						
 		flags = MERGE + SPLIT;
 		
+		final double[] thresholds = getThresholds( minThreshold, maxThreshold, stepThreshold );
+		
+		if ( verbose )
+			IJ.log("  Calculating splits and mergers for " + thresholds.length + " threshold values...");
+		
+		final double[] errors = getClusteredErrors( thresholds, clusterByError, radius );
+		
 		double minError = Double.MAX_VALUE;
 		double bestTh = minThreshold;
 				
-		for(double th = minThreshold; th<=maxThreshold; th += stepThreshold)
+		for(int t = 0; t < thresholds.length; t++)
 		{						
 			if ( verbose )
-				IJ.log("  Calculating splits and mergers for threshold value " + String.format("%.2f", th) + "...");
-			double error = getMetricValue( th, clusterByError, radius );
-			if ( verbose )
-				IJ.log("    error = " + error);
-			if ( error < minError)
+				IJ.log("    Threshold " + String.format("%.2f", thresholds[ t ]) + ": error = " + errors[ t ]);
+			if ( errors[ t ] < minError)
 			{
-				minError = error;
-				bestTh = th;
+				minError = errors[ t ];
+				bestTh = thresholds[ t ];
 			}
 		}
 		
@@ -502,7 +567,8 @@ public double getMinimumSplitsAndMergersErrorValue(
 	
 	/**
 	 * Calculate the precision-recall values based on pixel error between 
-	 * some warped 2D original labels and the corresponding proposed labels. 
+	 * some warped 2D original labels and the corresponding proposed labels
+	 * (all thresholds are evaluated in a single pass over the stack).
 	 * 
 	 * @param minThreshold minimum threshold value to binarize the input images
 	 * @param maxThreshold maximum threshold value to binarize the input images
@@ -520,32 +586,36 @@ public ArrayList< ClassificationStatistics > getPrecisionRecallStats(
 			IJ.log("Error: unvalid threshold values.");
 			return null;
 		}
-						
-		ArrayList< ClassificationStatistics > cs = new ArrayList<ClassificationStatistics>();
-				
-		for(double th =  minThreshold; th <= maxThreshold; th += stepThreshold)
+		if( false == sizesFit( originalLabels, proposedLabels ) )
+			return null;
+		
+		final double[] thresholds = getThresholds( minThreshold, maxThreshold, stepThreshold );
+		
+		if( verbose )
+			IJ.log("  Calculating warping error statistics for " + thresholds.length + " threshold values...");
+		
+		// We calculate the precision-recall value between the warped original labels and the 
+		// proposed labels 
+		final double[][] counts = getStackCounts( new SliceCounts()
 		{
-			WarpingResults[] wrs = simplePointWarp2dMT(originalLabels, proposedLabels, mask, th);
-			
-			ImageStack is = new ImageStack( originalLabels.getWidth(), originalLabels.getHeight() );
-			for(int i = 0; i < wrs.length; i ++)
-				is.addSlice("warped source slice " + (i+1), wrs[i].warpedSource.getProcessor() );
-			
-			ImagePlus warpedSource = new ImagePlus ("warped source", is);
-			
-			if( verbose )
-				IJ.log("  Calculating warping error statistics for threshold value " + String.format("%.2f", th) + "...");
-			
-			// We calculate the precision-recall value between the warped original labels and the 
-			// proposed labels 
-			cs.add( (new PixelError( warpedSource, proposedLabels)).getPrecisionRecallStats( th ) );
-		}		
+			public double[][] getCounts(int slice, ImageProcessor label, ImageProcessor proposal)
+			{
+				return getWarpingCounts( slice, label, proposal, thresholds );
+			}
+		});
+		
+		final int numSlices = originalLabels.getImageStackSize();
+		ArrayList< ClassificationStatistics > cs = new ArrayList<ClassificationStatistics>();
+		for(int t = 0; t < thresholds.length; t++)
+			cs.add( new ClassificationStatistics( counts[ t ][ 0 ], counts[ t ][ 1 ], counts[ t ][ 2 ],
+					counts[ t ][ 3 ], counts[ t ][ 4 ] / numSlices ) );
 		return cs;
 	}
 	
 	/**
 	 * Calculate the precision-recall values based on Rand index between 
-	 * some warped 2D original labels and the corresponding proposed labels. 
+	 * some warped 2D original labels and the corresponding proposed labels
+	 * (all thresholds are evaluated in a single pass over the stack).
 	 * 
 	 * @param minThreshold minimum threshold value to binarize the input images
 	 * @param maxThreshold maximum threshold value to binarize the input images
@@ -563,29 +633,76 @@ public ArrayList< ClassificationStatistics > getRandIndexStats(
 			IJ.log("Error: unvalid threshold values.");
 			return null;
 		}
-						
-		ArrayList< ClassificationStatistics > cs = new ArrayList<ClassificationStatistics>();
-				
-		for(double th =  minThreshold; th <= maxThreshold; th += stepThreshold)
+		if( false == sizesFit( originalLabels, proposedLabels ) )
+			return null;
+		
+		final double[] thresholds = getThresholds( minThreshold, maxThreshold, stepThreshold );
+		
+		if( verbose )
+			IJ.log("  Calculating warping error statistics for " + thresholds.length + " threshold values...");
+		
+		// We calculate the Rand index between the warped original labels and the 
+		// proposed labels 
+		final double[][] counts = getStackCounts( new SliceCounts()
 		{
-			WarpingResults[] wrs = simplePointWarp2dMT(originalLabels, proposedLabels, mask, th);
-			
-			ImageStack is = new ImageStack( originalLabels.getWidth(), originalLabels.getHeight() );
-			for(int i = 0; i < wrs.length; i ++)
-				is.addSlice("warped source slice " + (i+1), wrs[i].warpedSource.getProcessor() );
-			
-			ImagePlus warpedSource = new ImagePlus ("warped source", is);
-			
-			if( verbose )
-				IJ.log("  Calculating warping error statistics for threshold value " + String.format("%.2f", th) + "...");
-			
-			// We calculate the precision-recall value between the warped original labels and the 
-			// proposed labels 
-			cs.add( (new RandError( warpedSource, proposedLabels)).getRandIndexStats( th ) );
-		}		
+			public double[][] getCounts(int slice, ImageProcessor label, ImageProcessor proposal)
+			{
+				final PaddedSlice paddedSlice = new PaddedSlice( label, proposal, getMaskSlice( slice ) );
+				final float[] proposalPix = (float[]) proposal.getPixels();
+				final double[][] counts = new double[ thresholds.length ][];
+				for(int t = 0; t < thresholds.length; t++)
+				{
+					final WarpingResults wr = simplePointWarp2d( paddedSlice, thresholds[ t ] );
+					final double[] sums = RandIndexSweep.contingencySums( 
+							(float[]) wr.warpedSource.getProcessor().getPixels(), proposalPix, 
+							proposal.getWidth(), new double[]{ thresholds[ t ] } )[ 0 ];
+					final ClassificationStatistics stats = RandError.getRandIndexStats( sums );
+					counts[ t ] = new double[]{ stats.truePositives, stats.trueNegatives, 
+							stats.falsePositives, stats.falseNegatives, stats.metricValue };
+				}
+				return counts;
+			}
+		});
+		
+		final int numSlices = originalLabels.getImageStackSize();
+		ArrayList< ClassificationStatistics > cs = new ArrayList<ClassificationStatistics>();
+		for(int t = 0; t < thresholds.length; t++)
+			cs.add( new ClassificationStatistics( counts[ t ][ 0 ], counts[ t ][ 1 ], counts[ t ][ 2 ],
+					counts[ t ][ 3 ], counts[ t ][ 4 ] / numSlices ) );
 		return cs;
 	}
 
+	/**
+	 * Get a slice of the mask
+	 *
+	 * @param slice slice number
+	 * @return slice of the mask (null if there is no mask)
+	 */
+	private ImageProcessor getMaskSlice(final int slice)
+	{
+		return null == mask ? null : mask.getImageStack().getProcessor( slice );
+	}
+
+	/**
+	 * Check if the sizes of the labels and the proposal fit (and log an
+	 * error if they do not)
+	 *
+	 * @param source original labels
+	 * @param target proposed labels
+	 * @return true if both have the same dimensions
+	 */
+	private static boolean sizesFit(final ImagePlus source, final ImagePlus target)
+	{
+		if(source.getWidth() != target.getWidth()
+				|| source.getHeight() != target.getHeight()
+				|| source.getImageStackSize() != target.getImageStackSize())
+		{
+			IJ.log("Error: label and training image sizes do not fit.");
+			return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Check if a point is simple (in 2D) based on 3D code from Mark Richardson
 	 * inspired in the work of Bertrand et al. \cite{Bertrand94} 
@@ -765,51 +882,105 @@ public WarpingResults simplePointWarp2d(
 			final ImageProcessor mask,
 			double binaryThreshold)
 	{
-		if(binaryThreshold < 0 || binaryThreshold > 1.01)
-			binaryThreshold = 0.5;
-
-		// Grayscale target
-		final ImagePlus targetReal;// = new ImagePlus("target_real", target.duplicate());
-		// Binarized target
-		final ImagePlus targetBin; // = new ImagePlus("target_aux", target.duplicate());
-
-		final ImagePlus sourceReal; // = new ImagePlus("source_real", source.duplicate());
-
-		final ImagePlus maskReal; // = (null != mask) ? new ImagePlus("mask_real", mask.duplicate().convertToFloat()) : null;
-
-		final int width = target.getWidth();
-		final int height = target.getHeight();
-
-		// Resize canvas to avoid checking the borders
-		ImageProcessor ip = target.createProcessor(width+2, height+2);
-		ip.insert(target, 1, 1);
-		targetReal = new ImagePlus("target_real", ip.duplicate());
-
-		targetBin = new ImagePlus("target_aux", ip.duplicate());
-
-		ip = target.createProcessor(width+2, height+2);
-		ip.insert(source, 1, 1);
-		sourceReal = new ImagePlus("source_real", ip.duplicate());
+		final WarpingResults result = simplePointWarp2d( new PaddedSlice( source, target, mask ), binaryThreshold );
+		if( false == source instanceof FloatProcessor )
+		{
+			final ImageProcessor ip = source.createProcessor( source.getWidth(), source.getHeight() );
+			ip.insert( result.warpedSource.getProcessor(), 0, 0 );
+			result.warpedSource.setProcessor( ip );
+		}
+		return result;
+	}
 
-		if(null != mask)
+	/**
+	 * Source, target and mask of a slice with a 1 pixel border (to avoid
+	 * checking the borders while warping). The source is binarized, so the
+	 * same slice can be warped for any number of thresholds.
+	 */
+	private static final class PaddedSlice
+	{
+		/** width of the slice (without border) */
+		final int width;
+		/** height of the slice (without border) */
+		final int height;
+		/** binarized source */
+		final float[] source;
+		/** grayscale target */
+		final float[] target;
+		/** locations where warping is allowed (null for everywhere) */
+		final boolean[] mask;
+
+		PaddedSlice(
+				final ImageProcessor source,
+				final ImageProcessor target,
+				final ImageProcessor mask)
 		{
-			ip = target.createProcessor(width+2, height+2);
-			ip.insert(mask, 1, 1);
-			maskReal = new ImagePlus("mask_real", ip.duplicate());
+			width = target.getWidth();
+			height = target.getHeight();
+			this.source = pad( source );
+			// make sure source is a binary image
+			for(int i = 0; i < this.source.length; i++)
+				if( this.source[ i ] > 0 )
+					this.source[ i ] = 1.0f;
+			this.target = pad( target );
+			if( null != mask )
+			{
+				final float[] maskPix = pad( mask );
+				this.mask = new boolean[ maskPix.length ];
+				for(int i = 0; i < maskPix.length; i++)
+					this.mask[ i ] = maskPix[ i ] != 0;
+			}
+			else
+				this.mask = null;
 		}
-		else{
-			maskReal = null;
+
+		/**
+		 * Copy an image into a float array with a 1 pixel (zero) border
+		 *
+		 * @param ip input image
+		 * @return padded pixels
+		 */
+		private float[] pad(final ImageProcessor ip)
+		{
+			final float[] pixels = (float[]) ip.convertToFloat().getPixels();
+			final float[] padded = new float[ (width + 2) * (height + 2) ];
+			for(int y = 0; y < height; y++)
+				System.arraycopy( pixels, y * width, padded, (y + 1) * (width + 2) + 1, width );
+			return padded;
 		}
+	}
 
-		// make sure source and target are binary images
-		final float[] sourceRealPix = (float[])sourceReal.getProcessor().getPixels();
-		for(int i=0; i < sourceRealPix.length; i++)
-			if(sourceRealPix[i] > 0)
-				sourceRealPix[i] = 1.0f;
+	/**
+	 * Use simple point relaxation to warp a padded 2D source into its
+	 * 2D target. Only the source pixels are copied, so the same slice can
+	 * be warped for several thresholds.
+	 *
+	 * @param slice padded source, target and mask
+	 * @param binaryThreshold binarization threshold
+	 * @return warped source image (float) and warping error
+	 */
+	private WarpingResults simplePointWarp2d(
+			final PaddedSlice slice,
+			double binaryThreshold)
+	{
+		if(binaryThreshold < 0 || binaryThreshold > 1.01)
+			binaryThreshold = 0.5;
+
+		final int width = slice.width;
+		final int height = slice.height;
+		final int paddedWidth = width + 2;
+
+		final float[] sourceRealPix = slice.source.clone();
+		final float[] realTargetPix = slice.target;
+		final boolean[] maskPix = slice.mask;
 
-		final float[] targetBinPix = (float[])targetBin.getProcessor().getPixels();
+		// Binarized target
+		final float[] targetBinPix = new float[ realTargetPix.length ];
 		for(int i=0; i < targetBinPix.length; i++)
-			targetBinPix[i] = (targetBinPix[i] <= binaryThreshold) ? 0.0f : 1.0f;
+			targetBinPix[i] = (realTargetPix[i] <= binaryThreshold) ? 0.0f : 1.0f;
+
+		// 3D neighborhood of the pixels (only the central plane is used)
+		final float[] neighborhood = new float[ 27 ];
 		
 		double diff = Double.MIN_VALUE;
 		double diff_before = 0;
@@ -818,20 +989,12 @@ public WarpingResults simplePointWarp2d(
 
 		while(true)
 		{
-			ImageProcessor missclass_points_image = sourceReal.getProcessor().duplicate();
-			missclass_points_image.copyBits(targetBin.getProcessor(), 0, 0, Blitter.DIFFERENCE);
-
 			diff_before = diff;
 
 			// Count mismatches
-			float pixels[] = (float[]) missclass_points_image.getPixels();
-			float mask_pixels[] = (null != maskReal) ? (float[]) maskReal.getProcessor().getPixels() : new float[pixels.length];
-			if(null == maskReal)
-				Arrays.fill(mask_pixels, 1f);
-
 			diff = 0;
-			for(int k = 0; k < pixels.length; k++)
-				if(pixels[k] != 0 && mask_pixels[k] != 0)
+			for(int k = 0; k < sourceRealPix.length; k++)
+				if(sourceRealPix[k] != targetBinPix[k] && (null == maskPix || maskPix[k]))
 					diff ++;
 
 			//IJ.log("Difference = " + diff);
@@ -846,14 +1009,13 @@ public WarpingResults simplePointWarp2d(
 
 			final ArrayList<Point3f> mismatches = new ArrayList<Point3f>();
 
-			final float[] realTargetPix = (float[])targetReal.getProcessor().getPixels();
-
 			// Sort mismatches by the absolute value of the target pixel value - threshold
 			for(int x = 1; x < width+1; x++)
 				for(int y = 1; y < height+1; y++)
 				{
-					if(pixels[x+y*(width+2)] != 0 && mask_pixels[x+y*(width+2)] != 0)
-						mismatches.add(new Point3f(x , y , (float) Math.abs( realTargetPix[x+y*(width+2)] - binaryThreshold) ));
+					final int k = x + y * paddedWidth;
+					if(sourceRealPix[k] != targetBinPix[k] && (null == maskPix || maskPix[k]))
+						mismatches.add(new Point3f(x , y , (float) Math.abs( realTargetPix[k] - binaryThreshold) ));
 				}
 
 			// Sort mismatches in descending order
@@ -871,34 +1033,25 @@ public int compare(Point3f o1, Point3f o2) {
 				if(p.z < SIMPLE_POINT_THRESHOLD)
 					continue;
 
-				double[] val = new double[]{
-						sourceRealPix[ (x-1) + (y-1) * (width+2) ],
-						sourceRealPix[ (x  ) + (y-1) * (width+2) ],
-						sourceRealPix[ (x+1) + (y-1) * (width+2) ],
-						sourceRealPix[ (x-1) + (y  ) * (width+2) ],
-						sourceRealPix[ (x  ) + (y  ) * (width+2) ],
-						sourceRealPix[ (x+1) + (y  ) * (width+2) ],
-						sourceRealPix[ (x-1) + (y+1) * (width+2) ],
-						sourceRealPix[ (x  ) + (y+1) * (width+2) ],
-						sourceRealPix[ (x+1) + (y+1) * (width+2) ]
-				};
-
-				final double pix = val[4];
-
-				final ImagePlus patch = new ImagePlus("patch", new FloatProcessor(3,3,val));
-				if( simple2DBertrand(patch, 4) )
+				for(int j = 0; j < 3; j++)
+					System.arraycopy( sourceRealPix, (x-1) + (y-1+j) * paddedWidth, neighborhood, 9 + 3*j, 3 );
+
+				final float pix = neighborhood[ 13 ];
+
+				// same as simple2DBertrand with 4-adjacency
+				if( simple3d( neighborhood, 6 ) )
 				{
-					sourceRealPix[ x + y * (width+2)] =  pix > 0.0 ? 0.0f : 1.0f ;
+					sourceRealPix[ x + y * paddedWidth ] =  pix > 0.0 ? 0.0f : 1.0f ;
 					//IJ.log("flipping pixel x: " + x + " y: " + y + " to " + (pix > 0  ? 0.0 : 1.0));
 				}
 			}
 			result.mismatches = mismatches;
 		}
 
-		//IJ.run(sourceReal, "Canvas Size...", "width="+ width + " height=" + height + " position=Center zero");
-		ip = source.createProcessor(width, height);
-		ip.insert(sourceReal.getProcessor(), -1, -1);
-		sourceReal.setProcessor(ip.duplicate());
+		// Remove the border
+		final float[] warpedPix = new float[ width * height ];
+		for(int y = 0; y < height; y++)
+			System.arraycopy( sourceRealPix, (y + 1) * paddedWidth + 1, warpedPix, y * width, width );
 
 		// Adjust mismatches coordinates 
 		final ArrayList<Point3f> mismatches = new ArrayList<Point3f>();
@@ -907,10 +1060,8 @@ public int compare(Point3f o1, Point3f o2) {
 			mismatches.add(new Point3f( p.x - 1, p.y - 1, p.z));
 		}
 		
-		sourceReal.setTitle("Warped source");
-		
 		result.mismatches = mismatches;
-		result.warpedSource = sourceReal;
+		result.warpedSource = new ImagePlus( "Warped source", new FloatProcessor( width, height, warpedPix, null ) );
 		result.warpingError = diff / (width * height);
 		return result;
 	}
@@ -1041,7 +1192,7 @@ public ImagePlus simplePointWarp2dMT(
 			ImagePlus source,
 			ImagePlus target,
 			ImagePlus mask,
-			double binaryThreshold,
+			final double binaryThreshold,
 			ArrayList<Point3f>[] mismatches)
 	{
 		if(source.getWidth() != target.getWidth()
@@ -1062,45 +1213,36 @@ public ImagePlus simplePointWarp2dMT(
 		if(null == mismatches)
 			mismatches = new ArrayList[sourceSlices.getSize()];
 
-		// Executor service to produce concurrent threads
-		final ExecutorService exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-		final ArrayList< Future<WarpingResults> > futures = new ArrayList< Future<WarpingResults> >();
-
-		try{
-			for(int i = 1; i <= sourceSlices.getSize(); i++)
-			{
-				futures.add(exe.submit( simplePointWarp2DConcurrent(sourceSlices.getProcessor(i),
-										targetSlices.getProcessor(i),
-										null != maskSlices ? maskSlices.getProcessor(i) : null,
-										binaryThreshold ) ) );
-			}
-
-			double warpingError = 0;
-			int i = 0;
-			// Wait for the jobs to be done
-			for(Future<WarpingResults> f : futures)
+		final ArrayList< Callable<WarpingResults> > tasks = new ArrayList< Callable<WarpingResults> >();
+		for(int i = 1; i <= sourceSlices.getSize(); i++)
+		{
+			final int slice = i;
+			tasks.add( new Callable<WarpingResults>()
 			{
-				final WarpingResults wr = f.get();
-				if(null != wr.warpedSource)
-					warpedSource.addSlice("warped source " + i, wr.warpedSource.getProcessor());
-				if(wr.warpingError != -1)
-					warpingError += wr.warpingError;
-				if(null != wr.mismatches)
-					mismatches[i] = wr.mismatches;
-				i++;
-			}
-			if( verbose )
-				IJ.log("Warping error = " + (warpingError / sourceSlices.getSize()));
+				public WarpingResults call()
+				{
+					return simplePointWarp2d( sourceSlices.getProcessor( slice ),
+							targetSlices.getProcessor( slice ),
+							null != maskSlices ? maskSlices.getProcessor( slice ) : null,
+							binaryThreshold );
+				}
+			});
 		}
-		catch(Exception ex)
+
+		double warpingError = 0;
+		int i = 0;
+		for(final WarpingResults wr : processSlices( tasks ))
 		{
-			IJ.log("Error when warping ground truth in a concurrent way.");
-			ex.printStackTrace();
-		}
-		finally{
-			exe.shutdown();
+			if(null != wr.warpedSource)
+				warpedSource.addSlice("warped source " + i, wr.warpedSource.getProcessor());
+			if(wr.warpingError != -1)
+				warpingError += wr.warpingError;
+			if(null != wr.mismatches)
+				mismatches[i] = wr.mismatches;
+			i++;
 		}
+		if( verbose )
+			IJ.log("Warping error = " + (warpingError / sourceSlices.getSize()));
 
 		return new ImagePlus("warped source", warpedSource);
 	}		
@@ -1167,7 +1309,7 @@ public WarpingResults[] simplePointWarp2dMT(
 			ImagePlus source,
 			ImagePlus target,
 			ImagePlus mask,
-			double binaryThreshold)
+			final double binaryThreshold)
 	{
 		if(source.getWidth() != target.getWidth()
 				|| source.getHeight() != target.getHeight()
@@ -1181,40 +1323,23 @@ public WarpingResults[] simplePointWarp2dMT(
 		final ImageStack targetSlices = target.getImageStack();
 		final ImageStack maskSlices = (null != mask) ? mask.getImageStack() : null;
 
-		final WarpingResults[] wrs = new WarpingResults[ source.getImageStackSize() ];
-
-		// Executor service to produce concurrent threads
-		final ExecutorService exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-		final ArrayList< Future<WarpingResults> > futures = new ArrayList< Future<WarpingResults> >();
-
-		try{
-			for(int i = 1; i <= sourceSlices.getSize(); i++)
-			{
-				futures.add(exe.submit( simplePointWarp2DConcurrent(sourceSlices.getProcessor(i).convertToFloat(),
-										targetSlices.getProcessor(i).convertToFloat(),
-										null != maskSlices ? maskSlices.getProcessor(i) : null,
-										binaryThreshold ) ) );
-			}
-
-			int i = 0;
-			// Wait for the jobs to be done
-			for(Future<WarpingResults> f : futures)
-			{
-				wrs[ i ] = f.get();				
-				i++;
-			}			
-		}
-		catch(Exception ex)
+		final ArrayList< Callable<WarpingResults> > tasks = new ArrayList< Callable<WarpingResults> >();
+		for(int i = 1; i <= sourceSlices.getSize(); i++)
 		{
-			IJ.log("Error when warping ground truth in a concurrent way.");
-			ex.printStackTrace();
-		}
-		finally{
-			exe.shutdown();
+			final int slice = i;
+			tasks.add( new Callable<WarpingResults>()
+			{
+				public WarpingResults call()
+				{
+					return simplePointWarp2d( sourceSlices.getProcessor( slice ).convertToFloat(),
+							targetSlices.getProcessor( slice ).convertToFloat(),
+							null != maskSlices ? maskSlices.getProcessor( slice ) : null,
+							binaryThreshold );
+				}
+			});
 		}
 
-		return wrs;
+		return processSlices( tasks ).toArray( new WarpingResults[ tasks.size() ] );
 	}
 
 	/**
@@ -1229,50 +1354,33 @@ public WarpingResults[] simplePointWarp2dMT(
 	 * @return warping results for each slice of the source
 	 */
 	public WarpingResults[] simplePointWarp2dMT(
-			double binaryThreshold,
-			boolean clusterByError,
-			boolean calculateMismatchImage,
-			int radius )
+			final double binaryThreshold,
+			final boolean clusterByError,
+			final boolean calculateMismatchImage,
+			final int radius )
 	{
 		final ImageStack sourceSlices = originalLabels.getImageStack();
 		final ImageStack targetSlices = proposedLabels.getImageStack();
 		final ImageStack maskSlices = (null != mask) ? mask.getImageStack() : null;
 
-		final WarpingResults[] wrs = new WarpingResults[ originalLabels.getImageStackSize() ];
-
-		// Executor service to produce concurrent threads
-		final ExecutorService exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-		final ArrayList< Future<WarpingResults> > futures = new ArrayList< Future<WarpingResults > >();
-
-		try{
-			for(int i = 1; i <= sourceSlices.getSize(); i++)
-			{
-				futures.add(exe.submit( getWarpingResultsConcurrent(sourceSlices.getProcessor(i).convertToFloat(),
-													targetSlices.getProcessor(i).convertToFloat(),
-													null != maskSlices ? maskSlices.getProcessor(i) : null,
-													binaryThreshold, clusterByError, radius, 
-													flags, calculateMismatchImage ) ) );
-			}
-
-			int i = 0;
-			// Wait for the jobs to be done
-			for(Future<WarpingResults> f : futures)
-			{
-				wrs[ i ] = f.get();				
-				i++;
-			}			
-		}
-		catch(Exception ex)
+		final ArrayList< Callable<WarpingResults> > tasks = new ArrayList< Callable<WarpingResults> >();
+		for(int i = 1; i <= sourceSlices.getSize(); i++)
 		{
-			IJ.log("Error when warping ground truth in a concurrent way.");
-			ex.printStackTrace();
-		}
-		finally{
-			exe.shutdown();
+			final int slice = i;
+			tasks.add( new Callable<WarpingResults>()
+			{
+				public WarpingResults call() throws Exception
+				{
+					return getWarpingResultsConcurrent( sourceSlices.getProcessor( slice ).convertToFloat(),
+							targetSlices.getProcessor( slice ).convertToFloat(),
+							null != maskSlices ? maskSlices.getProcessor( slice ) : null,
+							binaryThreshold, clusterByError, radius, 
+							flags, calculateMismatchImage ).call();
+				}
+			});
 		}
 
-		return wrs;
+		return processSlices( tasks ).toArray( new WarpingResults[ tasks.size() ] );
 	}
 	
 	
@@ -1339,9 +1447,9 @@ public ClusteredWarpingMismatches[] getClusteredWarpingMismatches(
 			ImagePlus source,
 			ImagePlus target,
 			ImagePlus mask,
-			double binaryThreshold,
-			boolean clusterByError,
-			int radius)
+			final double binaryThreshold,
+			final boolean clusterByError,
+			final int radius)
 	{
 		if(source.getWidth() != target.getWidth()
 				|| source.getHeight() != target.getHeight()
@@ -1355,40 +1463,23 @@ public ClusteredWarpingMismatches[] getClusteredWarpingMismatches(
 		final ImageStack targetSlices = target.getImageStack();
 		final ImageStack maskSlices = (null != mask) ? mask.getImageStack() : null;
 
-		final ClusteredWarpingMismatches[] cwm = new ClusteredWarpingMismatches[ source.getImageStackSize() ];
-
-		// Executor service to produce concurrent threads
-		final ExecutorService exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-		final ArrayList< Future<ClusteredWarpingMismatches> > futures = new ArrayList< Future<ClusteredWarpingMismatches> >();
-
-		try{
-			for(int i = 1; i <= sourceSlices.getSize(); i++)
-			{
-				futures.add(exe.submit( getClusteredWarpingMismatchesConcurrent(sourceSlices.getProcessor(i).convertToFloat(),
-										targetSlices.getProcessor(i).convertToFloat(),
-										null != maskSlices ? maskSlices.getProcessor(i) : null,
-										binaryThreshold, clusterByError, radius ) ) );
-			}
-
-			int i = 0;
-			// Wait for the jobs to be done
-			for(Future<ClusteredWarpingMismatches> f : futures)
-			{
-				cwm[ i ] = f.get();				
-				i++;
-			}			
-		}
-		catch(Exception ex)
+		final ArrayList< Callable<ClusteredWarpingMismatches> > tasks = new ArrayList< Callable<ClusteredWarpingMismatches> >();
+		for(int i = 1; i <= sourceSlices.getSize(); i++)
 		{
-			IJ.log("Error when getting the clustered warping mismatches in a concurrent way.");
-			ex.printStackTrace();
-		}
-		finally{
-			exe.shutdown();
+			final int slice = i;
+			tasks.add( new Callable<ClusteredWarpingMismatches>()
+			{
+				public ClusteredWarpingMismatches call() throws Exception
+				{
+					return getClusteredWarpingMismatchesConcurrent( sourceSlices.getProcessor( slice ).convertToFloat(),
+							targetSlices.getProcessor( slice ).convertToFloat(),
+							null != maskSlices ? maskSlices.getProcessor( slice ) : null,
+							binaryThreshold, clusterByError, radius ).call();
+				}
+			});
 		}
 
-		return cwm;
+		return processSlices( tasks ).toArray( new ClusteredWarpingMismatches[ tasks.size() ] );
 	}
 
 	/**
@@ -365,6 +365,18 @@ public void cancelGaussianGeneration( ) {
         cancelGeneration = true;
     }
 
+    /* If this is set, setup() doesn't convolve the whole image with
+       the Gaussian; instead the convolution is calculated in blocks
+       when hessianEigenvaluesAtPoint2D / 3D first need them, so the
+       Hessian can be used immediately and only the blocks around the
+       points that are actually looked at take up memory. */
+
+    private boolean computeOnDemand = false;
+
+    public void setComputeOnDemand( boolean computeOnDemand ) {
+        this.computeOnDemand = computeOnDemand;
+    }
+
     /* The 2 methods below are useful for using this class
        programmatically (i.e. not as a plugin) and creating the
        Gaussian in a separate thread. */
@@ -391,6 +403,11 @@ public void setup( ) {
             if( callback != null )
                 callback.proportionDone( 0.0 );
 
+            if( computeOnDemand ) {
+                setupOnDemand( );
+                return;
+            }
+
             if (imp.getStackSize() > 1)
                 {
                     // IJ.log("3D");
@@ -456,6 +473,28 @@ public void setup( ) {
 
     }
 
+    private void setupOnDemand( ) {
+
+        GaussianBlockCache cache;
+        try {
+            cache = new GaussianBlockCache( imp, sigma, useCalibration ? imp.getCalibration() : null );
+        } catch( IllegalArgumentException e ) {
+            IJ.error( e.getMessage() );
+            if( callback != null )
+                callback.proportionDone( -1 );
+            return;
+        }
+
+        _3D = imp.getStackSize() > 1;
+        if( _3D )
+            data = new CachedFloatArray3D( cache );
+        else
+            data = new CachedFloatArray2D( cache );
+
+        if( callback != null )
+            callback.proportionDone( 1.0 );
+    }
+
     // ------------------------------------------------------------------------
 
     /* There are four versions of the this function, for calculating
@@ -1926,4 +1965,82 @@ public void setZPlane(float[][] plane, int z)
 
     }
 
+    /**
+     * A FloatArray2D whose values are calculated on demand by a
+     * GaussianBlockCache; it cannot be modified.
+     */
+    public class CachedFloatArray2D extends FloatArray2D
+    {
+        protected GaussianBlockCache cache;
+
+        public CachedFloatArray2D(GaussianBlockCache cache)
+        {
+            super(null, cache.getWidth(), cache.getHeight());
+            this.cache = cache;
+        }
+
+        @Override
+        public CachedFloatArray2D clone()
+        {
+            return new CachedFloatArray2D(cache);
+        }
+
+        @Override
+        public float get(int x, int y)
+        {
+            return cache.get(x, y, 0);
+        }
+
+        @Override
+        public float getMirror(int x, int y)
+        {
+            return cache.get(GaussianBlockCache.mirror(x, width), GaussianBlockCache.mirror(y, height), 0);
+        }
+
+        @Override
+        public void set(float value, int x, int y)
+        {
+            throw new UnsupportedOperationException("CachedFloatArray2D cannot be modified");
+        }
+    }
+
+    /**
+     * A FloatArray3D whose values are calculated on demand by a
+     * GaussianBlockCache; it cannot be modified.
+     */
+    public class CachedFloatArray3D extends FloatArray3D
+    {
+        protected GaussianBlockCache cache;
+
+        public CachedFloatArray3D(GaussianBlockCache cache)
+        {
+            super(null, cache.getWidth(), cache.getHeight(), cache.getDepth());
+            this.cache = cache;
+        }
+
+        @Override
+        public CachedFloatArray3D clone()
+        {
+            return new CachedFloatArray3D(cache);
+        }
+
+        @Override
+        public float get(int x, int y, int z)
+        {
+            return cache.get(x, y, z);
+        }
+
+        @Override
+        public float getMirror(int x, int y, int z)
+        {
+            return cache.get(GaussianBlockCache.mirror(x, width), GaussianBlockCache.mirror(y, height), GaussianBlockCache.mirror(z, depth));
+        }
+
+        @Override
+        public void set(float value, int x, int y, int z)
+        {
+            throw new UnsupportedOperationException("CachedFloatArray3D cannot be modified");
+        }
+    }
+
 }
@@ -0,0 +1,416 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package features;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* The Gaussian convolution of an image, as used by ComputeCurvatures
+   for the Hessian, but calculated on demand in blocks of 32x32x32
+   voxels (256x256 pixels for 2D images) rather than for the whole
+   image at once.
+
+   Each block is convolved together with a halo of the kernel radius
+   around it, mirroring at the edges of the image in the same way as
+   ComputeCurvatures.computeGaussianFastMirror, so the values are the
+   same.  When a block is first needed its neighbours are queued for
+   background threads, so they are usually ready by the time a search
+   gets there, and once more than maxBlocks blocks have been
+   calculated the least recently used ones are dropped again. */
+
+public class GaussianBlockCache {
+
+	static final int BLOCK_BITS_3D = 5;
+	static final int BLOCK_BITS_2D = 8;
+
+	// Don't let the background threads fall too far behind:
+	static final int MAX_QUEUED = 256;
+
+	protected int width;
+	protected int height;
+	protected int depth;
+
+	protected Object [] slices;
+
+	protected int bits;
+	protected int zBits;
+	protected int blockSize;
+	protected int blockDepth;
+	protected int blocksX;
+	protected int blocksY;
+	protected int blocksZ;
+
+	protected float [] kernelX;
+	protected float [] kernelY;
+	protected float [] kernelZ; // null for 2D images
+	protected float kernelSumX;
+	protected float kernelSumY;
+	protected float kernelSumZ;
+
+	protected AtomicReferenceArray<float[]> blocks;
+
+	// When each block was last used, to decide which to drop:
+	protected int [] lastUsed;
+	protected int clock = 0;
+
+	// The indices of the calculated blocks, guarded by this:
+	protected int [] calculated = new int[64];
+	protected int calculatedCount = 0;
+	protected int maxBlocks;
+
+	protected ConcurrentHashMap<Integer, FutureTask<float[]>> pending =
+		new ConcurrentHashMap<Integer, FutureTask<float[]>>();
+	protected ThreadPoolExecutor executor;
+
+	/* calibration may be null, in which case the separation of the
+	   voxels is assumed to be 1 in each dimension. */
+
+	public GaussianBlockCache( ImagePlus imp, double sigma, Calibration calibration ) {
+		width = imp.getWidth();
+		height = imp.getHeight();
+		depth = imp.getStackSize();
+
+		ImageStack stack = imp.getStack();
+		slices = new Object[depth];
+		for( int z = 0; z < depth; ++z ) {
+			slices[z] = stack.getPixels( z + 1 );
+			if( ! (slices[z] instanceof byte[] || slices[z] instanceof short[] || slices[z] instanceof float[]) )
+				throw new IllegalArgumentException( "Only 8 bit, 16 bit and 32 bit images are supported" );
+		}
+
+		float pixelWidth = 1, pixelHeight = 1, pixelDepth = 1;
+		if( calibration != null ) {
+			pixelWidth = (float)calibration.pixelWidth;
+			pixelHeight = (float)calibration.pixelHeight;
+			pixelDepth = (float)calibration.pixelDepth;
+		}
+
+		kernelX = ComputeCurvatures.createGaussianKernel1D( (float)sigma / pixelWidth, true );
+		kernelY = ComputeCurvatures.createGaussianKernel1D( (float)sigma / pixelHeight, true );
+		kernelSumX = sum( kernelX );
+		kernelSumY = sum( kernelY );
+
+		if( depth > 1 ) {
+			kernelZ = ComputeCurvatures.createGaussianKernel1D( (float)sigma / pixelDepth, true );
+			kernelSumZ = sum( kernelZ );
+			bits = zBits = BLOCK_BITS_3D;
+		} else {
+			bits = BLOCK_BITS_2D;
+			zBits = 0;
+		}
+		blockSize = 1 << bits;
+		blockDepth = 1 << zBits;
+
+		blocksX = (width + blockSize - 1) >> bits;
+		blocksY = (height + blockSize - 1) >> bits;
+		blocksZ = (depth + blockDepth - 1) >> zBits;
+
+		int n = blocksX * blocksY * blocksZ;
+		blocks = new AtomicReferenceArray<float[]>( n );
+		lastUsed = new int[n];
+
+		long blockBytes = 4L * blockSize * blockSize * blockDepth;
+		setMaxBlocks( (int)Math.min( n, Math.max( 64, Runtime.getRuntime().maxMemory() / 8 / blockBytes ) ) );
+
+		int threads = Math.max( 1, Runtime.getRuntime().availableProcessors() - 1 );
+		executor = new ThreadPoolExecutor( threads, threads, 10, TimeUnit.SECONDS,
+						   new LinkedBlockingQueue<Runnable>(),
+						   new ThreadFactory() {
+			public Thread newThread( Runnable r ) {
+				Thread thread = new Thread( r, "Gaussian block calculation" );
+				thread.setDaemon( true );
+				thread.setPriority( Thread.MIN_PRIORITY );
+				return thread;
+			}
+		} );
+		executor.allowCoreThreadTimeOut( true );
+	}
+
+	static float sum( float [] kernel ) {
+		float result = 0;
+		for( int i = 0; i < kernel.length; i++ )
+			result += kernel[i];
+		return result;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/* Set the number of blocks that are kept in memory. */
+
+	public synchronized void setMaxBlocks( int maxBlocks ) {
+		this.maxBlocks = Math.max( 1, maxBlocks );
+		dropLeastRecentlyUsed();
+	}
+
+	/* The value of the convolved image at this point, which must
+	   be inside the image. */
+
+	public float get( int x, int y, int z ) {
+		int b = ((z >> zBits) * blocksY + (y >> bits)) * blocksX + (x >> bits);
+		float [] block = blocks.get( b );
+		if( block == null )
+			block = load( b );
+		lastUsed[b] = ++ clock;
+		int bx = x & (blockSize - 1);
+		int by = y & (blockSize - 1);
+		int bz = z & (blockDepth - 1);
+		return block[(((bz << bits) + by) << bits) + bx];
+	}
+
+	/* The same mirroring as FloatArray2D / FloatArray3D.getMirror() */
+
+	public static int mirror( int i, int size ) {
+		if( i >= size )
+			i = size - (i - size + 2);
+		if( i < 0 ) {
+			int tmp = 0;
+			int dir = 1;
+			while( i < 0 ) {
+				tmp += dir;
+				if( tmp == size - 1 || tmp == 0 )
+					dir *= -1;
+				i++;
+			}
+			i = tmp;
+		}
+		return i;
+	}
+
+	protected float [] load( int b ) {
+		FutureTask<float[]> task = getTask( b );
+		// This does nothing if a background thread has started it already:
+		task.run();
+		boolean interrupted = false;
+		float [] result;
+		for( ;; ) {
+			try {
+				result = task.get();
+				break;
+			} catch( InterruptedException e ) {
+				interrupted = true;
+			} catch( ExecutionException e ) {
+				Throwable cause = e.getCause();
+				if( cause instanceof RuntimeException )
+					throw (RuntimeException)cause;
+				if( cause instanceof Error )
+					throw (Error)cause;
+				throw new RuntimeException( cause );
+			}
+		}
+		// Let the caller see the interruption once it has its value:
+		if( interrupted )
+			Thread.currentThread().interrupt();
+		prefetchNeighbours( b );
+		return result;
+	}
+
+	protected FutureTask<float[]> getTask( final int b ) {
+		FutureTask<float[]> task = pending.get( b );
+		if( task != null )
+			return task;
+		task = new FutureTask<float[]>( new Callable<float[]>() {
+			public float [] call() {
+				float [] result = calculateBlock( b );
+				store( b, result );
+				return result;
+			}
+		} );
+		FutureTask<float[]> existing = pending.putIfAbsent( b, task );
+		return existing == null ? task : existing;
+	}
+
+	protected void prefetchNeighbours( int b ) {
+		int bx = b % blocksX;
+		int by = (b / blocksX) % blocksY;
+		int bz = b / (blocksX * blocksY);
+		for( int dz = -1; dz <= 1; ++dz ) {
+			int nz = bz + dz;
+			if( nz < 0 || nz >= blocksZ )
+				continue;
+			for( int dy = -1; dy <= 1; ++dy ) {
+				int ny = by + dy;
+				if( ny < 0 || ny >= blocksY )
+					continue;
+				for( int dx = -1; dx <= 1; ++dx ) {
+					int nx = bx + dx;
+					if( nx < 0 || nx >= blocksX )
+						continue;
+					int n = (nz * blocksY + ny) * blocksX + nx;
+					if( blocks.get( n ) != null || pending.containsKey( n ) )
+						continue;
+					if( executor.getQueue().size() >= MAX_QUEUED )
+						return;
+					executor.execute( getTask( n ) );
+				}
+			}
+		}
+	}
+
+	protected synchronized void store( int b, float [] block ) {
+		if( blocks.get( b ) == null ) {
+			blocks.set( b, block );
+			lastUsed[b] = ++ clock;
+			if( calculatedCount == calculated.length ) {
+				int [] newCalculated = new int[2 * calculated.length];
+				System.arraycopy( calculated, 0, newCalculated, 0, calculatedCount );
+				calculated = newCalculated;
+			}
+			calculated[calculatedCount++] = b;
+		}
+		pending.remove( b );
+		dropLeastRecentlyUsed();
+	}
+
+	protected synchronized void dropLeastRecentlyUsed() {
+		while( calculatedCount > maxBlocks ) {
+			int oldest = 0;
+			for( int i = 1; i < calculatedCount; ++i )
+				if( lastUsed[calculated[i]] - lastUsed[calculated[oldest]] < 0 )
+					oldest = i;
+			blocks.set( calculated[oldest], null );
+			calculated[oldest] = calculated[--calculatedCount];
+		}
+	}
+
+	/* Read a row of the (unconvolved) image as floats: */
+
+	protected void getInput( int x0, int x1, int y, int z, float [] result, int offset ) {
+		Object pixels = slices[z];
+		int i = y * width + x0;
+		if( pixels instanceof byte[] ) {
+			byte [] b = (byte[])pixels;
+			for( int x = x0; x < x1; ++x )
+				result[offset++] = (float)(b[i++] & 0xff);
+		} else if( pixels instanceof short[] ) {
+			short [] s = (short[])pixels;
+			for( int x = x0; x < x1; ++x )
+				result[offset++] = (float)(s[i++] & 0xffff);
+		} else
+			System.arraycopy( (float[])pixels, i, result, offset, x1 - x0 );
+	}
+
+	/* The first and the last + 1 coordinate of the image in one
+	   dimension that the convolution of [from, to) depends on. */
+
+	protected static int [] getRange( int from, int to, int radius, int size ) {
+		// With a kernel that large the mirroring might go anywhere
+		if( radius > size - 2 )
+			return new int[] { 0, size };
+		return new int[] { Math.max( 0, from - radius ), Math.min( size, to + radius ) };
+	}
+
+	/* For each coordinate from - radius to to + radius - 1, the
+	   mirrored coordinate relative to range[0]. */
+
+	protected static int [] getMirrored( int from, int to, int radius, int size, int [] range ) {
+		int [] result = new int[to - from + 2 * radius];
+		for( int i = 0; i < result.length; ++i )
+			result[i] = mirror( from - radius + i, size ) - range[0];
+		return result;
+	}
+
+	/* This does the same as computeGaussianFastMirror, but only for
+	   one block and the halo of the image it depends on.  The order
+	   of the floating point operations is the same, so the results
+	   are identical. */
+
+	protected float [] calculateBlock( int b ) {
+		int bx = b % blocksX;
+		int by = (b / blocksX) % blocksY;
+		int bz = b / (blocksX * blocksY);
+
+		int x0 = bx << bits, x1 = Math.min( width, x0 + blockSize );
+		int y0 = by << bits, y1 = Math.min( height, y0 + blockSize );
+		int z0 = bz << zBits, z1 = Math.min( depth, z0 + blockDepth );
+
+		int rx = kernelX.length / 2;
+		int ry = kernelY.length / 2;
+		int rz = kernelZ == null ? 0 : kernelZ.length / 2;
+
+		int [] xRange = getRange( x0, x1, rx, width );
+		int [] yRange = getRange( y0, y1, ry, height );
+		int [] zRange = kernelZ == null ? new int[] { z0, z1 } : getRange( z0, z1, rz, depth );
+
+		int iw = xRange[1] - xRange[0];
+		int ih = yRange[1] - yRange[0];
+		int id = zRange[1] - zRange[0];
+
+		float [] input = new float[iw * ih * id];
+		for( int z = 0; z < id; ++z )
+			for( int y = 0; y < ih; ++y )
+				getInput( xRange[0], xRange[1], yRange[0] + y, zRange[0] + z, input, (z * ih + y) * iw );
+
+		int bw = x1 - x0;
+		int bh = y1 - y0;
+
+		int [] mirroredX = getMirrored( x0, x1, rx, width, xRange );
+		int [] mirroredY = getMirrored( y0, y1, ry, height, yRange );
+
+		// fold in x, only for the columns of this block
+		float [] foldedX = new float[bw * ih * id];
+		for( int z = 0; z < id; ++z )
+			for( int y = 0; y < ih; ++y ) {
+				int row = (z * ih + y) * iw;
+				for( int x = 0; x < bw; ++x ) {
+					float avg = 0;
+					for( int f = 0; f <= 2 * rx; f++ )
+						avg += input[row + mirroredX[x + f]] * kernelX[f];
+					foldedX[(z * ih + y) * bw + x] = avg / kernelSumX;
+				}
+			}
+
+		// fold in y, only for the rows of this block
+		float [] foldedY = new float[bw * bh * id];
+		for( int z = 0; z < id; ++z )
+			for( int y = 0; y < bh; ++y )
+				for( int x = 0; x < bw; ++x ) {
+					float avg = 0;
+					for( int f = 0; f <= 2 * ry; f++ )
+						avg += foldedX[(z * ih + mirroredY[y + f]) * bw + x] * kernelY[f];
+					foldedY[(z * bh + y) * bw + x] = avg / kernelSumY;
+				}
+
+		float [] result = new float[blockSize * blockSize * blockDepth];
+
+		if( kernelZ == null ) {
+			for( int y = 0; y < bh; ++y )
+				System.arraycopy( foldedY, y * bw, result, y << bits, bw );
+			return result;
+		}
+
+		int [] mirroredZ = getMirrored( z0, z1, rz, depth, zRange );
+
+		// fold in z, only for the slices of this block
+		for( int z = 0; z < z1 - z0; ++z )
+			for( int y = 0; y < bh; ++y )
+				for( int x = 0; x < bw; ++x ) {
+					float avg = 0;
+					for( int f = 0; f <= 2 * rz; f++ )
+						avg += foldedY[(mirroredZ[z + f] * bh + y) * bw + x] * kernelZ[f];
+					result[((z << bits) + y) << bits | x] = avg / kernelSumZ;
+				}
+
+		return result;
+	}
+}
@@ -0,0 +1,438 @@
+package fiji.build;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * A content-addressed store for build results.
+ *
+ * Build results are stored under a key which is the SHA-1 of everything
+ * that went into them: the contents (not the timestamps) of the sources
+ * and of the class path, the relevant settings and the version of the JDK
+ * and of javac.jar.  That way, a target
+ * which is out-of-date only because of its timestamps (after a fresh
+ * checkout, switching branches and back, or removing the build
+ * directory) can be copied from the cache instead of being rebuilt.
+ *
+ * The cache is off unless a directory is set with the variable BUILDCACHE
+ * (or the system property fiji.build.cache); "true" means the default
+ * directory ~/.cache/fiji-build, which is shared between all working
+ * directories of the same user.  When the cache grows beyond its maximum
+ * size (the system property fiji.build.cache.size in megabytes, 512 by
+ * default), the least recently used results are removed.
+ */
+public class BuildCache {
+	protected File directory;
+	protected long maximumSize;
+	// the size of the stored results, -1 if not yet known
+	protected long size = -1;
+
+	protected static Map<File, BuildCache> caches =
+		new HashMap<File, BuildCache>();
+
+	// file digests, valid as long as size and mtime do not change
+	protected static Map<String, long[]> digestStats =
+		new HashMap<String, long[]>();
+	protected static Map<String, String> digests =
+		new HashMap<String, String>();
+
+	protected static String compilerVersion;
+
+	protected BuildCache(File directory, long maximumSize) {
+		this.directory = directory;
+		this.maximumSize = maximumSize;
+	}
+
+	public static String getDefaultDirectory() {
+		return new File(System.getProperty("user.home"),
+			".cache/fiji-build").getPath();
+	}
+
+	public static long getDefaultMaximumSize() {
+		String size = System.getProperty("fiji.build.cache.size");
+		if (size != null && !size.equals("")) try {
+			return Long.parseLong(size) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+			System.err.println("Ignoring invalid build cache size: "
+				+ size);
+		}
+		return 512l * 1024 * 1024;
+	}
+
+	/* Returns null if the cache is disabled */
+	public static synchronized BuildCache get(String directory) {
+		if (directory == null)
+			directory = System.getProperty("fiji.build.cache");
+		if (directory == null || directory.equals("") ||
+				directory.equals("false"))
+			return null;
+		if (directory.equals("true"))
+			directory = getDefaultDirectory();
+		File file = new File(directory);
+		BuildCache cache = caches.get(file);
+		if (cache == null) {
+			cache = new BuildCache(file, getDefaultMaximumSize());
+			caches.put(file, cache);
+		}
+		return cache;
+	}
+
+	public File getFile(String key) {
+		return new File(directory, key.substring(0, 2) + "/"
+			+ key.substring(2));
+	}
+
+	public boolean contains(String key) {
+		return getFile(key).exists();
+	}
+
+	/* Copy the cached result to the target, if there is one */
+	public boolean restore(String key, File target) throws IOException {
+		File file = getFile(key);
+		if (!file.exists())
+			return false;
+		File parent = target.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists())
+			parent.mkdirs();
+		File tmp = new File(target.getPath() + ".tmp");
+		copy(new FileInputStream(file), new FileOutputStream(tmp));
+		target.delete();
+		if (!tmp.renameTo(target))
+			throw new IOException("Could not rename " + tmp
+				+ " to " + target);
+		// mark it as recently used
+		file.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	public void store(String key, File target) throws IOException {
+		File file = getFile(key);
+		if (file.exists())
+			return;
+		file.getParentFile().mkdirs();
+		File tmp = File.createTempFile(key, ".tmp",
+			file.getParentFile());
+		copy(new FileInputStream(target), new FileOutputStream(tmp));
+		commit(tmp, file);
+	}
+
+	/* Unpack the cached contents of a directory into it */
+	public boolean restoreDirectory(String key, File target)
+			throws IOException {
+		File file = getFile(key);
+		if (!file.exists())
+			return false;
+		ZipFile zip = new ZipFile(file);
+		try {
+			for (Enumeration<? extends ZipEntry> e = zip.entries();
+					e.hasMoreElements(); ) {
+				ZipEntry entry = e.nextElement();
+				if (entry.isDirectory())
+					continue;
+				File out = new File(target, entry.getName());
+				out.getParentFile().mkdirs();
+				copy(zip.getInputStream(entry),
+					new FileOutputStream(out));
+			}
+		} finally {
+			zip.close();
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	public void storeDirectory(String key, File source)
+			throws IOException {
+		File file = getFile(key);
+		if (file.exists())
+			return;
+		file.getParentFile().mkdirs();
+		File tmp = File.createTempFile(key, ".tmp",
+			file.getParentFile());
+		ZipOutputStream out =
+			new ZipOutputStream(new FileOutputStream(tmp));
+		try {
+			addToZip(out, source, "");
+		} finally {
+			out.close();
+		}
+		commit(tmp, file);
+	}
+
+	protected void addToZip(ZipOutputStream out, File directory,
+			String prefix) throws IOException {
+		File[] list = directory.listFiles();
+		if (list == null)
+			return;
+		Arrays.sort(list);
+		for (File file : list)
+			if (file.isDirectory())
+				addToZip(out, file,
+					prefix + file.getName() + "/");
+			else if (file.isFile()) {
+				out.putNextEntry(new ZipEntry(prefix
+					+ file.getName()));
+				InputStream in = new FileInputStream(file);
+				try {
+					copy(in, out, false);
+				} finally {
+					in.close();
+				}
+				out.closeEntry();
+			}
+	}
+
+	/* Another process might have stored the same result meanwhile */
+	protected void commit(File tmp, File file) throws IOException {
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			if (!file.exists())
+				throw new IOException("Could not write " + file);
+			return;
+		}
+		added(file.length());
+	}
+
+	/*
+	 * Removes the least recently used results when the cache grew beyond
+	 * its maximum size, down to three quarters of it so that this does
+	 * not happen for every stored result.
+	 */
+	protected synchronized void added(long length) {
+		if (size < 0)
+			size = getSize(getResults());
+		else
+			size += length;
+		if (size <= maximumSize)
+			return;
+
+		// other processes might have added or removed results
+		List<File> results = getResults();
+		size = getSize(results);
+		Collections.sort(results, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long difference = a.lastModified() - b.lastModified();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+		for (File result : results) {
+			if (size <= maximumSize / 4 * 3)
+				break;
+			long length2 = result.length();
+			if (result.delete())
+				size -= length2;
+		}
+	}
+
+	/* The stored results, skipping files which are being written */
+	protected List<File> getResults() {
+		List<File> result = new ArrayList<File>();
+		File[] list = directory.listFiles();
+		if (list == null)
+			return result;
+		for (File subdirectory : list) {
+			File[] list2 = subdirectory.listFiles();
+			if (list2 == null)
+				continue;
+			for (File file : list2)
+				if (file.isFile() &&
+						!file.getName().endsWith(".tmp"))
+					result.add(file);
+		}
+		return result;
+	}
+
+	protected static long getSize(List<File> files) {
+		long size = 0;
+		for (File file : files)
+			size += file.length();
+		return size;
+	}
+
+	/*
+	 * Identifies the compiler: the JDK (whose class library is compiled
+	 * against) and the contents of javac.jar, if Fake uses one.
+	 */
+	public static synchronized String getCompilerVersion() {
+		if (compilerVersion != null)
+			return compilerVersion;
+		String result = System.getProperty("java.vendor") + " "
+			+ System.getProperty("java.version");
+		if (Fake.ijHome != null)
+			for (String path : new String[] {
+					"jars/javac.jar", "precompiled/javac.jar" }) {
+				File file = new File(Fake.ijHome, path);
+				if (!file.exists())
+					continue;
+				try {
+					result += " " + path + " "
+						+ getDigest(file);
+				} catch (IOException e) {
+					result += " " + path + " <unreadable>";
+				}
+				break;
+			}
+		compilerVersion = result;
+		return result;
+	}
+
+	protected static void copy(InputStream in, OutputStream out)
+			throws IOException {
+		try {
+			copy(in, out, true);
+		} finally {
+			in.close();
+		}
+	}
+
+	protected static void copy(InputStream in, OutputStream out,
+			boolean closeOutput) throws IOException {
+		byte[] buffer = new byte[65536];
+		try {
+			for (;;) {
+				int count = in.read(buffer);
+				if (count < 0)
+					break;
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			if (closeOutput)
+				out.close();
+		}
+	}
+
+	/*
+	 * Returns the hex SHA-1 of the file's contents, reusing the digest
+	 * from previous calls if the file did not change.
+	 */
+	public static String getDigest(File file) throws IOException {
+		String path = file.getAbsolutePath();
+		long[] stat = new long[] { file.length(), file.lastModified() };
+		synchronized (digests) {
+			long[] cached = digestStats.get(path);
+			if (cached != null && cached[0] == stat[0] &&
+					cached[1] == stat[1])
+				return digests.get(path);
+		}
+
+		MessageDigest digest = newDigest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			for (;;) {
+				int count = in.read(buffer);
+				if (count < 0)
+					break;
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		String result = toHex(digest.digest());
+
+		synchronized (digests) {
+			digestStats.put(path, stat);
+			digests.put(path, result);
+		}
+		return result;
+	}
+
+	protected static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 not available");
+		}
+	}
+
+	protected static String toHex(byte[] bytes) {
+		final char[] hex = "0123456789abcdef".toCharArray();
+		char[] buffer = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			buffer[i * 2] = hex[(bytes[i] & 0xf0) >> 4];
+			buffer[i * 2 + 1] = hex[bytes[i] & 0xf];
+		}
+		return new String(buffer);
+	}
+
+	/*
+	 * Collects the inputs of a build step.  Strings (names, settings)
+	 * and file contents are hashed in the order they are added, after
+	 * the compiler version.
+	 */
+	public static class Key {
+		protected MessageDigest digest = newDigest();
+		protected String result;
+
+		public Key() {
+			add(getCompilerVersion());
+		}
+
+		public Key add(String string) {
+			if (string == null)
+				string = "<null>";
+			try {
+				digest.update(string.getBytes("UTF-8"));
+			} catch (IOException e) {
+				digest.update(string.getBytes());
+			}
+			digest.update((byte)0);
+			return this;
+		}
+
+		/* Adds the contents; directories are added recursively */
+		public Key addFile(File file) throws IOException {
+			if (file.isDirectory())
+				return addDirectory(file, "");
+			if (!file.exists())
+				return add("<missing>");
+			return add(getDigest(file));
+		}
+
+		protected Key addDirectory(File directory, String prefix)
+				throws IOException {
+			String[] list = directory.list();
+			if (list == null)
+				return this;
+			Arrays.sort(list);
+			for (String name : list) {
+				if (name.startsWith("."))
+					continue;
+				File file = new File(directory, name);
+				if (file.isDirectory())
+					addDirectory(file, prefix + name + "/");
+				else {
+					add(prefix + name);
+					add(getDigest(file));
+				}
+			}
+			return this;
+		}
+
+		public String toString() {
+			if (result == null)
+				result = toHex(digest.digest());
+			return result;
+		}
+	}
+}
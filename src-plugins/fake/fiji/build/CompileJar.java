@@ -1,6 +1,7 @@
 package fiji.build;
 
 import java.io.File;
+import java.io.IOException;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -142,6 +143,45 @@ boolean checkUpToDate() {
 			upToDate(configPath);
 	}
 
+	protected String getCacheKey() throws FakeException {
+		// the native library is built as a side effect
+		if (compileLibrary != null || getBuildCache() == null)
+			return null;
+		try {
+			BuildCache.Key key = new BuildCache.Key();
+			key.add(getClass().getName()).add(target);
+			for (String prereq : prerequisites) {
+				key.add(prereq);
+				String path = prereq;
+				int bracket = path.indexOf('[');
+				if (bracket >= 0 && path.endsWith("]")) {
+					path = path.substring(bracket + 1, path.length() - 1);
+					if (path.startsWith("jar:file:"))
+						// the whole jar is hashed
+						path = path.substring(9, path.indexOf('!'));
+				}
+				key.addFile(new File(Util.makePath(parser.cwd, Util.stripSuffix(path, "/"))));
+			}
+			for (String path : Util.splitPaths(getVar("CLASSPATH"))) {
+				key.add(path);
+				if (!path.equals("."))
+					key.addFile(new File(Util.makePath(parser.cwd, path)));
+			}
+			for (String var : new String[] { "JAVAVERSION", "DEBUG", "SHOWDEPRECATION", "EXCLUDE", "NO_COMPILE", "PREBUILTDIR", "includeSource" })
+				key.add(var).add(getVar(var));
+			key.add(getMainClass()).add(getStripPath());
+			if (configPath != null)
+				key.addFile(new File(configPath));
+			// a different Fake might build differently
+			if (Fake.fijiBuildJar != null)
+				key.addFile(new File(Fake.fijiBuildJar));
+			return key.toString();
+		} catch (IOException e) {
+			verbose("Cannot use the build cache for " + target + ": " + e);
+			return null;
+		}
+	}
+
 	String getMainClass() {
 		return parser.getVariable("MAINCLASS", target);
 	}
@@ -54,6 +54,7 @@ public class MiniMaven {
 	protected Stack<File> multiProjectRoots = new Stack<File>();
 	protected Set<File> excludedFromMultiProjects = new HashSet<File>();
 	protected Fake fake;
+	protected BuildCache buildCache;
 
 	public MiniMaven(Fake fake, PrintStream err, boolean verbose) throws FakeException {
 		this(fake, err, verbose, false);
@@ -64,6 +65,7 @@ public MiniMaven(Fake fake, PrintStream err, boolean verbose, boolean debug) thr
 		this.err = err;
 		this.verbose = verbose;
 		this.debug = debug;
+		buildCache = BuildCache.get(null);
 		if ("true".equalsIgnoreCase(System.getProperty("minimaven.offline")))
 			offlineMode = true;
 		if ("ignore".equalsIgnoreCase(System.getProperty("minimaven.repositories")))
@@ -246,6 +248,7 @@ public String toString() {
 
 	public class POM extends DefaultHandler implements Comparable<POM> {
 		protected boolean buildFromSource, built;
+		protected String cacheKey;
 		protected File directory, target;
 		protected String sourceDirectory = "src/main/java";
 		protected POM parent;
@@ -405,15 +408,23 @@ public void build(boolean makeJar) throws FakeException, IOException, ParserConf
 			addRecursively(arguments, source, ".java", target, ".class");
 			count = arguments.size() - count;
 
+			String key = null;
 			if (count > 0) {
-				err.println("Compiling " + count + " files in " + directory);
-				if (verbose) {
-					err.println(arguments.toString());
-					err.println("using the class path: " + classPath);
+				key = buildCache == null ? null : getCacheKey();
+				if (key != null && buildCache.restoreDirectory(key, target)) {
+					err.println("Restored " + count + " files in " + directory + " from the build cache");
+					key = null;
+				}
+				else {
+					err.println("Compiling " + count + " files in " + directory);
+					if (verbose) {
+						err.println(arguments.toString());
+						err.println("using the class path: " + classPath);
+					}
+					String[] array = arguments.toArray(new String[arguments.size()]);
+					if (fake != null)
+						fake.callJavac(array, verbose);
 				}
-				String[] array = arguments.toArray(new String[arguments.size()]);
-				if (fake != null)
-					fake.callJavac(array, verbose);
 			}
 
 			updateRecursively(new File(source.getParentFile(), "resources"), target, false);
@@ -425,6 +436,12 @@ public void build(boolean makeJar) throws FakeException, IOException, ParserConf
 				copyFile(pom, targetFile);
 			}
 
+			if (key != null) try {
+				buildCache.storeDirectory(key, target);
+			} catch (IOException e) {
+				err.println("Warning: could not store " + target + " in the build cache: " + e);
+			}
+
 			if (makeJar) {
 				JarOutputStream out = new JarOutputStream(new FileOutputStream(getTarget()));
 				addToJarRecursively(out, target, "");
@@ -434,6 +451,31 @@ public void build(boolean makeJar) throws FakeException, IOException, ParserConf
 			built = true;
 		}
 
+		/**
+		 * Identify the sources, resources and compile-time dependencies by their contents
+		 *
+		 * The classes of this project are stored in the build cache under this key.
+		 */
+		protected String getCacheKey() throws IOException, ParserConfigurationException, SAXException {
+			if (cacheKey != null)
+				return cacheKey;
+			BuildCache.Key key = new BuildCache.Key();
+			key.add(coordinate.toString());
+			File source = getSourceDirectory();
+			key.add("sources").addFile(source);
+			key.add("resources").addFile(new File(source.getParentFile(), "resources"));
+			key.add("pom").addFile(new File(directory, "pom.xml"));
+			for (POM pom : getDependencies(true, "test", "runtime")) {
+				key.add(pom.coordinate.toString());
+				if (pom.buildFromSource)
+					key.add(pom.getCacheKey());
+				else
+					key.addFile(pom.target);
+			}
+			cacheKey = key.toString();
+			return cacheKey;
+		}
+
 		protected long addRecursively(List<String> list, File directory, String extension, File targetDirectory, String targetExtension) {
 			long lastModified = 0;
 			if (list == null)
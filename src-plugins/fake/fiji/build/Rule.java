@@ -191,8 +191,16 @@ public void make(boolean makePrerequisitesFirst) throws FakeException {
 
 			if (upToDate())
 				return;
-			parser.fake.err.println("Building " + this);
-			action();
+			String cacheKey = getCacheKey();
+			if (cacheKey != null && restoreFromCache(cacheKey))
+				parser.fake.err.println("Restored " + this
+					+ " from the build cache");
+			else {
+				parser.fake.err.println("Building " + this);
+				action();
+				if (cacheKey != null)
+					storeInCache(cacheKey);
+			}
 			if (new File(target).exists())
 				upToDateStage = 2;
 			else {
@@ -209,6 +217,45 @@ public void make(boolean makePrerequisitesFirst) throws FakeException {
 		wasAlreadyInvoked = false;
 	}
 
+	/*
+	 * Rules whose result can be copied from the build cache return a key
+	 * identifying all of their inputs by content (see BuildCache).
+	 */
+	protected String getCacheKey() throws FakeException {
+		return null;
+	}
+
+	public BuildCache getBuildCache() {
+		return BuildCache.get(getVar("BUILDCACHE"));
+	}
+
+	protected boolean restoreFromCache(String key) {
+		BuildCache cache = getBuildCache();
+		if (cache == null)
+			return false;
+		try {
+			return cache.restore(key,
+				new File(Util.makePath(parser.cwd, target)));
+		} catch (IOException e) {
+			verbose("Could not restore " + target
+				+ " from the build cache: " + e);
+			return false;
+		}
+	}
+
+	protected void storeInCache(String key) {
+		BuildCache cache = getBuildCache();
+		File file = new File(Util.makePath(parser.cwd, target));
+		if (cache == null || !file.isFile())
+			return;
+		try {
+			cache.store(key, file);
+		} catch (IOException e) {
+			parser.fake.err.println("Warning: could not store "
+				+ target + " in the build cache: " + e);
+		}
+	}
+
 	protected void setUpToDate() throws IOException, FakeException {
 		upToDateStage = 2;
 		if (target.equals(""))
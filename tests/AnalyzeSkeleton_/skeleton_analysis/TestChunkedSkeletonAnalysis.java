@@ -0,0 +1,276 @@
+package skeleton_analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the trees found by {@link ChunkedSkeletonAnalysis} with the ones
+ * of the classic {@link AnalyzeSkeleton_} analysis (without pruning)
+ */
+public class TestChunkedSkeletonAnalysis
+{
+	@Test
+	public void testSimpleSkeletons()
+	{
+		final ImagePlus imp = createImage(40, 30, 20);
+		final ImageStack stack = imp.getStack();
+
+		// a straight line
+		drawLine(stack, 2, 2, 1, 2, 25, 1);
+		// a diagonal line through all chunks
+		drawLine(stack, 5, 3, 0, 20, 18, 19);
+		// a star with three arms: one triple point
+		drawLine(stack, 30, 5, 2, 30, 12, 8);
+		drawLine(stack, 30, 12, 8, 36, 12, 14);
+		drawLine(stack, 30, 12, 8, 24, 18, 14);
+		// a cross with four arms: one quadruple point
+		drawLine(stack, 10, 24, 10, 20, 24, 10);
+		drawLine(stack, 15, 20, 10, 15, 28, 10);
+		// a circle (no end points or junctions)
+		drawLine(stack, 30, 20, 16, 33, 23, 16);
+		drawLine(stack, 33, 23, 16, 30, 26, 16);
+		drawLine(stack, 30, 26, 16, 27, 23, 16);
+		drawLine(stack, 27, 23, 16, 30, 20, 16);
+
+		final SkeletonResult classic = runClassic(imp);
+		final SkeletonResult chunked = runChunked(imp, 3, 2);
+
+		assertEquals(5, chunked.getNumOfTrees());
+		assertTopologyEquals(classic, chunked);
+		assertIndependentOfChunks(imp, chunked);
+		assertAllSlabsCounted(imp, chunked);
+
+		// between two end points, the lengths do not depend on the traversal
+		final ArrayList<Double> lineLengths = getLineLengths(chunked);
+		assertEquals(getLineLengths(classic), lineLengths);
+		assertEquals(23, lineLengths.get(0), 1e-9);
+	}
+
+	@Test
+	public void testRandomTrees()
+	{
+		final Random random = new Random(1);
+		for(int i = 0; i < 5; i++)
+		{
+			final ImagePlus imp = createImage(48, 40, 24);
+			final ImageStack stack = imp.getStack();
+
+			// the branches may touch, which gives clusters of junction voxels
+			// and cycles
+			for(int tree = 0; tree < 4; tree++)
+			{
+				final int[] start = { 4 + 22 * (tree % 2), 4 + 18 * (tree / 2), 2 };
+				growTree(stack, random, start, 3);
+			}
+
+			final SkeletonResult classic = runClassic(imp);
+			final SkeletonResult chunked = runChunked(imp, 4, 3);
+
+			assertTopologyEquals(classic, chunked);
+			assertIndependentOfChunks(imp, chunked);
+			assertAllSlabsCounted(imp, chunked);
+		}
+	}
+
+	@Test
+	public void testBranchTable() throws IOException
+	{
+		final ImagePlus imp = createImage(20, 20, 10);
+		final Calibration calibration = imp.getCalibration();
+		calibration.pixelWidth = 0.5;
+		calibration.pixelHeight = 0.5;
+		calibration.pixelDepth = 2;
+		drawLine(imp.getStack(), 2, 10, 1, 17, 10, 1);
+		drawLine(imp.getStack(), 10, 2, 1, 10, 10, 1);
+
+		final ChunkedSkeletonAnalysis analysis = new ChunkedSkeletonAnalysis(imp);
+		analysis.setChunkDepth(2);
+		final StringWriter writer = new StringWriter();
+		final SkeletonResult result = analysis.run(writer);
+
+		final String[] lines = writer.toString().split("\r?\n");
+		assertEquals("Branch,Skeleton ID,Branch length,V1 x,V1 y,V1 z,"
+				+ "V2 x,V2 y,V2 z,Euclidean distance", lines[0]);
+		assertEquals(analysis.getNumberOfBranches() + 1, lines.length);
+		assertEquals(3, result.getBranches()[0]);
+
+		double totalLength = 0;
+		for(int i = 1; i < lines.length; i++)
+		{
+			final String[] values = lines[i].split(",");
+			assertEquals(10, values.length);
+			assertEquals(i, Integer.parseInt(values[0]));
+			assertEquals(1, Integer.parseInt(values[1]));
+			totalLength += Double.parseDouble(values[2]);
+		}
+		// the junction consists of the crossing and its three neighbors,
+		// so 7 + 6 + 7 voxel steps of 0.5 are left for the branches
+		assertEquals(10, totalLength, 1e-9);
+	}
+
+	/**
+	 * Compare the number of trees and, tree by tree (in any order), the
+	 * branches, junctions, end points, junction voxels, triple and
+	 * quadruple points.
+	 */
+	protected void assertTopologyEquals(SkeletonResult expected, SkeletonResult actual)
+	{
+		assertEquals(expected.getNumOfTrees(), actual.getNumOfTrees());
+		assertEquals(getTopology(expected), getTopology(actual));
+	}
+
+	protected ArrayList<String> getTopology(SkeletonResult result)
+	{
+		final ArrayList<String> trees = new ArrayList<String>();
+		for(int i = 0; i < result.getNumOfTrees(); i++)
+			trees.add(Arrays.toString(new int[] {
+				result.getBranches()[i], result.getJunctions()[i],
+				result.getEndPoints()[i], result.getJunctionVoxels()[i],
+				result.getTriples()[i], result.getQuadruples()[i]
+			}));
+		Collections.sort(trees);
+		return trees;
+	}
+
+	/**
+	 * The chunk size and the number of threads do not change the results.
+	 */
+	protected void assertIndependentOfChunks(ImagePlus imp, SkeletonResult expected)
+	{
+		for(final int chunkDepth : new int[] { 1, 5, imp.getStackSize() })
+			for(final int threads : new int[] { 1, 4 })
+			{
+				final SkeletonResult result = runChunked(imp, chunkDepth, threads);
+				assertEquals(expected.getNumOfTrees(), result.getNumOfTrees());
+				assertArrayEquals(expected.getBranches(), result.getBranches());
+				assertArrayEquals(expected.getJunctions(), result.getJunctions());
+				assertArrayEquals(expected.getEndPoints(), result.getEndPoints());
+				assertArrayEquals(expected.getJunctionVoxels(), result.getJunctionVoxels());
+				assertArrayEquals(expected.getSlabs(), result.getSlabs());
+				assertArrayEquals(expected.getTriples(), result.getTriples());
+				assertArrayEquals(expected.getQuadruples(), result.getQuadruples());
+				assertArrayEquals(expected.getAverageBranchLength(),
+						result.getAverageBranchLength(), 1e-9);
+				assertArrayEquals(expected.getMaximumBranchLength(),
+						result.getMaximumBranchLength(), 1e-9);
+			}
+	}
+
+	/**
+	 * Every voxel tagged as slab belongs to exactly one branch.
+	 */
+	protected void assertAllSlabsCounted(ImagePlus imp, SkeletonResult result)
+	{
+		final ChunkedSkeletonAnalysis analysis = new ChunkedSkeletonAnalysis(imp);
+		analysis.run();
+		final ImageStack tagged = analysis.getTaggedImage();
+		int slabs = 0;
+		for(int z = 1; z <= tagged.getSize(); z++)
+		{
+			final byte[] pixels = (byte[]) tagged.getPixels(z);
+			for(int i = 0; i < pixels.length; i++)
+				if(pixels[i] == AnalyzeSkeleton_.SLAB)
+					slabs++;
+		}
+		int counted = 0;
+		for(final int n : result.getSlabs())
+			counted += n;
+		assertEquals(slabs, counted);
+	}
+
+	/**
+	 * Get the lengths of the trees which are simple lines, sorted.
+	 */
+	protected ArrayList<Double> getLineLengths(SkeletonResult result)
+	{
+		final ArrayList<Double> lengths = new ArrayList<Double>();
+		for(int i = 0; i < result.getNumOfTrees(); i++)
+			if(result.getEndPoints()[i] == 2 && result.getJunctions()[i] == 0)
+			{
+				assertEquals(1, result.getBranches()[i]);
+				assertEquals(result.getMaximumBranchLength()[i],
+						result.getAverageBranchLength()[i], 1e-9);
+				lengths.add(result.getMaximumBranchLength()[i]);
+			}
+		Collections.sort(lengths);
+		return lengths;
+	}
+
+	protected SkeletonResult runClassic(ImagePlus imp)
+	{
+		final AnalyzeSkeleton_ skeleton = new AnalyzeSkeleton_();
+		skeleton.setup("", imp);
+		return skeleton.run(AnalyzeSkeleton_.NONE, false, false, null, true, false);
+	}
+
+	protected SkeletonResult runChunked(ImagePlus imp, int chunkDepth, int threads)
+	{
+		final ChunkedSkeletonAnalysis analysis = new ChunkedSkeletonAnalysis(imp);
+		analysis.setChunkDepth(chunkDepth);
+		analysis.setThreads(threads);
+		return analysis.run();
+	}
+
+	protected static ImagePlus createImage(int width, int height, int depth)
+	{
+		final ImageStack stack = new ImageStack(width, height);
+		for(int z = 0; z < depth; z++)
+			stack.addSlice("", new ByteProcessor(width, height));
+		return new ImagePlus("skeleton", stack);
+	}
+
+	/**
+	 * Draw a 26-connected line, one voxel thick.
+	 */
+	protected static void drawLine(ImageStack stack, int x0, int y0, int z0, int x1, int y1, int z1)
+	{
+		final int steps = Math.max(Math.abs(x1 - x0), Math.max(Math.abs(y1 - y0), Math.abs(z1 - z0)));
+		for(int i = 0; i <= steps; i++)
+		{
+			final double t = steps == 0 ? 0 : i / (double) steps;
+			final int x = (int) Math.round(x0 + t * (x1 - x0));
+			final int y = (int) Math.round(y0 + t * (y1 - y0));
+			final int z = (int) Math.round(z0 + t * (z1 - z0));
+			stack.getProcessor(z + 1).set(x, y, 255);
+		}
+	}
+
+	/**
+	 * Grow a random tree: a segment along z which forks at its end into two
+	 * or three children.
+	 */
+	protected static void growTree(ImageStack stack, Random random, int[] start, int levels)
+	{
+		final int length = 3 + random.nextInt(3);
+		final int[] end = { start[0], start[1], start[2] + length };
+		drawLine(stack, start[0], start[1], start[2], end[0], end[1], end[2]);
+		if(levels == 0)
+			return;
+
+		final int[][] directions = { { 1, 0 }, { -1, 0 }, { 0, 1 } };
+		final int children = 2 + random.nextInt(2);
+		for(int i = 0; i < children; i++)
+		{
+			final int[] child = {
+				end[0] + 2 * directions[i][0], end[1] + 2 * directions[i][1], end[2] + 1
+			};
+			drawLine(stack, end[0], end[1], end[2], child[0], child[1], child[2]);
+			if(child[2] < stack.getSize() - 8)
+				growTree(stack, random, child, levels - 1);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package fiji.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import fiji.util.node.SimpleNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the radius and the batch queries of {@link FlatKDTree} with an
+ * exhaustive search.
+ */
+public class TestFlatKDTree
+{
+	@Test
+	public void testRadiusSearch() {
+		final Random random = new Random(1);
+		for (int numDimensions = 1; numDimensions <= 3; numDimensions++) {
+			final float[] points = randomPoints(random, 500, numDimensions);
+			final FlatKDTree tree = new FlatKDTree(points, numDimensions);
+			final IntArray result = new IntArray();
+
+			for (int q = 0; q < 50; q++) {
+				final float[] query = randomPoints(random, 1, numDimensions);
+				for (final double radius : new double[] { 0, 0.05, 0.2, 2 }) {
+					final int count = tree.findNeighborsWithinRadius(query, radius, result);
+					assertEquals(count, result.size());
+					assertArrayEquals(findWithinRadius(points, numDimensions, query, radius), sorted(result));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRadiusIsInclusive() {
+		// a 5x5x5 grid with unit spacing
+		final float[] points = new float[5 * 5 * 5 * 3];
+		for (int i = 0; i < 5 * 5 * 5; i++) {
+			points[3 * i] = i % 5;
+			points[3 * i + 1] = (i / 5) % 5;
+			points[3 * i + 2] = i / 25;
+		}
+		final FlatKDTree tree = new FlatKDTree(points, 3);
+		final IntArray result = new IntArray();
+
+		// the center and its 6 direct neighbors
+		assertEquals(7, tree.findNeighborsWithinRadius(new float[] { 2, 2, 2 }, 1, result));
+		assertEquals(1, tree.findNeighborsWithinRadius(new float[] { 2, 2, 2 }, 0, result));
+		assertEquals(2 * 5 + 2 * 5 * 5 + 2, result.get(0));
+		// a corner and its 3 direct neighbors
+		assertEquals(4, tree.findNeighborsWithinRadius(new float[] { 0, 0, 0 }, 1, result));
+		assertEquals(0, tree.findNeighborsWithinRadius(new float[] { -1, -1, -1 }, 1, result));
+	}
+
+	@Test
+	public void testRadiusNeighborSearch() {
+		final Random random = new Random(2);
+		final List<SimpleNode> nodes = new ArrayList<SimpleNode>();
+		for (int i = 0; i < 300; i++)
+			nodes.add(new SimpleNode(randomPoints(random, 1, 3)));
+		final RadiusNeighborSearch<SimpleNode> search = new RadiusNeighborSearch<SimpleNode>(new KDTree<SimpleNode>(nodes));
+
+		for (int q = 0; q < 20; q++) {
+			final SimpleNode query = new SimpleNode(randomPoints(random, 1, 3));
+			final double radius = 0.3;
+
+			int expected = 0;
+			for (final SimpleNode node : nodes)
+				if (isWithinRadius(node, query, radius))
+					expected++;
+
+			final ArrayList<SimpleNode> neighbors = search.findNeighborsSorted(query, radius);
+			assertEquals(expected, neighbors.size());
+			for (int i = 0; i < neighbors.size(); i++) {
+				assertTrue(isWithinRadius(neighbors.get(i), query, radius));
+				if (i > 0)
+					assertTrue(neighbors.get(i - 1).distanceTo(query) <= neighbors.get(i).distanceTo(query));
+			}
+		}
+	}
+
+	@Test
+	public void testBatchQueries() {
+		final Random random = new Random(3);
+		final int numDimensions = 3, numQueries = 1000;
+		final float[] points = randomPoints(random, 2000, numDimensions);
+		final float[] queries = randomPoints(random, numQueries, numDimensions);
+		final FlatKDTree tree = new FlatKDTree(points, numDimensions);
+
+		for (final int k : new int[] { 1, 4, 10 }) {
+			final int[] result = tree.findKNearestNeighbors(queries, k, 1);
+			assertEquals(numQueries * k, result.length);
+
+			final int[] single = new int[k];
+			final float[] squaredDistances = new float[k];
+			for (int q = 0; q < numQueries; q++) {
+				final float[] query = Arrays.copyOfRange(queries, q * numDimensions, (q + 1) * numDimensions);
+				assertEquals(k, tree.findKNearestNeighbors(query, k, single, squaredDistances));
+				assertArrayEquals(single, Arrays.copyOfRange(result, q * k, (q + 1) * k));
+
+				// the distances must be the k smallest ones (the indices might differ for ties)
+				final float[] expected = Arrays.copyOf(allSquaredDistances(points, numDimensions, query), k);
+				for (int i = 0; i < k; i++)
+					assertEquals(expected[i], squaredDistance(points, numDimensions, result[q * k + i], query), 0);
+			}
+
+			// more threads than chunks, and a number of threads not dividing the chunks
+			for (final int numThreads : new int[] { 2, 3, 8 })
+				assertArrayEquals(result, tree.findKNearestNeighbors(queries, k, numThreads));
+		}
+	}
+
+	@Test
+	public void testBatchQueriesWithFewPoints() {
+		final Random random = new Random(4);
+		final float[] points = randomPoints(random, 3, 2);
+		final float[] queries = randomPoints(random, 600, 2);
+		final FlatKDTree tree = new FlatKDTree(points, 2);
+
+		final int[] result = tree.findKNearestNeighbors(queries, 5, 2);
+		for (int q = 0; q < 600; q++) {
+			final int[] neighbors = Arrays.copyOfRange(result, q * 5, q * 5 + 3);
+			Arrays.sort(neighbors);
+			assertArrayEquals(new int[] { 0, 1, 2 }, neighbors);
+			assertEquals(-1, result[q * 5 + 3]);
+			assertEquals(-1, result[q * 5 + 4]);
+		}
+
+		final FlatKDTree empty = new FlatKDTree(new float[0], 2);
+		for (final int index : empty.findKNearestNeighbors(queries, 2, 2))
+			assertEquals(-1, index);
+	}
+
+	protected static float[] randomPoints(final Random random, final int count, final int numDimensions) {
+		final float[] result = new float[count * numDimensions];
+		for (int i = 0; i < result.length; i++)
+			result[i] = random.nextFloat();
+		return result;
+	}
+
+	/* the same arithmetic as FlatKDTree, so that points on the border are treated alike */
+	protected static int[] findWithinRadius(final float[] points, final int numDimensions, final float[] query, final double radius) {
+		final IntArray result = new IntArray();
+		for (int i = 0; i < points.length / numDimensions; i++) {
+			double distance = 0;
+			for (int d = 0; d < numDimensions; d++) {
+				final double diff = points[i * numDimensions + d] - query[d];
+				distance += diff * diff;
+			}
+			if (distance <= radius * radius)
+				result.add(i);
+		}
+		return sorted(result);
+	}
+
+	protected static boolean isWithinRadius(final SimpleNode node, final SimpleNode query, final double radius) {
+		double distance = 0;
+		for (int d = 0; d < 3; d++) {
+			final double diff = node.get(d) - query.get(d);
+			distance += diff * diff;
+		}
+		return distance <= radius * radius;
+	}
+
+	protected static float squaredDistance(final float[] points, final int numDimensions, final int index, final float[] query) {
+		float distance = 0;
+		for (int d = 0; d < numDimensions; d++) {
+			final float diff = points[index * numDimensions + d] - query[d];
+			distance += diff * diff;
+		}
+		return distance;
+	}
+
+	protected static float[] allSquaredDistances(final float[] points, final int numDimensions, final float[] query) {
+		final float[] result = new float[points.length / numDimensions];
+		for (int i = 0; i < result.length; i++)
+			result[i] = squaredDistance(points, numDimensions, i, query);
+		Arrays.sort(result);
+		return result;
+	}
+
+	protected static int[] sorted(final IntArray array) {
+		final int[] result = new int[array.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = array.get(i);
+		Arrays.sort(result);
+		return result;
+	}
+}
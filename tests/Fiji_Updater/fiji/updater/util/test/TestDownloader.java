@@ -0,0 +1,310 @@
+package fiji.updater.util.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import fiji.updater.util.Downloader;
+import fiji.updater.util.Progress;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Runs the Downloader against a local HTTP server that supports range
+ * requests (including If-Range), to test the parallel downloads and the
+ * resuming of interrupted ones.
+ */
+public class TestDownloader {
+	// the server's version of all files (HTTP dates have seconds precision)
+	protected final static long LAST_MODIFIED = 1262304000000l;
+
+	protected HttpServer server;
+	protected ExecutorService executor;
+	protected File directory;
+	protected Map<String, byte[]> contents =
+		new HashMap<String, byte[]>();
+	protected AtomicLong bytesSent = new AtomicLong();
+	protected volatile CountDownLatch concurrent;
+	protected volatile boolean allConcurrent = true;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("downloader", "");
+		directory.delete();
+		directory.mkdirs();
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new RangeHandler());
+		executor = Executors.newFixedThreadPool(8);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		executor.shutdownNow();
+		delete(directory);
+	}
+
+	@Test
+	public void testParallel() throws IOException {
+		List<Downloader.FileDownload> list =
+			new ArrayList<Downloader.FileDownload>();
+		for (int i = 0; i < 4; i++)
+			list.add(addFile("file" + i, 50000 + 1000 * i, i));
+
+		// every request waits until all four are being served
+		concurrent = new CountDownLatch(4);
+
+		TestableDownloader downloader = new TestableDownloader();
+		downloader.setThreadCount(4);
+		CountingProgress progress = new CountingProgress();
+		downloader.addProgress(progress);
+		downloader.start(list);
+
+		assertTrue("downloads were not parallel", allConcurrent);
+		assertFalse("itemDone() was called with the lock held",
+			downloader.calledWithLock);
+		assertEquals(4, progress.itemsDone);
+		assertEquals(1, progress.done);
+		for (int i = 0; i < 4; i++)
+			assertDownloaded("file" + i);
+	}
+
+	@Test
+	public void testResume() throws IOException {
+		Downloader.FileDownload download = addFile("resume", 100000, 5);
+		writePartial("resume", contents.get("/resume"), 30000,
+			LAST_MODIFIED);
+
+		new Downloader().start(download);
+
+		assertDownloaded("resume");
+		assertEquals(70000, bytesSent.get());
+	}
+
+	@Test
+	public void testRestartIfChanged() throws IOException {
+		Downloader.FileDownload download = addFile("changed", 100000, 6);
+		// a prefix of an older version of the file
+		writePartial("changed", randomBytes(30000, 7), 30000,
+			LAST_MODIFIED - 86400000l);
+
+		new Downloader().start(download);
+
+		assertDownloaded("changed");
+		assertEquals(100000, bytesSent.get());
+	}
+
+	@Test
+	public void testRestartIfTooLong() throws IOException {
+		Downloader.FileDownload download = addFile("shorter", 20000, 8);
+		// the same version, but the partial file is longer than the file
+		writePartial("shorter", randomBytes(30000, 9), 30000,
+			LAST_MODIFIED);
+
+		new Downloader().start(download);
+
+		assertDownloaded("shorter");
+		assertEquals(20000, bytesSent.get());
+	}
+
+	protected Downloader.FileDownload addFile(final String name, int size,
+			long seed) {
+		final byte[] content = randomBytes(size, seed);
+		contents.put("/" + name, content);
+		final String url = "http://127.0.0.1:"
+			+ server.getAddress().getPort() + "/" + name;
+		return new Downloader.FileDownload() {
+			public String getDestination() {
+				return new File(directory, name).getPath();
+			}
+
+			public String getURL() {
+				return url;
+			}
+
+			public long getFilesize() {
+				return content.length;
+			}
+		};
+	}
+
+	protected void writePartial(String name, byte[] content, int length,
+			long lastModified) throws IOException {
+		File partial = new File(directory, name + ".part");
+		OutputStream out = new FileOutputStream(partial);
+		out.write(content, 0, length);
+		out.close();
+		partial.setLastModified(lastModified);
+	}
+
+	protected void assertDownloaded(String name) throws IOException {
+		File file = new File(directory, name);
+		assertTrue(name + " is missing", file.exists());
+		assertFalse(name + ".part was not removed",
+			new File(directory, name + ".part").exists());
+		assertArrayEquals(contents.get("/" + name), readFile(file));
+	}
+
+	protected static byte[] randomBytes(int size, long seed) {
+		byte[] result = new byte[size];
+		new Random(seed).nextBytes(result);
+		return result;
+	}
+
+	protected static byte[] readFile(File file) throws IOException {
+		byte[] result = new byte[(int)file.length()];
+		InputStream in = new FileInputStream(file);
+		int offset = 0;
+		while (offset < result.length) {
+			int count = in.read(result, offset,
+				result.length - offset);
+			if (count < 0)
+				break;
+			offset += count;
+		}
+		in.close();
+		return result;
+	}
+
+	protected static String httpDate(long millis) {
+		SimpleDateFormat format = new SimpleDateFormat(
+			"EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(millis));
+	}
+
+	protected static void delete(File file) {
+		File[] list = file.listFiles();
+		if (list != null)
+			for (File child : list)
+				delete(child);
+		file.delete();
+	}
+
+	/*
+	 * Serves the contents, honoring "Range: bytes=<offset>-" unless the
+	 * If-Range date does not match the file's.
+	 */
+	protected class RangeHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			byte[] content = contents.get(exchange.getRequestURI()
+					.getPath());
+			if (content == null) {
+				exchange.sendResponseHeaders(404, -1);
+				exchange.close();
+				return;
+			}
+
+			CountDownLatch latch = concurrent;
+			if (latch != null) {
+				latch.countDown();
+				try {
+					if (!latch.await(10, TimeUnit.SECONDS))
+						allConcurrent = false;
+				} catch (InterruptedException e) {
+					allConcurrent = false;
+				}
+			}
+
+			String lastModified = httpDate(LAST_MODIFIED);
+			exchange.getResponseHeaders().set("Last-Modified",
+				lastModified);
+
+			int offset = 0;
+			String range = exchange.getRequestHeaders()
+				.getFirst("Range");
+			String ifRange = exchange.getRequestHeaders()
+				.getFirst("If-Range");
+			if (range != null && range.startsWith("bytes=")
+					&& range.endsWith("-") &&
+					(ifRange == null ||
+					 ifRange.equals(lastModified))) {
+				offset = Integer.parseInt(range.substring(6,
+					range.length() - 1));
+				if (offset >= content.length) {
+					exchange.sendResponseHeaders(416, -1);
+					exchange.close();
+					return;
+				}
+				exchange.getResponseHeaders().set(
+					"Content-Range", "bytes " + offset
+					+ "-" + (content.length - 1) + "/"
+					+ content.length);
+				exchange.sendResponseHeaders(206,
+					content.length - offset);
+			}
+			else
+				exchange.sendResponseHeaders(200,
+					content.length);
+
+			OutputStream out = exchange.getResponseBody();
+			out.write(content, offset, content.length - offset);
+			out.close();
+			bytesSent.addAndGet(content.length - offset);
+			exchange.close();
+		}
+	}
+
+	protected static class TestableDownloader extends Downloader {
+		protected volatile boolean calledWithLock;
+
+		public void itemDone(Object item) {
+			if (Thread.holdsLock(progressLock))
+				calledWithLock = true;
+			super.itemDone(item);
+		}
+	}
+
+	protected static class CountingProgress implements Progress {
+		protected int itemsDone, done;
+
+		public void setTitle(String title) {}
+		public void setCount(int count, int total) {}
+		public void addItem(Object item) {}
+		public void setItemCount(int count, int total) {}
+
+		public synchronized void itemDone(Object item) {
+			itemsDone++;
+		}
+
+		public synchronized void done() {
+			done++;
+		}
+	}
+}
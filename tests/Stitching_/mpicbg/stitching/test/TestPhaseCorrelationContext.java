@@ -0,0 +1,177 @@
+package mpicbg.stitching.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.imglib.algorithm.fft.PhaseCorrelation;
+import mpicbg.imglib.algorithm.fft.PhaseCorrelationPeak;
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.cursor.LocalizableByDimCursor;
+import mpicbg.imglib.cursor.LocalizableCursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.type.numeric.RealType;
+import mpicbg.imglib.type.numeric.integer.UnsignedShortType;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.stitching.PhaseCorrelationContext;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Compares the phase correlations of {@link PhaseCorrelationContext} with the ones of imglib's
+ * {@link PhaseCorrelation}, which it reproduces while reusing its buffers
+ */
+public class TestPhaseCorrelationContext
+{
+	final static int NUM_PEAKS = 5;
+
+	@After
+	public void closeCache()
+	{
+		PhaseCorrelationContext.closeCache();
+	}
+
+	@Test
+	public void test2D()
+	{
+		final Image< FloatType > source = createRandomImage( new int[] { 200, 160 }, new FloatType(), 1 );
+
+		compare( crop( source, new int[] { 0, 0 }, new int[] { 120, 100 } ), crop( source, new int[] { 40, 25 }, new int[] { 120, 100 } ) );
+		compare( crop( source, new int[] { 70, 50 }, new int[] { 96, 90 } ), crop( source, new int[] { 13, 2 }, new int[] { 110, 100 } ) );
+	}
+
+	@Test
+	public void test3D()
+	{
+		final Image< FloatType > source = createRandomImage( new int[] { 64, 56, 40 }, new FloatType(), 2 );
+
+		compare( crop( source, new int[] { 0, 0, 0 }, new int[] { 40, 36, 24 } ), crop( source, new int[] { 12, 9, 7 }, new int[] { 40, 36, 24 } ) );
+	}
+
+	@Test
+	public void testUnsignedShort()
+	{
+		final Image< UnsignedShortType > source = createRandomImage( new int[] { 180, 150 }, new UnsignedShortType(), 3 );
+
+		compare( crop( source, new int[] { 30, 20 }, new int[] { 100, 90 } ), crop( source, new int[] { 0, 0 }, new int[] { 100, 90 } ) );
+	}
+
+	@Test
+	public void testCachedContexts()
+	{
+		final Image< FloatType > source = createRandomImage( new int[] { 200, 160 }, new FloatType(), 4 );
+		final Image< FloatType > img1 = crop( source, new int[] { 0, 0 }, new int[] { 120, 100 } );
+		final Image< FloatType > img2 = crop( source, new int[] { 40, 25 }, new int[] { 120, 100 } );
+		final Image< FloatType > img3 = crop( source, new int[] { 17, 31 }, new int[] { 120, 100 } );
+		final int[] paddedSize = PhaseCorrelationContext.getPaddedSize( img1, img2 );
+
+		// without a cache every call gets its own context
+		assertNotSame( PhaseCorrelationContext.getContext( paddedSize ), PhaseCorrelationContext.getContext( paddedSize ) );
+
+		PhaseCorrelationContext.openCache();
+		final PhaseCorrelationContext context = PhaseCorrelationContext.getContext( paddedSize );
+		assertSame( context, PhaseCorrelationContext.getContext( paddedSize ) );
+
+		// a reused context gives the same results as a new one
+		context.computePhaseCorrelation( img1, img3, NUM_PEAKS );
+		assertPeaksEqual( getPeaks( img1, img2 ), context.computePhaseCorrelation( img1, img2, NUM_PEAKS ) );
+
+		PhaseCorrelationContext.closeCache();
+		assertNotSame( context, PhaseCorrelationContext.getContext( paddedSize ) );
+	}
+
+	protected < T extends RealType< T >, S extends RealType< S > > void compare( final Image< T > img1, final Image< S > img2 )
+	{
+		final PhaseCorrelationContext context = PhaseCorrelationContext.getContext( PhaseCorrelationContext.getPaddedSize( img1, img2 ) );
+		final ArrayList< PhaseCorrelationPeak > peaks = context.computePhaseCorrelation( img1, img2, NUM_PEAKS );
+		final ArrayList< PhaseCorrelationPeak > expected = getPeaks( img1, img2 );
+
+		assertPeaksEqual( expected, peaks );
+
+		// the number of threads of each stage does not change the result
+		assertPeaksEqual( expected, context.computePhaseCorrelation( img1, img2, NUM_PEAKS, 1 ) );
+		assertPeaksEqual( expected, context.computePhaseCorrelation( img1, img2, NUM_PEAKS, 3 ) );
+	}
+
+	protected < T extends RealType< T >, S extends RealType< S > > ArrayList< PhaseCorrelationPeak > getPeaks( final Image< T > img1, final Image< S > img2 )
+	{
+		final PhaseCorrelation< T, S > phaseCorr = new PhaseCorrelation< T, S >( img1, img2 );
+		phaseCorr.setInvestigateNumPeaks( NUM_PEAKS );
+		phaseCorr.setComputeFFTinParalell( true );
+		phaseCorr.process();
+
+		return phaseCorr.getAllShifts();
+	}
+
+	protected void assertPeaksEqual( final ArrayList< PhaseCorrelationPeak > expected, final ArrayList< PhaseCorrelationPeak > actual )
+	{
+		assertEquals( expected.size(), actual.size() );
+
+		// the best shift is the last one
+		for ( int i = expected.size() - 1; i >= 0; --i )
+		{
+			final PhaseCorrelationPeak e = expected.get( i );
+			final PhaseCorrelationPeak a = actual.get( i );
+
+			assertArrayEquals( e.getPosition(), a.getPosition() );
+			assertEquals( e.getCrossCorrelationPeak(), a.getCrossCorrelationPeak(), 1e-4 );
+			assertEquals( e.getPhaseCorrelationPeak(), a.getPhaseCorrelationPeak(), 1e-4 );
+			assertEquals( e.getNumPixels(), a.getNumPixels() );
+		}
+	}
+
+	protected static < T extends RealType< T > > Image< T > createRandomImage( final int[] size, final T type, final long seed )
+	{
+		final Image< T > img = new ImageFactory< T >( type, new ArrayContainerFactory() ).createImage( size );
+		final Random random = new Random( seed );
+		final LocalizableCursor< T > cursor = img.createLocalizableCursor();
+
+		// smooth structures plus noise, so that the correlation has a clear peak
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+
+			double value = 1000 + 200 * random.nextDouble();
+
+			for ( int d = 0; d < img.getNumDimensions(); ++d )
+				value += 300 * Math.sin( cursor.getPosition( d ) * ( 0.11 + 0.07 * d ) ) * Math.cos( cursor.getPosition( ( d + 1 ) % img.getNumDimensions() ) * 0.05 );
+
+			cursor.getType().setReal( value );
+		}
+
+		cursor.close();
+
+		return img;
+	}
+
+	protected static < T extends RealType< T > > Image< T > crop( final Image< T > source, final int[] offset, final int[] size )
+	{
+		final Image< T > img = source.createNewImage( size );
+		final LocalizableCursor< T > cursor = img.createLocalizableCursor();
+		final LocalizableByDimCursor< T > sourceCursor = source.createLocalizableByDimCursor();
+		final int[] position = new int[ size.length ];
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.getPosition( position );
+
+			for ( int d = 0; d < size.length; ++d )
+				position[ d ] += offset[ d ];
+
+			sourceCursor.setPosition( position );
+			cursor.getType().set( sourceCursor.getType() );
+		}
+
+		cursor.close();
+		sourceCursor.close();
+
+		return img;
+	}
+}
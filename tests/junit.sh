@@ -0,0 +1,19 @@
+#!/bin/sh
+
+# JUnit tests of the plugins
+#
+# They live in tests/<plugin>/ instead of src-plugins/<plugin>/ so that the
+# plugin .jar files do not need junit.jar; they are compiled against all
+# .jar files and every class named Test* is run.
+
+cd "$(dirname "$0")"/.. &&
+CLASSES=tests/classes &&
+SOURCES="$(find tests/*/ -name '*.java' ! -path "$CLASSES/*")" &&
+TESTS="$(echo "$SOURCES" |
+	sed -n 's|^tests/[^/]*/\(.*/\)*\(Test[^/]*\)\.java$|\1\2|p' |
+	tr / .)" &&
+rm -rf $CLASSES &&
+mkdir -p $CLASSES &&
+./fiji --javac -d $CLASSES $SOURCES &&
+./fiji --headless --full-classpath --cp $CLASSES \
+	--main-class=org.junit.runner.JUnitCore $TESTS